@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes and reads the few NBT tags the synthetic world uses: compounds, ints, longs and byte
+ * arrays.
+ *
+ * <p>Compounds are read into maps of tag name to {@link Integer}, {@link Long}, {@code byte[]} or
+ * (nested) {@link Map}. Any other tag is reported as damage, since the synthetic world never
+ * writes one.</p>
+ */
+final class Nbt {
+  static final byte TAG_END = 0;
+  static final byte TAG_INT = 3;
+  static final byte TAG_LONG = 4;
+  static final byte TAG_BYTE_ARRAY = 7;
+  static final byte TAG_COMPOUND = 10;
+
+  private Nbt() {
+  }
+
+  /**
+   * Writes the header of a tag.
+   *
+   * @param out Where to write.
+   * @param type Type of the tag.
+   * @param name Name of the tag.
+   * @throws IOException if writing fails.
+   */
+  static void writeHeader(DataOutput out, byte type, String name) throws IOException {
+    out.writeByte(type);
+    out.writeUTF(name);
+  }
+
+  static void writeInt(DataOutput out, String name, int value) throws IOException {
+    writeHeader(out, TAG_INT, name);
+    out.writeInt(value);
+  }
+
+  static void writeLong(DataOutput out, String name, long value) throws IOException {
+    writeHeader(out, TAG_LONG, name);
+    out.writeLong(value);
+  }
+
+  static void writeByteArray(DataOutput out, String name, byte[] value) throws IOException {
+    writeHeader(out, TAG_BYTE_ARRAY, name);
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  /**
+   * Reads a root tag, which must be a compound.
+   *
+   * @param in Where to read from.
+   * @return Tags of the compound, by name.
+   * @throws IOException if reading fails or the data isn't the NBT this class writes.
+   */
+  static Map<String, Object> readRoot(DataInput in) throws IOException {
+    if (in.readByte() != TAG_COMPOUND) {
+      throw new IOException("Root tag isn't a compound");
+    }
+    in.readUTF();
+    return readCompound(in, 0);
+  }
+
+  private static Map<String, Object> readCompound(DataInput in, int depth) throws IOException {
+    if (depth > 8) {
+      throw new IOException("Compounds nested too deep");
+    }
+    Map<String, Object> tags = new LinkedHashMap<>();
+    while (true) {
+      byte type = in.readByte();
+      if (type == TAG_END) {
+        return tags;
+      }
+      String name = in.readUTF();
+      switch (type) {
+        case TAG_INT:
+          tags.put(name, in.readInt());
+          break;
+        case TAG_LONG:
+          tags.put(name, in.readLong());
+          break;
+        case TAG_BYTE_ARRAY:
+          int length = in.readInt();
+          if (length < 0 || length > 1 << 24) {
+            throw new IOException("Bad byte array length " + length);
+          }
+          byte[] value = new byte[length];
+          in.readFully(value);
+          tags.put(name, value);
+          break;
+        case TAG_COMPOUND:
+          tags.put(name, readCompound(in, depth + 1));
+          break;
+        default:
+          throw new IOException("Unexpected tag type " + type);
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the benchmarks, and the working directory they run in.
+ *
+ * <p>Options are given as {@code --name=value}, or {@code --name} for flags.</p>
+ */
+final class Options {
+  private final Map<String, String> values = new HashMap<>();
+
+  /**
+   * Parses the options.
+   *
+   * @param args Command line arguments.
+   * @throws IllegalArgumentException if an argument isn't an option.
+   */
+  Options(String[] args) {
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument " + arg);
+      }
+      int equals = arg.indexOf('=');
+      if (equals == -1) {
+        values.put(arg.substring(2), "true");
+      } else {
+        values.put(arg.substring(2, equals), arg.substring(equals + 1));
+      }
+    }
+  }
+
+  /**
+   * Gets an option.
+   *
+   * @param name Name of the option.
+   * @return Its value, or {@code null} if it wasn't given.
+   */
+  String get(String name) {
+    return values.get(name);
+  }
+
+  /**
+   * Checks whether an option (or flag) was given.
+   *
+   * @param name Name of the option.
+   * @return {@code true} if it was given.
+   */
+  boolean has(String name) {
+    return values.containsKey(name);
+  }
+
+  int getInt(String name, int defaultValue) {
+    String value = values.get(name);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  double getDouble(String name, double defaultValue) {
+    String value = values.get(name);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  /**
+   * Makes sure the working directory belongs to a benchmark, and deletes what the last run left.
+   *
+   * <p>A directory is taken over only if it's empty, and is marked so later runs know it's
+   * theirs.</p>
+   *
+   * @param marker Name of the file marking the directory.
+   * @param folders Folders of the last run to delete.
+   * @throws IOException if the directory holds something else, or can't be cleaned.
+   */
+  static void prepareWorkingDirectory(String marker, String... folders) throws IOException {
+    Path markerPath = Paths.get(marker);
+    if (!Files.exists(markerPath)) {
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get("."))) {
+        if (entries.iterator().hasNext()) {
+          throw new IOException("Run the benchmark in an empty directory, it deletes what's in " +
+              "it: " + Paths.get(".").toAbsolutePath().normalize());
+        }
+      }
+      Files.createFile(markerPath);
+    }
+    for (String folder : folders) {
+      deleteTree(Paths.get(folder));
+    }
+  }
+
+  /**
+   * Deletes a folder and everything in it.
+   *
+   * @param root Folder to delete. Nothing happens if it doesn't exist.
+   * @throws IOException if something can't be deleted.
+   */
+  static void deleteTree(Path root) throws IOException {
+    if (!Files.exists(root)) {
+      return;
+    }
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        if (e != null) {
+          throw e;
+        }
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.storage.S3Storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * A minimal S3-compatible object store on this host, holding one bucket in memory.
+ *
+ * <p>It answers the requests {@link S3Storage} sends, the way S3 does: objects are read, deleted
+ * and listed (ListObjectsV2), and written as multipart uploads that can be listed (ListParts),
+ * completed and aborted. Listings come in pages of a few entries, so clients have to follow
+ * them. Every request must be signed (AWS Signature Version 4) with the stand-in's keys, which it
+ * checks on its own rather than with the client's signer.</p>
+ *
+ * <p>Failures can be set up: the next few requests can fail with a server error, which clients
+ * should try again, a part can be rejected, which fails its upload, and multipart uploads can be
+ * forgotten, like a lifecycle rule drops old ones.</p>
+ */
+final class S3StandIn implements Closeable {
+  /** Region the stand-in signs for. */
+  static final String REGION = "us-east-1";
+  static final String ACCESS_KEY = "stand-in";
+  static final String SECRET_KEY = "stand-in-secret";
+
+  private final String bucket;
+  /** Most entries in one page of a listing. */
+  private final int pageSize;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  /** Objects by key. */
+  private final SortedMap<String, StoredData> objects = new TreeMap<>();
+  /** Unfinished multipart uploads by ID. */
+  private final Map<String, Upload> uploads = new HashMap<>();
+  private int uploadsStarted = 0;
+  private int partsStored = 0;
+  private int listingPages = 0;
+  private int partListingPages = 0;
+  /** Requests that still fail with a server error. */
+  private int failingRequests = 0;
+  /** Part rejected the next time it's uploaded, or 0. */
+  private int rejectedPart = 0;
+
+  /** Data of an object or part. */
+  private static final class StoredData {
+    final byte[] data;
+    final String etag;
+    final long lastModified = System.currentTimeMillis();
+
+    StoredData(byte[] data) {
+      this.data = data;
+      this.etag = "\"" + hex(digest("MD5", data)) + "\"";
+    }
+  }
+
+  /** An unfinished multipart upload. */
+  private static final class Upload {
+    final String key;
+    final SortedMap<Integer, StoredData> parts = new TreeMap<>();
+
+    Upload(String key) {
+      this.key = key;
+    }
+  }
+
+  /** An error answered the way S3 does. */
+  private static final class S3Error extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+    final String code;
+
+    S3Error(int status, String code, String message) {
+      super(message);
+      this.status = status;
+      this.code = code;
+    }
+  }
+
+  /**
+   * Starts the stand-in on a free port of this host.
+   *
+   * @param bucket Name of its bucket.
+   * @param pageSize Most entries in one page of a listing.
+   * @throws IOException if the server can't be started.
+   */
+  S3StandIn(String bucket, int pageSize) throws IOException {
+    this.bucket = bucket;
+    this.pageSize = pageSize;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          S3StandIn.this.handle(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    executor = Executors.newFixedThreadPool(8);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Gets the URL clients send their requests to.
+   *
+   * @return Endpoint URL.
+   */
+  String getEndpoint() {
+    InetSocketAddress address = server.getAddress();
+    return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+  }
+
+  /**
+   * Makes the next requests fail with a server error.
+   *
+   * @param count Number of requests that fail.
+   */
+  synchronized void failRequests(int count) {
+    failingRequests = count;
+  }
+
+  /**
+   * Rejects the next upload of a part with a client error, which isn't tried again.
+   *
+   * @param number Number of the part.
+   */
+  synchronized void rejectPart(int number) {
+    rejectedPart = number;
+  }
+
+  /** Forgets every unfinished multipart upload. */
+  synchronized void forgetUploads() {
+    uploads.clear();
+  }
+
+  synchronized int getOpenUploads() {
+    return uploads.size();
+  }
+
+  synchronized int getUploadsStarted() {
+    return uploadsStarted;
+  }
+
+  synchronized int getPartsStored() {
+    return partsStored;
+  }
+
+  synchronized int getFailingRequests() {
+    return failingRequests;
+  }
+
+  synchronized int getListingPages() {
+    return listingPages;
+  }
+
+  synchronized int getPartListingPages() {
+    return partListingPages;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Answers a request.
+   *
+   * @param exchange The request.
+   * @throws IOException if the answer can't be sent.
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    byte[] body = readAll(exchange.getRequestBody());
+    byte[] answer;
+    int status = 200;
+    try {
+      checkSignature(exchange, body);
+      answer = answer(exchange, body);
+    } catch (S3Error e) {
+      status = e.status;
+      answer = ("<Error><Code>" + e.code + "</Code><Message>" + escape(e.getMessage()) +
+          "</Message></Error>").getBytes(StandardCharsets.UTF_8);
+    }
+    if (status == 200 && answer.length == 0) {
+      status = exchange.getRequestMethod().equals("DELETE") ? 204 : 200;
+    }
+    exchange.sendResponseHeaders(status, answer.length == 0 ? -1 : answer.length);
+    if (answer.length > 0) {
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(answer);
+      }
+    }
+  }
+
+  /**
+   * Carries out a signed request.
+   *
+   * @param exchange The request.
+   * @param body Its body.
+   * @return Body of the answer (empty for none).
+   * @throws S3Error if the request fails.
+   */
+  private synchronized byte[] answer(HttpExchange exchange, byte[] body) throws S3Error {
+    if (failingRequests > 0) {
+      failingRequests--;
+      throw new S3Error(500, "InternalError", "Failing as asked");
+    }
+
+    String path = decode(exchange.getRequestURI().getRawPath());
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    if (!path.equals("/" + bucket) && !path.startsWith("/" + bucket + "/")) {
+      throw new S3Error(404, "NoSuchBucket", "The bucket doesn't exist");
+    }
+    String key = path.length() > bucket.length() + 2 ? path.substring(bucket.length() + 2) : null;
+    String method = exchange.getRequestMethod();
+
+    if (key == null) {
+      if (method.equals("GET") && "2".equals(query.get("list-type"))) {
+        return listObjects(query);
+      }
+    } else if (query.containsKey("uploads")) {
+      if (method.equals("POST")) {
+        String id = Integer.toString(++uploadsStarted);
+        uploads.put(id, new Upload(key));
+        return xml("<InitiateMultipartUploadResult><Bucket>" + escape(bucket) + "</Bucket><Key>" +
+            escape(key) + "</Key><UploadId>" + id + "</UploadId></InitiateMultipartUploadResult>");
+      }
+    } else if (query.containsKey("uploadId")) {
+      Upload upload = uploads.get(query.get("uploadId"));
+      if (upload == null || !upload.key.equals(key)) {
+        throw new S3Error(404, "NoSuchUpload", "The upload doesn't exist");
+      }
+      switch (method) {
+        case "PUT":
+          return uploadPart(exchange, upload, query, body);
+        case "GET":
+          return listParts(upload, query);
+        case "POST":
+          return completeUpload(upload, query.get("uploadId"), body);
+        case "DELETE":
+          uploads.remove(query.get("uploadId"));
+          return new byte[0];
+        default:
+          break;
+      }
+    } else {
+      switch (method) {
+        case "GET":
+          StoredData object = objects.get(key);
+          if (object == null) {
+            throw new S3Error(404, "NoSuchKey", "The object doesn't exist");
+          }
+          return object.data;
+        case "PUT":
+          objects.put(key, new StoredData(body));
+          return new byte[0];
+        case "DELETE":
+          objects.remove(key);
+          return new byte[0];
+        default:
+          break;
+      }
+    }
+    throw new S3Error(405, "MethodNotAllowed", method + " isn't supported here");
+  }
+
+  /**
+   * Stores a part of a multipart upload.
+   *
+   * @see #answer
+   */
+  private byte[] uploadPart(HttpExchange exchange, Upload upload, Map<String, String> query,
+      byte[] body) throws S3Error {
+    int number = parseInt(query.get("partNumber"));
+    if (number < 1 || number > 10000) {
+      throw new S3Error(400, "InvalidArgument", "Part numbers go from 1 to 10000");
+    }
+    if (number == rejectedPart) {
+      rejectedPart = 0;
+      throw new S3Error(400, "InvalidRequest", "Rejecting part " + number + " as asked");
+    }
+    StoredData part = new StoredData(body);
+    upload.parts.put(number, part);
+    partsStored++;
+    exchange.getResponseHeaders().set("ETag", part.etag);
+    return new byte[0];
+  }
+
+  /**
+   * Lists a page of the parts of a multipart upload.
+   *
+   * @see #answer
+   */
+  private byte[] listParts(Upload upload, Map<String, String> query) throws S3Error {
+    int marker = query.containsKey("part-number-marker") ?
+        parseInt(query.get("part-number-marker")) : 0;
+    int maxParts = query.containsKey("max-parts") ?
+        Math.min(pageSize, parseInt(query.get("max-parts"))) : pageSize;
+    partListingPages++;
+
+    StringBuilder xml = new StringBuilder("<ListPartsResult><Bucket>").append(escape(bucket))
+        .append("</Bucket><Key>").append(escape(upload.key)).append("</Key><PartNumberMarker>")
+        .append(marker).append("</PartNumberMarker><MaxParts>").append(maxParts)
+        .append("</MaxParts>");
+    List<Integer> numbers = new ArrayList<>(upload.parts.tailMap(marker + 1).keySet());
+    boolean truncated = numbers.size() > maxParts;
+    for (int number : numbers.subList(0, Math.min(maxParts, numbers.size()))) {
+      StoredData part = upload.parts.get(number);
+      xml.append("<Part><PartNumber>").append(number).append("</PartNumber><LastModified>")
+          .append(formatTime(part.lastModified)).append("</LastModified><ETag>")
+          .append(escape(part.etag)).append("</ETag><Size>").append(part.data.length)
+          .append("</Size></Part>");
+    }
+    xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+    if (truncated) {
+      xml.append("<NextPartNumberMarker>").append(numbers.get(maxParts - 1))
+          .append("</NextPartNumberMarker>");
+    }
+    return xml(xml.append("</ListPartsResult>").toString());
+  }
+
+  /**
+   * Puts the listed parts of a multipart upload together into its object.
+   *
+   * @see #answer
+   */
+  private byte[] completeUpload(Upload upload, String id, byte[] body) throws S3Error {
+    Document request;
+    try {
+      request = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(new ByteArrayInputStream(body));
+    } catch (ParserConfigurationException | SAXException | IOException e) {
+      throw new S3Error(400, "MalformedXML", "The part list isn't valid XML");
+    }
+
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    NodeList listed = request.getElementsByTagName("Part");
+    if (listed.getLength() == 0) {
+      throw new S3Error(400, "MalformedXML", "No parts are listed");
+    }
+    int last = 0;
+    for (int i = 0; i < listed.getLength(); i++) {
+      Element entry = (Element) listed.item(i);
+      int number = parseInt(text(entry, "PartNumber"));
+      StoredData part = upload.parts.get(number);
+      if (number <= last) {
+        throw new S3Error(400, "InvalidPartOrder", "Parts must be listed in ascending order");
+      }
+      if (part == null || !part.etag.equals(text(entry, "ETag"))) {
+        throw new S3Error(400, "InvalidPart", "Part " + number + " wasn't uploaded as listed");
+      }
+      if (i < listed.getLength() - 1 && part.data.length < S3Storage.MIN_PART_SIZE) {
+        throw new S3Error(400, "EntityTooSmall", "Part " + number + " is too small");
+      }
+      data.write(part.data, 0, part.data.length);
+      last = number;
+    }
+
+    StoredData object = new StoredData(data.toByteArray());
+    objects.put(upload.key, object);
+    uploads.remove(id);
+    return xml("<CompleteMultipartUploadResult><Bucket>" + escape(bucket) + "</Bucket><Key>" +
+        escape(upload.key) + "</Key><ETag>" + escape(object.etag) +
+        "</ETag></CompleteMultipartUploadResult>");
+  }
+
+  /**
+   * Lists a page of the objects (ListObjectsV2). The continuation token is the last key listed.
+   *
+   * @see #answer
+   */
+  private byte[] listObjects(Map<String, String> query) throws S3Error {
+    String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+    String token = query.get("continuation-token");
+    int maxKeys = query.containsKey("max-keys") ?
+        Math.min(pageSize, parseInt(query.get("max-keys"))) : pageSize;
+    listingPages++;
+
+    SortedMap<String, StoredData> listed = token == null ? objects.tailMap(prefix) :
+        objects.tailMap(token + "\0");
+    StringBuilder xml = new StringBuilder("<ListBucketResult><Name>").append(escape(bucket))
+        .append("</Name><Prefix>").append(escape(prefix)).append("</Prefix><MaxKeys>")
+        .append(maxKeys).append("</MaxKeys>");
+    int count = 0;
+    String lastKey = null;
+    boolean truncated = false;
+    for (Map.Entry<String, StoredData> object : listed.entrySet()) {
+      if (!object.getKey().startsWith(prefix)) {
+        break;
+      }
+      if (count == maxKeys) {
+        truncated = true;
+        break;
+      }
+      xml.append("<Contents><Key>").append(escape(object.getKey())).append("</Key><LastModified>")
+          .append(formatTime(object.getValue().lastModified)).append("</LastModified><ETag>")
+          .append(escape(object.getValue().etag)).append("</ETag><Size>")
+          .append(object.getValue().data.length).append("</Size></Contents>");
+      count++;
+      lastKey = object.getKey();
+    }
+    xml.append("<KeyCount>").append(count).append("</KeyCount><IsTruncated>").append(truncated)
+        .append("</IsTruncated>");
+    if (truncated) {
+      xml.append("<NextContinuationToken>").append(escape(lastKey))
+          .append("</NextContinuationToken>");
+    }
+    return xml(xml.append("</ListBucketResult>").toString());
+  }
+
+  /**
+   * Checks the request's AWS Signature Version 4 and payload hash.
+   *
+   * @param exchange The request.
+   * @param body Its body.
+   * @throws S3Error if the request isn't signed with the stand-in's keys.
+   */
+  private static void checkSignature(HttpExchange exchange, byte[] body) throws S3Error {
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    String amzDate = exchange.getRequestHeaders().getFirst("x-amz-date");
+    String payloadHash = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+    String prefix = "AWS4-HMAC-SHA256 Credential=";
+    if (authorization == null || amzDate == null || payloadHash == null ||
+        !authorization.startsWith(prefix)) {
+      throw new S3Error(403, "AccessDenied", "The request isn't signed");
+    }
+    if (!payloadHash.equals(hex(digest("SHA-256", body)))) {
+      throw new S3Error(400, "XAmzContentSHA256Mismatch", "The body doesn't match its hash");
+    }
+
+    Map<String, String> fields = new HashMap<>();
+    for (String field : authorization.substring(prefix.length() - "Credential=".length())
+        .split(",")) {
+      String[] pair = field.trim().split("=", 2);
+      if (pair.length == 2) {
+        fields.put(pair[0], pair[1]);
+      }
+    }
+    String scope = amzDate.substring(0, 8) + "/" + REGION + "/s3/aws4_request";
+    if (!(ACCESS_KEY + "/" + scope).equals(fields.get("Credential")) ||
+        fields.get("SignedHeaders") == null) {
+      throw new S3Error(403, "InvalidAccessKeyId", "Unknown credential " +
+          fields.get("Credential"));
+    }
+
+    StringBuilder canonical = new StringBuilder(exchange.getRequestMethod()).append('\n')
+        .append(exchange.getRequestURI().getRawPath()).append('\n');
+    TreeMap<String, String> sortedQuery = new TreeMap<>();
+    for (Map.Entry<String, String> parameter :
+        parseQuery(exchange.getRequestURI().getRawQuery()).entrySet()) {
+      sortedQuery.put(encode(parameter.getKey()), encode(parameter.getValue()));
+    }
+    String separator = "";
+    for (Map.Entry<String, String> parameter : sortedQuery.entrySet()) {
+      canonical.append(separator).append(parameter.getKey()).append('=')
+          .append(parameter.getValue());
+      separator = "&";
+    }
+    canonical.append('\n');
+    for (String header : fields.get("SignedHeaders").split(";")) {
+      String value = exchange.getRequestHeaders().getFirst(header);
+      canonical.append(header).append(':').append(value == null ? "" : value.trim())
+          .append('\n');
+    }
+    canonical.append('\n').append(fields.get("SignedHeaders")).append('\n').append(payloadHash);
+
+    String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" +
+        hex(digest("SHA-256", canonical.toString().getBytes(StandardCharsets.UTF_8)));
+    byte[] signingKey = hmac(("AWS4" + SECRET_KEY).getBytes(StandardCharsets.UTF_8),
+        amzDate.substring(0, 8));
+    for (String part : new String[] {REGION, "s3", "aws4_request"}) {
+      signingKey = hmac(signingKey, part);
+    }
+    if (!hex(hmac(signingKey, stringToSign)).equals(fields.get("Signature"))) {
+      throw new S3Error(403, "SignatureDoesNotMatch", "The signature doesn't match");
+    }
+  }
+
+  /**
+   * Splits a raw query string into its decoded parameters.
+   *
+   * @param rawQuery Query string, or {@code null}.
+   * @return Parameters.
+   */
+  private static Map<String, String> parseQuery(String rawQuery) {
+    Map<String, String> query = new HashMap<>();
+    if (rawQuery != null && !rawQuery.isEmpty()) {
+      for (String parameter : rawQuery.split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals == -1) {
+          query.put(decode(parameter), "");
+        } else {
+          query.put(decode(parameter.substring(0, equals)),
+              decode(parameter.substring(equals + 1)));
+        }
+      }
+    }
+    return query;
+  }
+
+  /** Decodes a percent-encoded string, where {@code +} is itself. */
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 isn't supported", e);
+    }
+  }
+
+  /** Percent-encodes a string the way SigV4 expects in a query. */
+  private static String encode(String value) {
+    StringBuilder encoded = new StringBuilder();
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      int c = b & 0xFF;
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+          "-_.~".indexOf(c) != -1) {
+        encoded.append((char) c);
+      } else {
+        encoded.append(String.format("%%%02X", c));
+      }
+    }
+    return encoded.toString();
+  }
+
+  private static int parseInt(String value) throws S3Error {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new S3Error(400, "InvalidArgument", "Not a number: " + value);
+    }
+  }
+
+  private static String text(Element parent, String name) {
+    NodeList nodes = parent.getElementsByTagName(name);
+    return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+  }
+
+  private static byte[] xml(String xml) {
+    return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String escape(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+        .replace("\"", "&quot;");
+  }
+
+  private static String formatTime(long time) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(time));
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[65536];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] digest(String algorithm, byte[] data) {
+    try {
+      return MessageDigest.getInstance(algorithm).digest(data);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(algorithm + " isn't available", e);
+    }
+  }
+
+  private static byte[] hmac(byte[] key, String data) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HMAC-SHA256 isn't available", e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.creator.ArchiveCreator;
+import net.pktr.smartbackup.creator.BackupCreator;
+import net.pktr.smartbackup.creator.RepositoryCreator;
+import net.pktr.smartbackup.creator.SnapshotCreator;
+import net.pktr.smartbackup.creator.WorldAccess;
+import net.pktr.smartbackup.manifest.BackupKind;
+
+import net.minecraft.world.MinecraftException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Creates backup creators that save and pause a simulated {@link Server} instead of the running
+ * server.
+ *
+ * <p>The server's thread must run {@link net.pktr.smartbackup.ServerTasks#runTasks} at the end of
+ * every tick, as the capture modes hand their work to it.</p>
+ */
+final class SimulatedBackups {
+  /** Types of backup that can be created. */
+  static final String[] TYPES = {"snapshot", "archive", "repository"};
+
+  /** What a backup does to the server it backs up. */
+  interface Server {
+    /**
+     * Turns saving on or off.
+     *
+     * @param saving Whether the server saves.
+     */
+    void setSaving(boolean saving);
+
+    boolean isSaving();
+
+    /**
+     * Saves every player's data.
+     *
+     * @throws IOException if writing fails.
+     */
+    void savePlayers() throws IOException;
+
+    /**
+     * Saves the whole world.
+     *
+     * @throws IOException if writing fails.
+     */
+    void saveAll() throws IOException;
+
+    /**
+     * Gets the world the server ticks.
+     *
+     * @return The world.
+     */
+    SyntheticWorld getWorld();
+  }
+
+  private SimulatedBackups() {
+  }
+
+  /**
+   * Creates a backup of the simulated server's world.
+   *
+   * @param type "snapshot", "archive" or "repository".
+   * @param server Server the backup saves and pauses.
+   * @return The backup, ready to be started.
+   */
+  static BackupCreator create(String type, final Server server) {
+    switch (type) {
+      case "snapshot":
+        return new SnapshotCreator(null) {
+          @Override
+          protected void setWorldSaving(boolean worldSaving) {
+            server.setSaving(worldSaving);
+          }
+
+          @Override
+          protected boolean isWorldSaving() {
+            return server.isSaving();
+          }
+
+          @Override
+          protected void savePlayerData() {
+            savePlayers(server);
+          }
+
+          @Override
+          protected void saveAllChunks() throws MinecraftException {
+            saveAll(server);
+          }
+
+          @Override
+          protected WorldAccess getWorldAccess() {
+            return new SyntheticWorldAccess(server);
+          }
+        };
+      case "archive":
+        return new ArchiveCreator(null, BackupKind.FULL) {
+          @Override
+          protected void setWorldSaving(boolean worldSaving) {
+            server.setSaving(worldSaving);
+          }
+
+          @Override
+          protected boolean isWorldSaving() {
+            return server.isSaving();
+          }
+
+          @Override
+          protected void savePlayerData() {
+            savePlayers(server);
+          }
+
+          @Override
+          protected void saveAllChunks() throws MinecraftException {
+            saveAll(server);
+          }
+
+          @Override
+          protected WorldAccess getWorldAccess() {
+            return new SyntheticWorldAccess(server);
+          }
+        };
+      case "repository":
+        return new RepositoryCreator(null) {
+          @Override
+          protected void setWorldSaving(boolean worldSaving) {
+            server.setSaving(worldSaving);
+          }
+
+          @Override
+          protected boolean isWorldSaving() {
+            return server.isSaving();
+          }
+
+          @Override
+          protected void savePlayerData() {
+            savePlayers(server);
+          }
+
+          @Override
+          protected void saveAllChunks() throws MinecraftException {
+            saveAll(server);
+          }
+
+          @Override
+          protected WorldAccess getWorldAccess() {
+            return new SyntheticWorldAccess(server);
+          }
+        };
+      default:
+        throw new IllegalArgumentException("Unknown backup type " + type);
+    }
+  }
+
+  private static void savePlayers(Server server) {
+    try {
+      server.savePlayers();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to save the simulated player data", e);
+    }
+  }
+
+  private static void saveAll(Server server) throws MinecraftException {
+    try {
+      server.saveAll();
+    } catch (IOException e) {
+      throw new MinecraftException("Unable to save the simulated world: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.SmartBackup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A server thread ticking a {@link SyntheticWorld} 20 times a second.
+ *
+ * <p>Each tick spends a set time on game logic (hashing a buffer), changes a few chunks, and,
+ * while saving is on, saves up to 24 changed chunks (as the server saves chunks a few at a time)
+ * and now and then a player or data file. Ticks and full saves hold the same lock, so a save
+ * requested by a backup delays ticks the way it does on a real server. The backup's server tasks
+ * run at the end of every tick, and count towards it.</p>
+ *
+ * <p>The duration of every tick is recorded, along with how long saving has been paused.</p>
+ */
+final class SimulatedServer implements Runnable, SimulatedBackups.Server {
+  /** Time between the starts of two ticks when the server keeps up. */
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+  /** How far behind the server may fall before it skips the ticks it missed. */
+  private static final long MAX_BEHIND_NANOS = TimeUnit.SECONDS.toNanos(2);
+  /** Most chunks saved in one tick. */
+  private static final int CHUNK_SAVES_PER_TICK = 24;
+  /** Ticks between saves of a player or data file. */
+  private static final int FILE_SAVE_INTERVAL = 20;
+
+  private final SyntheticWorld world;
+  /** Time spent on game logic in each tick. */
+  private final long logicNanos;
+  /** Chunks changed in each tick. */
+  private final int chunksPerTick;
+  private final Random random = new Random(42);
+  /** Held by ticks and full saves. */
+  private final Object tickLock = new Object();
+  private final Thread thread = new Thread(this, "Simulated Server");
+  /** Buffer the game logic hashes. */
+  private final byte[] logicBuffer = new byte[16384];
+
+  private volatile boolean running = true;
+  private volatile boolean saving = true;
+  /** Error that stopped the server, or {@code null}. */
+  private volatile IOException failure = null;
+
+  /** Durations of the ticks recorded so far. Guarded by {@code this}. */
+  private long[] tickNanos = new long[1024];
+  private int tickCount = 0;
+  private boolean recording = false;
+  /** When saving was paused, or -1 while it's on. Guarded by {@code this}. */
+  private long pauseStart = -1;
+  /** Time saving was paused while recording. Guarded by {@code this}. */
+  private long pausedNanos = 0;
+
+  /**
+   * Sets up a server. It doesn't tick until it's started.
+   *
+   * @param world World to tick.
+   * @param logicMillis Time to spend on game logic in each tick.
+   * @param chunksPerTick Chunks to change in each tick.
+   */
+  SimulatedServer(SyntheticWorld world, int logicMillis, int chunksPerTick) {
+    this.world = world;
+    this.logicNanos = TimeUnit.MILLISECONDS.toNanos(logicMillis);
+    this.chunksPerTick = chunksPerTick;
+  }
+
+  /** Starts ticking. */
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * Stops ticking and waits for the last tick to end.
+   *
+   * @throws IOException if the server stopped because saving failed.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  void stop() throws IOException, InterruptedException {
+    running = false;
+    thread.join();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public void run() {
+    long nextTick = System.nanoTime();
+    long ticks = 0;
+    while (running) {
+      long start = System.nanoTime();
+      try {
+        synchronized (tickLock) {
+          tick(ticks++);
+        }
+      } catch (IOException e) {
+        failure = e;
+        return;
+      }
+      long end = System.nanoTime();
+      record(end - start);
+
+      // Like the server, catch up on late ticks without sleeping, unless it's too far behind.
+      nextTick += TICK_NANOS;
+      if (end - nextTick > MAX_BEHIND_NANOS) {
+        nextTick = end;
+      }
+      long sleep = nextTick - end;
+      if (sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void tick(long tick) throws IOException {
+    CRC32 crc = new CRC32();
+    long logicEnd = System.nanoTime() + logicNanos;
+    while (System.nanoTime() < logicEnd) {
+      crc.update(logicBuffer, 0, logicBuffer.length);
+    }
+    logicBuffer[0] = (byte) crc.getValue();
+
+    for (int i = 0; i < chunksPerTick; i++) {
+      world.touchChunk(random.nextInt(world.getChunkCount()));
+    }
+    if (tick % FILE_SAVE_INTERVAL == 0) {
+      world.touchPlayer(random.nextInt(world.getPlayerCount()));
+      world.touchData(random.nextInt(world.getDataCount()));
+    }
+
+    if (saving) {
+      world.saveDirtyChunks(CHUNK_SAVES_PER_TICK);
+      if (tick % FILE_SAVE_INTERVAL == 0) {
+        for (int i = 0; i < world.getPlayerCount(); i++) {
+          world.savePlayer(i);
+        }
+        for (int i = 0; i < world.getDataCount(); i++) {
+          world.saveData(i);
+        }
+      }
+    }
+
+    SmartBackup.getServerTasks().runTasks();
+  }
+
+  /**
+   * Turns saving on or off.
+   *
+   * @param saving Whether the server saves.
+   */
+  @Override
+  public synchronized void setSaving(boolean saving) {
+    long now = System.nanoTime();
+    if (!saving && this.saving) {
+      pauseStart = now;
+    } else if (saving && !this.saving && pauseStart >= 0) {
+      if (recording) {
+        pausedNanos += now - pauseStart;
+      }
+      pauseStart = -1;
+    }
+    this.saving = saving;
+  }
+
+  @Override
+  public boolean isSaving() {
+    return saving;
+  }
+
+  @Override
+  public SyntheticWorld getWorld() {
+    return world;
+  }
+
+  /**
+   * Saves the whole world, holding up ticks until it's done.
+   *
+   * @throws IOException if writing fails.
+   */
+  @Override
+  public void saveAll() throws IOException {
+    synchronized (tickLock) {
+      world.saveAll();
+    }
+  }
+
+  /**
+   * Saves every player's data, holding up ticks until it's done.
+   *
+   * @throws IOException if writing fails.
+   */
+  @Override
+  public void savePlayers() throws IOException {
+    synchronized (tickLock) {
+      for (int i = 0; i < world.getPlayerCount(); i++) {
+        world.savePlayer(i);
+      }
+    }
+  }
+
+  /** Starts recording tick durations and paused time, forgetting what was recorded before. */
+  synchronized void startRecording() {
+    tickCount = 0;
+    pausedNanos = 0;
+    if (pauseStart >= 0) {
+      pauseStart = System.nanoTime();
+    }
+    recording = true;
+  }
+
+  /**
+   * Stops recording.
+   *
+   * @return What was recorded.
+   */
+  synchronized Recording stopRecording() {
+    recording = false;
+    long paused = pausedNanos;
+    if (pauseStart >= 0) {
+      paused += System.nanoTime() - pauseStart;
+    }
+    return new Recording(Arrays.copyOf(tickNanos, tickCount), paused);
+  }
+
+  private synchronized void record(long nanos) {
+    if (!recording) {
+      return;
+    }
+    if (tickCount == tickNanos.length) {
+      tickNanos = Arrays.copyOf(tickNanos, tickCount * 2);
+    }
+    tickNanos[tickCount++] = nanos;
+  }
+
+  /** Tick durations and paused time recorded over a stretch of time. */
+  static final class Recording {
+    /** Durations of the ticks, sorted. */
+    private final long[] ticks;
+    private final long pausedNanos;
+
+    Recording(long[] ticks, long pausedNanos) {
+      this.ticks = ticks;
+      Arrays.sort(this.ticks);
+      this.pausedNanos = pausedNanos;
+    }
+
+    /**
+     * Puts recordings together, as if they were one.
+     *
+     * @param recordings Recordings to put together.
+     * @return Recording of every tick and all of the paused time.
+     */
+    static Recording combine(List<Recording> recordings) {
+      int count = 0;
+      long paused = 0;
+      for (Recording recording : recordings) {
+        count += recording.ticks.length;
+        paused += recording.pausedNanos;
+      }
+      long[] ticks = new long[count];
+      int offset = 0;
+      for (Recording recording : recordings) {
+        System.arraycopy(recording.ticks, 0, ticks, offset, recording.ticks.length);
+        offset += recording.ticks.length;
+      }
+      return new Recording(ticks, paused);
+    }
+
+    int getTickCount() {
+      return ticks.length;
+    }
+
+    /**
+     * Gets a percentile of the tick durations, by the nearest-rank method.
+     *
+     * @param percentile Percentile (0-100).
+     * @return Tick duration in milliseconds, or 0 if no tick was recorded.
+     */
+    double getPercentile(double percentile) {
+      if (ticks.length == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(percentile / 100 * ticks.length);
+      return ticks[Math.max(0, Math.min(ticks.length - 1, rank - 1))] / 1e6;
+    }
+
+    /**
+     * Gets the time saving was paused for.
+     *
+     * @return Paused time in milliseconds.
+     */
+    double getPausedMillis() {
+      return pausedNanos / 1e6;
+    }
+  }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.coordination.BackupSlot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues stand-in servers for backup slots, each in its own JVM, and checks that the slots are
+ * handed out the way {@link BackupSlot} promises.
+ *
+ * <p>Each stand-in joins the queue in a shared folder, waits for its slot, holds it for a while
+ * and leaves. Stand-ins join one after another, then all start polling at once. They record when
+ * they got and gave up their slot in a shared event log, appended to under a file lock. A slot is
+ * recorded as held from a little after it's taken until a little before it's given up, so the
+ * log never shows more holders than there were.</p>
+ *
+ * <p>The checks: no more servers than the configured slots back up at once, and all of them
+ * do. Servers get their slot in the order they joined, so a server only gets one once all but
+ * {@code slots - 1} of the servers ahead of it are done. A server holding its slot for longer
+ * than the lease keeps it, as its lease is renewed. A server that's killed while holding its slot
+ * gives it up once its lease runs out, and not before.</p>
+ *
+ * <p>Options (all {@code --name=value}): {@code workers} (stand-in servers in the queue test, 6),
+ * {@code slots} (slots in the queue test, 2), {@code hold-millis} (time each stand-in holds its
+ * slot, 1000), {@code lease-millis} (lease of the tickets, 2000).</p>
+ */
+public final class SlotTest {
+  /** File marking the working directory as the slot test's, so it may delete what's in it. */
+  private static final String MARKER = ".slot-test";
+  /** Time between polls of the queue. */
+  private static final long POLL_MILLIS = 50;
+  /** Longest a stand-in may take to start, or a scenario to finish. */
+  private static final long TIMEOUT_MILLIS = 120000;
+
+  private final Options options;
+  /** Problems found, in the order they were found. */
+  private final List<String> problems = new ArrayList<>();
+  private int scenariosRun = 0;
+
+  /** An event recorded by a stand-in. */
+  private static final class Event {
+    final String worker;
+    final String type;
+    final long time;
+
+    Event(String worker, String type, long time) {
+      this.worker = worker;
+      this.type = type;
+      this.time = time;
+    }
+  }
+
+  private SlotTest(Options options) {
+    this.options = options;
+  }
+
+  /**
+   * Runs the slot test in the working directory, or one stand-in server with {@code --worker}.
+   *
+   * @param args Options, as {@code --name=value}.
+   * @throws Exception if the test can't run.
+   */
+  public static void main(String[] args) throws Exception {
+    Options options = new Options(args);
+    if (options.has("worker")) {
+      runWorker(options);
+      System.exit(0);
+    }
+    SlotTest test = new SlotTest(options);
+    test.run();
+    System.exit(test.report() ? 0 : 1);
+  }
+
+  private void run() throws Exception {
+    Options.prepareWorkingDirectory(MARKER, "slots");
+    int slots = Math.max(1, options.getInt("slots", 2));
+    int workers = Math.max(slots + 1, options.getInt("workers", 6));
+    long holdMillis = options.getInt("hold-millis", 1000);
+    long leaseMillis = options.getInt("lease-millis", 2000);
+
+    checkQueue(workers, slots, holdMillis, leaseMillis);
+    checkRenewal(holdMillis, leaseMillis);
+    checkExpiry(holdMillis, leaseMillis);
+  }
+
+  /**
+   * Queues several stand-ins for a few slots.
+   *
+   * @param workers Number of stand-ins.
+   * @param slots Number of slots.
+   * @param holdMillis Time each stand-in holds its slot.
+   * @param leaseMillis Lease of the tickets.
+   */
+  private void checkQueue(int workers, int slots, long holdMillis, long leaseMillis)
+      throws Exception {
+    String label = "queue of " + workers + " for " + slots + " slots";
+    Path folder = Paths.get("slots", "queue");
+    List<Process> processes = new ArrayList<>();
+    try {
+      for (int i = 0; i < workers; i++) {
+        processes.add(startWorker(folder, "server-" + i, slots, leaseMillis, holdMillis));
+      }
+      go(folder);
+      waitForExit(label, processes);
+    } finally {
+      destroy(processes);
+    }
+
+    List<Event> events = readEvents(folder);
+    List<String> order = new ArrayList<>();
+    for (int i = 0; i < workers; i++) {
+      order.add("server-" + i);
+    }
+    checkEvents(label, events, order, slots);
+    expectNoTickets(label, folder);
+  }
+
+  /**
+   * Has a stand-in hold its slot for several leases while another waits.
+   *
+   * @param holdMillis Time the waiting stand-in holds its slot.
+   * @param leaseMillis Lease of the tickets.
+   */
+  private void checkRenewal(long holdMillis, long leaseMillis) throws Exception {
+    String label = "slot held for longer than the lease";
+    Path folder = Paths.get("slots", "renewal");
+    List<Process> processes = new ArrayList<>();
+    try {
+      processes.add(startWorker(folder, "holder", 1, leaseMillis, 3 * leaseMillis));
+      processes.add(startWorker(folder, "waiter", 1, leaseMillis, holdMillis));
+      go(folder);
+      waitForExit(label, processes);
+    } finally {
+      destroy(processes);
+    }
+
+    List<Event> events = readEvents(folder);
+    List<String> order = new ArrayList<>();
+    order.add("holder");
+    order.add("waiter");
+    checkEvents(label, events, order, 1);
+    if (find(events, "holder", "kept") == null) {
+      problems.add(label + ": the holder lost its slot");
+    }
+    expectNoTickets(label, folder);
+  }
+
+  /**
+   * Kills a stand-in while it holds its slot, as if its server crashed.
+   *
+   * @param holdMillis Time the waiting stand-in holds its slot.
+   * @param leaseMillis Lease of the tickets.
+   */
+  private void checkExpiry(long holdMillis, long leaseMillis) throws Exception {
+    String label = "slot of a killed server";
+    Path folder = Paths.get("slots", "expiry");
+    List<Process> processes = new ArrayList<>();
+    long killed;
+    try {
+      Process holder = startWorker(folder, "holder", 1, leaseMillis, TIMEOUT_MILLIS);
+      processes.add(holder);
+      Process waiter = startWorker(folder, "waiter", 1, leaseMillis, holdMillis);
+      processes.add(waiter);
+      go(folder);
+
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (find(readEvents(folder), "holder", "acquired") == null) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException(label + ": the holder never got its slot");
+        }
+        TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+      }
+      holder.destroyForcibly().waitFor();
+      killed = System.currentTimeMillis();
+      processes.remove(holder);
+      waitForExit(label, processes);
+    } finally {
+      destroy(processes);
+    }
+
+    scenariosRun++;
+    Event acquired = find(readEvents(folder), "waiter", "acquired");
+    if (acquired == null) {
+      problems.add(label + ": the waiter never got the slot");
+    } else {
+      // The lease was renewed at most a quarter of it before the kill.
+      long waited = acquired.time - killed;
+      if (waited < leaseMillis / 2 || waited > leaseMillis + 2000) {
+        problems.add(label + ": the waiter got the slot " + waited + " ms after the holder was " +
+            "killed, with a lease of " + leaseMillis + " ms");
+      }
+    }
+    expectNoTickets(label, folder);
+  }
+
+  /**
+   * Checks the slots were handed out in order, to at most {@code slots} servers at a time.
+   *
+   * @param label What to call the scenario in the report.
+   * @param events Events recorded by the stand-ins.
+   * @param order Stand-ins in the order they joined.
+   * @param slots Number of slots.
+   */
+  private void checkEvents(String label, List<Event> events, List<String> order, int slots) {
+    scenariosRun++;
+    Set<String> holding = new HashSet<>();
+    Set<String> released = new HashSet<>();
+    int mostHolding = 0;
+    for (Event event : events) {
+      if (event.type.equals("dropped")) {
+        problems.add(label + ": " + event.worker + "'s ticket was dropped");
+      } else if (event.type.equals("acquired")) {
+        holding.add(event.worker);
+        mostHolding = Math.max(mostHolding, holding.size());
+        int done = 0;
+        for (String ahead : order.subList(0, order.indexOf(event.worker))) {
+          done += released.contains(ahead) ? 1 : 0;
+        }
+        int needed = order.indexOf(event.worker) - slots + 1;
+        if (done < needed) {
+          problems.add(label + ": " + event.worker + " got a slot while " + done + " of the " +
+              "servers ahead of it were done, expected at least " + needed);
+        }
+      } else if (event.type.equals("released")) {
+        holding.remove(event.worker);
+        released.add(event.worker);
+      }
+    }
+    if (mostHolding > slots) {
+      problems.add(label + ": " + mostHolding + " servers held a slot at once");
+    }
+    if (order.size() > slots && mostHolding < slots) {
+      problems.add(label + ": at most " + mostHolding + " servers held a slot at once, " +
+          "expected " + slots);
+    }
+    for (String worker : order) {
+      if (!released.contains(worker)) {
+        problems.add(label + ": " + worker + " never got and gave up a slot");
+      }
+    }
+  }
+
+  private void expectNoTickets(String label, Path folder) throws IOException {
+    try (DirectoryStream<Path> tickets = Files.newDirectoryStream(folder, "*.ticket")) {
+      for (Path ticket : tickets) {
+        problems.add(label + ": " + ticket.getFileName() + " was left in the queue");
+      }
+    }
+  }
+
+  /**
+   * Starts a stand-in server and waits until it has joined the queue.
+   *
+   * @param folder Shared folder of the queue.
+   * @param name Name of the stand-in.
+   * @param slots Number of slots.
+   * @param leaseMillis Lease of the tickets.
+   * @param holdMillis Time the stand-in holds its slot.
+   * @return The stand-in's process.
+   * @throws IOException if it can't be started or doesn't join.
+   */
+  private static Process startWorker(Path folder, String name, int slots, long leaseMillis,
+      long holdMillis) throws IOException {
+    Files.createDirectories(folder);
+    Process process = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-cp", System.getProperty("java.class.path"), SlotTest.class.getName(), "--worker",
+        "--folder=" + folder, "--name=" + name, "--slots=" + slots,
+        "--lease-millis=" + leaseMillis, "--hold-millis=" + holdMillis)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    BufferedReader out = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    if (!"joined".equals(out.readLine())) {
+      process.destroyForcibly();
+      throw new IOException(name + " didn't join the queue");
+    }
+    return process;
+  }
+
+  /**
+   * Lets the stand-ins that joined start polling for their slots.
+   *
+   * @param folder Shared folder of the queue.
+   * @throws IOException if the signal can't be given.
+   */
+  private static void go(Path folder) throws IOException {
+    Files.createFile(folder.resolve("go"));
+  }
+
+  private void waitForExit(String label, List<Process> processes) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    for (Process process : processes) {
+      long left = Math.max(1, deadline - System.currentTimeMillis());
+      if (!process.waitFor(left, TimeUnit.MILLISECONDS)) {
+        problems.add(label + ": a stand-in server didn't finish in time");
+      } else if (process.exitValue() != 0) {
+        problems.add(label + ": a stand-in server failed with exit code " + process.exitValue());
+      }
+    }
+  }
+
+  private static void destroy(List<Process> processes) {
+    for (Process process : processes) {
+      process.destroyForcibly();
+    }
+  }
+
+  private static Event find(List<Event> events, String worker, String type) {
+    for (Event event : events) {
+      if (event.worker.equals(worker) && event.type.equals(type)) {
+        return event;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads the event log of a queue.
+   *
+   * @param folder Shared folder of the queue.
+   * @return Events in the order they were recorded.
+   * @throws IOException if the log can't be read.
+   */
+  private static List<Event> readEvents(Path folder) throws IOException {
+    List<Event> events = new ArrayList<>();
+    Path log = folder.resolve("events.log");
+    if (!Files.exists(log)) {
+      return events;
+    }
+    for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+      String[] fields = line.split(" ");
+      if (fields.length == 3) {
+        events.add(new Event(fields[0], fields[1], Long.parseLong(fields[2])));
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Runs a stand-in server: joins the queue, waits for the signal to go, waits for a slot, holds
+   * it and leaves.
+   *
+   * @param options Options of the stand-in.
+   * @throws Exception if the stand-in fails.
+   */
+  private static void runWorker(Options options) throws Exception {
+    Path folder = Paths.get(options.get("folder"));
+    String name = options.get("name");
+    long holdMillis = options.getInt("hold-millis", 1000);
+
+    try (BackupSlot slot = BackupSlot.join(folder, name, options.getInt("slots", 1),
+        options.getInt("lease-millis", 2000))) {
+      System.out.println("joined");
+      System.out.flush();
+      while (!Files.exists(folder.resolve("go"))) {
+        TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+      }
+
+      try {
+        while (slot.poll() > 0) {
+          TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+        }
+        recordEvent(folder, name, "acquired");
+        TimeUnit.MILLISECONDS.sleep(holdMillis);
+        if (slot.poll() == 0) {
+          recordEvent(folder, name, "kept");
+        }
+      } catch (IOException e) {
+        recordEvent(folder, name, "dropped");
+        throw e;
+      }
+      // Recorded before the slot is given up, so no one else can record theirs first.
+      recordEvent(folder, name, "released");
+    }
+  }
+
+  /**
+   * Appends an event to the queue's event log, under a lock so events of several stand-ins
+   * don't mix.
+   *
+   * @param folder Shared folder of the queue.
+   * @param worker Name of the stand-in.
+   * @param type Type of event.
+   * @throws IOException if the event can't be recorded.
+   */
+  private static void recordEvent(Path folder, String worker, String type)
+      throws IOException {
+    try (FileChannel log = FileChannel.open(folder.resolve("events.log"),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      // Closing the channel releases the lock.
+      log.lock();
+      long time = System.currentTimeMillis();
+      log.write(ByteBuffer.wrap((worker + " " + type + " " + time + "\n")
+          .getBytes(StandardCharsets.UTF_8)));
+    }
+  }
+
+  /**
+   * Prints the problems found.
+   *
+   * @return {@code true} if there were none.
+   */
+  private boolean report() {
+    for (String problem : problems) {
+      System.out.println("PROBLEM: " + problem);
+    }
+    System.out.println("Ran " + scenariosRun + " scenarios, found " + problems.size() +
+        " problems.");
+    return problems.isEmpty();
+  }
+}
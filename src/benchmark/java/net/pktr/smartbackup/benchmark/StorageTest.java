@@ -0,0 +1,363 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.storage.ObjectUpload;
+import net.pktr.smartbackup.storage.S3Storage;
+import net.pktr.smartbackup.storage.StoredObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the object store backend against a local stand-in server, and checks that what it stores
+ * comes back intact.
+ *
+ * <p>{@link S3Storage} uploads, reads, lists and deletes objects in an {@link S3StandIn}, whose
+ * listings come in pages of a few entries. The uploads cover objects of several parts uploaded
+ * on several threads, an empty object, an upload that fails part way and is resumed (by a new
+ * backend, as after a restart) from the parts the store kept, an upload the store forgot, and
+ * uploads that are aborted or thrown away. Requests that fail with a server error must be tried
+ * again. Keys and the bucket prefix hold spaces and {@code +}, so a path or query that's encoded
+ * differently from its signature is rejected.</p>
+ *
+ * <p>Options (all {@code --name=value}): {@code threads} (parts uploaded at once, 3),
+ * {@code page-size} (entries in a page of a listing, 2).</p>
+ */
+public final class StorageTest {
+  /** File marking the working directory as the storage test's, so it may delete what's in it. */
+  private static final String MARKER = ".storage-test";
+  private static final String BUCKET = "smartbackup-test";
+  private static final String PREFIX = "backups +1/";
+  private static final int PART_SIZE = S3Storage.MIN_PART_SIZE;
+
+  private final Options options;
+  /** Problems found, in the order they were found. */
+  private final List<String> problems = new ArrayList<>();
+  private int checksRun = 0;
+  private S3StandIn store;
+
+  private StorageTest(Options options) {
+    this.options = options;
+  }
+
+  /**
+   * Runs the storage test in the working directory.
+   *
+   * @param args Options, as {@code --name=value}.
+   * @throws Exception if the test can't run.
+   */
+  public static void main(String[] args) throws Exception {
+    StorageTest test = new StorageTest(new Options(args));
+    test.run();
+    System.exit(test.report() ? 0 : 1);
+  }
+
+  private void run() throws Exception {
+    Options.prepareWorkingDirectory(MARKER, "uploads");
+    store = new S3StandIn(BUCKET, Math.max(1, options.getInt("page-size", 2)));
+    try {
+      checkMultipartUpload();
+      checkEmptyObject();
+      checkResume();
+      checkForgottenUpload();
+      checkAbort();
+      checkDiscard();
+      checkRetries();
+      checkListing();
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * Sets up a backend for the stand-in, as the mod would after a (re)start.
+   *
+   * @return The backend.
+   * @throws IOException if it can't be set up.
+   */
+  private S3Storage open() throws IOException {
+    return new S3Storage(store.getEndpoint(), S3StandIn.REGION, BUCKET, PREFIX,
+        S3StandIn.ACCESS_KEY, S3StandIn.SECRET_KEY, PART_SIZE,
+        Math.max(1, options.getInt("threads", 3)), Paths.get("uploads"));
+  }
+
+  /** Uploads an object of several parts (the last one short) and reads it back. */
+  private void checkMultipartUpload() throws IOException {
+    String label = "multipart upload";
+    byte[] data = randomData(3 * PART_SIZE + PART_SIZE / 2, 1);
+    int partsBefore = store.getPartsStored();
+    try (S3Storage storage = open()) {
+      try (ObjectUpload upload = storage.upload("multipart.tar")) {
+        expect(label, "resume offset", 0, upload.getResumeOffset());
+        write(upload, data, 0);
+        upload.commit();
+      }
+      expectObject(label, storage, "multipart.tar", data);
+    }
+    expect(label, "parts stored", 4, store.getPartsStored() - partsBefore);
+    expectNoUploads(label);
+  }
+
+  /** Uploads an object with no data. */
+  private void checkEmptyObject() throws IOException {
+    String label = "empty object";
+    try (S3Storage storage = open()) {
+      try (ObjectUpload upload = storage.upload("empty")) {
+        upload.commit();
+      }
+      expectObject(label, storage, "empty", new byte[0]);
+    }
+    expectNoUploads(label);
+  }
+
+  /**
+   * Fails an upload at its sixth part, then resumes it with a new backend. Parts one to five must
+   * be kept, which takes more than one page of the part listing.
+   */
+  private void checkResume() throws IOException {
+    String label = "resumed upload";
+    byte[] data = randomData(7 * PART_SIZE + 1000, 2);
+    int startedBefore = store.getUploadsStarted();
+    int pagesBefore = store.getPartListingPages();
+
+    store.rejectPart(6);
+    try (S3Storage storage = open(); ObjectUpload upload = storage.upload("resumed.tar")) {
+      write(upload, data, 0);
+      upload.commit();
+      problems.add(label + ": the upload didn't fail at the rejected part");
+    } catch (IOException e) {
+      // Expected; the finished parts stay for the next upload.
+    }
+    expect(label, "unfinished uploads", 1, store.getOpenUploads());
+    expect(label, "upload state files", 1, countStateFiles());
+
+    try (S3Storage storage = open()) {
+      try (ObjectUpload upload = storage.upload("resumed.tar")) {
+        expect(label, "resume offset", 5L * PART_SIZE, upload.getResumeOffset());
+        write(upload, data, (int) upload.getResumeOffset());
+        upload.commit();
+      }
+      expectObject(label, storage, "resumed.tar", data);
+    }
+    expect(label, "uploads started", 1, store.getUploadsStarted() - startedBefore);
+    if (store.getPartListingPages() - pagesBefore < 2) {
+      problems.add(label + ": the parts were listed in one request, though there are more " +
+          "than a page of them with a --page-size below 5");
+    }
+    expectNoUploads(label);
+  }
+
+  /** Resumes an upload the store has dropped in the meantime, which must start over. */
+  private void checkForgottenUpload() throws IOException {
+    String label = "forgotten upload";
+    byte[] data = randomData(2 * PART_SIZE + 10, 3);
+    try (S3Storage storage = open(); ObjectUpload upload = storage.upload("forgotten.tar")) {
+      write(upload, Arrays.copyOf(data, 2 * PART_SIZE), 0);
+    }
+    store.forgetUploads();
+
+    try (S3Storage storage = open()) {
+      try (ObjectUpload upload = storage.upload("forgotten.tar")) {
+        expect(label, "resume offset", 0, upload.getResumeOffset());
+        write(upload, data, 0);
+        upload.commit();
+      }
+      expectObject(label, storage, "forgotten.tar", data);
+    }
+    expectNoUploads(label);
+  }
+
+  /** Aborts an upload, which must leave nothing behind. */
+  private void checkAbort() throws IOException {
+    String label = "aborted upload";
+    try (S3Storage storage = open()) {
+      try (ObjectUpload upload = storage.upload("aborted.tar")) {
+        write(upload, randomData(2 * PART_SIZE, 4), 0);
+        upload.abort();
+      }
+      expectMissing(label, storage, "aborted.tar");
+    }
+    expectNoUploads(label);
+  }
+
+  /** Throws away an interrupted upload from a new backend, as a discarded backup does. */
+  private void checkDiscard() throws IOException {
+    String label = "discarded upload";
+    try (S3Storage storage = open(); ObjectUpload upload = storage.upload("discarded.tar")) {
+      write(upload, randomData(2 * PART_SIZE, 5), 0);
+    }
+    expect(label, "unfinished uploads", 1, store.getOpenUploads());
+
+    try (S3Storage storage = open()) {
+      storage.discardUpload("discarded.tar");
+      storage.discardUpload("discarded.tar");
+      expectMissing(label, storage, "discarded.tar");
+    }
+    expectNoUploads(label);
+  }
+
+  /** Fails a few requests with server errors, which the backend must try again. */
+  private void checkRetries() throws IOException {
+    String label = "retried requests";
+    byte[] data = randomData(PART_SIZE + 10, 6);
+    try (S3Storage storage = open()) {
+      store.failRequests(2);
+      try (ObjectUpload upload = storage.upload("retried.tar")) {
+        write(upload, data, 0);
+        upload.commit();
+      }
+      store.failRequests(1);
+      expectObject(label, storage, "retried.tar", data);
+    }
+    expect(label, "failures left", 0, store.getFailingRequests());
+    expectNoUploads(label);
+  }
+
+  /** Lists and deletes objects, with listings of several pages. */
+  private void checkListing() throws IOException {
+    String label = "listing";
+    int pagesBefore = store.getListingPages();
+    try (S3Storage storage = open()) {
+      for (int i = 0; i < 7; i++) {
+        try (ObjectUpload upload = storage.upload("list/object +" + i)) {
+          write(upload, randomData(i * 100, 7 + i), 0);
+          upload.commit();
+        }
+      }
+
+      List<StoredObject> listed = storage.list("list/");
+      expect(label, "objects listed", 7, listed.size());
+      for (int i = 0; i < Math.min(7, listed.size()); i++) {
+        StoredObject object = listed.get(i);
+        if (!object.getKey().equals("list/object +" + i) || object.getSize() != i * 100 ||
+            Math.abs(object.getLastModified() - System.currentTimeMillis()) > 600000) {
+          problems.add(label + ": listed " + object.getKey() + " of " + object.getSize() +
+              " bytes at " + object.getLastModified() + " as object " + i);
+        }
+      }
+      if (store.getListingPages() - pagesBefore < 2) {
+        problems.add(label + ": the objects were listed in one request, though there are " +
+            "more than a page of them with a --page-size below 7");
+      }
+      expect(label, "objects listed under multipart", 1, storage.list("multipart").size());
+
+      storage.delete("list/object +3");
+      storage.delete("list/object +3");
+      expect(label, "objects listed after a delete", 6, storage.list("list/").size());
+      expectMissing(label, storage, "list/object +3");
+    }
+    checksRun++;
+  }
+
+  /**
+   * Writes data to an upload, in pieces of varying size.
+   *
+   * @param upload Upload to write to.
+   * @param data Data of the whole object.
+   * @param offset Offset in the data to start at.
+   * @throws IOException if the upload fails.
+   */
+  private static void write(ObjectUpload upload, byte[] data, int offset) throws IOException {
+    Random random = new Random(offset);
+    while (offset < data.length) {
+      int length = Math.min(data.length - offset, 1 + random.nextInt(256 * 1024));
+      upload.write(data, offset, length);
+      offset += length;
+    }
+  }
+
+  private void expectObject(String label, S3Storage storage, String key, byte[] expected)
+      throws IOException {
+    checksRun++;
+    ByteArrayOutputStream read = new ByteArrayOutputStream();
+    try (InputStream in = storage.get(key)) {
+      byte[] buffer = new byte[65536];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        read.write(buffer, 0, length);
+      }
+    }
+    if (!Arrays.equals(read.toByteArray(), expected)) {
+      problems.add(label + ": " + key + " reads back as " + read.size() + " bytes that don't " +
+          "match the " + expected.length + " uploaded");
+    }
+  }
+
+  private void expectMissing(String label, S3Storage storage, String key) throws IOException {
+    checksRun++;
+    try {
+      storage.get(key).close();
+      problems.add(label + ": " + key + " is still stored");
+    } catch (FileNotFoundException e) {
+      // Expected.
+    }
+  }
+
+  private void expectNoUploads(String label) throws IOException {
+    expect(label, "unfinished uploads", 0, store.getOpenUploads());
+    expect(label, "upload state files", 0, countStateFiles());
+  }
+
+  private void expect(String label, String what, long expected, long actual) {
+    checksRun++;
+    if (actual != expected) {
+      problems.add(label + ": " + what + " is " + actual + ", expected " + expected);
+    }
+  }
+
+  private static int countStateFiles() throws IOException {
+    int count = 0;
+    if (Files.isDirectory(Paths.get("uploads"))) {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("uploads"))) {
+        for (Path ignored : files) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  private static byte[] randomData(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  /**
+   * Prints the problems found.
+   *
+   * @return {@code true} if there were none.
+   */
+  private boolean report() {
+    for (String problem : problems) {
+      System.out.println("PROBLEM: " + problem);
+    }
+    System.out.println("Ran " + checksRun + " checks, found " + problems.size() + " problems.");
+    return problems.isEmpty();
+  }
+}
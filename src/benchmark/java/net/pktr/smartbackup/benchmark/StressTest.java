@@ -0,0 +1,413 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.BackupConfiguration;
+import net.pktr.smartbackup.SmartBackup;
+import net.pktr.smartbackup.archive.ArchiveFormat;
+import net.pktr.smartbackup.archive.ArchiveReader;
+import net.pktr.smartbackup.creator.BackupCreator;
+import net.pktr.smartbackup.creator.CaptureMode;
+import net.pktr.smartbackup.manifest.Manifest;
+import net.pktr.smartbackup.manifest.ManifestStore;
+import net.pktr.smartbackup.pack.PackedFiles;
+import net.pktr.smartbackup.region.RegionChunk;
+import net.pktr.smartbackup.region.RegionCodec;
+import net.pktr.smartbackup.region.RegionFileReader;
+
+import org.apache.logging.log4j.LogManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backs up a world that several threads keep changing, and checks that every backup holds the
+ * world as it was when it was saved.
+ *
+ * <p>{@link WorldMutators} rewrite the chunks, player data and mod data of a
+ * {@link SyntheticWorld} from several threads at once while snapshots and archives of it are
+ * taken in every capture mode. Archives go through every format in turn, with and without
+ * {@code recompressRegions}, and are compressed on many threads.</p>
+ *
+ * <p>Every chunk and file in each backup is then read back: region headers are read, chunks are
+ * decompressed and their NBT decoded, and player and data files are decoded too. Each must be
+ * whole (its content matches its checksum and version). A torn read shows up as damaged content,
+ * and a race as a chunk or file of the wrong version.</p>
+ *
+ * <p>Backups that save the world with saving off must hold exactly the versions on disk right
+ * after that save. Online backups never stop saving, so each chunk and file must be at least the
+ * version in memory (for loaded chunks) or on disk when the backup started, and at most the
+ * version on disk when it ended.</p>
+ *
+ * <p>Options (all {@code --name=value}): {@code mutators} (threads changing the world, twice the
+ * processors), {@code compression-threads} (twice the processors), {@code regions} (regions along
+ * each side of the world, 2), {@code rounds} (backups per mode, 4), {@code settle-millis} (time
+ * the world changes between backups, 500).</p>
+ */
+public final class StressTest {
+  /** File marking the working directory as the stress test's, so it may delete what's in it. */
+  private static final String MARKER = ".stress-test";
+  /** Passphrase of encrypted archives. */
+  private static final String PASSPHRASE = "stress-test";
+  /** Most problems reported for one file. */
+  private static final int MAX_PROBLEMS_PER_FILE = 3;
+
+  /** Modes tested: backup type and capture mode. */
+  private static final String[][] MODES = {
+      {"snapshot", "pause"},
+      {"snapshot", "precopy"},
+      {"snapshot", "staggered"},
+      {"snapshot", "online"},
+      {"archive", "pause"},
+      {"archive", "precopy"},
+      {"archive", "staggered"},
+      {"archive", "online"},
+  };
+
+  private final Options options;
+  /** Problems found, in the order they were found. */
+  private final List<String> problems = new ArrayList<>();
+  private int backupsChecked = 0;
+
+  /** Reads files out of a backup. */
+  private interface BackupFiles extends Closeable {
+    /**
+     * Reads a file.
+     *
+     * @param name Name of the file, relative to the server root.
+     * @return Content of the file, or {@code null} if the backup doesn't have it.
+     * @throws IOException if the file can't be read.
+     */
+    byte[] read(String name) throws IOException;
+  }
+
+  private StressTest(Options options) {
+    this.options = options;
+  }
+
+  /**
+   * Runs the stress test in the working directory.
+   *
+   * @param args Options, as {@code --name=value}.
+   * @throws Exception if the test can't run.
+   */
+  public static void main(String[] args) throws Exception {
+    StressTest test = new StressTest(new Options(args));
+    test.run();
+    System.exit(test.report() ? 0 : 1);
+  }
+
+  private void run() throws Exception {
+    Options.prepareWorkingDirectory(MARKER, "world", "backups");
+
+    int processors = Runtime.getRuntime().availableProcessors();
+    SmartBackup.initialize(LogManager.getLogger(SmartBackup.MOD_ID), new File("smartbackup.cfg"));
+    BackupConfiguration config = SmartBackup.getConfiguration();
+    config.setBackupIncludes(new String[] {"world"});
+    config.setBackupOutputDir("backups");
+    config.setCompressionThreads(options.getInt("compression-threads", processors * 2));
+    config.setEncryptionPassphrase(PASSPHRASE);
+    ManifestStore manifests = new ManifestStore(Paths.get("backups"));
+
+    System.out.println("Creating the world...");
+    SyntheticWorld world = SyntheticWorld.create(Paths.get("world"),
+        options.getInt("regions", 2), 200, 50);
+    WorldMutators mutators = new WorldMutators(world, options.getInt("mutators", processors * 2));
+    mutators.start();
+    long start = System.nanoTime();
+    try {
+      for (String[] mode : MODES) {
+        config.setCaptureMode(CaptureMode.fromName(mode[1]));
+        for (int round = 0; round < Math.max(1, options.getInt("rounds", 4)); round++) {
+          TimeUnit.MILLISECONDS.sleep(options.getInt("settle-millis", 500));
+
+          String label = mode[0] + "/" + mode[1];
+          if (mode[0].equals("archive")) {
+            ArchiveFormat[] formats = ArchiveFormat.values();
+            config.setArchiveFormat(formats[round % formats.length]);
+            config.setRecompressRegions((round + round / formats.length) % 2 == 1);
+            label += " " + formats[round % formats.length].getName() +
+                (config.getRecompressRegions() ? " recompressed" : "");
+          }
+          backUpAndCheck(manifests, mutators, mode[0], mode[1].equals("online"), label);
+          mutators.checkFailure();
+        }
+      }
+    } finally {
+      mutators.stop();
+      world.close();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format(Locale.ROOT,
+        "The world was changed %d times in %.0f seconds (%.0f/s)", mutators.getChanges(),
+        seconds, mutators.getChanges() / seconds));
+  }
+
+  /**
+   * Takes one backup and checks it.
+   *
+   * @param manifests Manifests of the backups taken so far.
+   * @param mutators Threads changing the world.
+   * @param type Type of backup.
+   * @param online Whether the backup keeps saving on the whole time.
+   * @param label What to call the backup in the report.
+   * @throws Exception if the backup can't be taken or read at all.
+   */
+  private void backUpAndCheck(ManifestStore manifests, WorldMutators mutators, String type,
+      boolean online, String label) throws Exception {
+    Set<String> existing = new HashSet<>();
+    for (Manifest manifest : manifests.list()) {
+      existing.add(manifest.getName());
+    }
+
+    // Versions only go up, so what was saved (or loaded) before bounds the backup from below.
+    Map<String, Long> oldest = new HashMap<>();
+    mutators.getWorld().getSavedVersions(oldest);
+    mutators.getWorld().getLoadedVersions(oldest);
+
+    BackupCreator backup = SimulatedBackups.create(type, mutators);
+    backup.start();
+    backup.join();
+    Map<String, Long> expected = mutators.takePausedVersions();
+    Map<String, Long> newest = expected;
+    if (online) {
+      newest = new HashMap<>();
+      mutators.getWorld().getSavedVersions(newest);
+    } else {
+      oldest = expected;
+    }
+
+    if (backup.getStatus() != BackupCreator.BackupStatus.COMPLETED) {
+      Throwable error = backup.getError();
+      problems.add(label + ": the backup ended as " + backup.getStatus() +
+          (error == null ? "" : ": " + error));
+      return;
+    }
+    if (online && expected != null) {
+      problems.add(label + ": the backup turned saving off");
+      return;
+    }
+    if (!online && expected == null) {
+      problems.add(label + ": the backup didn't save the world with saving off");
+      return;
+    }
+
+    Manifest manifest = null;
+    for (Manifest candidate : manifests.list()) {
+      if (!existing.contains(candidate.getName())) {
+        manifest = candidate;
+      }
+    }
+    if (manifest == null) {
+      problems.add(label + ": the backup has no manifest");
+      return;
+    }
+
+    int problemsBefore = problems.size();
+    try (BackupFiles files = open(manifests, manifest)) {
+      check(label + " " + manifest.getName(), files, oldest, newest);
+    }
+    backupsChecked++;
+    System.out.println(label + " " + manifest.getName() + ": " +
+        (problems.size() == problemsBefore ? "OK" :
+            (problems.size() - problemsBefore) + " problems"));
+  }
+
+  /** Opens a snapshot or archive for reading. */
+  private static BackupFiles open(ManifestStore manifests, Manifest manifest) throws IOException {
+    final Path path = manifests.getBackupPath(manifest);
+    if (ManifestStore.isArchive(manifest)) {
+      final ArchiveReader reader = new ArchiveReader(path, PASSPHRASE);
+      return new BackupFiles() {
+        @Override
+        public byte[] read(String name) throws IOException {
+          if (reader.getEntry(name) == null &&
+              reader.getEntry(name + RegionCodec.EXTENSION) == null) {
+            return null;
+          }
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          reader.restore(name, out);
+          return out.toByteArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+          reader.close();
+        }
+      };
+    }
+
+    final PackedFiles packed = PackedFiles.load(path);
+    return new BackupFiles() {
+      @Override
+      public byte[] read(String name) throws IOException {
+        Path file = path.resolve(name);
+        if (Files.exists(file)) {
+          return Files.readAllBytes(file);
+        }
+        PackedFiles.Location location = packed.find(name);
+        return location == null ? null : PackedFiles.read(location.getSegment(),
+            location.getEntry());
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  /**
+   * Checks every chunk and file of a backup against the versions it may hold.
+   *
+   * @param label What to call the backup in the report.
+   * @param files The backup's files.
+   * @param oldest Oldest version of every chunk and file the backup may hold, by path relative to
+   * the server root ({@code <region>#<index>} for chunks).
+   * @param newest Newest version of every chunk and file the backup may hold.
+   * @throws IOException if the backup can't be read at all.
+   */
+  private void check(String label, BackupFiles files, Map<String, Long> oldest,
+      Map<String, Long> newest) throws IOException {
+    Map<String, long[][]> regions = new TreeMap<>();
+    Map<String, long[]> dataFiles = new TreeMap<>();
+    for (Map.Entry<String, Long> entry : newest.entrySet()) {
+      String key = entry.getKey();
+      long low = oldest.get(key);
+      int hash = key.lastIndexOf('#');
+      if (hash == -1) {
+        dataFiles.put(key, new long[] {low, entry.getValue()});
+        continue;
+      }
+      String region = key.substring(0, hash);
+      long[][] versions = regions.get(region);
+      if (versions == null) {
+        versions = new long[RegionFileReader.CHUNK_COUNT][];
+        regions.put(region, versions);
+      }
+      versions[Integer.parseInt(key.substring(hash + 1))] = new long[] {low, entry.getValue()};
+    }
+
+    Path scratch = Paths.get("check.mca");
+    try {
+      for (Map.Entry<String, long[][]> region : regions.entrySet()) {
+        byte[] data = files.read(region.getKey());
+        if (data == null) {
+          problems.add(label + ": " + region.getKey() + " is missing");
+          continue;
+        }
+        Files.write(scratch, data);
+        checkRegion(label, region.getKey(), scratch, region.getValue());
+      }
+    } finally {
+      Files.deleteIfExists(scratch);
+    }
+
+    for (Map.Entry<String, long[]> file : dataFiles.entrySet()) {
+      String name = file.getKey();
+      byte[] data = files.read(name);
+      if (data == null) {
+        problems.add(label + ": " + name + " is missing");
+        continue;
+      }
+      try {
+        long version = SyntheticWorld.checkNamedFile(Paths.get(name).getFileName().toString(),
+            data);
+        String problem = checkVersion(version, file.getValue());
+        if (problem != null) {
+          problems.add(label + ": " + name + " " + problem);
+        }
+      } catch (IOException e) {
+        problems.add(label + ": " + name + " is damaged: " + e.getMessage());
+      }
+    }
+  }
+
+  /** Checks every chunk of a region file read out of a backup. */
+  private void checkRegion(String label, String name, Path file, long[][] expected)
+      throws IOException {
+    String regionName = Paths.get(name).getFileName().toString();
+    int found = 0;
+    try (RegionFileReader reader = new RegionFileReader(file)) {
+      for (int i = 0; i < RegionFileReader.CHUNK_COUNT && found < MAX_PROBLEMS_PER_FILE; i++) {
+        String problem;
+        try {
+          RegionChunk chunk = reader.readChunk(i);
+          if (chunk == null) {
+            problem = "is missing";
+          } else {
+            long version = SyntheticWorld.checkRegionChunk(regionName, i,
+                RegionFileReader.decompress(chunk));
+            problem = checkVersion(version, expected[i]);
+          }
+        } catch (IOException e) {
+          problem = "is damaged: " + e.getMessage();
+        }
+        if (problem != null) {
+          problems.add(label + ": chunk " + i + " of " + name + " " + problem);
+          found++;
+        }
+      }
+    } catch (IOException e) {
+      problems.add(label + ": " + name + " isn't a region file: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Checks a version against the versions a backup may hold.
+   *
+   * @param version Version in the backup.
+   * @param expected Oldest and newest versions it may be.
+   * @return The problem, or {@code null} if the version is one of them.
+   */
+  private static String checkVersion(long version, long[] expected) {
+    if (version >= expected[0] && version <= expected[1]) {
+      return null;
+    }
+    return "is version " + version + ", expected " + (expected[0] == expected[1] ?
+        Long.toString(expected[0]) : expected[0] + " to " + expected[1]);
+  }
+
+  /**
+   * Prints the problems found.
+   *
+   * @return {@code true} if every backup was taken and is consistent.
+   */
+  private boolean report() {
+    System.out.println();
+    for (String problem : problems) {
+      System.out.println("PROBLEM: " + problem);
+    }
+    System.out.println("Checked " + backupsChecked + " backups, found " + problems.size() +
+        " problems.");
+    return problems.isEmpty();
+  }
+}
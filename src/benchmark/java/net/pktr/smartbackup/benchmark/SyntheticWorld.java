@@ -0,0 +1,634 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.region.RegionFileReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A world folder made of region files, player data and mod data, whose every chunk and file can
+ * be checked for consistency.
+ *
+ * <p>Every chunk, player and data file has a version, bumped when it changes in memory and
+ * written when it's saved. Its content is generated from its position and version, and carries a
+ * checksum, so a copy of it can be checked on its own: {@link #checkChunk} and {@link #checkFile}
+ * tell a consistent copy from a torn one and return the version it holds.</p>
+ *
+ * <p>Region files are valid Anvil files with a fixed slot of {@link #SLOT_SECTORS} sectors per
+ * chunk. Saving a chunk overwrites its slot in place and then its timestamp, the way Minecraft
+ * rewrites a chunk that still fits its sectors. Player data is written to a temporary file and
+ * renamed over the old one, and mod data is overwritten in place, as Minecraft does.</p>
+ *
+ * <p>Chunks are guarded by a lock per region, files by a lock per file, so any number of threads
+ * can change and save the world at once.</p>
+ *
+ * <p>Half the chunks of every other region are loaded, as chunks around players are on a
+ * server. They're only saved by {@link #saveChunk} and full saves, the way the server leaves
+ * loaded chunks to its autosave, so they're mostly ahead of what's on disk.</p>
+ */
+final class SyntheticWorld {
+  /** Sectors reserved for each chunk. */
+  static final int SLOT_SECTORS = 2;
+  /** Chunks along each side of a region. */
+  private static final int REGION_SIDE = 32;
+  /** Size of the block data of each chunk. */
+  private static final int BLOCKS_SIZE = 8192;
+  /** Size of the inventory of each player and the content of each data file. */
+  private static final int FILE_DATA_SIZE = 2048;
+
+  private final Path folder;
+  private final int regionsPerSide;
+  private final Region[] regions;
+  private final DataFile[] players;
+  private final DataFile[] dataFiles;
+  /** Chunks (other than loaded ones) changed since they were last saved, oldest first. */
+  private final ConcurrentLinkedQueue<Integer> dirtyChunks = new ConcurrentLinkedQueue<>();
+
+  /** One region file and what's in it. */
+  private static class Region {
+    final Path path;
+    final RandomAccessFile file;
+    /** Versions of the chunks in memory. */
+    final long[] versions = new long[RegionFileReader.CHUNK_COUNT];
+    /** Versions of the chunks in the file. */
+    final long[] saved = new long[RegionFileReader.CHUNK_COUNT];
+    final boolean[] dirty = new boolean[RegionFileReader.CHUNK_COUNT];
+
+    Region(Path path) throws IOException {
+      this.path = path;
+      this.file = new RandomAccessFile(path.toFile(), "rw");
+    }
+  }
+
+  /** A player or mod data file. */
+  private static class DataFile {
+    final Path path;
+    final int index;
+    final boolean atomic;
+    long version = 0;
+    long saved = 0;
+
+    DataFile(Path path, int index, boolean atomic) {
+      this.path = path;
+      this.index = index;
+      this.atomic = atomic;
+    }
+  }
+
+  private SyntheticWorld(Path folder, int regionsPerSide, int playerCount, int dataCount)
+      throws IOException {
+    this.folder = folder;
+    this.regionsPerSide = regionsPerSide;
+    this.regions = new Region[regionsPerSide * regionsPerSide];
+    this.players = new DataFile[playerCount];
+    this.dataFiles = new DataFile[dataCount];
+
+    Files.createDirectories(folder.resolve("region"));
+    Files.createDirectories(folder.resolve("playerdata"));
+    Files.createDirectories(folder.resolve("data"));
+    for (int i = 0; i < regions.length; i++) {
+      regions[i] = new Region(folder.resolve("region").resolve(
+          "r." + (i % regionsPerSide) + "." + (i / regionsPerSide) + ".mca"));
+    }
+    for (int i = 0; i < playerCount; i++) {
+      players[i] = new DataFile(folder.resolve("playerdata").resolve(
+          String.format("00000000-0000-4000-8000-%012d.dat", i)), i, true);
+    }
+    for (int i = 0; i < dataCount; i++) {
+      dataFiles[i] = new DataFile(folder.resolve("data").resolve("benchmark_" + i + ".dat"),
+          i, false);
+    }
+  }
+
+  /**
+   * Creates a world with every chunk and file at version 0.
+   *
+   * @param folder Folder to create the world in. It must not exist yet.
+   * @param regionsPerSide Regions along each side of the world.
+   * @param playerCount Number of player data files.
+   * @param dataCount Number of mod data files.
+   * @return The world.
+   * @throws IOException if the world can't be written.
+   */
+  static SyntheticWorld create(Path folder, int regionsPerSide, int playerCount, int dataCount)
+      throws IOException {
+    SyntheticWorld world = new SyntheticWorld(folder, regionsPerSide, playerCount, dataCount);
+    for (int r = 0; r < world.regions.length; r++) {
+      Region region = world.regions[r];
+      byte[] header = new byte[2 * RegionFileReader.SECTOR_SIZE];
+      for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+        int location = ((2 + i * SLOT_SECTORS) << 8) | SLOT_SECTORS;
+        writeInt(header, i * 4, location);
+      }
+      region.file.setLength(header.length +
+          (long) RegionFileReader.CHUNK_COUNT * SLOT_SECTORS * RegionFileReader.SECTOR_SIZE);
+      region.file.seek(0);
+      region.file.write(header);
+      for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+        world.writeChunk(r * RegionFileReader.CHUNK_COUNT + i, region, i, 0);
+      }
+    }
+    for (DataFile file : world.players) {
+      world.writeFile(file, 0);
+    }
+    for (DataFile file : world.dataFiles) {
+      world.writeFile(file, 0);
+    }
+    return world;
+  }
+
+  /**
+   * Gets the folder of the world.
+   *
+   * @return The world folder.
+   */
+  Path getFolder() {
+    return folder;
+  }
+
+  int getChunkCount() {
+    return regions.length * RegionFileReader.CHUNK_COUNT;
+  }
+
+  int getPlayerCount() {
+    return players.length;
+  }
+
+  int getDataCount() {
+    return dataFiles.length;
+  }
+
+  /**
+   * Checks whether a chunk is loaded.
+   *
+   * @param chunk Number of the chunk.
+   * @return {@code true} if the chunk is loaded.
+   */
+  boolean isLoaded(int chunk) {
+    return (chunk / RegionFileReader.CHUNK_COUNT) % 2 == 0 &&
+        chunk % RegionFileReader.CHUNK_COUNT < RegionFileReader.CHUNK_COUNT / 2;
+  }
+
+  /**
+   * Checks whether a chunk has changed since it was last saved.
+   *
+   * @param chunk Number of the chunk.
+   * @return {@code true} if the chunk needs saving.
+   */
+  boolean needsSaving(int chunk) {
+    Region region = regions[chunk / RegionFileReader.CHUNK_COUNT];
+    synchronized (region) {
+      return region.dirty[chunk % RegionFileReader.CHUNK_COUNT];
+    }
+  }
+
+  /**
+   * Gets the lock a region file is written under.
+   *
+   * @param regionX X coordinate of the region.
+   * @param regionZ Z coordinate of the region.
+   * @return The lock, or {@code null} if the world has no such region.
+   */
+  Object getRegionLock(int regionX, int regionZ) {
+    if (regionX < 0 || regionZ < 0 || regionX >= regionsPerSide || regionZ >= regionsPerSide) {
+      return null;
+    }
+    return regions[regionZ * regionsPerSide + regionX];
+  }
+
+  /**
+   * Changes a chunk in memory.
+   *
+   * @param chunk Number of the chunk.
+   */
+  void touchChunk(int chunk) {
+    Region region = regions[chunk / RegionFileReader.CHUNK_COUNT];
+    int index = chunk % RegionFileReader.CHUNK_COUNT;
+    synchronized (region) {
+      region.versions[index]++;
+      if (!region.dirty[index]) {
+        region.dirty[index] = true;
+        if (!isLoaded(chunk)) {
+          dirtyChunks.add(chunk);
+        }
+      }
+    }
+  }
+
+  /**
+   * Saves the chunks changed longest ago, leaving out loaded chunks.
+   *
+   * @param max Most chunks to save.
+   * @return Number of chunks saved.
+   * @throws IOException if writing fails.
+   */
+  int saveDirtyChunks(int max) throws IOException {
+    int saved = 0;
+    Integer chunk;
+    while (saved < max && (chunk = dirtyChunks.poll()) != null) {
+      if (saveChunk(chunk)) {
+        saved++;
+      }
+    }
+    return saved;
+  }
+
+  /**
+   * Saves a chunk if it changed since it was last saved.
+   *
+   * @param chunk Number of the chunk.
+   * @return {@code true} if the chunk was written.
+   * @throws IOException if writing fails.
+   */
+  boolean saveChunk(int chunk) throws IOException {
+    Region region = regions[chunk / RegionFileReader.CHUNK_COUNT];
+    int index = chunk % RegionFileReader.CHUNK_COUNT;
+    synchronized (region) {
+      if (!region.dirty[index]) {
+        return false;
+      }
+      region.dirty[index] = false;
+      writeChunk(chunk, region, index, region.versions[index]);
+      return true;
+    }
+  }
+
+  /**
+   * Changes a player's data in memory.
+   *
+   * @param player Number of the player.
+   */
+  void touchPlayer(int player) {
+    touch(players[player]);
+  }
+
+  /**
+   * Changes a mod data file in memory.
+   *
+   * @param data Number of the data file.
+   */
+  void touchData(int data) {
+    touch(dataFiles[data]);
+  }
+
+  private static void touch(DataFile file) {
+    synchronized (file) {
+      file.version++;
+    }
+  }
+
+  /**
+   * Saves a player's data if it changed.
+   *
+   * @param player Number of the player.
+   * @throws IOException if writing fails.
+   */
+  void savePlayer(int player) throws IOException {
+    save(players[player]);
+  }
+
+  /**
+   * Saves a mod data file if it changed.
+   *
+   * @param data Number of the data file.
+   * @throws IOException if writing fails.
+   */
+  void saveData(int data) throws IOException {
+    save(dataFiles[data]);
+  }
+
+  private void save(DataFile file) throws IOException {
+    synchronized (file) {
+      if (file.saved != file.version) {
+        writeFile(file, file.version);
+      }
+    }
+  }
+
+  /**
+   * Saves every changed chunk and file.
+   *
+   * @throws IOException if writing fails.
+   */
+  void saveAll() throws IOException {
+    for (int chunk = 0; chunk < getChunkCount(); chunk++) {
+      saveChunk(chunk);
+    }
+    for (int i = 0; i < players.length; i++) {
+      savePlayer(i);
+    }
+    for (int i = 0; i < dataFiles.length; i++) {
+      saveData(i);
+    }
+  }
+
+  /**
+   * Gets the versions on disk of every chunk and file.
+   *
+   * <p>This is only a consistent picture while nothing is being saved.</p>
+   *
+   * @param versions Map to put the versions in, by path relative to the server root.
+   */
+  void getSavedVersions(Map<String, Long> versions) {
+    for (int r = 0; r < regions.length; r++) {
+      Region region = regions[r];
+      synchronized (region) {
+        for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+          versions.put(region.path + "#" + i, region.saved[i]);
+        }
+      }
+    }
+    for (DataFile file : players) {
+      synchronized (file) {
+        versions.put(file.path.toString(), file.saved);
+      }
+    }
+    for (DataFile file : dataFiles) {
+      synchronized (file) {
+        versions.put(file.path.toString(), file.saved);
+      }
+    }
+  }
+
+  /**
+   * Gets the versions in memory of the loaded chunks.
+   *
+   * @param versions Map to put the versions in, by path relative to the server root.
+   */
+  void getLoadedVersions(Map<String, Long> versions) {
+    for (int r = 0; r < regions.length; r++) {
+      Region region = regions[r];
+      synchronized (region) {
+        for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+          if (isLoaded(r * RegionFileReader.CHUNK_COUNT + i)) {
+            versions.put(region.path + "#" + i, region.versions[i]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the region files.
+   *
+   * @throws IOException if closing fails.
+   */
+  void close() throws IOException {
+    for (Region region : regions) {
+      region.file.close();
+    }
+  }
+
+  /** Writes a chunk into its slot, then its timestamp. Called with the region locked. */
+  private void writeChunk(int chunk, Region region, int index, long version)
+      throws IOException {
+    int regionNumber = chunk / RegionFileReader.CHUNK_COUNT;
+    int x = (regionNumber % regionsPerSide) * REGION_SIDE + index % REGION_SIDE;
+    int z = (regionNumber / regionsPerSide) * REGION_SIDE + index / REGION_SIDE;
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(4096);
+    try (OutputStream out = new DeflaterOutputStream(compressed)) {
+      out.write(chunkNbt(x, z, version));
+    }
+    byte[] data = compressed.toByteArray();
+    if (data.length + 5 > SLOT_SECTORS * RegionFileReader.SECTOR_SIZE) {
+      throw new IOException("Chunk " + x + "," + z + " doesn't fit its slot");
+    }
+
+    byte[] sector = new byte[data.length + 5];
+    writeInt(sector, 0, data.length + 1);
+    sector[4] = RegionFileReader.COMPRESSION_ZLIB;
+    System.arraycopy(data, 0, sector, 5, data.length);
+    region.file.seek((2L + (long) index * SLOT_SECTORS) * RegionFileReader.SECTOR_SIZE);
+    region.file.write(sector);
+    region.file.seek(RegionFileReader.SECTOR_SIZE + index * 4);
+    region.file.writeInt((int) (System.currentTimeMillis() / 1000));
+    region.saved[index] = version;
+  }
+
+  /** Writes a player or data file. Called with the file locked. */
+  private void writeFile(DataFile file, long version) throws IOException {
+    byte[] data = fileNbt(file.index, version);
+    if (file.atomic) {
+      Path temporary = file.path.resolveSibling(file.path.getFileName() + ".tmp");
+      Files.write(temporary, data);
+      Files.move(temporary, file.path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } else {
+      Files.write(file.path, data);
+    }
+    file.saved = version;
+  }
+
+  /**
+   * Generates the NBT of a chunk.
+   *
+   * @param x X coordinate of the chunk.
+   * @param z Z coordinate of the chunk.
+   * @param version Version of the chunk.
+   * @return Uncompressed NBT.
+   * @throws IOException never.
+   */
+  static byte[] chunkNbt(int x, int z, long version) throws IOException {
+    byte[] blocks = generate(((long) x << 32) ^ (z & 0xffffffffL), version, BLOCKS_SIZE);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(BLOCKS_SIZE + 128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    Nbt.writeHeader(out, Nbt.TAG_COMPOUND, "");
+    Nbt.writeHeader(out, Nbt.TAG_COMPOUND, "Level");
+    Nbt.writeInt(out, "xPos", x);
+    Nbt.writeInt(out, "zPos", z);
+    Nbt.writeLong(out, "Version", version);
+    Nbt.writeByteArray(out, "Blocks", blocks);
+    Nbt.writeInt(out, "Check", checksum(blocks));
+    out.writeByte(Nbt.TAG_END);
+    out.writeByte(Nbt.TAG_END);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Generates the gzipped NBT of a player or data file.
+   *
+   * @param index Number of the file.
+   * @param version Version of the file.
+   * @return Gzipped NBT.
+   * @throws IOException never.
+   */
+  static byte[] fileNbt(int index, long version) throws IOException {
+    byte[] content = generate(index, version, FILE_DATA_SIZE);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(FILE_DATA_SIZE);
+    try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+      Nbt.writeHeader(out, Nbt.TAG_COMPOUND, "");
+      Nbt.writeInt(out, "Index", index);
+      Nbt.writeLong(out, "Version", version);
+      Nbt.writeByteArray(out, "Content", content);
+      Nbt.writeInt(out, "Check", checksum(content));
+      out.writeByte(Nbt.TAG_END);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Checks a chunk's NBT against what the world would have written.
+   *
+   * @param x Expected X coordinate.
+   * @param z Expected Z coordinate.
+   * @param nbt Uncompressed NBT of the chunk.
+   * @return Version of the chunk.
+   * @throws IOException if the chunk isn't one the world wrote, whole.
+   */
+  static long checkChunk(int x, int z, byte[] nbt) throws IOException {
+    Map<String, Object> root = Nbt.readRoot(new DataInputStream(new ByteArrayInputStream(nbt)));
+    Object level = root.get("Level");
+    if (!(level instanceof Map)) {
+      throw new IOException("Chunk " + x + "," + z + " has no Level tag");
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, Object> tags = (Map<String, Object>) level;
+    if (!Integer.valueOf(x).equals(tags.get("xPos")) ||
+        !Integer.valueOf(z).equals(tags.get("zPos"))) {
+      throw new IOException("Chunk " + x + "," + z + " holds another chunk's data");
+    }
+    long version = checkContent(tags, "Blocks", ((long) x << 32) ^ (z & 0xffffffffL),
+        BLOCKS_SIZE);
+    if (!Arrays.equals(nbt, chunkNbt(x, z, version))) {
+      throw new IOException("Chunk " + x + "," + z + " differs from version " + version);
+    }
+    return version;
+  }
+
+  /**
+   * Checks a player or data file against what the world would have written.
+   *
+   * @param index Expected number of the file.
+   * @param gzipped Content of the file.
+   * @return Version of the file.
+   * @throws IOException if the file isn't one the world wrote, whole.
+   */
+  static long checkFile(int index, byte[] gzipped) throws IOException {
+    Map<String, Object> tags;
+    try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+        new ByteArrayInputStream(gzipped)))) {
+      tags = Nbt.readRoot(in);
+    }
+    if (!Integer.valueOf(index).equals(tags.get("Index"))) {
+      throw new IOException("File " + index + " holds another file's data");
+    }
+    return checkContent(tags, "Content", index, FILE_DATA_SIZE);
+  }
+
+  /**
+   * Checks a chunk of a region file against what the world would have written.
+   *
+   * @param regionName File name of the region file ({@code r.<x>.<z>.mca}).
+   * @param index Index of the chunk in the region.
+   * @param nbt Uncompressed NBT of the chunk.
+   * @return Version of the chunk.
+   * @throws IOException if the chunk isn't one the world wrote, whole.
+   */
+  static long checkRegionChunk(String regionName, int index, byte[] nbt) throws IOException {
+    String[] parts = regionName.split("\\.");
+    if (parts.length != 4) {
+      throw new IOException("Not a region file name: " + regionName);
+    }
+    int x = Integer.parseInt(parts[1]) * REGION_SIDE + index % REGION_SIDE;
+    int z = Integer.parseInt(parts[2]) * REGION_SIDE + index / REGION_SIDE;
+    return checkChunk(x, z, nbt);
+  }
+
+  /**
+   * Checks a player or data file against what the world would have written, taking its number
+   * from its name.
+   *
+   * @param fileName Name of the file.
+   * @param gzipped Content of the file.
+   * @return Version of the file.
+   * @throws IOException if the file isn't one the world wrote, whole.
+   */
+  static long checkNamedFile(String fileName, byte[] gzipped) throws IOException {
+    String number = fileName.substring(0, fileName.length() - ".dat".length());
+    number = number.substring(Math.max(number.lastIndexOf('-'), number.lastIndexOf('_')) + 1);
+    return checkFile(Integer.parseInt(number), gzipped);
+  }
+
+  /** Checks that the content tag matches its checksum and version, and returns the version. */
+  private static long checkContent(Map<String, Object> tags, String name, long seed, int size)
+      throws IOException {
+    Object version = tags.get("Version");
+    Object content = tags.get(name);
+    Object check = tags.get("Check");
+    if (!(version instanceof Long) || !(content instanceof byte[]) ||
+        !(check instanceof Integer)) {
+      throw new IOException("Missing tags");
+    }
+    byte[] bytes = (byte[]) content;
+    if (checksum(bytes) != (Integer) check) {
+      throw new IOException("Checksum mismatch");
+    }
+    if (!Arrays.equals(bytes, generate(seed, (Long) version, size))) {
+      throw new IOException("Content isn't version " + version);
+    }
+    return (Long) version;
+  }
+
+  /**
+   * Generates content that compresses about as well as chunk data: short runs of a few values.
+   */
+  private static byte[] generate(long seed, long version, int size) {
+    Random random = new Random(seed * 0x9E3779B97F4A7C15L + version);
+    byte[] data = new byte[size];
+    int i = 0;
+    while (i < size) {
+      byte value = (byte) random.nextInt(8);
+      int run = Math.min(size - i, 1 + random.nextInt(24));
+      for (int j = 0; j < run; j++) {
+        data[i++] = value;
+      }
+    }
+    return data;
+  }
+
+  private static int checksum(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    return (int) crc.getValue();
+  }
+
+  private static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >>> 24);
+    buffer[offset + 1] = (byte) (value >>> 16);
+    buffer[offset + 2] = (byte) (value >>> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+}
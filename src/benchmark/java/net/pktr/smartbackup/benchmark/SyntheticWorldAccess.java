@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.creator.WorldAccess;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The world of a simulated {@link SimulatedBackups.Server}, as a single dimension saved in its
+ * world folder.
+ *
+ * <p>Chunk saves write straight to the region file under the region's lock, so there are never
+ * any writes to wait for.</p>
+ */
+final class SyntheticWorldAccess implements WorldAccess {
+  private final SimulatedBackups.Server server;
+  private final SyntheticWorld world;
+
+  SyntheticWorldAccess(SimulatedBackups.Server server) {
+    this.server = server;
+    this.world = server.getWorld();
+  }
+
+  @Override
+  public List<Dimension> getDimensions() {
+    return Collections.<Dimension>singletonList(new SyntheticDimension());
+  }
+
+  @Override
+  public void waitForChunkWrites() {
+  }
+
+  /** The only dimension of the world. */
+  private final class SyntheticDimension implements Dimension {
+    @Override
+    public int getId() {
+      return 0;
+    }
+
+    @Override
+    public Path getSaveFolder() {
+      return world.getFolder().normalize();
+    }
+
+    @Override
+    public boolean hasRegionFiles() {
+      return true;
+    }
+
+    @Override
+    public boolean isSaving() {
+      return server.isSaving();
+    }
+
+    @Override
+    public void setSaving(boolean saving) {
+      server.setSaving(saving);
+    }
+
+    @Override
+    public void save() throws IOException {
+      server.saveAll();
+    }
+
+    @Override
+    public List<LoadedChunk> getLoadedChunks() {
+      List<LoadedChunk> chunks = new ArrayList<>();
+      for (int chunk = 0; chunk < world.getChunkCount(); chunk++) {
+        if (world.isLoaded(chunk)) {
+          chunks.add(new SyntheticChunk(chunk));
+        }
+      }
+      return chunks;
+    }
+
+    @Override
+    public void readRegion(int regionX, int regionZ, RegionRead read) throws IOException {
+      Object lock = world.getRegionLock(regionX, regionZ);
+      if (lock == null) {
+        read.read();
+        return;
+      }
+      synchronized (lock) {
+        read.read();
+      }
+    }
+  }
+
+  /** A loaded chunk of the world. */
+  private final class SyntheticChunk implements LoadedChunk {
+    private final int chunk;
+
+    SyntheticChunk(int chunk) {
+      this.chunk = chunk;
+    }
+
+    @Override
+    public boolean isLoaded() {
+      return true;
+    }
+
+    @Override
+    public boolean needsSaving() {
+      return world.needsSaving(chunk);
+    }
+
+    @Override
+    public void save() throws IOException {
+      world.saveChunk(chunk);
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.BackupConfiguration;
+import net.pktr.smartbackup.SmartBackup;
+import net.pktr.smartbackup.creator.BackupCreator;
+import net.pktr.smartbackup.creator.CaptureMode;
+
+import org.apache.logging.log4j.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how much each backup mode slows down the server's ticks.
+ *
+ * <p>A {@link SimulatedServer} ticks a {@link SyntheticWorld} in the working directory while
+ * real backup creators back it up, saving and pausing the simulated server through the hooks the
+ * running server would get. For each mode the tick durations during its backups are reported
+ * (p50, p99 and the longest tick), along with how long saving was paused per backup and how long
+ * the first and later backups took. Ticks while no backup runs are measured first, for
+ * comparison.</p>
+ *
+ * <p>With a baseline file, the run fails if the p99 tick of any mode is worse than the
+ * baseline's by more than the tolerance. {@code --update-baseline} writes the results as the new
+ * baseline instead. If the baseline file doesn't exist, the run fails before measuring anything,
+ * so a missing baseline can't pass for a clean comparison. Baselines only compare runs on the same
+ * machine.</p>
+ *
+ * <p>Options (all {@code --name=value}): {@code regions} (regions along each side of the world,
+ * default 2), {@code logic-millis} (game logic per tick, 10), {@code chunks-per-tick} (20),
+ * {@code idle-seconds} (10), {@code rounds} (backups per mode, 3), {@code settle-seconds} (time
+ * the world changes between backups, 5), {@code baseline} (baseline file), {@code tolerance}
+ * (allowed p99 increase as a fraction, 0.25), {@code slack-millis} (allowed increase on top,
+ * 2).</p>
+ */
+public final class TickBenchmark {
+  /** File marking the working directory as the benchmark's, so it may delete what's in it. */
+  private static final String MARKER = ".tick-benchmark";
+  /** File the results of the last run are written to, in the working directory. */
+  private static final String RESULTS = "tick-benchmark.properties";
+
+  /** Modes measured: backup type and capture mode. */
+  private static final String[][] MODES = {
+      {"snapshot", "pause"},
+      {"snapshot", "precopy"},
+      {"archive", "pause"},
+      {"archive", "precopy"},
+      {"repository", "pause"},
+  };
+
+  private final Options options;
+  /** Results by mode (and "idle"), in the order they were measured. */
+  private final Map<String, Result> results = new LinkedHashMap<>();
+
+  /** What was measured for one mode. */
+  private static final class Result {
+    final SimulatedServer.Recording recording;
+    final int backups;
+    final double firstMillis;
+    final double laterMillis;
+
+    Result(SimulatedServer.Recording recording, int backups, double firstMillis,
+        double laterMillis) {
+      this.recording = recording;
+      this.backups = backups;
+      this.firstMillis = firstMillis;
+      this.laterMillis = laterMillis;
+    }
+  }
+
+  private TickBenchmark(Options options) {
+    this.options = options;
+  }
+
+  /**
+   * Runs the benchmark in the working directory.
+   *
+   * @param args Options, as {@code --name=value} (or {@code --name} for flags).
+   * @throws Exception if the benchmark can't run.
+   */
+  public static void main(String[] args) throws Exception {
+    TickBenchmark benchmark = new TickBenchmark(new Options(args));
+    if (!benchmark.hasBaseline()) {
+      System.err.println("There is no baseline at " + benchmark.options.get("baseline") + " to " +
+          "compare with. Run with --update-baseline to record one, or without --baseline to " +
+          "skip the comparison.");
+      System.exit(1);
+    }
+    benchmark.run();
+    benchmark.report();
+    System.exit(benchmark.checkBaseline() ? 0 : 1);
+  }
+
+  private void run() throws Exception {
+    Options.prepareWorkingDirectory(MARKER, "world", "backups", "repository");
+
+    SmartBackup.initialize(LogManager.getLogger(SmartBackup.MOD_ID), new File("smartbackup.cfg"));
+    BackupConfiguration config = SmartBackup.getConfiguration();
+    config.setBackupIncludes(new String[] {"world"});
+    config.setBackupOutputDir("backups");
+    config.setRepositoryPath("repository");
+
+    System.out.println("Creating the world...");
+    SyntheticWorld world = SyntheticWorld.create(Paths.get("world"),
+        options.getInt("regions", 2), 50, 20);
+    SimulatedServer server = new SimulatedServer(world, options.getInt("logic-millis", 10),
+        options.getInt("chunks-per-tick", 20));
+    server.start();
+    try {
+      System.out.println("Measuring ticks without backups...");
+      server.startRecording();
+      TimeUnit.SECONDS.sleep(options.getInt("idle-seconds", 10));
+      results.put("idle", new Result(server.stopRecording(), 0, 0, 0));
+
+      for (String[] mode : MODES) {
+        System.out.println("Measuring " + mode[0] + " backups with capture mode " + mode[1] +
+            "...");
+        config.setCaptureMode(CaptureMode.fromName(mode[1]));
+        results.put(mode[0] + "-" + mode[1], measure(server, mode[0]));
+      }
+    } finally {
+      server.stop();
+      world.close();
+    }
+  }
+
+  /**
+   * Takes a few backups of one type, recording the ticks while each runs.
+   *
+   * @param server Server to back up.
+   * @param type Type of backup.
+   * @return What was measured.
+   * @throws Exception if a backup fails.
+   */
+  private Result measure(SimulatedServer server, String type) throws Exception {
+    int rounds = Math.max(1, options.getInt("rounds", 3));
+    List<SimulatedServer.Recording> recordings = new ArrayList<>();
+    double firstMillis = 0;
+    double laterMillis = 0;
+    for (int round = 0; round < rounds; round++) {
+      TimeUnit.SECONDS.sleep(options.getInt("settle-seconds", 5));
+
+      BackupCreator backup = SimulatedBackups.create(type, server);
+      server.startRecording();
+      long start = System.nanoTime();
+      backup.start();
+      backup.join();
+      double millis = (System.nanoTime() - start) / 1e6;
+      recordings.add(server.stopRecording());
+
+      if (backup.getStatus() != BackupCreator.BackupStatus.COMPLETED) {
+        throw new IllegalStateException("The " + type + " backup ended as " +
+            backup.getStatus(), backup.getError());
+      }
+      if (round == 0) {
+        firstMillis = millis;
+      } else {
+        laterMillis += millis / (rounds - 1);
+      }
+    }
+    return new Result(SimulatedServer.Recording.combine(recordings), rounds, firstMillis,
+        laterMillis);
+  }
+
+  /** Prints the results and writes them to the results file. */
+  private void report() throws IOException {
+    Properties properties = new Properties();
+    System.out.println();
+    System.out.println(String.format(Locale.ROOT, "%-20s %7s %8s %8s %8s %10s %10s %10s",
+        "mode", "ticks", "p50 ms", "p99 ms", "max ms", "paused ms", "first ms", "later ms"));
+    for (Map.Entry<String, Result> entry : results.entrySet()) {
+      Result result = entry.getValue();
+      SimulatedServer.Recording recording = result.recording;
+      double paused = result.backups == 0 ? 0 : recording.getPausedMillis() / result.backups;
+      System.out.println(String.format(Locale.ROOT,
+          "%-20s %7d %8.1f %8.1f %8.1f %10.0f %10.0f %10.0f", entry.getKey(),
+          recording.getTickCount(), recording.getPercentile(50), recording.getPercentile(99),
+          recording.getPercentile(100), paused, result.firstMillis, result.laterMillis));
+
+      String key = entry.getKey();
+      properties.setProperty(key + ".p50Millis", format(recording.getPercentile(50)));
+      properties.setProperty(key + ".p99Millis", format(recording.getPercentile(99)));
+      properties.setProperty(key + ".maxMillis", format(recording.getPercentile(100)));
+      properties.setProperty(key + ".pausedMillis", format(paused));
+      properties.setProperty(key + ".firstBackupMillis", format(result.firstMillis));
+      properties.setProperty(key + ".laterBackupMillis", format(result.laterMillis));
+    }
+    System.out.println();
+
+    try (OutputStream out = Files.newOutputStream(Paths.get(RESULTS))) {
+      properties.store(out, "Results of the tick benchmark");
+    }
+  }
+
+  private static String format(double millis) {
+    return String.format(Locale.ROOT, "%.2f", millis);
+  }
+
+  /**
+   * Checks whether there is a baseline to compare with, if the run compares with one.
+   *
+   * @return {@code false} if a baseline is given but doesn't exist, and isn't being recorded.
+   */
+  private boolean hasBaseline() {
+    String baselineOption = options.get("baseline");
+    return baselineOption == null || options.has("update-baseline") ||
+        Files.exists(Paths.get(baselineOption));
+  }
+
+  /**
+   * Compares the p99 ticks against the baseline, or writes the baseline.
+   *
+   * @return {@code false} if a mode regressed.
+   * @throws IOException if the baseline can't be read or written.
+   */
+  private boolean checkBaseline() throws IOException {
+    String baselineOption = options.get("baseline");
+    if (baselineOption == null) {
+      return true;
+    }
+    Path baseline = Paths.get(baselineOption);
+    if (options.has("update-baseline")) {
+      Files.copy(Paths.get(RESULTS), baseline, StandardCopyOption.REPLACE_EXISTING);
+      System.out.println("Wrote the baseline to " + baseline);
+      return true;
+    }
+    Properties expected = new Properties();
+    try (InputStream in = Files.newInputStream(baseline)) {
+      expected.load(in);
+    }
+    double tolerance = options.getDouble("tolerance", 0.25);
+    double slack = options.getDouble("slack-millis", 2);
+    boolean passed = true;
+    for (Map.Entry<String, Result> entry : results.entrySet()) {
+      String value = expected.getProperty(entry.getKey() + ".p99Millis");
+      if (value == null || entry.getKey().equals("idle")) {
+        continue;
+      }
+      double limit = Double.parseDouble(value) * (1 + tolerance) + slack;
+      double p99 = entry.getValue().recording.getPercentile(99);
+      if (p99 > limit) {
+        System.out.println(String.format(Locale.ROOT,
+            "REGRESSION: %s p99 tick is %.1f ms, the baseline allows up to %.1f ms",
+            entry.getKey(), p99, limit));
+        passed = false;
+      }
+    }
+    if (passed) {
+      System.out.println("Every mode's p99 tick is within the baseline.");
+    }
+    return passed;
+  }
+}
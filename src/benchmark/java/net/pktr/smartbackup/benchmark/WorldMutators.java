@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.benchmark;
+
+import net.pktr.smartbackup.SmartBackup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Threads changing and saving a {@link SyntheticWorld} as fast as they can.
+ *
+ * <p>Each thread changes random chunks, player data and mod data files and, while saving is on,
+ * saves them straight away, so the files are rewritten all the time from several threads at once.
+ * Loaded chunks are left to full saves (see {@link SyntheticWorld}). Saves hold a shared lock and
+ * turning saving off takes it exclusively, so once a backup has turned saving off no save is still
+ * under way, as on the server where saving is toggled on the thread that saves.</p>
+ *
+ * <p>A server thread runs the backup's server tasks every {@link #TICK_MILLIS} with the lock held
+ * exclusively, so nothing is changed or saved while they run, as on the server.</p>
+ *
+ * <p>When the backup saves the whole world with saving off, the versions on disk right after are
+ * what the backup has to hold: nothing is written again until saving is turned back on.</p>
+ */
+final class WorldMutators implements SimulatedBackups.Server {
+  /** Time between two runs of the server tasks. */
+  private static final long TICK_MILLIS = 50;
+
+  private final SyntheticWorld world;
+  private final List<Thread> threads = new ArrayList<>();
+  /** Held shared by saves, and exclusively to turn saving on or off. */
+  private final ReadWriteLock savingLock = new ReentrantReadWriteLock();
+  /** Changes made so far. */
+  private final AtomicLong changes = new AtomicLong();
+
+  private volatile boolean running = true;
+  /** Guarded by {@link #savingLock}. */
+  private boolean saving = true;
+  /** Error that stopped a thread, or {@code null}. */
+  private volatile IOException failure = null;
+  /** Versions on disk after the last full save with saving off, or {@code null}. */
+  private volatile Map<String, Long> pausedVersions = null;
+
+  /**
+   * Sets up the threads. They don't run until they're started.
+   *
+   * @param world World to change.
+   * @param threadCount Number of threads.
+   */
+  WorldMutators(SyntheticWorld world, int threadCount) {
+    this.world = world;
+    for (int i = 0; i < threadCount; i++) {
+      final Random random = new Random(i);
+      threads.add(new Thread("World Mutator #" + i) {
+        @Override
+        public void run() {
+          try {
+            while (running) {
+              mutate(random);
+            }
+          } catch (IOException e) {
+            failure = e;
+          }
+        }
+      });
+    }
+    threads.add(new Thread("Simulated Server Thread") {
+      @Override
+      public void run() {
+        try {
+          while (running) {
+            runServerTasks();
+            TimeUnit.MILLISECONDS.sleep(TICK_MILLIS);
+          }
+        } catch (InterruptedException e) {
+          // Stopped.
+        }
+      }
+    });
+  }
+
+  /** Starts the threads. */
+  void start() {
+    for (Thread thread : threads) {
+      thread.start();
+    }
+  }
+
+  /**
+   * Stops the threads and waits for them to end.
+   *
+   * @throws IOException if a thread stopped because saving failed.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  void stop() throws IOException, InterruptedException {
+    running = false;
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    checkFailure();
+  }
+
+  /**
+   * Throws the error that stopped a thread, if one did.
+   *
+   * @throws IOException if a thread stopped because saving failed.
+   */
+  void checkFailure() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  long getChanges() {
+    return changes.get();
+  }
+
+  /** Runs the backup's server tasks, with nothing else changing the world. */
+  private void runServerTasks() {
+    savingLock.writeLock().lock();
+    try {
+      SmartBackup.getServerTasks().runTasks();
+    } finally {
+      savingLock.writeLock().unlock();
+    }
+  }
+
+  /** Makes one change, and saves it if saving is on. */
+  private void mutate(Random random) throws IOException {
+    int choice = random.nextInt(10);
+    savingLock.readLock().lock();
+    try {
+      if (choice < 7) {
+        int chunk = random.nextInt(world.getChunkCount());
+        world.touchChunk(chunk);
+        if (saving) {
+          if (!world.isLoaded(chunk)) {
+            world.saveChunk(chunk);
+          }
+          world.saveDirtyChunks(2);
+        }
+      } else if (choice < 9) {
+        int player = random.nextInt(world.getPlayerCount());
+        world.touchPlayer(player);
+        if (saving) {
+          world.savePlayer(player);
+        }
+      } else {
+        int data = random.nextInt(world.getDataCount());
+        world.touchData(data);
+        if (saving) {
+          world.saveData(data);
+        }
+      }
+    } finally {
+      savingLock.readLock().unlock();
+    }
+    changes.incrementAndGet();
+  }
+
+  @Override
+  public void setSaving(boolean saving) {
+    savingLock.writeLock().lock();
+    try {
+      this.saving = saving;
+    } finally {
+      savingLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean isSaving() {
+    savingLock.readLock().lock();
+    try {
+      return saving;
+    } finally {
+      savingLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public SyntheticWorld getWorld() {
+    return world;
+  }
+
+  @Override
+  public void savePlayers() throws IOException {
+    for (int i = 0; i < world.getPlayerCount(); i++) {
+      world.savePlayer(i);
+    }
+  }
+
+  /**
+   * Saves the whole world. With saving off, also records the versions on disk afterwards.
+   *
+   * @throws IOException if writing fails.
+   */
+  @Override
+  public void saveAll() throws IOException {
+    world.saveAll();
+    if (!isSaving()) {
+      Map<String, Long> versions = new HashMap<>();
+      world.getSavedVersions(versions);
+      pausedVersions = versions;
+    }
+  }
+
+  /**
+   * Gets the versions on disk after the last full save with saving off, and forgets them.
+   *
+   * @return Versions by path relative to the server root, or {@code null} if there was no such
+   * save since the last call.
+   */
+  Map<String, Long> takePausedVersions() {
+    Map<String, Long> versions = pausedVersions;
+    pausedVersions = null;
+    return versions;
+  }
+}
@@ -17,20 +17,42 @@
 package net.pktr.smartbackup;
 
 import net.pktr.smartbackup.creator.BackupCreator;
+import net.pktr.smartbackup.creator.BackupProgress;
+import net.pktr.smartbackup.creator.ProfileRun;
+import net.pktr.smartbackup.creator.SnapshotCreator;
+import net.pktr.smartbackup.manifest.BackupKind;
+import net.pktr.smartbackup.manifest.Manifest;
+import net.pktr.smartbackup.manifest.ManifestDiff;
+import net.pktr.smartbackup.manifest.ManifestReader;
+import net.pktr.smartbackup.manifest.ManifestStore;
+import net.pktr.smartbackup.manifest.RestorePlanner;
+import net.pktr.smartbackup.manifest.WorldChangeReport;
 
 import net.minecraft.command.CommandBase;
 import net.minecraft.command.CommandException;
 import net.minecraft.command.ICommandSender;
 import net.minecraft.command.WrongUsageException;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 
 /**
  * The /smartbackup command.
  */
 public class BackupCommand extends CommandBase {
+  private static final double BYTES_PER_MIB = 1024 * 1024;
+  /** Most regions and players listed by the diff subcommand. */
+  private static final int DIFF_LIST_LIMIT = 10;
+
   private BackupManager manager;
   private Messenger messenger;
 
@@ -58,25 +80,26 @@ public class BackupCommand extends CommandBase {
 
         manager.getCurrentBackup().setInterrupter(sender);
 
+        // Don't wait for the backup to stop, it reports back once it has cleaned up.
         manager.interruptBackups();
 
-        try {
-          manager.waitForBackups();
-        } catch (InterruptedException e) {
-          return;
-        }
-
-        messenger.unicastInfo(sender, "Backup cancelled");
+        messenger.unicastInfo(sender, "Cancelling the backup...");
 
         break;
       case "help":
         String[] helpText = {
             "SmartBackup subcommands:",
             "  cancel - Cancel the currently-running backup (if any)",
+            "  diff <older> <newer> [profile] - Show what changed between two backups",
             "  help - List subcommands",
+            "  restore-plan [time] [profile] - List the backups needed to restore to a time " +
+                "(default: now)",
             "  status - Show the status of the backup system",
-            "  take-archive - Start the creation of an archive",
+            "  take-archive [full|differential|incremental] - Start the creation of an archive",
+            "  take-profile <profile> [<profile>...] - Back up profiles together",
+            "  take-repository - Start a backup into the shared repository",
             "  take-snapshot - Start the creation of a snapshot",
+            "  unpack <snapshot> [profile] - Copy a snapshot into a folder of plain files",
             "  version - Show information about SmartBackup's version"
         };
 
@@ -86,6 +109,10 @@ public class BackupCommand extends CommandBase {
 
         break;
       case "status":
+        if (manager.tieringInProgress()) {
+          messenger.unicastInfo(sender, "Running in the background: " +
+              manager.getTiering().getBackupType());
+        }
         if (manager.backupInProgress()) {
           messenger.unicastInfo(sender, "A backup is in progress:");
         } else {
@@ -121,6 +148,13 @@ public class BackupCommand extends CommandBase {
             break;
           case INPROGRESS:
             messenger.unicastInfo(sender, "  Status: In-Progress");
+            showProgress(sender, currentBackup.getProgress());
+            if (currentBackup instanceof ProfileRun) {
+              for (BackupCreator member : ((ProfileRun) currentBackup).getMembers()) {
+                messenger.unicastInfo(sender, "  Profile " + member.getProfile().getName() + ":");
+                showProgress(sender, member.getProgress());
+              }
+            }
 
             break;
           case COMPLETED:
@@ -168,17 +202,63 @@ public class BackupCommand extends CommandBase {
 
         break;
       case "take-archive":
+      case "take-repository":
       case "take-snapshot":
         if (manager.backupInProgress()) {
           throw new CommandException("There is currently a backup in progress.");
         }
 
         if (args[0].equals("take-archive")) {
-          manager.startArchive(sender);
+          BackupKind kind = BackupKind.FULL;
+          if (args.length > 1) {
+            try {
+              kind = BackupKind.fromName(args[1]);
+            } catch (IllegalArgumentException e) {
+              throw new WrongUsageException(
+                  "/" + getCommandName() + " take-archive [full|differential|incremental]");
+            }
+          }
+          manager.startArchive(sender, kind);
+        } else if (args[0].equals("take-repository")) {
+          manager.startRepositoryBackup(sender);
         } else {
           manager.startSnapshot(sender);
         }
 
+        break;
+      case "take-profile":
+        if (args.length < 2) {
+          throw new WrongUsageException(
+              "/" + getCommandName() + " take-profile <profile> [<profile>...]");
+        }
+        if (manager.backupInProgress()) {
+          throw new CommandException("There is currently a backup in progress.");
+        }
+        manager.startProfiles(sender, getProfiles(args));
+
+        break;
+      case "diff":
+        if (args.length != 3 && args.length != 4) {
+          throw new WrongUsageException(
+              "/" + getCommandName() + " diff <older> <newer> [profile]");
+        }
+        startDiff(sender, args[1], args[2], args.length > 3 ? args[3] : null);
+
+        break;
+      case "restore-plan":
+        if (args.length > 3) {
+          throw new WrongUsageException(
+              "/" + getCommandName() + " restore-plan [time] [profile]");
+        }
+        startRestorePlan(sender, args);
+
+        break;
+      case "unpack":
+        if (args.length != 2 && args.length != 3) {
+          throw new WrongUsageException("/" + getCommandName() + " unpack <snapshot> [profile]");
+        }
+        startUnpack(sender, args[1], args.length > 2 ? args[2] : null);
+
         break;
       case "version":
         messenger.unicastInfo(sender, "SmartBackup " + SmartBackup.VERSION);
@@ -201,20 +281,320 @@ public class BackupCommand extends CommandBase {
     }
   }
 
+  /**
+   * Looks up the profiles named in a take-profile command.
+   *
+   * @param args Command arguments. Every argument after the first names a profile.
+   * @return The profiles, in the order they were named.
+   * @throws CommandException if a profile doesn't exist, or two of them share a folder.
+   */
+  private List<BackupProfile> getProfiles(String[] args) {
+    BackupConfiguration config = SmartBackup.getConfiguration();
+    List<BackupProfile> profiles = new ArrayList<>();
+    Set<String> names = new HashSet<>();
+    Set<Path> folders = new HashSet<>();
+    for (int i = 1; i < args.length; i++) {
+      if (!names.add(args[i])) {
+        continue;
+      }
+      BackupProfile profile = config.getProfile(args[i]);
+      if (profile == null) {
+        throw new CommandException("There is no profile named " + args[i]);
+      }
+      if (!folders.add(Paths.get(profile.getOutputDir()).toAbsolutePath().normalize())) {
+        throw new CommandException(
+            "The profile " + args[i] + " has the same folder as another profile");
+      }
+      profiles.add(profile);
+    }
+    return profiles;
+  }
+
+  /**
+   * Gets the manifests in the main backup folder or in a profile's folder.
+   *
+   * @param profileName Name of the profile, or {@code null} for the main backup folder.
+   * @return The manifests of the folder.
+   * @throws CommandException if there is no profile with that name.
+   */
+  private static ManifestStore getManifestStore(String profileName) {
+    BackupConfiguration config = SmartBackup.getConfiguration();
+    if (profileName == null) {
+      return new ManifestStore(Paths.get(config.getBackupOutputDir()));
+    }
+    BackupProfile profile = config.getProfile(profileName);
+    if (profile == null) {
+      throw new CommandException("There is no profile named " + profileName);
+    }
+    return new ManifestStore(Paths.get(profile.getOutputDir()));
+  }
+
+  /**
+   * Shows the live progress of a running backup.
+   *
+   * @param sender Who to send the progress to.
+   * @param progress Progress of the backup.
+   */
+  private void showProgress(ICommandSender sender, BackupProgress progress) {
+    messenger.unicastInfo(sender, "  Phase: " + progress.getPhase().getDescription());
+
+    String estimated = progress.isEstimated() ? " (estimated)" : "";
+    messenger.unicastInfo(sender, String.format("  Progress: %d%% (%.1f of %.1f MiB, %d of %d " +
+            "files)%s", progress.getPercentDone(), progress.getBytesDone() / BYTES_PER_MIB,
+        progress.getBytesTotal() / BYTES_PER_MIB, progress.getFilesDone(),
+        progress.getFilesTotal(), estimated));
+
+    if (progress.getPhase() == BackupProgress.Phase.WRITING) {
+      messenger.unicastInfo(sender, String.format("  Speed: %.1f MiB/s (average %.1f MiB/s)",
+          progress.getCurrentRate() / BYTES_PER_MIB, progress.getAverageRate() / BYTES_PER_MIB));
+
+      long secondsLeft = progress.getSecondsLeft();
+      if (secondsLeft >= 0) {
+        messenger.unicastInfo(sender,
+            "  Time left: about " + ProgressUpdate.formatDuration(secondsLeft));
+      }
+    }
+
+    String currentFile = progress.getCurrentFile();
+    if (currentFile != null) {
+      messenger.unicastInfo(sender, "  Current file: " + currentFile);
+    }
+  }
+
+  /**
+   * Lists the backups needed to restore the backed-up files to a point in time, worked out on
+   * another thread.
+   *
+   * <p>Planning reads every manifest in the chain, which can have millions of entries, so the
+   * server thread doesn't wait for it; the plan is sent through the messenger once it's done.</p>
+   *
+   * @param sender Who to send the plan to.
+   * @param args Command arguments. The optional second argument is the time to restore to, and
+   * the optional third names the profile whose backups are planned from. A lone second argument
+   * that isn't a time but names a profile is taken as the profile.
+   */
+  private void startRestorePlan(final ICommandSender sender, String[] args) {
+    SimpleDateFormat rfc8601Formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    rfc8601Formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    long requestedTime = System.currentTimeMillis();
+    String profileName = args.length > 2 ? args[2] : null;
+    if (args.length > 1) {
+      try {
+        requestedTime = rfc8601Formatter.parse(args[1]).getTime();
+      } catch (ParseException e) {
+        if (args.length != 2 || SmartBackup.getConfiguration().getProfile(args[1]) == null) {
+          throw new CommandException("Times are written as yyyy-MM-ddTHH:mm:ssZ (in UTC)");
+        }
+        profileName = args[1];
+      }
+    }
+    final long time = requestedTime;
+    final ManifestStore store = getManifestStore(profileName);
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        RestorePlanner.RestorePlan plan;
+        try {
+          plan = new RestorePlanner(store).plan(time);
+        } catch (IOException e) {
+          messenger.error(sender, "Unable to plan the restore: " + e.getMessage(), e);
+          return;
+        }
+        if (plan == null) {
+          messenger.error(sender, "There are no backups from before that time");
+          return;
+        }
+        showRestorePlan(sender, plan);
+      }
+    }, "Restore Plan Thread");
+    thread.setDaemon(true);
+    thread.start();
+
+    messenger.unicastInfo(sender, "Planning the restore...");
+  }
+
+  /**
+   * Sends the backups needed to restore to a point in time.
+   *
+   * @param sender Who to send the plan to.
+   * @param plan The plan.
+   */
+  private void showRestorePlan(ICommandSender sender, RestorePlanner.RestorePlan plan) {
+    messenger.unicastInfo(sender, "Restoring " + plan.getTarget().getName() + " needs:");
+    for (Manifest backup : plan.getBackups()) {
+      messenger.unicastInfo(sender, "  " + backup.getFile() + " (" + backup.getKind().getName() +
+          ", " + plan.getFileCount(backup.getName()) + " files, " +
+          plan.getByteCount(backup.getName()) / (1024 * 1024) + " MiB)");
+    }
+  }
+
+  /**
+   * Compares the manifests of two backups on another thread and reports what changed.
+   *
+   * <p>Manifests can have millions of entries, so the server thread doesn't wait for the
+   * comparison; the report is sent through the messenger once it's done.</p>
+   *
+   * @param sender Who to send the report to.
+   * @param olderName Name of the older backup.
+   * @param newerName Name of the newer backup.
+   * @param profileName Name of the profile whose backups are compared, or {@code null} for the
+   * main backup folder.
+   */
+  private void startDiff(final ICommandSender sender, final String olderName,
+      final String newerName, String profileName) {
+    final ManifestStore store = getManifestStore(profileName);
+    final Manifest older;
+    final Manifest newer;
+    try {
+      older = store.find(olderName);
+      newer = store.find(newerName);
+    } catch (IOException e) {
+      throw new CommandException("Unable to read the backup manifests: " + e.getMessage());
+    }
+    if (older == null || newer == null) {
+      throw new CommandException("There is no backup named " +
+          (older == null ? olderName : newerName));
+    }
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        WorldChangeReport report = new WorldChangeReport();
+        try (ManifestReader olderReader = store.open(older);
+             ManifestReader newerReader = store.open(newer)) {
+          ManifestDiff.diff(olderReader, newerReader, report);
+        } catch (IOException e) {
+          messenger.error(sender, "Unable to compare the backups: " + e.getMessage(), e);
+          return;
+        }
+        showDiff(sender, older, newer, report);
+      }
+    }, "Diff Thread");
+    thread.setDaemon(true);
+    thread.start();
+
+    messenger.unicastInfo(sender, "Comparing " + older.getName() + " with " + newer.getName() +
+        "...");
+  }
+
+  /**
+   * Sends the report of what changed between two backups.
+   *
+   * @param sender Who to send the report to.
+   * @param older The older backup.
+   * @param newer The newer backup.
+   * @param report What changed.
+   */
+  private void showDiff(ICommandSender sender, Manifest older, Manifest newer,
+      WorldChangeReport report) {
+    messenger.unicastInfo(sender, "Changes from " + older.getName() + " to " + newer.getName() +
+        ":");
+    messenger.unicastInfo(sender, String.format("  Files: %d added, %d removed, %d changed " +
+            "(%.1f MiB -> %.1f MiB)", report.getFilesAdded(), report.getFilesRemoved(),
+        report.getFilesChanged(), report.getBytesBefore() / BYTES_PER_MIB,
+        report.getBytesAfter() / BYTES_PER_MIB));
+
+    List<WorldChangeReport.RegionChange> regions = report.getRegions();
+    messenger.unicastInfo(sender, "  Regions: " + regions.size() + " changed, " +
+        report.getChunksChanged() + " chunks added, removed or changed");
+    for (int i = 0; i < regions.size() && i < DIFF_LIST_LIMIT; i++) {
+      WorldChangeReport.RegionChange region = regions.get(i);
+      int chunks = region.getChangedChunkCount();
+      messenger.unicastInfo(sender, "    " + region.getName() + ": " +
+          (chunks < 0 ? "chunks unknown" : chunks + " chunks"));
+    }
+    if (regions.size() > DIFF_LIST_LIMIT) {
+      messenger.unicastInfo(sender, "    and " + (regions.size() - DIFF_LIST_LIMIT) + " more");
+    }
+
+    List<String> players = report.getPlayers();
+    if (!players.isEmpty()) {
+      StringBuilder listed = new StringBuilder("  Players: ");
+      for (int i = 0; i < players.size() && i < DIFF_LIST_LIMIT; i++) {
+        listed.append(i == 0 ? "" : ", ").append(players.get(i));
+      }
+      if (players.size() > DIFF_LIST_LIMIT) {
+        listed.append(" and ").append(players.size() - DIFF_LIST_LIMIT).append(" more");
+      }
+      messenger.unicastInfo(sender, listed.toString());
+    }
+  }
+
+  /**
+   * Copies a snapshot into a folder of plain files on another thread.
+   *
+   * <p>The copy is named after the snapshot, with {@code .unpacked} added, in the folder the
+   * snapshot is in.</p>
+   *
+   * @param sender Who to report to.
+   * @param name Name of the snapshot.
+   * @param profileName Name of the profile the snapshot was taken for, or {@code null} for the
+   * main backup folder.
+   */
+  private void startUnpack(final ICommandSender sender, String name, String profileName) {
+    final ManifestStore store = getManifestStore(profileName);
+    final Manifest snapshot;
+    try {
+      snapshot = store.find(name);
+    } catch (IOException e) {
+      throw new CommandException("Unable to read the backup manifests: " + e.getMessage());
+    }
+    if (snapshot == null || !ManifestStore.isSnapshot(snapshot)) {
+      throw new CommandException("There is no snapshot named " + name);
+    }
+    final Path destination = store.getOutputDir().resolve(snapshot.getName() + ".unpacked");
+    if (Files.exists(destination)) {
+      throw new CommandException(destination + " already exists");
+    }
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          int unpacked = SnapshotCreator.unpack(store, snapshot, destination);
+          messenger.unicastInfo(sender, "Unpacked " + snapshot.getName() + " into " +
+              destination + " (" + unpacked + " packed files)");
+        } catch (IOException e) {
+          messenger.error(sender, "Unable to unpack the snapshot: " + e.getMessage(), e);
+        }
+      }
+    }, "Unpack Thread");
+    thread.setDaemon(true);
+    thread.start();
+
+    messenger.unicastInfo(sender, "Unpacking " + snapshot.getName() + "...");
+  }
+
   @Override
   public String getCommandUsage(ICommandSender sender) {
-    return "/" + this.getCommandName() + " <cancel|help|status|take-archive|take-snapshot|version>";
+    return "/" + this.getCommandName() +
+        " <cancel|diff|help|restore-plan|status|take-archive|take-profile|take-repository|" +
+        "take-snapshot|unpack|version>";
   }
 
   @Override
   public List addTabCompletionOptions(ICommandSender sender, String[] command) {
+    if (command.length == 2 && command[0].equals("take-archive")) {
+      return getListOfStringsMatchingLastWord(command, BackupKind.getNames());
+    }
+    if ((command.length > 1 && command[0].equals("take-profile")) ||
+        (command.length == 4 && command[0].equals("diff")) ||
+        (command.length == 3 && command[0].equals("unpack")) ||
+        ((command.length == 2 || command.length == 3) && command[0].equals("restore-plan"))) {
+      List<String> names = SmartBackup.getConfiguration().getProfileNames();
+      return getListOfStringsMatchingLastWord(command, names.toArray(new String[names.size()]));
+    }
+
     if (command.length > 1) {
       return null;
     }
 
     return getListOfStringsMatchingLastWord(
         command,
-        "cancel", "help", "status", "take-archive", "take-snapshot", "version"
+        "cancel", "diff", "help", "restore-plan", "status", "take-archive", "take-profile",
+        "take-repository", "take-snapshot", "unpack", "version"
     );
   }
 }
@@ -16,12 +16,23 @@
 
 package net.pktr.smartbackup;
 
+import net.pktr.smartbackup.archive.ArchiveFormat;
+import net.pktr.smartbackup.creator.CaptureMode;
+import net.pktr.smartbackup.manifest.BackupKind;
+import net.pktr.smartbackup.storage.StorageType;
+
 import net.minecraftforge.common.config.Configuration;
 import net.minecraftforge.common.config.Property;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /** Handles configuration settings for SmartBackup. */
 public class BackupConfiguration {
@@ -32,6 +43,53 @@ public class BackupConfiguration {
   private Property backupExcludes;
   private Property notifyOps;
   private Property notifyAll;
+  private Property progressInterval;
+  private Property smallFileSize;
+  private Property recompressRegions;
+  private Property compressionLevel;
+  private Property timeBudget;
+  private Property archiveFormat;
+  private Property compressionThreads;
+  private Property encryptionPassphrase;
+  private Property captureMode;
+  private Property captureTickBudget;
+  private Property storageType;
+  private Property storageLocalPath;
+  private Property s3Endpoint;
+  private Property s3Region;
+  private Property s3Bucket;
+  private Property s3Prefix;
+  private Property s3AccessKey;
+  private Property s3SecretKey;
+  private Property uploadPartSize;
+  private Property uploadThreads;
+  private Property tieringAge;
+  private Property repositoryPath;
+  private Property repositoryInstance;
+  private Property packSize;
+  private Property coordinationFolder;
+  private Property coordinationSlots;
+  private Property coordinationLease;
+  private Property metricsPort;
+  private Property metricsBindAddress;
+  private Property metricsTextfile;
+  private Property slowFileMillis;
+  private Property shutdownBackup;
+  private Property shutdownTimeBudget;
+  private Property profileNames;
+  private Property sharedReadCache;
+  /** Settings of the named profiles, by name. */
+  private final Map<String, ProfileProperties> profiles = new LinkedHashMap<>();
+
+  /** Settings of a named profile, in its own section of the config. */
+  private static class ProfileProperties {
+    private Property type;
+    private Property kind;
+    private Property include;
+    private Property exclude;
+    private Property format;
+    private Property outputDir;
+  }
 
   /**
    * Loads a backup file and writes defaults if settings are missing.
@@ -92,6 +150,18 @@ public class BackupConfiguration {
             "(default: false)"
     );
 
+    progressInterval = config.get(
+        Configuration.CATEGORY_GENERAL,
+        "progressIntervalSeconds",
+        30,
+        "Time (in seconds) between progress messages (percent done, speed, time left) while a\n" +
+            "backup runs. Progress goes to the same recipients as other backup messages.\n" +
+            "Set to 0 to turn progress messages off.\n" +
+            "(default: 30)",
+        0,
+        Integer.MAX_VALUE
+    );
+
     backupOutputDir = config.get(
         Configuration.CATEGORY_GENERAL,
         "backupOutputDir",
@@ -100,6 +170,415 @@ public class BackupConfiguration {
             "(default: backups)"
     );
 
+    smallFileSize = config.get(
+        Configuration.CATEGORY_GENERAL,
+        "packSmallFilesKiB",
+        64,
+        "Files up to this size (in KiB), like player data and stats, are packed together\n" +
+            "into segments in snapshots and archives instead of being stored one by one.\n" +
+            "Region files are never packed. Set to 0 to store every file on its own.\n" +
+            "(default: 64)",
+        0,
+        1024
+    );
+
+
+    // Capture
+
+    config.setCategoryComment("capture", "Settings for how the world is captured for a backup.");
+
+    captureMode = config.get(
+        "capture",
+        "mode",
+        CaptureMode.PAUSE.getName(),
+        "How the world is captured. One of:\n" +
+            "  pause - Save every world, then turn saving off until the backup is written.\n" +
+            "  precopy - Copy the targets with saving on, then pause saving only to copy again\n" +
+            "            what changed meanwhile. The copy is kept in the backup folder.\n" +
+            "  staggered - Save and pause one dimension at a time while writing its files.\n" +
+            "  online - Save changed chunks a little every tick, then stage the region files\n" +
+            "           chunk by chunk. Saving stays on and the server never stalls for a save.\n" +
+            "(default: pause)"
+    ).setValidValues(CaptureMode.getNames());
+
+    captureTickBudget = config.get(
+        "capture",
+        "tickBudgetMillis",
+        5,
+        "Time (in milliseconds) the online mode may spend saving chunks and copying files at\n" +
+            "the end of each tick. Lower values spread the capture over more ticks.\n" +
+            "(default: 5)",
+        1,
+        50
+    );
+
+
+    // Archives
+
+    config.setCategoryComment("archive", "Settings for how archives are written.");
+
+    archiveFormat = config.get(
+        "archive",
+        "format",
+        ArchiveFormat.ZIP.getName(),
+        "File format of archives. One of:\n" +
+            "  zip - Zip file, compressed file by file.\n" +
+            "  tar - Uncompressed tarball.\n" +
+            "  tar.gz - Tarball compressed as independent gzip frames on several threads.\n" +
+            "  tar.gz.aes - Like tar.gz, with every frame encrypted with AES-GCM using a key\n" +
+            "               derived from encryptionPassphrase.\n" +
+            "(default: zip)"
+    ).setValidValues(ArchiveFormat.getNames());
+
+    compressionThreads = config.get(
+        "archive",
+        "compressionThreads",
+        0,
+        "Number of threads used to compress tar.gz archives.\n" +
+            "Set to 0 to use half of the available processors.\n" +
+            "(default: 0)",
+        0,
+        256
+    );
+
+    recompressRegions = config.get(
+        "archive",
+        "recompressRegions",
+        false,
+        "If set to true, chunks in region files are decompressed and stored together as one\n" +
+            "compressed stream per region file, using a dictionary trained on the world's\n" +
+            "chunks. This compresses much better than compressing the region files as they are,\n" +
+            "but region files in the archive (*.sbrg) need SmartBackup to be restored.\n" +
+            "(default: false)"
+    );
+
+    compressionLevel = config.get(
+        "archive",
+        "compressionLevel",
+        6,
+        "Highest deflate level (1-9) used for data that compresses. Data that doesn't\n" +
+            "compress (eg region files, PNG map tiles and gzipped NBT) is stored without\n" +
+            "compression.\n" +
+            "(default: 6)",
+        1,
+        9
+    );
+
+    encryptionPassphrase = config.get(
+        "archive",
+        "encryptionPassphrase",
+        "",
+        "Passphrase tar.gz.aes archives are encrypted with. Keep a copy somewhere else:\n" +
+            "encrypted archives can't be restored without it.\n" +
+            "(default empty)"
+    );
+
+    timeBudget = config.get(
+        "archive",
+        "timeBudgetSeconds",
+        0,
+        "Time (in seconds) an archive should be finished within. The compression level is\n" +
+            "lowered as needed to finish in time, down to storing data without compression.\n" +
+            "Set to 0 to always use compressionLevel.\n" +
+            "(default: 0)",
+        0,
+        Integer.MAX_VALUE
+    );
+
+
+
+    // Storage
+
+    config.setCategoryComment("storage",
+        "Settings for uploading archives somewhere besides the backup folder.");
+
+    storageType = config.get(
+        "storage",
+        "backend",
+        StorageType.NONE.getName(),
+        "Where archives are uploaded to as they're written. One of:\n" +
+            "  none - Archives stay in backupOutputDir only.\n" +
+            "  local - Archives are also copied to localPath (eg a mounted network share).\n" +
+            "  s3 - Archives are also uploaded to an S3-compatible object store.\n" +
+            "Snapshots are never uploaded, as they're made of hard links.\n" +
+            "(default: none)"
+    ).setValidValues(StorageType.getNames());
+
+    storageLocalPath = config.get(
+        "storage",
+        "localPath",
+        "",
+        "Folder archives are copied to with the local backend. Created if it does not exist.\n" +
+            "(default empty)"
+    );
+
+    s3Endpoint = config.get(
+        "storage",
+        "s3Endpoint",
+        "https://s3.amazonaws.com",
+        "URL of the object store, without the bucket. Buckets are addressed path-style.\n" +
+            "(default: https://s3.amazonaws.com)"
+    );
+
+    s3Region = config.get(
+        "storage",
+        "s3Region",
+        "us-east-1",
+        "Region of the bucket, used to sign requests.\n" +
+            "(default: us-east-1)"
+    );
+
+    s3Bucket = config.get(
+        "storage",
+        "s3Bucket",
+        "",
+        "Bucket archives are uploaded to.\n" +
+            "(default empty)"
+    );
+
+    s3Prefix = config.get(
+        "storage",
+        "s3Prefix",
+        "",
+        "Prefix added to the key of every uploaded object (eg backups/).\n" +
+            "(default empty)"
+    );
+
+    s3AccessKey = config.get(
+        "storage",
+        "s3AccessKey",
+        "",
+        "Access key ID used to sign requests.\n" +
+            "(default empty)"
+    );
+
+    s3SecretKey = config.get(
+        "storage",
+        "s3SecretKey",
+        "",
+        "Secret access key used to sign requests.\n" +
+            "(default empty)"
+    );
+
+    uploadPartSize = config.get(
+        "storage",
+        "uploadPartSizeMiB",
+        8,
+        "Size (in MiB) of each part of a multipart upload. An upload holds at most\n" +
+            "uploadThreads + 1 parts in memory.\n" +
+            "(default: 8)",
+        5,
+        512
+    );
+
+    uploadThreads = config.get(
+        "storage",
+        "uploadThreads",
+        4,
+        "Number of parts uploaded at once.\n" +
+            "(default: 4)",
+        1,
+        64
+    );
+
+
+
+    // Tiering
+
+    config.setCategoryComment("tiering",
+        "Settings for turning old snapshots into archives while the server is empty.");
+
+    tieringAge = config.get(
+        "tiering",
+        "archiveSnapshotsAfterHours",
+        0,
+        "Age (in hours) after which a snapshot is turned into an archive in the archive format\n" +
+            "and its folder is deleted. This only runs while no players are online, and stops\n" +
+            "when someone joins. The most recent snapshot is never archived.\n" +
+            "Set to 0 to keep snapshots as they are.\n" +
+            "(default: 0)",
+        0,
+        Integer.MAX_VALUE
+    );
+
+
+
+    // Repository
+
+    config.setCategoryComment("repository",
+        "Settings for repository backups, which store each distinct piece of data once and can\n" +
+            "be shared by the servers on one host.");
+
+    repositoryPath = config.get(
+        "repository",
+        "path",
+        "",
+        "Folder of the repository. Servers sharing a repository set this to the same folder.\n" +
+            "(default empty)"
+    );
+
+    repositoryInstance = config.get(
+        "repository",
+        "instanceName",
+        "",
+        "Name this server's backups are kept under in the repository (and its name in the\n" +
+            "coordination folder). It must be different for each server sharing the repository.\n" +
+            "Leave empty to use the name of the server's folder.\n" +
+            "(default empty)"
+    );
+
+    packSize = config.get(
+        "repository",
+        "packSizeMiB",
+        16,
+        "Size (in MiB) at which the repository's pack files are finished and new ones started.\n" +
+            "(default: 16)",
+        1,
+        1024
+    );
+
+
+
+    // Coordination
+
+    config.setCategoryComment("coordination",
+        "Settings for taking turns with the other servers on the host, so they don't all\n" +
+            "back up at once.");
+
+    coordinationFolder = config.get(
+        "coordination",
+        "folder",
+        "",
+        "Folder shared by the servers taking turns. Every server sets this to the same folder.\n" +
+            "Leave empty to back up without waiting for other servers.\n" +
+            "(default empty)"
+    );
+
+    coordinationSlots = config.get(
+        "coordination",
+        "maxConcurrentBackups",
+        1,
+        "Number of servers that may back up at once. The others wait in the order they asked.\n" +
+            "Every server should use the same value.\n" +
+            "(default: 1)",
+        1,
+        64
+    );
+
+    coordinationLease = config.get(
+        "coordination",
+        "leaseSeconds",
+        60,
+        "Time (in seconds) after which the place of a server that stopped renewing it (because\n" +
+            "it crashed) is given up.\n" +
+            "(default: 60)",
+        10,
+        3600
+    );
+
+
+
+    // Metrics
+
+    config.setCategoryComment("metrics",
+        "Settings for exporting metrics of the backups in the Prometheus text format.");
+
+    metricsPort = config.get(
+        "metrics",
+        "port",
+        0,
+        "Port to serve the metrics on, at /metrics. Set to 0 to not serve them.\n" +
+            "(default: 0)",
+        0,
+        65535
+    );
+
+    metricsBindAddress = config.get(
+        "metrics",
+        "bindAddress",
+        "127.0.0.1",
+        "Address to serve the metrics on. Only this host can read them by default.\n" +
+            "(default: 127.0.0.1)"
+    );
+
+    metricsTextfile = config.get(
+        "metrics",
+        "textfile",
+        "",
+        "File to write the metrics to every 15 seconds, for the node exporter's textfile\n" +
+            "collector (its name has to end with .prom). Leave empty to not write them.\n" +
+            "(default empty)"
+    );
+
+    slowFileMillis = config.get(
+        "metrics",
+        "slowFileMillis",
+        5000,
+        "Files that take longer than this (in milliseconds) to back up are logged and counted\n" +
+            "as slow. Set to 0 to not single out slow files.\n" +
+            "(default: 5000)",
+        0,
+        3600000
+    );
+
+
+
+    // Shutdown
+
+    config.setCategoryComment("shutdown",
+        "Settings for a last backup of the world when the server stops.");
+
+    shutdownBackup = config.get(
+        "shutdown",
+        "backUpOnStop",
+        false,
+        "If set to true, a snapshot is taken after the server has saved the world for the last\n" +
+            "time. Only what changed since the last snapshot is copied.\n" +
+            "(default: false)"
+    );
+
+    shutdownTimeBudget = config.get(
+        "shutdown",
+        "timeBudgetSeconds",
+        30,
+        "Time (in seconds) the shutdown snapshot may hold up the server's stop. If it isn't\n" +
+            "done by then, what's finished is kept and the next snapshot carries on from there.\n" +
+            "(default: 30)",
+        1,
+        3600
+    );
+
+
+
+    // Profiles
+
+    config.setCategoryComment("profiles",
+        "Named backup profiles, each with its own targets, format and folder. Profiles taken\n" +
+            "together share one walk of their targets and one read of the files they share.\n" +
+            "Archives of every profile are uploaded to the backend in the storage section.");
+
+    profileNames = config.get(
+        "profiles",
+        "names",
+        new String[0],
+        "Names of the profiles. Each one has its settings in a section profiles.<name>,\n" +
+            "written with the defaults the first time the server starts with it.\n" +
+            "(default empty)"
+    );
+
+    sharedReadCache = config.get(
+        "profiles",
+        "readCacheMiB",
+        64,
+        "Memory (in MiB) in which files read for one profile are kept for the other profiles\n" +
+            "taken with it. Set to 0 to have each profile read its files itself.\n" +
+            "(default: 64)",
+        0,
+        4096
+    );
+
+    loadProfiles();
+
     if (config.hasChanged()) {
       logger.info("Configuration updated with (at least one) default(s). If this is the first " +
           "time SmartBackup has been run or if you have updated SmartBackup, this is expected.");
@@ -145,6 +624,25 @@ public class BackupConfiguration {
     config.save();
   }
 
+  /**
+   * Gets the time between progress messages.
+   *
+   * @return Time in seconds, or 0 if progress messages are turned off.
+   */
+  public int getProgressInterval() {
+    return progressInterval.getInt();
+  }
+
+  /**
+   * Sets the time between progress messages.
+   *
+   * @param seconds Time in seconds, or 0 to turn progress messages off.
+   */
+  public void setProgressInterval(int seconds) {
+    progressInterval.set(seconds);
+    config.save();
+  }
+
   /**
    * Gets the folder that backups are written to.
    *
@@ -164,6 +662,25 @@ public class BackupConfiguration {
     config.save();
   }
 
+  /**
+   * Gets the size up to which files are packed into segments.
+   *
+   * @return Size in bytes, or 0 if files aren't packed.
+   */
+  public int getSmallFileSize() {
+    return smallFileSize.getInt() * 1024;
+  }
+
+  /**
+   * Sets the size up to which files are packed into segments.
+   *
+   * @param kibibytes Size in KiB, or 0 to store every file on its own.
+   */
+  public void setSmallFileSize(int kibibytes) {
+    smallFileSize.set(kibibytes);
+    config.save();
+  }
+
   /**
    * Gets the list of files/folders to backup.
    *
@@ -201,4 +718,796 @@ public class BackupConfiguration {
     backupExcludes.set(excludes);
     config.save();
   }
+
+  /**
+   * Gets whether region files are recompressed when writing archives.
+   *
+   * @return Returns {@code true} if archives should store region files as solid, dictionary
+   * compressed streams of their chunks.
+   */
+  public boolean getRecompressRegions() {
+    return recompressRegions.getBoolean();
+  }
+
+  /**
+   * Sets whether region files are recompressed when writing archives.
+   *
+   * @param setting {@code true} to store region files as solid streams of their chunks.
+   */
+  public void setRecompressRegions(boolean setting) {
+    recompressRegions.set(setting);
+    config.save();
+  }
+
+  /**
+   * Gets the highest deflate level used when writing archives.
+   *
+   * @return Deflate level (1-9).
+   */
+  public int getCompressionLevel() {
+    return compressionLevel.getInt();
+  }
+
+  /**
+   * Sets the highest deflate level used when writing archives.
+   *
+   * @param level Deflate level (1-9).
+   */
+  public void setCompressionLevel(int level) {
+    compressionLevel.set(level);
+    config.save();
+  }
+
+  /**
+   * Gets the time an archive should be finished within.
+   *
+   * @return Time budget in seconds, or 0 if there isn't one.
+   */
+  public int getTimeBudget() {
+    return timeBudget.getInt();
+  }
+
+  /**
+   * Sets the time an archive should be finished within.
+   *
+   * @param seconds Time budget in seconds, or 0 for no budget.
+   */
+  public void setTimeBudget(int seconds) {
+    timeBudget.set(seconds);
+    config.save();
+  }
+
+  /**
+   * Gets how the world is captured for a backup.
+   *
+   * <p>Unknown modes fall back to pausing saving.</p>
+   *
+   * @return Capture mode.
+   */
+  public CaptureMode getCaptureMode() {
+    try {
+      return CaptureMode.fromName(captureMode.getString());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Unknown capture mode \"" + captureMode.getString() + "\", pausing saving");
+      return CaptureMode.PAUSE;
+    }
+  }
+
+  /**
+   * Sets how the world is captured for a backup.
+   *
+   * @param mode Capture mode.
+   */
+  public void setCaptureMode(CaptureMode mode) {
+    captureMode.set(mode.getName());
+    config.save();
+  }
+
+  /**
+   * Gets the time the online capture may spend on the server thread in each tick.
+   *
+   * @return Time in milliseconds.
+   */
+  public int getCaptureTickBudget() {
+    return captureTickBudget.getInt();
+  }
+
+  /**
+   * Sets the time the online capture may spend copying chunks in each tick.
+   *
+   * @param millis Time in milliseconds.
+   */
+  public void setCaptureTickBudget(int millis) {
+    captureTickBudget.set(millis);
+    config.save();
+  }
+
+  /**
+   * Gets the file format archives are written in.
+   *
+   * <p>Unknown formats fall back to zip.</p>
+   *
+   * @return Format of archives.
+   */
+  public ArchiveFormat getArchiveFormat() {
+    try {
+      return ArchiveFormat.fromName(archiveFormat.getString());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Unknown archive format \"" + archiveFormat.getString() + "\", using zip");
+      return ArchiveFormat.ZIP;
+    }
+  }
+
+  /**
+   * Sets the file format archives are written in.
+   *
+   * @param format Format of archives.
+   */
+  public void setArchiveFormat(ArchiveFormat format) {
+    archiveFormat.set(format.getName());
+    config.save();
+  }
+
+  /**
+   * Gets the number of threads used to compress archives.
+   *
+   * @return Number of compression threads (at least 1).
+   */
+  public int getCompressionThreads() {
+    int threads = compressionThreads.getInt();
+    if (threads <= 0) {
+      threads = (Runtime.getRuntime().availableProcessors() + 1) / 2;
+    }
+    return Math.max(1, threads);
+  }
+
+  /**
+   * Sets the number of threads used to compress archives.
+   *
+   * @param threads Number of compression threads, or 0 to use half of the available processors.
+   */
+  public void setCompressionThreads(int threads) {
+    compressionThreads.set(threads);
+    config.save();
+  }
+
+  /**
+   * Gets the kind of backend archives are uploaded to.
+   *
+   * <p>Unknown backends fall back to none.</p>
+   *
+   * @return Kind of storage backend.
+   */
+  public StorageType getStorageType() {
+    try {
+      return StorageType.fromName(storageType.getString());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Unknown storage backend \"" + storageType.getString() + "\", not uploading");
+      return StorageType.NONE;
+    }
+  }
+
+  /**
+   * Sets the kind of backend archives are uploaded to.
+   *
+   * @param type Kind of storage backend.
+   */
+  public void setStorageType(StorageType type) {
+    storageType.set(type.getName());
+    config.save();
+  }
+
+  /**
+   * Gets the folder archives are copied to with the local backend.
+   *
+   * @return Path of the folder.
+   */
+  public String getStorageLocalPath() {
+    return storageLocalPath.getString();
+  }
+
+  /**
+   * Sets the folder archives are copied to with the local backend.
+   *
+   * @param path Path of the folder.
+   */
+  public void setStorageLocalPath(String path) {
+    storageLocalPath.set(path);
+    config.save();
+  }
+
+  /**
+   * Gets the URL of the object store.
+   *
+   * @return Endpoint URL, without the bucket.
+   */
+  public String getS3Endpoint() {
+    return s3Endpoint.getString();
+  }
+
+  /**
+   * Sets the URL of the object store.
+   *
+   * @param endpoint Endpoint URL, without the bucket.
+   */
+  public void setS3Endpoint(String endpoint) {
+    s3Endpoint.set(endpoint);
+    config.save();
+  }
+
+  /**
+   * Gets the region of the bucket.
+   *
+   * @return Region name.
+   */
+  public String getS3Region() {
+    return s3Region.getString();
+  }
+
+  /**
+   * Sets the region of the bucket.
+   *
+   * @param region Region name.
+   */
+  public void setS3Region(String region) {
+    s3Region.set(region);
+    config.save();
+  }
+
+  /**
+   * Gets the bucket archives are uploaded to.
+   *
+   * @return Bucket name.
+   */
+  public String getS3Bucket() {
+    return s3Bucket.getString();
+  }
+
+  /**
+   * Sets the bucket archives are uploaded to.
+   *
+   * @param bucket Bucket name.
+   */
+  public void setS3Bucket(String bucket) {
+    s3Bucket.set(bucket);
+    config.save();
+  }
+
+  /**
+   * Gets the prefix added to the key of every uploaded object.
+   *
+   * @return Key prefix, or an empty string.
+   */
+  public String getS3Prefix() {
+    return s3Prefix.getString();
+  }
+
+  /**
+   * Sets the prefix added to the key of every uploaded object.
+   *
+   * @param prefix Key prefix, or an empty string.
+   */
+  public void setS3Prefix(String prefix) {
+    s3Prefix.set(prefix);
+    config.save();
+  }
+
+  /**
+   * Gets the access key ID used to sign requests.
+   *
+   * @return Access key ID.
+   */
+  public String getS3AccessKey() {
+    return s3AccessKey.getString();
+  }
+
+  /**
+   * Sets the access key ID used to sign requests.
+   *
+   * @param key Access key ID.
+   */
+  public void setS3AccessKey(String key) {
+    s3AccessKey.set(key);
+    config.save();
+  }
+
+  /**
+   * Gets the secret access key used to sign requests.
+   *
+   * @return Secret access key.
+   */
+  public String getS3SecretKey() {
+    return s3SecretKey.getString();
+  }
+
+  /**
+   * Sets the secret access key used to sign requests.
+   *
+   * @param key Secret access key.
+   */
+  public void setS3SecretKey(String key) {
+    s3SecretKey.set(key);
+    config.save();
+  }
+
+  /**
+   * Gets the size of each part of a multipart upload.
+   *
+   * @return Part size in bytes.
+   */
+  public int getUploadPartSize() {
+    return uploadPartSize.getInt() * 1024 * 1024;
+  }
+
+  /**
+   * Sets the size of each part of a multipart upload.
+   *
+   * @param mebibytes Part size in MiB.
+   */
+  public void setUploadPartSize(int mebibytes) {
+    uploadPartSize.set(mebibytes);
+    config.save();
+  }
+
+  /**
+   * Gets the number of parts uploaded at once.
+   *
+   * @return Number of upload threads.
+   */
+  public int getUploadThreads() {
+    return uploadThreads.getInt();
+  }
+
+  /**
+   * Sets the number of parts uploaded at once.
+   *
+   * @param threads Number of upload threads.
+   */
+  public void setUploadThreads(int threads) {
+    uploadThreads.set(threads);
+    config.save();
+  }
+
+  /**
+   * Gets the passphrase encrypted archives are encrypted with.
+   *
+   * @return Passphrase, or an empty string if none is set.
+   */
+  public String getEncryptionPassphrase() {
+    return encryptionPassphrase.getString();
+  }
+
+  /**
+   * Sets the passphrase encrypted archives are encrypted with.
+   *
+   * @param passphrase Passphrase, or an empty string for none.
+   */
+  public void setEncryptionPassphrase(String passphrase) {
+    encryptionPassphrase.set(passphrase);
+    config.save();
+  }
+
+  /**
+   * Gets the age after which snapshots are turned into archives.
+   *
+   * @return Age in hours, or 0 if snapshots are never turned into archives.
+   */
+  public int getTieringAge() {
+    return tieringAge.getInt();
+  }
+
+  /**
+   * Sets the age after which snapshots are turned into archives.
+   *
+   * @param hours Age in hours, or 0 to never turn snapshots into archives.
+   */
+  public void setTieringAge(int hours) {
+    tieringAge.set(hours);
+    config.save();
+  }
+
+  /**
+   * Gets the folder of the repository.
+   *
+   * @return Folder of the repository, or an empty string if none is set.
+   */
+  public String getRepositoryPath() {
+    return repositoryPath.getString();
+  }
+
+  /**
+   * Sets the folder of the repository.
+   *
+   * @param path Folder of the repository, or an empty string for none.
+   */
+  public void setRepositoryPath(String path) {
+    repositoryPath.set(path);
+    config.save();
+  }
+
+  /**
+   * Gets the name this server's backups are kept under in the repository.
+   *
+   * <p>If no name is set, the name of the server's folder is used. Characters that can't be used
+   * in file names are replaced.</p>
+   *
+   * @return Name of the instance.
+   */
+  public String getRepositoryInstance() {
+    String name = repositoryInstance.getString();
+    if (name.isEmpty()) {
+      Path folder = Paths.get("").toAbsolutePath().getFileName();
+      name = folder == null ? "server" : folder.toString();
+    }
+    return name.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+
+  /**
+   * Sets the name this server's backups are kept under in the repository.
+   *
+   * @param name Name of the instance, or an empty string to use the name of the server's folder.
+   */
+  public void setRepositoryInstance(String name) {
+    repositoryInstance.set(name);
+    config.save();
+  }
+
+  /**
+   * Gets the size at which the repository's pack files are finished.
+   *
+   * @return Pack size in bytes.
+   */
+  public long getPackSize() {
+    return packSize.getInt() * 1024L * 1024L;
+  }
+
+  /**
+   * Sets the size at which the repository's pack files are finished.
+   *
+   * @param mebibytes Pack size in MiB.
+   */
+  public void setPackSize(int mebibytes) {
+    packSize.set(mebibytes);
+    config.save();
+  }
+
+  /**
+   * Gets the folder the servers on the host take turns through.
+   *
+   * @return Shared folder, or an empty string if backups don't wait for other servers.
+   */
+  public String getCoordinationFolder() {
+    return coordinationFolder.getString();
+  }
+
+  /**
+   * Sets the folder the servers on the host take turns through.
+   *
+   * @param folder Shared folder, or an empty string to not wait for other servers.
+   */
+  public void setCoordinationFolder(String folder) {
+    coordinationFolder.set(folder);
+    config.save();
+  }
+
+  /**
+   * Gets the number of servers that may back up at once.
+   *
+   * @return Number of backup slots.
+   */
+  public int getCoordinationSlots() {
+    return coordinationSlots.getInt();
+  }
+
+  /**
+   * Sets the number of servers that may back up at once.
+   *
+   * @param slots Number of backup slots.
+   */
+  public void setCoordinationSlots(int slots) {
+    coordinationSlots.set(slots);
+    config.save();
+  }
+
+  /**
+   * Gets the time after which the place of a server that stopped renewing it is given up.
+   *
+   * @return Lease time in milliseconds.
+   */
+  public long getCoordinationLease() {
+    return coordinationLease.getInt() * 1000L;
+  }
+
+  /**
+   * Sets the time after which the place of a server that stopped renewing it is given up.
+   *
+   * @param seconds Lease time in seconds.
+   */
+  public void setCoordinationLease(int seconds) {
+    coordinationLease.set(seconds);
+    config.save();
+  }
+
+  /**
+   * Gets the port the metrics are served on.
+   *
+   * @return Port number, or 0 if the metrics aren't served.
+   */
+  public int getMetricsPort() {
+    return metricsPort.getInt();
+  }
+
+  /**
+   * Sets the port the metrics are served on.
+   *
+   * @param port Port number, or 0 to not serve the metrics.
+   */
+  public void setMetricsPort(int port) {
+    metricsPort.set(port);
+    config.save();
+  }
+
+  /**
+   * Gets the address the metrics are served on.
+   *
+   * @return Address to bind to.
+   */
+  public String getMetricsBindAddress() {
+    return metricsBindAddress.getString();
+  }
+
+  /**
+   * Sets the address the metrics are served on.
+   *
+   * @param address Address to bind to.
+   */
+  public void setMetricsBindAddress(String address) {
+    metricsBindAddress.set(address);
+    config.save();
+  }
+
+  /**
+   * Gets the file the metrics are written to for a textfile collector.
+   *
+   * @return Path of the file, or an empty string if the metrics aren't written to a file.
+   */
+  public String getMetricsTextfile() {
+    return metricsTextfile.getString();
+  }
+
+  /**
+   * Sets the file the metrics are written to for a textfile collector.
+   *
+   * @param path Path of the file, or an empty string to not write the metrics to a file.
+   */
+  public void setMetricsTextfile(String path) {
+    metricsTextfile.set(path);
+    config.save();
+  }
+
+  /**
+   * Gets the time after which a file is logged and counted as slow.
+   *
+   * @return Time in nanoseconds, or 0 if slow files aren't singled out.
+   */
+  public long getSlowFileNanos() {
+    return slowFileMillis.getInt() * 1000000L;
+  }
+
+  /**
+   * Sets the time after which a file is logged and counted as slow.
+   *
+   * @param millis Time in milliseconds, or 0 to not single out slow files.
+   */
+  public void setSlowFileMillis(int millis) {
+    slowFileMillis.set(millis);
+    config.save();
+  }
+
+  /**
+   * Gets whether to take a snapshot when the server stops.
+   *
+   * @return {@code true} if a snapshot is taken after the last save.
+   */
+  public boolean getShutdownBackup() {
+    return shutdownBackup.getBoolean();
+  }
+
+  /**
+   * Sets whether to take a snapshot when the server stops.
+   *
+   * @param setting Whether to take a snapshot after the last save.
+   */
+  public void setShutdownBackup(boolean setting) {
+    shutdownBackup.set(setting);
+    config.save();
+  }
+
+  /**
+   * Gets the time the shutdown snapshot may hold up the server's stop.
+   *
+   * @return Time budget in seconds.
+   */
+  public int getShutdownTimeBudget() {
+    return shutdownTimeBudget.getInt();
+  }
+
+  /**
+   * Sets the time the shutdown snapshot may hold up the server's stop.
+   *
+   * @param seconds Time budget in seconds.
+   */
+  public void setShutdownTimeBudget(int seconds) {
+    shutdownTimeBudget.set(seconds);
+    config.save();
+  }
+
+  /**
+   * Loads the settings of every named profile, writing defaults for new ones.
+   */
+  private void loadProfiles() {
+    profiles.clear();
+    for (String name : profileNames.getStringList()) {
+      if (name.isEmpty() || name.contains(Configuration.CATEGORY_SPLITTER)) {
+        logger.warn("Ignoring the profile \"" + name + "\", profile names can't be empty or " +
+            "contain dots");
+        continue;
+      }
+
+      String category = "profiles" + Configuration.CATEGORY_SPLITTER + name;
+      config.setCategoryPropertyOrder(category,
+          Arrays.asList("type", "kind", "include", "exclude", "format", "outputDir"));
+      ProfileProperties properties = new ProfileProperties();
+
+      properties.type = config.get(
+          category,
+          "type",
+          BackupProfile.Type.ARCHIVE.getName(),
+          "Type of backup the profile takes, snapshot or archive.\n" +
+              "(default: archive)"
+      ).setValidValues(BackupProfile.Type.getNames());
+
+      properties.kind = config.get(
+          category,
+          "kind",
+          BackupKind.FULL.getName(),
+          "Kind of archive: full, differential (the files changed since the profile's last\n" +
+              "full archive) or incremental (the files changed since its last archive).\n" +
+              "(default: full)"
+      ).setValidValues(BackupKind.getNames());
+
+      properties.include = config.get(
+          category,
+          "include",
+          new String[]{"world"},
+          "List files/folders included in the profile's backups.\n" +
+              "(default: world)"
+      );
+
+      properties.exclude = config.get(
+          category,
+          "exclude",
+          new String[0],
+          "List files/folders excluded from files/folders included previously.\n" +
+              "(default empty)"
+      );
+
+      properties.format = config.get(
+          category,
+          "format",
+          ArchiveFormat.ZIP.getName(),
+          "File format of the profile's archives, as in the archive section.\n" +
+              "(default: zip)"
+      ).setValidValues(ArchiveFormat.getNames());
+
+      properties.outputDir = config.get(
+          category,
+          "outputDir",
+          "",
+          "Folder (relative to server root) to output the profile's backups into. Leave empty\n" +
+              "to use profiles/<name> in backupOutputDir.\n" +
+              "(default empty)"
+      );
+
+      profiles.put(name, properties);
+    }
+  }
+
+  /**
+   * Gets the names of the profiles.
+   *
+   * @return Names of the profiles, in the order they're listed. Invalid names are left out.
+   */
+  public List<String> getProfileNames() {
+    return new ArrayList<>(profiles.keySet());
+  }
+
+  /**
+   * Sets the names of the profiles. New profiles get the default settings.
+   *
+   * @param names Names of the profiles.
+   */
+  public void setProfileNames(String[] names) {
+    profileNames.set(names);
+    loadProfiles();
+    config.save();
+  }
+
+  /**
+   * Gets a named profile.
+   *
+   * @param name Name of the profile.
+   * @return The profile, or {@code null} if there is no profile with that name.
+   */
+  public BackupProfile getProfile(String name) {
+    ProfileProperties properties = profiles.get(name);
+    if (properties == null) {
+      return null;
+    }
+
+    BackupProfile.Type type;
+    try {
+      type = BackupProfile.Type.fromName(properties.type.getString());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Unknown type \"" + properties.type.getString() + "\" of profile " + name +
+          ", taking archives");
+      type = BackupProfile.Type.ARCHIVE;
+    }
+
+    BackupKind kind;
+    try {
+      kind = BackupKind.fromName(properties.kind.getString());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Unknown kind \"" + properties.kind.getString() + "\" of profile " + name +
+          ", taking full archives");
+      kind = BackupKind.FULL;
+    }
+
+    ArchiveFormat format;
+    try {
+      format = ArchiveFormat.fromName(properties.format.getString());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Unknown archive format \"" + properties.format.getString() + "\" of profile " +
+          name + ", using zip");
+      format = ArchiveFormat.ZIP;
+    }
+
+    String outputDir = properties.outputDir.getString();
+    if (outputDir.isEmpty()) {
+      outputDir = Paths.get(getBackupOutputDir(), "profiles", name).toString();
+    }
+
+    return new BackupProfile(name, type, kind, properties.include.getStringList(),
+        properties.exclude.getStringList(), format, outputDir);
+  }
+
+  /**
+   * Gets the default profile, made of the {@code targets} section, the backup folder and the
+   * archive format.
+   *
+   * @return The default profile.
+   */
+  public BackupProfile getDefaultProfile() {
+    return new BackupProfile(null, null, BackupKind.FULL, getBackupIncludes(),
+        getBackupExcludes(), getArchiveFormat(), getBackupOutputDir());
+  }
+
+  /**
+   * Gets the memory in which files read for one profile are kept for the others.
+   *
+   * @return Size in bytes, or 0 if profiles don't share reads.
+   */
+  public long getSharedReadCacheSize() {
+    return sharedReadCache.getInt() * 1024L * 1024L;
+  }
+
+  /**
+   * Sets the memory in which files read for one profile are kept for the others.
+   *
+   * @param mebibytes Size in MiB, or 0 to have each profile read its files itself.
+   */
+  public void setSharedReadCacheMiB(int mebibytes) {
+    sharedReadCache.set(mebibytes);
+    config.save();
+  }
 }
@@ -18,17 +18,34 @@ package net.pktr.smartbackup;
 
 import net.pktr.smartbackup.creator.ArchiveCreator;
 import net.pktr.smartbackup.creator.BackupCreator;
+import net.pktr.smartbackup.creator.ProfileRun;
+import net.pktr.smartbackup.creator.RepositoryCreator;
 import net.pktr.smartbackup.creator.SnapshotCreator;
+import net.pktr.smartbackup.manifest.BackupKind;
+import net.pktr.smartbackup.manifest.Manifest;
 
 import net.minecraft.command.ICommandSender;
 import org.apache.logging.log4j.Logger;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Manages (start, interrupt, get status of) snapshot and archive creator threads.
+ *
+ * <p>Archiving old snapshots (tiering) runs on its own thread beside the current backup. It gives
+ * way to any backup that is requested.</p>
  */
 public class BackupManager {
+  /** Time a shutdown snapshot gets to stop at a checkpoint once its time budget has run out. */
+  private static final long STOP_GRACE_MILLIS = 10000;
+  /** How often messages are delivered while waiting for a shutdown snapshot. */
+  private static final long FLUSH_INTERVAL_MILLIS = 500;
+
   private Logger logger;
   private BackupCreator currentBackup;
+  /** Archives an old snapshot in the background, or {@code null} if none has been started. */
+  private BackupCreator tiering;
 
   public BackupManager() {
     logger = SmartBackup.getLogger();
@@ -63,6 +80,7 @@ public class BackupManager {
    * @param requester The {@link ICommandSender} that requested the snapshot.
    */
   public void startSnapshot(ICommandSender requester) {
+    stopTiering();
     currentBackup = new SnapshotCreator(requester);
     currentBackup.start();
   }
@@ -71,21 +89,150 @@ public class BackupManager {
    * Spawns creation process for a new archive.
    *
    * @param requester The {@link ICommandSender} that requested the archive.
+   * @param kind Kind of archive to take.
+   */
+  public void startArchive(ICommandSender requester, BackupKind kind) {
+    stopTiering();
+    currentBackup = new ArchiveCreator(requester, kind);
+    currentBackup.start();
+  }
+
+  /**
+   * Spawns creation process for a new repository backup.
+   *
+   * @param requester The {@link ICommandSender} that requested the backup.
+   */
+  public void startRepositoryBackup(ICommandSender requester) {
+    stopTiering();
+    currentBackup = new RepositoryCreator(requester);
+    currentBackup.start();
+  }
+
+  /**
+   * Spawns creation process for backups of several profiles, taken together.
+   *
+   * @param requester The {@link ICommandSender} that requested the backups.
+   * @param profiles Profiles to back up.
+   */
+  public void startProfiles(ICommandSender requester, List<BackupProfile> profiles) {
+    stopTiering();
+    currentBackup = new ProfileRun(requester, profiles);
+    currentBackup.start();
+  }
+
+  /**
+   * Takes a snapshot of the world of a server that has stopped, within a time budget.
+   *
+   * <p>Blocks until the snapshot ends. If it isn't done within the budget, it's asked to stop at a
+   * checkpoint, keeping the files it finished for the next snapshot to carry on from. If it
+   * hasn't stopped after a few more seconds, it's interrupted and left to end on its own. Its
+   * thread is a daemon thread, so a snapshot left behind doesn't keep the JVM from exiting; the
+   * journal it synced at its last checkpoint is what the next snapshot resumes from. Since the
+   * server doesn't tick any more, messages from the snapshot are delivered while waiting.</p>
+   *
+   * @param requester The {@link ICommandSender} to report to.
+   * @param budgetMillis Time the snapshot may take, in milliseconds.
+   * @throws InterruptedException if interrupted while waiting.
    */
-  public void startArchive(ICommandSender requester) {
-    currentBackup = new ArchiveCreator(requester);
+  public void runShutdownBackup(ICommandSender requester, long budgetMillis)
+      throws InterruptedException {
+    stopTiering();
+    currentBackup = new SnapshotCreator(requester, true);
+    currentBackup.setDaemon(true);
     currentBackup.start();
+
+    if (waitFor(currentBackup, budgetMillis)) {
+      return;
+    }
+    logger.info("The shutdown snapshot didn't finish within " + budgetMillis / 1000 +
+        " seconds. Keeping what it finished for the next snapshot.");
+    currentBackup.stopAtCheckpoint();
+    if (waitFor(currentBackup, STOP_GRACE_MILLIS)) {
+      return;
+    }
+    currentBackup.cancel();
+    if (!waitFor(currentBackup, STOP_GRACE_MILLIS)) {
+      logger.warn("The shutdown snapshot didn't stop, leaving it behind to end with the JVM. " +
+          "The next snapshot resumes it from its last checkpoint.");
+    }
+  }
+
+  /**
+   * Waits for a backup to end, delivering its messages meanwhile.
+   *
+   * <p>Must be called from the server thread, see {@link Messenger#flush}.</p>
+   *
+   * @param backup Backup to wait for.
+   * @param millis Longest time to wait, in milliseconds.
+   * @return {@code true} if the backup ended.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  private static boolean waitFor(BackupCreator backup, long millis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    long remaining;
+    while (backup.isAlive() &&
+        (remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+      backup.join(Math.min(remaining, FLUSH_INTERVAL_MILLIS));
+      SmartBackup.getMessenger().flush();
+    }
+    return !backup.isAlive();
+  }
+
+  /**
+   * Checks if a snapshot is being archived in the background.
+   *
+   * @return {@code true} if tiering is running.
+   */
+  public boolean tieringInProgress() {
+    return tiering != null && tiering.isAlive();
+  }
+
+  /**
+   * Gets the background archive of a snapshot.
+   *
+   * @return The {@link BackupCreator} archiving a snapshot, or {@code null} if tiering hasn't
+   * run.
+   */
+  public BackupCreator getTiering() {
+    return tiering;
+  }
+
+  /**
+   * Spawns the background process turning a snapshot into an archive.
+   *
+   * @param requester The {@link ICommandSender} to report to.
+   * @param profile Profile the snapshot was taken for.
+   * @param snapshot Manifest of the snapshot to archive.
+   */
+  public void startTiering(ICommandSender requester, BackupProfile profile, Manifest snapshot) {
+    tiering = new ArchiveCreator(requester, profile, snapshot);
+    tiering.start();
+  }
+
+  /**
+   * Stops archiving a snapshot in the background, if it's running.
+   *
+   * <p>This returns right away. The tiering deletes its partial archive on its own thread and
+   * only logs that it was stopped, so players aren't told each time it makes way for them. The
+   * snapshot is left as it was and archived again from the start later.</p>
+   */
+  public void stopTiering() {
+    if (tieringInProgress()) {
+      tiering.cancel();
+    }
   }
 
   /**
    * Interrupts any current backups in progress.
    *
-   * <p>Doing this will remove any temporary files related to the in-progress backup.</p>
+   * <p>This returns right away. The backup stops at its next checkpoint, deletes its partial
+   * output on its own thread and then reports that it was interrupted.</p>
    */
   public void interruptBackups() {
     if (currentBackup != null && currentBackup.isAlive()) {
-      currentBackup.interrupt();
+      currentBackup.cancel();
     }
+    stopTiering();
   }
 
   /**
@@ -97,5 +244,8 @@ public class BackupManager {
     if (currentBackup != null && currentBackup.isAlive()) {
       currentBackup.join();
     }
+    if (tiering != null && tiering.isAlive()) {
+      tiering.join();
+    }
   }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup;
+
+import net.pktr.smartbackup.archive.ArchiveFormat;
+import net.pktr.smartbackup.manifest.BackupKind;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * What a backup is taken of and where it goes: its targets, its format and its folder.
+ *
+ * <p>Backups taken with the {@code take-*} commands use the {@code targets} section, the
+ * {@code backupOutputDir} and the archive {@code format} of the config (the default profile).
+ * Named profiles from the {@code profiles} section each have their own, so one server can have eg
+ * a snapshot of the world and an archive of the whole server folder, each in its own folder.</p>
+ */
+public class BackupProfile {
+  /** The types of backups a profile can take. */
+  public static enum Type {
+    /** A snapshot (see {@link net.pktr.smartbackup.creator.SnapshotCreator}). */
+    SNAPSHOT("snapshot"),
+    /** An archive (see {@link net.pktr.smartbackup.creator.ArchiveCreator}). */
+    ARCHIVE("archive");
+
+    /** Name of the type as used in the configuration. */
+    private final String name;
+
+    Type(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Gets the name of this type as used in the configuration.
+     *
+     * @return Lowercase name of the type.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Gets the names of all types.
+     *
+     * @return Names of the types, in declaration order.
+     */
+    public static String[] getNames() {
+      Type[] types = values();
+      String[] names = new String[types.length];
+      for (int i = 0; i < types.length; i++) {
+        names[i] = types[i].name;
+      }
+      return names;
+    }
+
+    /**
+     * Looks up a type by name.
+     *
+     * @param name Name of the type.
+     * @return The type.
+     * @throws IllegalArgumentException if there is no type with that name.
+     */
+    public static Type fromName(String name) {
+      for (Type type : values()) {
+        if (type.name.equalsIgnoreCase(name)) {
+          return type;
+        }
+      }
+      throw new IllegalArgumentException("Unknown profile type: " + name);
+    }
+  }
+
+  /** Name of the profile, or {@code null} for the default profile. */
+  private final String name;
+  /** Type of backup the profile takes, or {@code null} for the default profile. */
+  private final Type type;
+  /** Kind of archive the profile takes. */
+  private final BackupKind kind;
+  /** Files/folders backed up, relative to the server root. */
+  private final String[] includes;
+  /** Files/folders left out of the includes. */
+  private final String[] excludes;
+  /** Format of the profile's archives. */
+  private final ArchiveFormat format;
+  /** Folder the profile's backups are written to. */
+  private final String outputDir;
+
+  /**
+   * Sets up a profile.
+   *
+   * @param name Name of the profile, or {@code null} for the default profile.
+   * @param type Type of backup the profile takes, or {@code null} for the default profile.
+   * @param kind Kind of archive the profile takes. Ignored for snapshots.
+   * @param includes Files/folders backed up, relative to the server root.
+   * @param excludes Files/folders left out of the includes. If a folder is excluded, all of its
+   * children are excluded as well.
+   * @param format Format of the profile's archives.
+   * @param outputDir Folder the profile's backups (and their manifests) are written to.
+   */
+  public BackupProfile(String name, Type type, BackupKind kind, String[] includes,
+      String[] excludes, ArchiveFormat format, String outputDir) {
+    this.name = name;
+    this.type = type;
+    this.kind = kind;
+    this.includes = includes.clone();
+    this.excludes = excludes.clone();
+    this.format = format;
+    this.outputDir = outputDir;
+  }
+
+  /**
+   * Gets the name of this profile.
+   *
+   * @return Name of the profile, or {@code null} for the default profile.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Checks whether this is the default profile, which the {@code take-*} commands use.
+   *
+   * @return {@code true} if this profile has no name.
+   */
+  public boolean isDefault() {
+    return name == null;
+  }
+
+  /**
+   * Gets the type of backup this profile takes.
+   *
+   * @return Type of backup, or {@code null} for the default profile, whose backups are taken
+   * with the commands of each type.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Gets the kind of archive this profile takes.
+   *
+   * @return Kind of archive. Snapshots are always full.
+   */
+  public BackupKind getKind() {
+    return kind;
+  }
+
+  /**
+   * Gets the files/folders backed up.
+   *
+   * @return Paths relative to the server root.
+   */
+  public String[] getIncludes() {
+    return includes.clone();
+  }
+
+  /**
+   * Gets the files/folders left out of the includes.
+   *
+   * @return Paths relative to the server root.
+   */
+  public String[] getExcludes() {
+    return excludes.clone();
+  }
+
+  /**
+   * Gets the format of this profile's archives.
+   *
+   * @return Archive format.
+   */
+  public ArchiveFormat getArchiveFormat() {
+    return format;
+  }
+
+  /**
+   * Gets the folder this profile's backups are written to.
+   *
+   * @return Folder relative to the server root.
+   */
+  public String getOutputDir() {
+    return outputDir;
+  }
+
+  /**
+   * Checks whether a file or folder found by walking the includes is backed up by this profile.
+   *
+   * <p>This lists exactly what a scan of this profile's targets lists: the path has to be in one
+   * of the includes (as spelled in the include list), and neither it nor any folder between it and
+   * the include may be excluded.</p>
+   *
+   * @param path Path relative to the server root.
+   * @return {@code true} if the path is backed up.
+   */
+  public boolean selects(Path path) {
+    for (String include : includes) {
+      Path root = Paths.get(include);
+      if (path.startsWith(root) && !isExcluded(path, root)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a path or any folder it's in, up to the include it was found in, is excluded.
+   *
+   * @param path Path relative to the server root.
+   * @param root Include the path is in.
+   * @return {@code true} if the path is excluded.
+   */
+  private boolean isExcluded(Path path, Path root) {
+    for (Path folder = path; folder != null && folder.startsWith(root);
+        folder = folder.getParent()) {
+      for (String exclude : excludes) {
+        if (folder.toString().equals(exclude)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a folder holds one of this profile's includes, so it has to be walked even if
+   * it isn't backed up itself.
+   *
+   * @param folder Path relative to the server root.
+   * @return {@code true} if an include is in the folder.
+   */
+  public boolean holdsInclude(Path folder) {
+    for (String include : includes) {
+      Path includePath = Paths.get(include);
+      if (includePath.startsWith(folder) && !includePath.equals(folder)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * Makes backup output durable and publishes it atomically.
+ *
+ * <p>Backups are written under a temporary name ({@link #PARTIAL_SUFFIX}), synced to disk, then
+ * renamed to their final name in one atomic step, and the rename itself is synced by syncing the
+ * folder it happened in. A backup under its final name is therefore always complete, even after
+ * a crash or power loss.</p>
+ */
+public class FileSync {
+  /** Suffix of backups (and other files) that are still being written. */
+  public static final String PARTIAL_SUFFIX = ".partial";
+
+  private FileSync() {
+  }
+
+  /**
+   * Gets the name a file or folder is written under until it's published.
+   *
+   * @param path Final path.
+   * @return Path with {@link #PARTIAL_SUFFIX} added.
+   */
+  public static Path getPartialPath(Path path) {
+    return path.resolveSibling(path.getFileName() + PARTIAL_SUFFIX);
+  }
+
+  /**
+   * Syncs a file's data to disk.
+   *
+   * <p>Syncing through a new channel still syncs everything written through other channels, so
+   * this can be used after the file has been closed.</p>
+   *
+   * @param file File to sync.
+   * @throws IOException if syncing fails.
+   */
+  public static void syncFile(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Syncs a group of files to disk.
+   *
+   * <p>Syncing many files long after they were written is much cheaper than syncing each one as
+   * it's finished: by then the system has written most of the data back on its own.</p>
+   *
+   * @param files Files to sync.
+   * @throws IOException if syncing fails.
+   */
+  public static void syncFiles(Collection<Path> files) throws IOException {
+    for (Path file : files) {
+      syncFile(file);
+    }
+  }
+
+  /**
+   * Syncs a folder, making the creation, renaming and deletion of its entries durable.
+   *
+   * <p>Not every platform can sync folders (Windows can't open them), in which case this does
+   * nothing.</p>
+   *
+   * @param folder Folder to sync.
+   * @throws IOException if syncing fails on a platform that supports it.
+   */
+  public static void syncDirectory(Path folder) throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(folder, StandardOpenOption.READ);
+    } catch (IOException e) {
+      return;
+    }
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Atomically renames a synced file or folder to its final name and syncs the rename.
+   *
+   * @param partial Temporary path of the output.
+   * @param path Final path of the output.
+   * @throws IOException if the rename fails (including when the file system can't rename
+   * atomically).
+   */
+  public static void publish(Path partial, Path path) throws IOException {
+    Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory(path.toAbsolutePath().getParent());
+  }
+}
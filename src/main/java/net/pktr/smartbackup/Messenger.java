@@ -16,6 +16,8 @@
 
 package net.pktr.smartbackup;
 
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
 import net.minecraft.command.ICommandSender;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.server.MinecraftServer;
@@ -23,14 +25,127 @@ import net.minecraft.util.ChatComponentText;
 import net.minecraft.util.EnumChatFormatting;
 import org.apache.logging.log4j.Logger;
 
-/** Used to send status output to configured recipients. */
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Used to send status output to configured recipients.
+ *
+ * <p>Messages can be sent from any thread. Messages sent from outside of the server thread are
+ * queued and delivered by the server thread at the end of the next tick, so backup threads never
+ * touch players or chat themselves.</p>
+ */
 public class Messenger {
+  /** Most queued messages delivered in one tick. The rest wait for the following ticks. */
+  private static final int MAX_MESSAGES_PER_TICK = 16;
+
   private Logger logger;
   private BackupConfiguration config;
+  /** Messages waiting for the server thread. */
+  private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+  /** Latest progress update that hasn't been sent. Newer updates replace older ones. */
+  private final AtomicReference<ProgressUpdate> pendingProgress = new AtomicReference<>();
+  /** The server thread, once a tick has been seen. */
+  private volatile Thread serverThread = null;
+  /** When (from {@link System#nanoTime}) the last progress message was sent. */
+  private volatile long lastProgressNanos;
 
   public Messenger() {
     logger = SmartBackup.getLogger();
     config = SmartBackup.getConfiguration();
+    lastProgressNanos = System.nanoTime();
+  }
+
+  /**
+   * Delivers queued messages. Registered on the FML event bus and run by the server thread.
+   *
+   * @param event The tick event.
+   */
+  @SubscribeEvent
+  public void onServerTick(TickEvent.ServerTickEvent event) {
+    if (event.phase != TickEvent.Phase.END) {
+      return;
+    }
+
+    serverThread = Thread.currentThread();
+
+    Runnable message;
+    for (int i = 0; i < MAX_MESSAGES_PER_TICK && (message = pending.poll()) != null; i++) {
+      message.run();
+    }
+
+    long interval = TimeUnit.SECONDS.toNanos(config.getProgressInterval());
+    long now = System.nanoTime();
+    if (interval > 0 && now - lastProgressNanos >= interval) {
+      ProgressUpdate update = pendingProgress.getAndSet(null);
+      if (update != null) {
+        lastProgressNanos = now;
+        info(update.getRequester(), update.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Delivers every queued message right away.
+   *
+   * <p>Used when the server is stopping and there won't be another tick. Must be called from the
+   * server thread. If no tick has been seen yet, the caller is taken to be the server thread.</p>
+   *
+   * @throws IllegalStateException if called from a thread other than the server thread.
+   */
+  public void flush() {
+    Thread current = Thread.currentThread();
+    if (serverThread == null) {
+      serverThread = current;
+    } else if (serverThread != current) {
+      throw new IllegalStateException(
+          "Messages can only be flushed from the server thread, not " + current.getName());
+    }
+
+    Runnable message;
+    while ((message = pending.poll()) != null) {
+      message.run();
+    }
+  }
+
+  /**
+   * Checks whether a message can be delivered right away.
+   *
+   * @param message Delivers the message. Queued for the server thread if this isn't it.
+   * @return {@code true} if the caller is on the server thread and should deliver the message
+   * itself.
+   */
+  private boolean onServerThread(Runnable message) {
+    if (Thread.currentThread() == serverThread) {
+      return true;
+    }
+    pending.add(message);
+    return false;
+  }
+
+  /**
+   * Reports the progress of a backup.
+   *
+   * <p>Updates are coalesced: only the latest is kept, and it's sent at most once every
+   * {@link BackupConfiguration#getProgressInterval} seconds. This can be called as often as
+   * wanted from any thread.</p>
+   *
+   * @param update Progress of the backup.
+   */
+  public void progress(ProgressUpdate update) {
+    pendingProgress.set(update);
+  }
+
+  /**
+   * Drops any progress update that hasn't been sent yet.
+   *
+   * <p>Called when a backup ends so its progress isn't reported after its result.</p>
+   */
+  public void clearProgress() {
+    pendingProgress.set(null);
+    lastProgressNanos = System.nanoTime();
   }
 
   /**
@@ -51,7 +166,17 @@ public class Messenger {
    * @param throwable {@link Throwable} error to output to console if the recipient is a
    * {@link MinecraftServer}.
    */
-  public void unicastError(ICommandSender sender, ChatComponentText message, Throwable throwable) {
+  public void unicastError(final ICommandSender sender, final ChatComponentText message,
+      final Throwable throwable) {
+    if (!onServerThread(new Runnable() {
+      @Override
+      public void run() {
+        unicastError(sender, message, throwable);
+      }
+    })) {
+      return;
+    }
+
     if (sender instanceof MinecraftServer) {
       if (throwable == null) {
         logger.error(message.getUnformattedTextForChat());
@@ -70,7 +195,16 @@ public class Messenger {
    * @param sender Who to send info output to.
    * @param message The info message to report.
    */
-  public void unicastInfo(ICommandSender sender, String message) {
+  public void unicastInfo(final ICommandSender sender, final String message) {
+    if (!onServerThread(new Runnable() {
+      @Override
+      public void run() {
+        unicastInfo(sender, message);
+      }
+    })) {
+      return;
+    }
+
     if (sender instanceof MinecraftServer) {
       logger.info(message);
       return;
@@ -85,7 +219,16 @@ public class Messenger {
    * @param sender Who to send info output to.
    * @param message The info message to report.
    */
-  public void unicastInfo(ICommandSender sender, ChatComponentText message) {
+  public void unicastInfo(final ICommandSender sender, final ChatComponentText message) {
+    if (!onServerThread(new Runnable() {
+      @Override
+      public void run() {
+        unicastInfo(sender, message);
+      }
+    })) {
+      return;
+    }
+
     if (sender instanceof MinecraftServer) {
       logger.info(message.getUnformattedTextForChat());
       return;
@@ -128,7 +271,17 @@ public class Messenger {
    * @param message Error message to report.
    * @param throwable {@link Throwable} error to include in server log.
    */
-  public void error(ICommandSender sender, String message, Throwable throwable) {
+  public void error(final ICommandSender sender, final String message,
+      final Throwable throwable) {
+    if (!onServerThread(new Runnable() {
+      @Override
+      public void run() {
+        error(sender, message, throwable);
+      }
+    })) {
+      return;
+    }
+
     if (sender != null && !(sender instanceof MinecraftServer)) {
       ChatComponentText chatComponent = new ChatComponentText(message);
       chatComponent.getChatStyle().setColor(EnumChatFormatting.RED);
@@ -190,7 +343,16 @@ public class Messenger {
    * {@link MinecraftServer}, it will receive a chat message.
    * @param message The message to report.
    */
-  public void info(ICommandSender sender, String message) {
+  public void info(final ICommandSender sender, final String message) {
+    if (!onServerThread(new Runnable() {
+      @Override
+      public void run() {
+        info(sender, message);
+      }
+    })) {
+      return;
+    }
+
     if (sender != null && !(sender instanceof MinecraftServer)) {
       unicastInfo(sender, new ChatComponentText(message));
     }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup;
+
+import net.pktr.smartbackup.creator.BackupProgress;
+
+import net.minecraft.command.ICommandSender;
+
+/**
+ * A snapshot of how far a backup has got, used for progress messages.
+ *
+ * <p>Updates are immutable, so a backup thread can hand them to the {@link Messenger} without
+ * any locking.</p>
+ */
+public class ProgressUpdate {
+  private static final double BYTES_PER_MIB = 1024 * 1024;
+
+  /** The {@link ICommandSender} that requested the backup. */
+  private final ICommandSender requester;
+  /** Type of backup (eg "archive"). */
+  private final String backupType;
+  /** Percentage (0-100) done. */
+  private final int percentDone;
+  /** Bytes processed so far. */
+  private final long bytesDone;
+  /** Bytes expected in total. */
+  private final long bytesTotal;
+  /** Recent throughput in bytes per second. */
+  private final double bytesPerSecond;
+  /** Estimated seconds left, or -1 if there is no estimate. */
+  private final long secondsLeft;
+
+  /**
+   * Takes a snapshot of a backup's progress.
+   *
+   * @param requester The {@link ICommandSender} that requested the backup.
+   * @param backupType Type of backup (eg "archive").
+   * @param progress Live progress of the backup.
+   */
+  public ProgressUpdate(ICommandSender requester, String backupType, BackupProgress progress) {
+    this.requester = requester;
+    this.backupType = backupType;
+    this.percentDone = progress.getPercentDone();
+    this.bytesDone = progress.getBytesDone();
+    this.bytesTotal = progress.getBytesTotal();
+    this.bytesPerSecond = progress.getCurrentRate();
+    this.secondsLeft = progress.getSecondsLeft();
+  }
+
+  /**
+   * Gets the {@link ICommandSender} that requested the backup.
+   *
+   * @return The requester of the backup.
+   */
+  public ICommandSender getRequester() {
+    return requester;
+  }
+
+  /**
+   * Gets the progress as a chat message.
+   *
+   * @return Message like "Archive 42% done (1200.0 of 2900.0 MiB), 85.3 MiB/s, about 0:00:20
+   * left".
+   */
+  public String getMessage() {
+    StringBuilder message = new StringBuilder();
+    message.append(Character.toUpperCase(backupType.charAt(0))).append(backupType.substring(1));
+    message.append(String.format(" %d%% done (%.1f of %.1f MiB), %.1f MiB/s", percentDone,
+        bytesDone / BYTES_PER_MIB, bytesTotal / BYTES_PER_MIB, bytesPerSecond / BYTES_PER_MIB));
+
+    if (secondsLeft >= 0) {
+      message.append(", about ").append(formatDuration(secondsLeft)).append(" left");
+    }
+
+    return message.toString();
+  }
+
+  /**
+   * Formats a duration for messages.
+   *
+   * @param seconds Duration in seconds.
+   * @return Duration as h:mm:ss.
+   */
+  public static String formatDuration(long seconds) {
+    return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs work that has to happen on the server thread, a little at the end of every tick.
+ *
+ * <p>Backup threads submit tasks from any thread. Each task gets a turn every tick until it says
+ * it's finished, and is expected to keep its turn short so the tick isn't held up.</p>
+ */
+public class ServerTasks {
+  /** Work done on the server thread in slices. */
+  public interface Task {
+    /**
+     * Does the next slice of work. Called on the server thread at the end of every tick.
+     *
+     * @return {@code true} once the task is finished (or abandoned) and shouldn't run again.
+     */
+    boolean tick();
+  }
+
+  /** Tasks that haven't finished. */
+  private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Gives every task its turn. Registered on the FML event bus and run by the server thread.
+   *
+   * @param event The tick event.
+   */
+  @SubscribeEvent
+  public void onServerTick(TickEvent.ServerTickEvent event) {
+    if (event.phase == TickEvent.Phase.END) {
+      runTasks();
+    }
+  }
+
+  /**
+   * Gives every task its turn. Run by the server thread at the end of every tick.
+   *
+   * <p>Tools that run backups without a Minecraft server call this from their own server
+   * thread.</p>
+   */
+  public void runTasks() {
+    Iterator<Task> iterator = tasks.iterator();
+    while (iterator.hasNext()) {
+      Task task = iterator.next();
+      boolean finished;
+      try {
+        finished = task.tick();
+      } catch (RuntimeException e) {
+        SmartBackup.getLogger().error("Server task failed, dropping it", e);
+        finished = true;
+      }
+      if (finished) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Adds a task, which gets its first turn at the end of the next tick.
+   *
+   * @param task Task to run.
+   */
+  public void submit(Task task) {
+    tasks.add(task);
+  }
+}
@@ -16,14 +16,25 @@
 
 package net.pktr.smartbackup;
 
+import net.pktr.smartbackup.metrics.BackupMetrics;
+import net.pktr.smartbackup.metrics.MetricsExporter;
+
+import cpw.mods.fml.common.FMLCommonHandler;
 import cpw.mods.fml.common.Mod;
 import cpw.mods.fml.common.Mod.EventHandler;
 import cpw.mods.fml.common.event.FMLInitializationEvent;
 import cpw.mods.fml.common.event.FMLPreInitializationEvent;
 import cpw.mods.fml.common.event.FMLServerStartingEvent;
+import cpw.mods.fml.common.event.FMLServerStoppedEvent;
 import cpw.mods.fml.common.event.FMLServerStoppingEvent;
+import net.minecraft.server.MinecraftServer;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Main SmartBackup mod class.
  */
@@ -44,22 +55,63 @@ public class SmartBackup {
   private BackupManager manager;
   private static BackupConfiguration config = null;
   private static Messenger messenger = null;
+  private static ServerTasks serverTasks = null;
+  private static BackupMetrics metrics = null;
+  private MetricsExporter exporter = null;
 
   @EventHandler
   public void preInitializationEvent(FMLPreInitializationEvent event) {
-    logger = event.getModLog();
-    config = new BackupConfiguration(event.getSuggestedConfigurationFile());
+    initialize(event.getModLog(), event.getSuggestedConfigurationFile());
+    FMLCommonHandler.instance().bus().register(messenger);
+    FMLCommonHandler.instance().bus().register(serverTasks);
+  }
+
+  /**
+   * Sets up the logger, config and other services the rest of the mod gets from this class.
+   *
+   * <p>Called at pre-initialization. Tools that run backups outside of a server (like the tick
+   * benchmark) call it themselves; nothing is registered on the event bus.</p>
+   *
+   * @param modLogger Logger to use for mod-related logging.
+   * @param configFile Config file to load (and write defaults to).
+   */
+  public static void initialize(Logger modLogger, File configFile) {
+    logger = modLogger;
+    config = new BackupConfiguration(configFile);
     messenger = new Messenger();
+    serverTasks = new ServerTasks();
+    metrics = new BackupMetrics();
   }
 
   @EventHandler
   public void initializationEvent(FMLInitializationEvent event) {
     manager = new BackupManager();
+    FMLCommonHandler.instance().bus().register(new SnapshotTiering(manager));
   }
 
   @EventHandler
   public void serverStartingEvent(FMLServerStartingEvent event) {
     event.registerServerCommand(new BackupCommand(manager));
+    startExporter();
+  }
+
+  /**
+   * Starts exporting the metrics, as the config says. A port that can't be bound is logged
+   * rather than keeping the server from starting.
+   */
+  private void startExporter() {
+    exporter = new MetricsExporter(metrics, logger);
+    if (config.getMetricsPort() > 0) {
+      try {
+        exporter.serve(config.getMetricsBindAddress(), config.getMetricsPort());
+      } catch (IOException e) {
+        logger.error("Unable to serve metrics on " + config.getMetricsBindAddress() + ":" +
+            config.getMetricsPort(), e);
+      }
+    }
+    if (!config.getMetricsTextfile().isEmpty()) {
+      exporter.writeTextfile(Paths.get(config.getMetricsTextfile()));
+    }
   }
 
   @EventHandler
@@ -69,6 +121,33 @@ public class SmartBackup {
       manager.waitForBackups();
     } catch (InterruptedException e) {
       return;
+    } finally {
+      // There won't be another tick to deliver what the backup thread reported.
+      messenger.flush();
+    }
+  }
+
+  /**
+   * Takes the shutdown snapshot, if enabled, once the server has saved the world for the last
+   * time, and stops exporting metrics.
+   *
+   * @param event The server stopped event.
+   */
+  @EventHandler
+  public void serverStoppedEvent(FMLServerStoppedEvent event) {
+    try {
+      if (config.getShutdownBackup()) {
+        manager.runShutdownBackup(MinecraftServer.getServer(),
+            TimeUnit.SECONDS.toMillis(config.getShutdownTimeBudget()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      messenger.flush();
+      if (exporter != null) {
+        exporter.stop();
+        exporter = null;
+      }
     }
   }
 
@@ -99,4 +178,22 @@ public class SmartBackup {
   public static Messenger getMessenger() {
     return messenger;
   }
+
+  /**
+   * Returns the {@link ServerTasks} used to run work on the server thread between ticks.
+   *
+   * @return {@link ServerTasks} to submit work to.
+   */
+  public static ServerTasks getServerTasks() {
+    return serverTasks;
+  }
+
+  /**
+   * Returns the {@link BackupMetrics} that backups record what they do in.
+   *
+   * @return {@link BackupMetrics} to record metrics in.
+   */
+  public static BackupMetrics getMetrics() {
+    return metrics;
+  }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup;
+
+import net.pktr.smartbackup.creator.ArchiveCreator;
+import net.pktr.smartbackup.manifest.Manifest;
+import net.pktr.smartbackup.manifest.ManifestStore;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import net.minecraft.server.MinecraftServer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns snapshots older than the configured age into archives while the server is idle.
+ *
+ * <p>The server counts as idle while no players are online. Once a minute an idle server is
+ * checked for a snapshot to archive, on a thread of its own so the server thread never reads the
+ * manifests. Archiving stops as soon as a player joins or a backup is requested, and starts over
+ * the next time the server is idle.</p>
+ *
+ * <p>The main backup folder is checked first, then the folder of each profile.</p>
+ */
+public class SnapshotTiering {
+  /** Ticks between checks for a snapshot to archive. */
+  private static final int CHECK_INTERVAL_TICKS = 20 * 60;
+
+  /** Starts and stops the archiving. */
+  private final BackupManager manager;
+  /** Ticks since the last check. */
+  private int ticks = 0;
+  /** Whether a check is running. Only used on the server thread. */
+  private boolean checking = false;
+
+  /**
+   * Sets up tiering.
+   *
+   * @param manager Manager to run the archiving with.
+   */
+  public SnapshotTiering(BackupManager manager) {
+    this.manager = manager;
+  }
+
+  /**
+   * Stops archiving when the server is busy and checks for snapshots to archive when it's idle.
+   * Registered on the FML event bus and run by the server thread.
+   *
+   * @param event The tick event.
+   */
+  @SubscribeEvent
+  public void onServerTick(TickEvent.ServerTickEvent event) {
+    if (event.phase != TickEvent.Phase.END) {
+      return;
+    }
+
+    if (manager.tieringInProgress() && !isIdle()) {
+      manager.stopTiering();
+    }
+
+    if (++ticks < CHECK_INTERVAL_TICKS) {
+      return;
+    }
+    ticks = 0;
+
+    if (!canStart()) {
+      return;
+    }
+    checking = true;
+
+    final long olderThan = System.currentTimeMillis() -
+        TimeUnit.HOURS.toMillis(SmartBackup.getConfiguration().getTieringAge());
+    final List<BackupProfile> profiles = getProfiles();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        BackupProfile snapshotProfile = null;
+        Manifest snapshot = null;
+        for (BackupProfile profile : profiles) {
+          ManifestStore manifests = new ManifestStore(Paths.get(profile.getOutputDir()));
+          try {
+            snapshot = ArchiveCreator.findSnapshotToArchive(manifests, olderThan);
+          } catch (IOException e) {
+            SmartBackup.getLogger().warn("Unable to look for snapshots to archive in " +
+                manifests.getOutputDir(), e);
+          }
+          if (snapshot != null) {
+            snapshotProfile = profile;
+            break;
+          }
+        }
+
+        final BackupProfile profile = snapshotProfile;
+        final Manifest found = snapshot;
+        SmartBackup.getServerTasks().submit(new ServerTasks.Task() {
+          @Override
+          public boolean tick() {
+            checking = false;
+            // Things may have changed while looking.
+            if (found != null && canStart()) {
+              manager.startTiering(MinecraftServer.getServer(), profile, found);
+            }
+            return true;
+          }
+        });
+      }
+    }, "Tiering Check");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Gets the profiles whose folders are checked for snapshots to archive: the main backup folder
+   * first, then each profile that has a folder of its own.
+   *
+   * @return The profiles, one per folder.
+   */
+  private static List<BackupProfile> getProfiles() {
+    BackupConfiguration config = SmartBackup.getConfiguration();
+    List<BackupProfile> profiles = new ArrayList<>();
+    Set<Path> folders = new HashSet<>();
+    profiles.add(config.getDefaultProfile());
+    folders.add(Paths.get(config.getBackupOutputDir()).toAbsolutePath().normalize());
+    for (String name : config.getProfileNames()) {
+      BackupProfile profile = config.getProfile(name);
+      if (folders.add(Paths.get(profile.getOutputDir()).toAbsolutePath().normalize())) {
+        profiles.add(profile);
+      }
+    }
+    return profiles;
+  }
+
+  /**
+   * Checks whether archiving a snapshot can start.
+   *
+   * @return {@code true} if tiering is enabled, the server is idle and nothing else is running.
+   */
+  private boolean canStart() {
+    return SmartBackup.getConfiguration().getTieringAge() > 0 && !checking && isIdle() &&
+        !manager.backupInProgress() && !manager.tieringInProgress();
+  }
+
+  /**
+   * Checks whether the server is idle.
+   *
+   * @return {@code true} if no players are online.
+   */
+  private static boolean isIdle() {
+    return MinecraftServer.getServer().getConfigurationManager().getCurrentPlayerCount() == 0;
+  }
+}
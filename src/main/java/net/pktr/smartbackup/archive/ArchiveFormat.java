@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+/** The file formats archives can be written in. */
+public enum ArchiveFormat {
+  /** Zip file, compressed entry by entry. */
+  ZIP("zip", ".zip"),
+  /** Uncompressed tarball. */
+  TAR("tar", ".tar"),
+  /** Tarball compressed as independent gzip frames, in parallel. */
+  TAR_GZ("tar.gz", ".tar.gz"),
+  /** Tar.gz archive with every frame encrypted and authenticated (see {@link FrameCipher}). */
+  TAR_GZ_AES("tar.gz.aes", ".tar.gz.aes");
+
+  /** Name of the format in the configuration file. */
+  private final String name;
+  /** Extension of archives in this format. */
+  private final String extension;
+
+  ArchiveFormat(String name, String extension) {
+    this.name = name;
+    this.extension = extension;
+  }
+
+  /**
+   * Gets the name of this format as used in the configuration file.
+   *
+   * @return Name of the format.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the file extension of archives in this format.
+   *
+   * @return Extension, including the leading dot.
+   */
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * Checks whether archives in this format are compressed as gzip frames.
+   *
+   * @return {@code true} for tar.gz and encrypted tar.gz.
+   */
+  public boolean isFramed() {
+    return this == TAR_GZ || this == TAR_GZ_AES;
+  }
+
+  /**
+   * Gets the names of all formats, for listing valid configuration values.
+   *
+   * @return Names of all formats.
+   */
+  public static String[] getNames() {
+    ArchiveFormat[] formats = values();
+    String[] names = new String[formats.length];
+    for (int i = 0; i < formats.length; i++) {
+      names[i] = formats[i].name;
+    }
+    return names;
+  }
+
+  /**
+   * Looks up a format by its configuration name.
+   *
+   * @param name Name of the format.
+   * @return The format.
+   * @throws IllegalArgumentException if there is no format with that name.
+   */
+  public static ArchiveFormat fromName(String name) {
+    for (ArchiveFormat format : values()) {
+      if (format.name.equalsIgnoreCase(name)) {
+        return format;
+      }
+    }
+    throw new IllegalArgumentException("Unknown archive format: " + name);
+  }
+
+  /**
+   * Finds the format of an archive by its file name.
+   *
+   * @param fileName Name of the archive file.
+   * @return The format, or {@code null} if the name doesn't end in a known extension.
+   */
+  public static ArchiveFormat fromFileName(String fileName) {
+    for (ArchiveFormat format : values()) {
+      if (fileName.endsWith(format.extension)) {
+        return format;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the entries in a tarball and of the compressed frames it was written in.
+ *
+ * <p>The index is stored as the last entry of tar and tar.gz archives. With it, a single entry can
+ * be read by seeking to the frame that holds the start of its data and decompressing from there,
+ * instead of decompressing everything before it.</p>
+ */
+public class ArchiveIndex {
+  /** Name of the archive entry holding the index. */
+  public static final String ENTRY_NAME = ".smartbackup/index";
+
+  /**
+   * Length of the gzip member that ends a tar.gz archive and points to the index.
+   *
+   * <p>The member is empty, so gzip tools ignore it. Its header has an extra field with the ID
+   * {@code SI} whose 8 bytes of data are the offset of the frame holding the index entry.</p>
+   */
+  public static final int GZIP_TRAILER_LENGTH = 34;
+  /**
+   * Length of the block that ends a tar archive and points to the index.
+   *
+   * <p>The block comes after the tar end-of-archive marker, where tar tools stop reading. It holds
+   * {@code SBIX} followed by the offset of the index entry's header.</p>
+   */
+  public static final int TAR_TRAILER_LENGTH = 512;
+
+  private static final int MAGIC = 0x53424958; // "SBIX"
+  private static final int VERSION = 1;
+
+  /** Entries, in the order they appear in the archive. */
+  private final List<Entry> entries = new ArrayList<>();
+  /** Entries by name. */
+  private final Map<String, Entry> entriesByName = new HashMap<>();
+  /** Uncompressed offset of each frame. */
+  private long[] frameUncompressed = new long[16];
+  /** Compressed offset of each frame. */
+  private long[] frameCompressed = new long[16];
+  /** Number of frames. */
+  private int frameCount = 0;
+
+  /** An entry in the archive. */
+  public static class Entry {
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final int crc;
+    private final long dataOffset;
+
+    public Entry(String name, boolean directory, long size, long lastModified, int crc,
+        long dataOffset) {
+      this.name = name;
+      this.directory = directory;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.crc = crc;
+      this.dataOffset = dataOffset;
+    }
+
+    /**
+     * Gets the name of the entry.
+     *
+     * @return Name of the entry, without a trailing slash for folders.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Checks whether the entry is a folder.
+     *
+     * @return {@code true} if the entry is a folder.
+     */
+    public boolean isDirectory() {
+      return directory;
+    }
+
+    /**
+     * Gets the size of the entry's data.
+     *
+     * @return Size in bytes.
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Gets the modification time of the entry.
+     *
+     * @return Modification time in milliseconds since the epoch.
+     */
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * Gets the CRC-32 of the entry's data.
+     *
+     * @return CRC-32 of the data.
+     */
+    public int getCrc() {
+      return crc;
+    }
+
+    /**
+     * Gets the offset of the entry's data in the uncompressed tarball.
+     *
+     * @return Offset of the data.
+     */
+    public long getDataOffset() {
+      return dataOffset;
+    }
+  }
+
+  /**
+   * Adds an entry. Entries must be added in the order they appear in the archive.
+   *
+   * @param entry Entry to add.
+   */
+  public void addEntry(Entry entry) {
+    entries.add(entry);
+    entriesByName.put(entry.getName(), entry);
+  }
+
+  /**
+   * Adds a frame. Frames must be added in the order they appear in the archive.
+   *
+   * @param uncompressedOffset Offset of the frame's data in the uncompressed tarball.
+   * @param compressedOffset Offset of the frame in the archive file.
+   */
+  public void addFrame(long uncompressedOffset, long compressedOffset) {
+    if (frameCount == frameUncompressed.length) {
+      frameUncompressed = Arrays.copyOf(frameUncompressed, frameCount * 2);
+      frameCompressed = Arrays.copyOf(frameCompressed, frameCount * 2);
+    }
+    frameUncompressed[frameCount] = uncompressedOffset;
+    frameCompressed[frameCount] = compressedOffset;
+    frameCount++;
+  }
+
+  /**
+   * Gets the number of frames.
+   *
+   * @return Number of frames added so far.
+   */
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * Gets the offsets of a frame.
+   *
+   * @param frame Number of the frame, in the order frames were added.
+   * @return Two values: the uncompressed and compressed offsets of the start of the frame.
+   */
+  public long[] getFrame(int frame) {
+    if (frame < 0 || frame >= frameCount) {
+      throw new IndexOutOfBoundsException("No frame " + frame);
+    }
+    return new long[]{frameUncompressed[frame], frameCompressed[frame]};
+  }
+
+  /**
+   * Gets all entries.
+   *
+   * @return Entries in the order they appear in the archive.
+   */
+  public List<Entry> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Looks up an entry by name.
+   *
+   * @param name Name of the entry.
+   * @return The entry, or {@code null} if there isn't one with that name.
+   */
+  public Entry getEntry(String name) {
+    return entriesByName.get(name);
+  }
+
+  /**
+   * Finds the frame holding an offset of the uncompressed tarball.
+   *
+   * @param uncompressedOffset Offset in the uncompressed tarball.
+   * @return Two values: the uncompressed and compressed offsets of the start of the frame. For
+   * archives that aren't compressed in frames, the offset itself is returned twice.
+   */
+  public long[] findFrame(long uncompressedOffset) {
+    if (frameCount == 0) {
+      return new long[]{uncompressedOffset, uncompressedOffset};
+    }
+
+    int low = 0;
+    int high = frameCount - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (frameUncompressed[mid] <= uncompressedOffset) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return new long[]{frameUncompressed[low], frameCompressed[low]};
+  }
+
+  /**
+   * Writes the index.
+   *
+   * @param out Output to write to.
+   * @throws IOException if writing fails.
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+
+    out.writeInt(frameCount);
+    for (int i = 0; i < frameCount; i++) {
+      out.writeLong(frameUncompressed[i]);
+      out.writeLong(frameCompressed[i]);
+    }
+
+    out.writeInt(entries.size());
+    for (Entry entry : entries) {
+      out.writeUTF(entry.name);
+      out.writeBoolean(entry.directory);
+      out.writeLong(entry.size);
+      out.writeLong(entry.lastModified);
+      out.writeInt(entry.crc);
+      out.writeLong(entry.dataOffset);
+    }
+  }
+
+  /**
+   * Reads an index.
+   *
+   * @param in Input to read from.
+   * @return The index.
+   * @throws IOException if reading fails or the data isn't an index.
+   */
+  public static ArchiveIndex read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not an archive index");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported archive index version: " + version);
+    }
+
+    ArchiveIndex index = new ArchiveIndex();
+    int frames = in.readInt();
+    for (int i = 0; i < frames; i++) {
+      index.addFrame(in.readLong(), in.readLong());
+    }
+
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      index.addEntry(new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong(),
+          in.readInt(), in.readLong()));
+    }
+    return index;
+  }
+
+  /**
+   * Builds the gzip member that ends a tar.gz archive.
+   *
+   * @param indexOffset Offset of the frame holding the index entry.
+   * @return The trailer member, {@link #GZIP_TRAILER_LENGTH} bytes long.
+   */
+  public static byte[] buildGzipTrailer(long indexOffset) {
+    ByteBuffer trailer = ByteBuffer.allocate(GZIP_TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    // Header: magic, deflate, FEXTRA flag, no mtime, no extra flags, unknown OS.
+    trailer.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 4);
+    trailer.putInt(0).put((byte) 0).put((byte) 0xff);
+    // Extra field: total length, then the SI subfield with 8 bytes of data.
+    trailer.putShort((short) 12).put((byte) 'S').put((byte) 'I').putShort((short) 8);
+    trailer.order(ByteOrder.BIG_ENDIAN).putLong(indexOffset).order(ByteOrder.LITTLE_ENDIAN);
+    // An empty final deflate block (just the end-of-block code), then CRC-32 and length (both 0).
+    trailer.put((byte) 3).put((byte) 0);
+    trailer.putInt(0).putInt(0);
+    return trailer.array();
+  }
+
+  /**
+   * Reads the index offset from the gzip member that ends a tar.gz archive.
+   *
+   * @param trailer The last {@link #GZIP_TRAILER_LENGTH} bytes of the archive.
+   * @return Offset of the frame holding the index entry, or -1 if there is no valid trailer.
+   */
+  public static long parseGzipTrailer(byte[] trailer) {
+    ByteBuffer buffer = ByteBuffer.wrap(trailer);
+    if (trailer.length != GZIP_TRAILER_LENGTH || (buffer.get(0) & 0xFF) != 0x1f ||
+        (buffer.get(1) & 0xFF) != 0x8b || buffer.get(3) != 4 || buffer.get(12) != 'S' ||
+        buffer.get(13) != 'I') {
+      return -1;
+    }
+    return buffer.getLong(16);
+  }
+
+  /**
+   * Builds the block that ends a tar archive.
+   *
+   * @param indexOffset Offset of the index entry's header.
+   * @return The trailer block, {@link #TAR_TRAILER_LENGTH} bytes long.
+   */
+  public static byte[] buildTarTrailer(long indexOffset) {
+    ByteBuffer trailer = ByteBuffer.allocate(TAR_TRAILER_LENGTH);
+    trailer.putInt(MAGIC).putLong(indexOffset);
+    return trailer.array();
+  }
+
+  /**
+   * Reads the index offset from the block that ends a tar archive.
+   *
+   * @param trailer The last {@link #TAR_TRAILER_LENGTH} bytes of the archive.
+   * @return Offset of the index entry's header, or -1 if there is no valid trailer.
+   */
+  public static long parseTarTrailer(byte[] trailer) {
+    ByteBuffer buffer = ByteBuffer.wrap(trailer);
+    if (trailer.length != TAR_TRAILER_LENGTH || buffer.getInt(0) != MAGIC) {
+      return -1;
+    }
+    return buffer.getLong(4);
+  }
+}
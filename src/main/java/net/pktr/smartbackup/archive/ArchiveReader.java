@@ -0,0 +1,519 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import net.pktr.smartbackup.pack.SegmentIndex;
+import net.pktr.smartbackup.region.RegionCodec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads single entries out of archives without reading the whole archive.
+ *
+ * <p>Zip files are read through their central directory. Tar and tar.gz archives are read
+ * through the {@link ArchiveIndex} written at their end: reading an entry seeks to the compressed
+ * frame holding the start of its data and only decompresses from there.</p>
+ *
+ * <p>Encrypted tar.gz archives are read the same way, decrypting (and authenticating) only the
+ * frames that are read.</p>
+ *
+ * <p>Small files packed into segments (see {@link SegmentIndex}) are read like any other entry:
+ * the segment indexes are read when the archive is opened, and reading a packed file reads just
+ * its range of the segment.</p>
+ */
+public class ArchiveReader implements Closeable {
+  /** Size of a tar block. */
+  private static final int BLOCK = 512;
+
+  /** The archive file. */
+  private final Path file;
+  /** Format of the archive. */
+  private final ArchiveFormat format;
+  /** The archive opened as a zip file, or {@code null} for tarballs. */
+  private final ZipFile zip;
+  /** Index of a tarball, or {@code null} for zip files. */
+  private final ArchiveIndex index;
+  /** Decrypts the frames of an encrypted archive, or {@code null}. */
+  private final FrameCipher cipher;
+  /** Files packed into segments, by name. */
+  private final Map<String, PackedFile> packed = new HashMap<>();
+
+  /** A file packed into a segment. */
+  private static class PackedFile {
+    /** Entry name of the segment. */
+    private final String segment;
+    /** Where the file is in the segment. */
+    private final SegmentIndex.Entry entry;
+
+    PackedFile(String segment, SegmentIndex.Entry entry) {
+      this.segment = segment;
+      this.entry = entry;
+    }
+  }
+
+  /**
+   * Opens an archive.
+   *
+   * @param file Archive to open. The format is taken from its extension.
+   * @throws IOException if the archive can't be read, or is a tarball without an index.
+   */
+  public ArchiveReader(Path file) throws IOException {
+    this(file, null);
+  }
+
+  /**
+   * Opens an archive that may be encrypted.
+   *
+   * @param file Archive to open. The format is taken from its extension.
+   * @param passphrase Passphrase of an encrypted archive, or {@code null}.
+   * @throws IOException if the archive can't be read, is a tarball without an index, or is
+   * encrypted and the passphrase is wrong.
+   */
+  public ArchiveReader(Path file, String passphrase) throws IOException {
+    this.file = file;
+    this.format = ArchiveFormat.fromFileName(file.getFileName().toString());
+    if (format == null) {
+      throw new IOException("Not a known archive type: " + file);
+    }
+
+    if (format == ArchiveFormat.TAR_GZ_AES) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        cipher = FrameCipher.read(channel, passphrase);
+      }
+    } else {
+      cipher = null;
+    }
+
+    if (format == ArchiveFormat.ZIP) {
+      zip = new ZipFile(file.toFile());
+      index = null;
+    } else {
+      zip = null;
+      index = readIndex();
+    }
+
+    try {
+      readSegmentIndexes();
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets every entry in the archive.
+   *
+   * <p>For zip files, the data offsets of the returned entries aren't meaningful. Files packed
+   * into segments aren't listed, only the segments are.</p>
+   *
+   * @return Entries in the order they appear in the archive.
+   */
+  public List<ArchiveIndex.Entry> getEntries() {
+    if (index != null) {
+      return index.getEntries();
+    }
+
+    List<ArchiveIndex.Entry> entries = new ArrayList<>();
+    Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+    while (zipEntries.hasMoreElements()) {
+      entries.add(toIndexEntry(zipEntries.nextElement()));
+    }
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Looks up an entry.
+   *
+   * <p>For a file packed into a segment, the data offset of the returned entry isn't
+   * meaningful.</p>
+   *
+   * @param name Name of the entry.
+   * @return The entry, or {@code null} if the archive doesn't have one with that name.
+   */
+  public ArchiveIndex.Entry getEntry(String name) {
+    ArchiveIndex.Entry found;
+    if (index != null) {
+      found = index.getEntry(name);
+    } else {
+      ZipEntry entry = zip.getEntry(name);
+      if (entry == null) {
+        entry = zip.getEntry(name + "/");
+      }
+      found = entry == null ? null : toIndexEntry(entry);
+    }
+
+    PackedFile file = packed.get(name);
+    if (found == null && file != null) {
+      found = new ArchiveIndex.Entry(name, false, file.entry.getSize(),
+          file.entry.getLastModified(), file.entry.getCrc(), -1);
+    }
+    return found;
+  }
+
+  /**
+   * Opens the data of an entry.
+   *
+   * @param name Name of the entry.
+   * @return Stream of the entry's data. The caller must close it.
+   * @throws IOException if the entry doesn't exist or can't be read.
+   */
+  public InputStream openEntry(String name) throws IOException {
+    PackedFile packedFile = packed.get(name);
+    if (zip != null) {
+      ZipEntry entry = zip.getEntry(name);
+      if (entry == null && packedFile != null) {
+        entry = zip.getEntry(packedFile.segment);
+        if (entry != null) {
+          InputStream in = zip.getInputStream(entry);
+          try {
+            skipFully(in, packedFile.entry.getOffset());
+          } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+          }
+          return new BoundedInputStream(in, packedFile.entry.getSize());
+        }
+      }
+      if (entry == null) {
+        throw new IOException("No such entry in " + file + ": " + name);
+      }
+      return zip.getInputStream(entry);
+    }
+
+    ArchiveIndex.Entry entry = index.getEntry(name);
+    if (entry == null && packedFile != null) {
+      ArchiveIndex.Entry segment = index.getEntry(packedFile.segment);
+      if (segment != null) {
+        return openAt(segment.getDataOffset() + packedFile.entry.getOffset(),
+            packedFile.entry.getSize());
+      }
+    }
+    if (entry == null) {
+      throw new IOException("No such entry in " + file + ": " + name);
+    }
+    return openAt(entry.getDataOffset(), entry.getSize());
+  }
+
+  /**
+   * Checks that an entry's data is intact by reading it and comparing its CRC-32.
+   *
+   * @param name Name of the entry.
+   * @return {@code true} if the data matches its recorded CRC-32 and size.
+   * @throws IOException if the entry doesn't exist or can't be read.
+   */
+  public boolean verify(String name) throws IOException {
+    ArchiveIndex.Entry entry = getEntry(name);
+    if (entry == null) {
+      throw new IOException("No such entry in " + file + ": " + name);
+    }
+    if (entry.isDirectory()) {
+      return true;
+    }
+
+    CRC32 crc = new CRC32();
+    long size = 0;
+    try (InputStream in = openEntry(name)) {
+      byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+        size += read;
+      }
+    } catch (EOFException e) {
+      return false;
+    }
+    return size == entry.getSize() && (int) crc.getValue() == entry.getCrc();
+  }
+
+  /**
+   * Restores a file out of the archive.
+   *
+   * <p>If the archive holds an encoded region ({@code name + ".sbrg"}) instead of the file itself,
+   * it is decoded back into a region file.</p>
+   *
+   * @param name Name of the file in the archive.
+   * @param out Stream to write the restored file to.
+   * @throws IOException if the file isn't in the archive or can't be read.
+   */
+  public void restore(String name, OutputStream out) throws IOException {
+    if (getEntry(name) == null && getEntry(name + RegionCodec.EXTENSION) != null) {
+      byte[] dictionary = null;
+      if (getEntry(RegionCodec.DICTIONARY_ENTRY) != null) {
+        try (InputStream in = openEntry(RegionCodec.DICTIONARY_ENTRY)) {
+          dictionary = readAll(in);
+        }
+      }
+      try (InputStream in = openEntry(name + RegionCodec.EXTENSION)) {
+        RegionCodec.decode(in, dictionary, out);
+      }
+      return;
+    }
+
+    try (InputStream in = openEntry(name)) {
+      byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (zip != null) {
+      zip.close();
+    }
+  }
+
+  /**
+   * Reads the indexes of the segments small files are packed into.
+   *
+   * @throws IOException if a segment index can't be read or is damaged.
+   */
+  private void readSegmentIndexes() throws IOException {
+    String prefix = SegmentIndex.FOLDER + "/";
+    for (ArchiveIndex.Entry entry : getEntries()) {
+      String name = entry.getName();
+      if (!name.startsWith(prefix) || !name.endsWith(SegmentIndex.INDEX_EXTENSION)) {
+        continue;
+      }
+
+      SegmentIndex segmentIndex;
+      try (InputStream in = openEntry(name)) {
+        segmentIndex = SegmentIndex.fromBytes(readAll(in));
+      }
+      String segment = SegmentIndex.getDataName(name.substring(prefix.length(),
+          name.length() - SegmentIndex.INDEX_EXTENSION.length()));
+      for (SegmentIndex.Entry packedEntry : segmentIndex.getEntries()) {
+        packed.put(packedEntry.getName(), new PackedFile(segment, packedEntry));
+      }
+    }
+  }
+
+  /**
+   * Finds and reads the index of a tarball.
+   *
+   * @return The index.
+   * @throws IOException if the tarball has no index or it can't be read.
+   */
+  private ArchiveIndex readIndex() throws IOException {
+    long indexOffset;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      int trailerLength = format.isFramed() ?
+          ArchiveIndex.GZIP_TRAILER_LENGTH : ArchiveIndex.TAR_TRAILER_LENGTH;
+      if (channel.size() < trailerLength) {
+        throw new IOException("Archive is too short to have an index: " + file);
+      }
+
+      ByteBuffer trailer = ByteBuffer.allocate(trailerLength);
+      long position = channel.size() - trailerLength;
+      while (trailer.hasRemaining()) {
+        int read = channel.read(trailer, position);
+        if (read < 0) {
+          throw new EOFException();
+        }
+        position += read;
+      }
+
+      if (format.isFramed()) {
+        indexOffset = ArchiveIndex.parseGzipTrailer(trailer.array());
+      } else {
+        indexOffset = ArchiveIndex.parseTarTrailer(trailer.array());
+      }
+    }
+
+    if (indexOffset < 0) {
+      throw new IOException("Archive has no index (was it written by SmartBackup?): " + file);
+    }
+
+    // The index entry starts its own frame, so for tar.gz the frame's offset is enough.
+    try (InputStream in = openStream(indexOffset, -1)) {
+      byte[] header = new byte[BLOCK];
+      new DataInputStream(in).readFully(header);
+      String name = new String(header, 0, 100, StandardCharsets.UTF_8).trim();
+      if (!name.startsWith(ArchiveIndex.ENTRY_NAME)) {
+        throw new IOException("Archive index is damaged: " + file);
+      }
+      long size = Long.parseLong(new String(header, 124, 11, StandardCharsets.US_ASCII).trim(), 8);
+      return ArchiveIndex.read(new DataInputStream(new BoundedInputStream(in, size)));
+    }
+  }
+
+  /**
+   * Opens a stream of the uncompressed tarball starting at a compressed offset.
+   *
+   * @param compressedOffset Offset in the archive file. For tar.gz this must be a frame boundary.
+   * @param uncompressedOffset Offset in the uncompressed tarball the frame starts at, checked for
+   * encrypted archives, or -1 if it isn't known.
+   * @return Stream of uncompressed data.
+   * @throws IOException if the archive can't be read.
+   */
+  private InputStream openStream(long compressedOffset, long uncompressedOffset)
+      throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      if (cipher != null) {
+        long end = channel.size() - ArchiveIndex.GZIP_TRAILER_LENGTH;
+        return new GZIPInputStream(new BufferedInputStream(
+            cipher.open(channel, compressedOffset, end, uncompressedOffset), 65536), 65536);
+      }
+      channel.position(compressedOffset);
+      InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 65536);
+      return format == ArchiveFormat.TAR_GZ ? new GZIPInputStream(in, 65536) : in;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a range of the uncompressed tarball, decompressing from the frame that holds its start.
+   *
+   * @param offset Offset of the range in the uncompressed tarball.
+   * @param length Length of the range.
+   * @return Stream of the range.
+   * @throws IOException if the archive can't be read.
+   */
+  private InputStream openAt(long offset, long length) throws IOException {
+    long[] frame = index.findFrame(offset);
+    InputStream in = openStream(frame[1], frame[0]);
+    try {
+      skipFully(in, offset - frame[0]);
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+    return new BoundedInputStream(in, length);
+  }
+
+  /**
+   * Skips a number of bytes of a stream.
+   *
+   * @param in Stream to skip bytes of.
+   * @param skip Number of bytes to skip.
+   * @throws IOException if the stream ends first or can't be read.
+   */
+  private static void skipFully(InputStream in, long skip) throws IOException {
+    while (skip > 0) {
+      long skipped = in.skip(skip);
+      if (skipped <= 0) {
+        if (in.read() == -1) {
+          throw new EOFException("Archive ended before the entry");
+        }
+        skipped = 1;
+      }
+      skip -= skipped;
+    }
+  }
+
+  private static ArchiveIndex.Entry toIndexEntry(ZipEntry entry) {
+    String name = entry.getName();
+    if (entry.isDirectory()) {
+      name = name.substring(0, name.length() - 1);
+    }
+    return new ArchiveIndex.Entry(name, entry.isDirectory(), Math.max(0, entry.getSize()),
+        entry.getTime(), (int) entry.getCrc(), -1);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[65536];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  /** Reads at most a fixed number of bytes from a stream. */
+  private static class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length) {
+      super(in);
+      remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = super.read();
+      if (b == -1) {
+        throw new EOFException("Archive ended in the middle of an entry");
+      }
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+      if (read == -1) {
+        throw new EOFException("Archive ended in the middle of an entry");
+      }
+      remaining -= read;
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes entries into an archive file.
+ *
+ * <p>Files are written in blocks, each with its own compression level. Formats that don't
+ * compress ignore the level.</p>
+ */
+public interface ArchiveWriter extends Closeable {
+  /** Notified as compressed output is written. */
+  interface OutputListener {
+    /**
+     * Called when output belonging to a class of files has been written.
+     *
+     * @param fileClass Class of the files the output belongs to.
+     * @param bytes Number of bytes written to the archive file.
+     */
+    void outputWritten(FileClass fileClass, long bytes);
+  }
+
+  /**
+   * Checks whether this writer compresses data.
+   *
+   * @return {@code true} if the level passed to {@link #write} is used.
+   */
+  boolean isCompressed();
+
+  /**
+   * Sets the listener told about output as it is written.
+   *
+   * @param listener Listener to notify, or {@code null} for none.
+   */
+  void setOutputListener(OutputListener listener);
+
+  /**
+   * Adds a folder to the archive.
+   *
+   * @param name Name of the folder, without a trailing slash.
+   * @param time Modification time of the folder in milliseconds since the epoch.
+   * @throws IOException if writing fails.
+   */
+  void addDirectory(String name, long time) throws IOException;
+
+  /**
+   * Adds a file whose content is already in memory (and usually already compressed).
+   *
+   * @param name Name of the file.
+   * @param time Modification time of the file in milliseconds since the epoch.
+   * @param data Content of the file. This is stored without compressing it again.
+   * @param fileClass Class of the file.
+   * @throws IOException if writing fails.
+   */
+  void addFile(String name, long time, byte[] data, FileClass fileClass) throws IOException;
+
+  /**
+   * Starts a file whose content is written with {@link #write}.
+   *
+   * @param name Name of the file.
+   * @param size Size of the file. Formats that record the size before the content truncate or
+   * zero-pad the content to this size.
+   * @param time Modification time of the file in milliseconds since the epoch.
+   * @param fileClass Class of the file.
+   * @throws IOException if writing fails.
+   */
+  void beginFile(String name, long size, long time, FileClass fileClass) throws IOException;
+
+  /**
+   * Writes a block of the current file.
+   *
+   * @param data Buffer holding the block.
+   * @param offset Offset of the block in the buffer.
+   * @param length Length of the block.
+   * @param level Deflate level to compress the block with, or {@link CompressionPlanner#STORE}.
+   * @throws IOException if writing fails.
+   */
+  void write(byte[] data, int offset, int length, int level) throws IOException;
+
+  /**
+   * Finishes the current file.
+   *
+   * @throws IOException if writing fails.
+   */
+  void endFile() throws IOException;
+}
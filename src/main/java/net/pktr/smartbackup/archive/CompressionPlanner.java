@@ -0,0 +1,326 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how each block of archived data is compressed.
+ *
+ * <p>Blocks that don't compress (region files, PNG map tiles, gzipped NBT) are stored without
+ * compression instead of burning CPU on them. Whether a block compresses is checked by quickly
+ * compressing a small sample of it. Once a class of files has given the same answer several times
+ * in a row, only every {@link #RECHECK_INTERVAL}th block of that class is sampled.</p>
+ *
+ * <p>The compression level of the remaining blocks is the highest level (up to the configured
+ * level) that is expected to finish the archive within the time budget, going by the throughput
+ * measured for each level so far.</p>
+ *
+ * <p>The planner keeps per-class statistics of what it chose so the settings can be tuned. It is
+ * meant to be used from a single backup thread.</p>
+ */
+public class CompressionPlanner {
+  /** Level used for data that is stored without compression. */
+  public static final int STORE = Deflater.NO_COMPRESSION;
+
+  /** Compressed/uncompressed ratio above which a sample is considered incompressible. */
+  private static final double INCOMPRESSIBLE_RATIO = 0.92;
+  /** Bytes of each block that are test-compressed. */
+  private static final int SAMPLE_SIZE = 16 * 1024;
+  /** Number of same answers in a row after which a class is trusted to stay that way. */
+  private static final int CONFIDENT_AFTER = 8;
+  /** How often a block of a class with a trusted answer is checked again. */
+  private static final int RECHECK_INTERVAL = 16;
+  /** Only this much of the remaining time budget is planned for, to leave some slack. */
+  private static final double BUDGET_SAFETY = 0.9;
+  /** Weight of a new measurement in a level's throughput estimate. */
+  private static final double RATE_SMOOTHING = 0.2;
+  /** Starting throughput guesses (MiB/s) for storing and for deflate levels 1 through 9. */
+  private static final double[] DEFAULT_RATES_MIB = {400, 80, 70, 60, 45, 35, 25, 20, 12, 8};
+
+  /** Highest deflate level that may be used. */
+  private final int maxLevel;
+  /** Time budget for the whole archive, in nanoseconds. 0 if there isn't a budget. */
+  private final long budgetNanos;
+  /** Total bytes expected to be archived. */
+  private final long totalBytes;
+
+  /** When the archive was started. */
+  private long startNanos;
+  /** Bytes archived so far. */
+  private long bytesDone = 0;
+  /** Estimated throughput of each level, in bytes per nanosecond. */
+  private final double[] rates = new double[DEFAULT_RATES_MIB.length];
+  /** Whether the last block was compressible but given a lower level to keep to the budget. */
+  private boolean lastLowered = false;
+
+  /** Deflater used to test samples. */
+  private final Deflater probe = new Deflater(1);
+  /** Scratch output for the probe. */
+  private final byte[] probeOutput = new byte[SAMPLE_SIZE + 1024];
+
+  /** Statistics and learned compressibility for each class of file. */
+  private final Map<FileClass, ClassStats> classStats = new EnumMap<>(FileClass.class);
+
+  /** What the planner has learned and chosen for one class of files. */
+  private static class ClassStats {
+    long files = 0;
+    long bytesIn = 0;
+    long bytesOut = 0;
+    /** Uncompressed bytes written with each codec. */
+    final Map<String, Long> codecBytes = new LinkedHashMap<>();
+
+    boolean lastCompressible = true;
+    int sameAnswers = 0;
+    long blocksSinceCheck = 0;
+
+    void addCodecBytes(String codec, long bytes) {
+      Long previous = codecBytes.get(codec);
+      codecBytes.put(codec, (previous == null ? 0 : previous) + bytes);
+    }
+  }
+
+  /**
+   * Sets up a planner.
+   *
+   * @param maxLevel Highest deflate level to use (1-9).
+   * @param budgetMillis Time budget for the whole archive in milliseconds, 0 for no budget.
+   * @param totalBytes Total bytes expected to be archived.
+   */
+  public CompressionPlanner(int maxLevel, long budgetMillis, long totalBytes) {
+    this.maxLevel = Math.max(1, Math.min(Deflater.BEST_COMPRESSION, maxLevel));
+    this.budgetNanos = budgetMillis * 1000000L;
+    this.totalBytes = totalBytes;
+    for (int i = 0; i < rates.length; i++) {
+      rates[i] = DEFAULT_RATES_MIB[i] * 1024 * 1024 / 1e9;
+    }
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Chooses the level to compress a block with.
+   *
+   * @param fileClass Class of the file the block is from.
+   * @param block Buffer holding the block.
+   * @param offset Offset of the block in the buffer.
+   * @param length Length of the block.
+   * @return The deflate level to use, or {@link #STORE} to store the block uncompressed.
+   */
+  public int chooseLevel(FileClass fileClass, byte[] block, int offset, int length) {
+    ClassStats stats = getStats(fileClass);
+
+    boolean compressible;
+    if (stats.sameAnswers >= CONFIDENT_AFTER && stats.blocksSinceCheck < RECHECK_INTERVAL) {
+      compressible = stats.lastCompressible;
+      stats.blocksSinceCheck++;
+    } else {
+      compressible = isCompressible(block, offset, length);
+      if (compressible == stats.lastCompressible) {
+        stats.sameAnswers++;
+      } else {
+        stats.lastCompressible = compressible;
+        stats.sameAnswers = 1;
+      }
+      stats.blocksSinceCheck = 0;
+    }
+
+    if (!compressible) {
+      lastLowered = false;
+      return STORE;
+    }
+    int level = getBudgetLevel();
+    lastLowered = level < maxLevel;
+    return level;
+  }
+
+  /**
+   * Checks whether the time budget lowered the level of the last block a level was chosen for.
+   *
+   * @return {@code true} if the block was compressible but is compressed below the highest level
+   * (or not at all).
+   */
+  public boolean wasLowered() {
+    return lastLowered;
+  }
+
+  /**
+   * Records a block that has been written.
+   *
+   * @param fileClass Class of the file the block is from.
+   * @param level Level the block was written with.
+   * @param length Uncompressed length of the block.
+   * @param nanos Time taken to read and write the block.
+   */
+  public void blockDone(FileClass fileClass, int level, long length, long nanos) {
+    bytesDone += length;
+    getStats(fileClass).addCodecBytes(getCodecName(level), length);
+
+    // Tiny blocks are mostly overhead and would throw the estimate off.
+    if (length >= 64 * 1024 && nanos > 0) {
+      rates[level] += RATE_SMOOTHING * ((double) length / nanos - rates[level]);
+    }
+  }
+
+  /**
+   * Records data that was encoded by some other means (eg recompressed region files).
+   *
+   * @param fileClass Class of the file the data is from.
+   * @param codec Name of the codec used.
+   * @param length Uncompressed length of the data.
+   */
+  public void encodedDone(FileClass fileClass, String codec, long length) {
+    bytesDone += length;
+    getStats(fileClass).addCodecBytes(codec, length);
+  }
+
+  /**
+   * Records a finished file.
+   *
+   * @param fileClass Class of the file.
+   * @param bytesIn Size of the file.
+   */
+  public void fileDone(FileClass fileClass, long bytesIn) {
+    ClassStats stats = getStats(fileClass);
+    stats.files++;
+    stats.bytesIn += bytesIn;
+  }
+
+  /**
+   * Records archive output belonging to a class of files.
+   *
+   * @param fileClass Class of the files the output belongs to.
+   * @param bytesOut Number of bytes written to the archive.
+   */
+  public void outputDone(FileClass fileClass, long bytesOut) {
+    getStats(fileClass).bytesOut += bytesOut;
+  }
+
+  /**
+   * Gets a report of what was chosen for each class of files.
+   *
+   * @return One line per class of file that was archived.
+   */
+  public List<String> getReport() {
+    List<String> report = new ArrayList<>();
+    for (Map.Entry<FileClass, ClassStats> entry : classStats.entrySet()) {
+      ClassStats stats = entry.getValue();
+      if (stats.files == 0) {
+        continue;
+      }
+
+      StringBuilder line = new StringBuilder();
+      line.append(entry.getKey().getName()).append(": ")
+          .append(stats.files).append(" files, ")
+          .append(formatBytes(stats.bytesIn)).append(" -> ").append(formatBytes(stats.bytesOut));
+      if (stats.bytesIn > 0) {
+        line.append(
+            String.format(Locale.ROOT, " (%.1f%%)", 100.0 * stats.bytesOut / stats.bytesIn));
+      }
+
+      for (Map.Entry<String, Long> codec : stats.codecBytes.entrySet()) {
+        line.append(", ").append(codec.getKey()).append(String.format(Locale.ROOT, " %.0f%%",
+            stats.bytesIn > 0 ? 100.0 * codec.getValue() / stats.bytesIn : 0));
+      }
+      report.add(line.toString());
+    }
+    return report;
+  }
+
+  /** Releases the resources used by the planner. */
+  public void end() {
+    probe.end();
+  }
+
+  /**
+   * Gets the name of the codec used for a level.
+   *
+   * @param level Deflate level.
+   * @return "store" or "deflate-N".
+   */
+  public static String getCodecName(int level) {
+    return level == STORE ? "store" : "deflate-" + level;
+  }
+
+  /**
+   * Gets the highest level expected to finish within the time budget.
+   *
+   * @return Level to use for compressible data.
+   */
+  private int getBudgetLevel() {
+    if (budgetNanos <= 0) {
+      return maxLevel;
+    }
+
+    double remainingNanos = (budgetNanos - (System.nanoTime() - startNanos)) * BUDGET_SAFETY;
+    long remainingBytes = Math.max(0, totalBytes - bytesDone);
+    for (int level = maxLevel; level >= 1; level--) {
+      if (remainingBytes / rates[level] <= remainingNanos) {
+        return level;
+      }
+    }
+    return STORE;
+  }
+
+  /**
+   * Checks whether a block is worth compressing by test-compressing a sample of it.
+   *
+   * @param block Buffer holding the block.
+   * @param offset Offset of the block in the buffer.
+   * @param length Length of the block.
+   * @return {@code true} if the sample compressed well enough.
+   */
+  private boolean isCompressible(byte[] block, int offset, int length) {
+    int sampleLength = Math.min(length, SAMPLE_SIZE);
+    if (sampleLength < 64) {
+      // Too little data to tell, and too little to matter.
+      return true;
+    }
+
+    probe.reset();
+    probe.setInput(block, offset, sampleLength);
+    probe.finish();
+    int compressed = 0;
+    while (!probe.finished()) {
+      compressed += probe.deflate(probeOutput);
+    }
+    return compressed < sampleLength * INCOMPRESSIBLE_RATIO;
+  }
+
+  private ClassStats getStats(FileClass fileClass) {
+    ClassStats stats = classStats.get(fileClass);
+    if (stats == null) {
+      stats = new ClassStats();
+      classStats.put(fileClass, stats);
+    }
+    return stats;
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    }
+    int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+    return String.format(Locale.ROOT, "%.1f %ciB", bytes / Math.pow(1024, unit),
+        "KMGTPE".charAt(unit - 1));
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+/** Broad classes of files, grouped by how well they are expected to compress. */
+public enum FileClass {
+  /** Region files. Each chunk is already zlib or gzip compressed. */
+  REGION("region"),
+  /** Gzip-compressed NBT (eg level.dat and playerdata). */
+  NBT("nbt"),
+  /** Images, mostly PNG map tiles. Already compressed. */
+  IMAGE("image"),
+  /** Other compressed containers (eg zip files and jars). */
+  COMPRESSED("compressed"),
+  /** Text files: JSON stats and advancements, mod configs, logs. */
+  TEXT("text"),
+  /** Anything else. */
+  OTHER("other");
+
+  /** Name used for this class in reports. */
+  private final String name;
+
+  FileClass(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the name used for this class in reports.
+   *
+   * @return Lowercase name of the class.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Classifies a file by its extension.
+   *
+   * @param file File to classify.
+   * @return The class of the file.
+   */
+  public static FileClass of(Path file) {
+    String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+    int dot = name.lastIndexOf('.');
+    String extension = dot == -1 ? "" : name.substring(dot + 1);
+
+    switch (extension) {
+      case "mca":
+      case "mcr":
+        return REGION;
+      case "dat":
+      case "dat_old":
+      case "dat_mcr":
+      case "nbt":
+      case "schematic":
+        return NBT;
+      case "png":
+      case "jpg":
+      case "jpeg":
+      case "gif":
+        return IMAGE;
+      case "zip":
+      case "jar":
+      case "gz":
+      case "xz":
+      case "bz2":
+      case "7z":
+        return COMPRESSED;
+      case "json":
+      case "txt":
+      case "cfg":
+      case "conf":
+      case "properties":
+      case "toml":
+      case "yml":
+      case "yaml":
+      case "xml":
+      case "log":
+      case "csv":
+        return TEXT;
+      default:
+        return OTHER;
+    }
+  }
+}
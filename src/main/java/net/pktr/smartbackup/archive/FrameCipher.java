@@ -0,0 +1,366 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and authenticates the frames of an encrypted tar.gz archive with AES-GCM.
+ *
+ * <p>An encrypted archive starts with a plain header ({@link #HEADER_LENGTH} bytes: magic,
+ * PBKDF2 iteration count, salt, and a check value for the passphrase). The key is derived from
+ * the configured passphrase and the archive's salt. Every gzip frame is then sealed on its own
+ * into a record:</p>
+ *
+ * <pre>
+ * length (4) | uncompressed offset (8) | IV (12) | ciphertext and GCM tag (length)
+ * </pre>
+ *
+ * <p>The length and offset are authenticated along with the frame, so records can't be cut,
+ * reordered or moved without being noticed. Since every frame is sealed on its own, frames are
+ * encrypted on the compressor threads right after being compressed, and a reader can still start
+ * at any frame found through the {@link ArchiveIndex}. The index trailer at the end of the
+ * archive stays in the clear; it only holds the offset of the (encrypted) index frame.</p>
+ *
+ * <p>The JDK's AES-GCM uses the processor's AES instructions where it has them.</p>
+ */
+public class FrameCipher {
+  /** Length of the header at the start of an encrypted archive. */
+  public static final int HEADER_LENGTH = 44;
+  /** Length of a record's header (length and uncompressed offset). */
+  static final int RECORD_HEADER_LENGTH = 12;
+  /** Length of a record's IV. */
+  private static final int IV_LENGTH = 12;
+  /** Length of a record's GCM tag. */
+  private static final int TAG_LENGTH = 16;
+  /** Magic at the start of an encrypted archive. */
+  private static final byte[] MAGIC = "SBAESGC1".getBytes(StandardCharsets.US_ASCII);
+  /** PBKDF2 iterations for new archives. */
+  private static final int ITERATIONS = 200000;
+  /**
+   * Most PBKDF2 iterations accepted from an archive's header. The header isn't authenticated, so
+   * a damaged one mustn't make deriving the key take hours.
+   */
+  private static final int MAX_ITERATIONS = 10 * ITERATIONS;
+  /** Length of the salt. */
+  private static final int SALT_LENGTH = 16;
+  /** Length of the passphrase check value. */
+  private static final int CHECK_LENGTH = 16;
+
+  /** Source of salts and IVs. */
+  private static final SecureRandom random = new SecureRandom();
+
+  /** Header of the archive. */
+  private final byte[] header;
+  /** Key frames are sealed with. */
+  private final SecretKeySpec key;
+  /** Cipher of each thread, so frames can be sealed in parallel. */
+  private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance("AES/GCM/NoPadding");
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("AES-GCM isn't available", e);
+      }
+    }
+  };
+
+  private FrameCipher(byte[] header, byte[] key) {
+    this.header = header;
+    this.key = new SecretKeySpec(key, "AES");
+  }
+
+  /**
+   * Sets up the cipher of a new archive, with a new salt.
+   *
+   * @param passphrase Passphrase to derive the key from.
+   * @return The cipher.
+   * @throws IOException if the key can't be derived.
+   */
+  public static FrameCipher create(String passphrase) throws IOException {
+    byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    byte[] derived = deriveKey(passphrase, salt, ITERATIONS);
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.put(MAGIC).putInt(ITERATIONS).put(salt).put(derived, 32, CHECK_LENGTH);
+    return new FrameCipher(header.array(), Arrays.copyOf(derived, 32));
+  }
+
+  /**
+   * Sets up the cipher of an existing archive from its header.
+   *
+   * @param header First {@link #HEADER_LENGTH} bytes of the archive.
+   * @param passphrase Passphrase to derive the key from.
+   * @return The cipher.
+   * @throws IOException if the header isn't valid or the passphrase is wrong.
+   */
+  public static FrameCipher read(byte[] header, String passphrase) throws IOException {
+    if (header.length != HEADER_LENGTH) {
+      throw new IOException("Not an encrypted SmartBackup archive");
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(header);
+    byte[] magic = new byte[MAGIC.length];
+    buffer.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not an encrypted SmartBackup archive");
+    }
+    int iterations = buffer.getInt();
+    if (iterations < 1 || iterations > MAX_ITERATIONS) {
+      throw new IOException("Invalid key derivation iteration count in the encrypted archive: " +
+          iterations);
+    }
+    byte[] salt = new byte[SALT_LENGTH];
+    buffer.get(salt);
+    byte[] check = new byte[CHECK_LENGTH];
+    buffer.get(check);
+
+    byte[] derived = deriveKey(passphrase, salt, iterations);
+    if (!MessageDigest.isEqual(check, Arrays.copyOfRange(derived, 32, 32 + CHECK_LENGTH))) {
+      throw new IOException("Wrong passphrase for the encrypted archive");
+    }
+    return new FrameCipher(header.clone(), Arrays.copyOf(derived, 32));
+  }
+
+  /**
+   * Reads the cipher of an existing archive file.
+   *
+   * @param channel The archive.
+   * @param passphrase Passphrase to derive the key from.
+   * @return The cipher.
+   * @throws IOException if the header can't be read or the passphrase is wrong.
+   */
+  public static FrameCipher read(FileChannel channel, String passphrase) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    readFully(channel, header, 0);
+    return read(header.array(), passphrase);
+  }
+
+  /**
+   * Derives the key and the passphrase check value.
+   *
+   * @param passphrase Passphrase to derive them from.
+   * @param salt Salt of the archive.
+   * @param iterations PBKDF2 iterations.
+   * @return 32 bytes of key followed by the check value.
+   * @throws IOException if PBKDF2 isn't available.
+   */
+  private static byte[] deriveKey(String passphrase, byte[] salt, int iterations)
+      throws IOException {
+    if (passphrase == null || passphrase.isEmpty()) {
+      throw new IOException("Encrypted archives need a passphrase");
+    }
+    PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), salt, iterations,
+        (32 + CHECK_LENGTH) * 8);
+    try {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec)
+          .getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to derive the archive key", e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * Gets the header to write at the start of the archive.
+   *
+   * @return The header.
+   */
+  public byte[] getHeader() {
+    return header.clone();
+  }
+
+  /**
+   * Seals a compressed frame into a record. Safe to call from several threads at once.
+   *
+   * @param frame Compressed frame.
+   * @param uncompressedOffset Offset of the frame's data in the uncompressed stream.
+   * @return The record.
+   */
+  byte[] seal(byte[] frame, long uncompressedOffset) {
+    int length = frame.length + TAG_LENGTH;
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + IV_LENGTH + length);
+    record.putInt(length).putLong(uncompressedOffset);
+    byte[] iv = new byte[IV_LENGTH];
+    random.nextBytes(iv);
+    record.put(iv);
+
+    try {
+      Cipher cipher = ciphers.get();
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+      cipher.updateAAD(record.array(), 0, RECORD_HEADER_LENGTH);
+      cipher.doFinal(frame, 0, frame.length, record.array(), RECORD_HEADER_LENGTH + IV_LENGTH);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Encrypting a frame failed", e);
+    }
+    return record.array();
+  }
+
+  /**
+   * Opens a stream of the decrypted frames of an archive, starting at a record.
+   *
+   * @param channel The archive. Closed when the stream is closed.
+   * @param offset Offset of the first record.
+   * @param end Offset records end at (where the index trailer starts).
+   * @param uncompressedOffset Uncompressed offset the first record must have, or -1 for any.
+   * @return Stream of the concatenated gzip frames.
+   */
+  InputStream open(FileChannel channel, long offset, long end, long uncompressedOffset) {
+    return new DecryptingInputStream(channel, offset, end, uncompressedOffset);
+  }
+
+  /** Decrypts records one at a time, checking they follow on from each other. */
+  private class DecryptingInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+    /** Uncompressed offset the next record must have, or -1 for any. */
+    private long expectedOffset;
+    /** Decrypted frame being read. */
+    private byte[] frame = new byte[0];
+    private int framePosition = 0;
+
+    DecryptingInputStream(FileChannel channel, long position, long end, long expectedOffset) {
+      this.channel = channel;
+      this.position = position;
+      this.end = end;
+      this.expectedOffset = expectedOffset;
+    }
+
+    /**
+     * Reads and decrypts the next record.
+     *
+     * @return {@code false} at the end of the records.
+     * @throws IOException if the record can't be read or isn't authentic.
+     */
+    private boolean nextFrame() throws IOException {
+      if (position >= end) {
+        return false;
+      }
+      ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH + IV_LENGTH);
+      readFully(channel, recordHeader, position);
+      int length = recordHeader.getInt(0);
+      long recordOffset = recordHeader.getLong(4);
+      if (length < TAG_LENGTH ||
+          position + RECORD_HEADER_LENGTH + IV_LENGTH + length > end ||
+          (expectedOffset != -1 && recordOffset != expectedOffset)) {
+        throw new IOException("Encrypted archive is damaged at offset " + position);
+      }
+      ByteBuffer sealed = ByteBuffer.allocate(length);
+      readFully(channel, sealed, position + RECORD_HEADER_LENGTH + IV_LENGTH);
+
+      try {
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8,
+            recordHeader.array(), RECORD_HEADER_LENGTH, IV_LENGTH));
+        cipher.updateAAD(recordHeader.array(), 0, RECORD_HEADER_LENGTH);
+        frame = cipher.doFinal(sealed.array());
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Encrypted archive is damaged at offset " + position, e);
+      }
+      framePosition = 0;
+      position += RECORD_HEADER_LENGTH + IV_LENGTH + length;
+      expectedOffset = recordOffset + getUncompressedLength(frame);
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      while (framePosition == frame.length) {
+        if (!nextFrame()) {
+          return -1;
+        }
+      }
+      int copied = Math.min(length, frame.length - framePosition);
+      System.arraycopy(frame, framePosition, buffer, offset, copied);
+      framePosition += copied;
+      return copied;
+    }
+
+    @Override
+    public int available() {
+      // GZIPInputStream only looks for another frame if it's told there's more to read.
+      int left = frame.length - framePosition;
+      return left > 0 ? left : position < end ? 1 : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Gets the uncompressed length of a gzip frame from its trailer.
+   *
+   * @param frame The gzip frame.
+   * @return Uncompressed length of the frame.
+   * @throws IOException if the frame is too short to be a gzip frame.
+   */
+  private static long getUncompressedLength(byte[] frame) throws IOException {
+    if (frame.length < 18) {
+      throw new IOException("Encrypted archive holds a damaged frame");
+    }
+    int end = frame.length;
+    return (frame[end - 4] & 0xFFL) | (frame[end - 3] & 0xFFL) << 8 |
+        (frame[end - 2] & 0xFFL) << 16 | (frame[end - 1] & 0xFFL) << 24;
+  }
+
+  /**
+   * Fills a buffer from a channel.
+   *
+   * @param channel Channel to read.
+   * @param buffer Buffer to fill.
+   * @param position Offset to read from.
+   * @throws IOException if the channel ends first.
+   */
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Encrypted archive ended early");
+      }
+      position += read;
+    }
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream as a series of independent gzip members ("frames"), in parallel.
+ *
+ * <p>A file made of several gzip members is still a valid gzip file, so the output can be read
+ * with any gzip tool. Since every frame is compressed on its own, frames can be compressed on
+ * several threads at once, and a reader can start decompressing at the start of any frame.</p>
+ *
+ * <p>A frame is ended when it reaches the frame size, or early when the compression level or the
+ * tag changes. Frames are written to the underlying stream in order, from the thread writing to
+ * this stream. At most a fixed number of frames are in flight at a time, which bounds memory
+ * use.</p>
+ *
+ * <p>With a {@link FrameCipher}, each frame is also encrypted on the thread that compressed it,
+ * and written as an encrypted record instead of a plain gzip member.</p>
+ */
+public class FramedGzipOutputStream extends OutputStream {
+  /** Default uncompressed size of a frame. */
+  public static final int DEFAULT_FRAME_SIZE = 1024 * 1024;
+
+  /** Stream the compressed frames are written to. */
+  private final OutputStream out;
+  /** Executor frames are compressed on. */
+  private final ExecutorService executor;
+  /** Uncompressed size of a full frame. */
+  private final int frameSize;
+  /** Largest number of frames compressed or waiting to be written at a time. */
+  private final int maxInFlight;
+
+  /** Frames that have been handed to the executor but not yet written, in order. */
+  private final Deque<Future<Frame>> inFlight = new ArrayDeque<>();
+  /** Uncompressed data of the frame being filled. */
+  private byte[] buffer;
+  /** Amount of data in {@link #buffer}. */
+  private int buffered = 0;
+  /** Deflate level of the frame being filled. */
+  private int level = Deflater.DEFAULT_COMPRESSION;
+  /** Tag of the frame being filled. */
+  private Object tag = null;
+  /** Number of compressed bytes written to the underlying stream. */
+  private long compressedPosition = 0;
+  /** Number of uncompressed bytes written to this stream. */
+  private long uncompressedPosition = 0;
+  /** Notified as frames are written. */
+  private FrameListener listener = null;
+  /** Encrypts frames, or {@code null} to write them as they are. */
+  private FrameCipher cipher = null;
+  /** Whether this stream has been closed. */
+  private boolean closed = false;
+
+  /** Notified as frames are written to the underlying stream. */
+  public interface FrameListener {
+    /**
+     * Called after a frame has been written.
+     *
+     * @param tag Tag the frame was written with.
+     * @param uncompressedOffset Offset of the frame's data in the uncompressed stream.
+     * @param compressedOffset Offset of the frame in the compressed stream.
+     * @param uncompressedLength Uncompressed length of the frame.
+     * @param compressedLength Compressed length of the frame.
+     * @throws IOException if the listener fails.
+     */
+    void frameWritten(Object tag, long uncompressedOffset, long compressedOffset,
+        int uncompressedLength, int compressedLength) throws IOException;
+  }
+
+  /** A compressed frame. */
+  private static class Frame {
+    final Object tag;
+    final long uncompressedOffset;
+    final int uncompressedLength;
+    final byte[] compressed;
+
+    Frame(Object tag, long uncompressedOffset, int uncompressedLength, byte[] compressed) {
+      this.tag = tag;
+      this.uncompressedOffset = uncompressedOffset;
+      this.uncompressedLength = uncompressedLength;
+      this.compressed = compressed;
+    }
+  }
+
+  /**
+   * Sets up a framed gzip stream.
+   *
+   * @param out Stream to write the compressed frames to.
+   * @param executor Executor to compress frames on. The stream doesn't shut it down.
+   * @param threads Number of threads in the executor, used to decide how many frames to keep in
+   * flight.
+   * @param frameSize Uncompressed size of a full frame.
+   */
+  public FramedGzipOutputStream(OutputStream out, ExecutorService executor, int threads,
+      int frameSize) {
+    this.out = out;
+    this.executor = executor;
+    this.frameSize = frameSize;
+    this.maxInFlight = Math.max(2, threads * 2);
+    this.buffer = new byte[frameSize];
+  }
+
+  /**
+   * Continues a stream that was cut off, for appending to an existing file.
+   *
+   * <p>Must be called before anything is written. The existing file must end on a frame
+   * boundary.</p>
+   *
+   * @param uncompressed Uncompressed length of the existing data.
+   * @param compressed Compressed length of the existing data (the length of the file).
+   */
+  public void resumeAt(long uncompressed, long compressed) {
+    if (buffered != 0 || !inFlight.isEmpty()) {
+      throw new IllegalStateException("Data has already been written");
+    }
+    uncompressedPosition = uncompressed;
+    compressedPosition = compressed;
+  }
+
+  /**
+   * Sets the listener told about frames as they are written.
+   *
+   * @param listener Listener to notify, or {@code null} for none.
+   */
+  public void setFrameListener(FrameListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Encrypts frames written from now on.
+   *
+   * <p>Must be called before anything is written.</p>
+   *
+   * @param cipher Cipher to seal frames with.
+   */
+  public void setCipher(FrameCipher cipher) {
+    if (buffered != 0 || !inFlight.isEmpty()) {
+      throw new IllegalStateException("Data has already been written");
+    }
+    this.cipher = cipher;
+  }
+
+  /**
+   * Sets the compression level for data written from now on.
+   *
+   * @param newLevel Deflate level, {@link Deflater#NO_COMPRESSION} to store the data.
+   * @throws IOException if ending the current frame fails.
+   */
+  public void setLevel(int newLevel) throws IOException {
+    if (newLevel != level) {
+      endFrame();
+      level = newLevel;
+    }
+  }
+
+  /**
+   * Sets the tag passed to the {@link FrameListener} for data written from now on.
+   *
+   * @param newTag Tag for the following frames.
+   * @throws IOException if ending the current frame fails.
+   */
+  public void setTag(Object newTag) throws IOException {
+    if (newTag != tag) {
+      endFrame();
+      tag = newTag;
+    }
+  }
+
+  /**
+   * Gets the number of uncompressed bytes written to this stream so far.
+   *
+   * @return Position in the uncompressed stream.
+   */
+  public long getUncompressedPosition() {
+    return uncompressedPosition;
+  }
+
+  /**
+   * Gets the number of compressed bytes written to the underlying stream so far.
+   *
+   * <p>Frames still in flight aren't counted.</p>
+   *
+   * @return Position in the compressed stream.
+   */
+  public long getCompressedPosition() {
+    return compressedPosition;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length) throws IOException {
+    if (closed) {
+      throw new IOException("Stream is closed");
+    }
+
+    while (length > 0) {
+      int copied = Math.min(length, frameSize - buffered);
+      System.arraycopy(data, offset, buffer, buffered, copied);
+      buffered += copied;
+      uncompressedPosition += copied;
+      offset += copied;
+      length -= copied;
+
+      if (buffered == frameSize) {
+        endFrame();
+      }
+    }
+  }
+
+  /**
+   * Ends the current frame and waits until every frame has been written to the underlying
+   * stream.
+   *
+   * @throws IOException if compressing or writing fails.
+   */
+  @Override
+  public void flush() throws IOException {
+    endFrame();
+    while (!inFlight.isEmpty()) {
+      writeFrame(inFlight.removeFirst());
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes bytes straight to the underlying stream, after every pending frame.
+   *
+   * <p>Used to append data that must not be compressed, like a trailer pointing to an index.</p>
+   *
+   * @param data Bytes to write.
+   * @throws IOException if compressing a pending frame or writing fails.
+   */
+  public void writeRaw(byte[] data) throws IOException {
+    flush();
+    out.write(data);
+    compressedPosition += data.length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      closed = true;
+      for (Future<Frame> frame : inFlight) {
+        frame.cancel(true);
+      }
+      out.close();
+    }
+  }
+
+  /**
+   * Hands the current frame to the executor, then writes out any finished frames.
+   *
+   * @throws IOException if compressing or writing an earlier frame fails.
+   */
+  private void endFrame() throws IOException {
+    if (buffered == 0) {
+      return;
+    }
+
+    final byte[] data = buffer;
+    final int length = buffered;
+    final int frameLevel = level;
+    final Object frameTag = tag;
+    final long offset = uncompressedPosition - buffered;
+    final FrameCipher frameCipher = cipher;
+    inFlight.addLast(executor.submit(new Callable<Frame>() {
+      @Override
+      public Frame call() {
+        byte[] compressed = compress(data, length, frameLevel);
+        if (frameCipher != null) {
+          compressed = frameCipher.seal(compressed, offset);
+        }
+        return new Frame(frameTag, offset, length, compressed);
+      }
+    }));
+
+    buffer = new byte[frameSize];
+    buffered = 0;
+
+    // Write whatever is done, and wait for the oldest frame if too many are in flight.
+    while (!inFlight.isEmpty() &&
+        (inFlight.size() >= maxInFlight || inFlight.peekFirst().isDone())) {
+      writeFrame(inFlight.removeFirst());
+    }
+  }
+
+  /**
+   * Waits for a frame to finish compressing and writes it to the underlying stream.
+   *
+   * @param future Frame to write.
+   * @throws IOException if compressing or writing the frame fails.
+   */
+  private void writeFrame(Future<Frame> future) throws IOException {
+    Frame frame;
+    try {
+      frame = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      throw new IOException("Compressing a frame failed", e.getCause());
+    }
+
+    out.write(frame.compressed);
+    long frameOffset = compressedPosition;
+    compressedPosition += frame.compressed.length;
+
+    if (listener != null) {
+      listener.frameWritten(frame.tag, frame.uncompressedOffset, frameOffset,
+          frame.uncompressedLength, frame.compressed.length);
+    }
+  }
+
+  /**
+   * Compresses data into a complete gzip member.
+   *
+   * @param data Data to compress.
+   * @param length Length of the data.
+   * @param level Deflate level to use.
+   * @return The gzip member.
+   */
+  static byte[] compress(byte[] data, int length, int level) {
+    ByteArrayOutputStream member = new ByteArrayOutputStream(
+        level == Deflater.NO_COMPRESSION ? length + length / 16000 * 5 + 64 : length / 2 + 64);
+
+    // Header: magic, deflate, no flags, no mtime, no extra flags, unknown OS.
+    member.write(0x1f);
+    member.write(0x8b);
+    member.write(8);
+    member.write(0);
+    writeIntLE(member, 0);
+    member.write(0);
+    member.write(0xff);
+
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+      byte[] chunk = new byte[65536];
+      while (!deflater.finished()) {
+        int compressed = deflater.deflate(chunk);
+        member.write(chunk, 0, compressed);
+      }
+    } finally {
+      deflater.end();
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+    writeIntLE(member, (int) crc.getValue());
+    writeIntLE(member, length);
+
+    return member.toByteArray();
+  }
+
+  /**
+   * Writes a little-endian 32-bit integer.
+   *
+   * @param out Stream to write to.
+   * @param value Value to write.
+   */
+  static void writeIntLE(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a tarball (POSIX ustar, with pax headers for long names and large files).
+ *
+ * <p>The tarball is written straight to the output stream as it's created. If the stream is a
+ * {@link FramedGzipOutputStream}, the level of each block is passed on to it and frames are
+ * tagged with the class of the file they belong to.</p>
+ *
+ * <p>The last entry of the tarball is an {@link ArchiveIndex} of every entry and compressed frame.
+ * After the end of the tarball comes a small trailer pointing at the index, so a reader can find
+ * any entry with a couple of seeks.</p>
+ */
+public class TarArchiveWriter implements ArchiveWriter {
+  /** Size of a tar block. */
+  private static final int BLOCK = 512;
+  /** Largest size that fits in the size field of a ustar header. */
+  private static final long MAX_USTAR_SIZE = 077777777777L;
+
+  /** Stream the tarball is written to. */
+  private final OutputStream out;
+  /** Compressor the tarball is written through, or {@code null} if it isn't compressed. */
+  private final FramedGzipOutputStream compressor;
+  /** Notified as output is written. */
+  private OutputListener listener = null;
+
+  /** Number of uncompressed bytes written so far. */
+  private long position = 0;
+  /** Class of the current file. */
+  private FileClass currentClass = FileClass.OTHER;
+  /** Bytes of the current file still to be written. */
+  private long remaining = 0;
+  /** Whether a file has been started and not yet ended. */
+  private boolean inFile = false;
+
+  /** Index of the entries and frames written so far. */
+  private final ArchiveIndex index;
+  /** CRC-32 of the current file's data. */
+  private final CRC32 crc = new CRC32();
+  /** Name of the current file. */
+  private String currentName;
+  /** Recorded size of the current file. */
+  private long currentSize;
+  /** Modification time of the current file. */
+  private long currentTime;
+  /** Offset of the current file's data in the uncompressed tarball. */
+  private long currentDataOffset;
+
+  /**
+   * Sets up an uncompressed tarball writer.
+   *
+   * @param out Stream to write the tarball to.
+   */
+  public TarArchiveWriter(OutputStream out) {
+    this(out, new ArchiveIndex(), 0);
+  }
+
+  /**
+   * Sets up an uncompressed tarball writer that continues a tarball cut off at a checkpoint.
+   *
+   * @param out Stream appending to the tarball, which must have been cut back to the checkpoint.
+   * @param index Index of the entries written before the checkpoint.
+   * @param position Length of the tarball at the checkpoint.
+   */
+  public TarArchiveWriter(OutputStream out, ArchiveIndex index, long position) {
+    this.out = out;
+    this.compressor = null;
+    this.index = index;
+    this.position = position;
+  }
+
+  /**
+   * Sets up a tarball writer that compresses through a framed gzip stream.
+   *
+   * @param compressor Stream to write the tarball to.
+   */
+  public TarArchiveWriter(FramedGzipOutputStream compressor) {
+    this(compressor, new ArchiveIndex());
+  }
+
+  /**
+   * Sets up a tarball writer that compresses through a framed gzip stream and continues a
+   * tarball cut off at a checkpoint.
+   *
+   * @param compressor Stream appending to the compressed tarball, already
+   * {@linkplain FramedGzipOutputStream#resumeAt resumed} at the checkpoint.
+   * @param index Index of the entries and frames written before the checkpoint.
+   */
+  public TarArchiveWriter(FramedGzipOutputStream compressor, ArchiveIndex index) {
+    this.out = compressor;
+    this.compressor = compressor;
+    this.index = index;
+    this.position = compressor.getUncompressedPosition();
+    compressor.setFrameListener(new FramedGzipOutputStream.FrameListener() {
+      @Override
+      public void frameWritten(Object tag, long uncompressedOffset, long compressedOffset,
+          int uncompressedLength, int compressedLength) {
+        index.addFrame(uncompressedOffset, compressedOffset);
+        if (listener != null) {
+          listener.outputWritten((FileClass) tag, compressedLength);
+        }
+      }
+    });
+  }
+
+  @Override
+  public boolean isCompressed() {
+    return compressor != null;
+  }
+
+  @Override
+  public void setOutputListener(OutputListener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void addDirectory(String name, long time) throws IOException {
+    setClass(FileClass.OTHER);
+    writeHeader(name + "/", 0, time, true);
+    index.addEntry(new ArchiveIndex.Entry(name, true, 0, time, 0, position));
+  }
+
+  @Override
+  public void addFile(String name, long time, byte[] data, FileClass fileClass)
+      throws IOException {
+    beginFile(name, data.length, time, fileClass);
+    write(data, 0, data.length, CompressionPlanner.STORE);
+    endFile();
+  }
+
+  @Override
+  public void beginFile(String name, long size, long time, FileClass fileClass)
+      throws IOException {
+    if (inFile) {
+      throw new IllegalStateException("The previous file hasn't been ended");
+    }
+    setClass(fileClass);
+    writeHeader(name, size, time, false);
+    remaining = size;
+    inFile = true;
+
+    currentName = name;
+    currentSize = size;
+    currentTime = time;
+    currentDataOffset = position;
+    crc.reset();
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length, int level) throws IOException {
+    if (compressor != null) {
+      compressor.setLevel(level);
+    }
+    // The size is already in the header, so anything past it is dropped.
+    int kept = (int) Math.min(length, remaining);
+    writeRaw(data, offset, kept);
+    crc.update(data, offset, kept);
+    remaining -= kept;
+  }
+
+  @Override
+  public void endFile() throws IOException {
+    // Files that shrank since their header was written are padded out to their recorded size.
+    byte[] zeros = new byte[BLOCK * 16];
+    while (remaining > 0) {
+      int length = (int) Math.min(zeros.length, remaining);
+      writeRaw(zeros, 0, length);
+      crc.update(zeros, 0, length);
+      remaining -= length;
+    }
+    padToBlock();
+    inFile = false;
+
+    index.addEntry(new ArchiveIndex.Entry(currentName, false, currentSize, currentTime,
+        (int) crc.getValue(), currentDataOffset));
+  }
+
+  /**
+   * Writes out everything written so far, so the tarball can be resumed from this point.
+   *
+   * <p>A compressed tarball ends its current frame, so the file ends on a frame boundary. The
+   * caller still has to sync the file to make the checkpoint durable.</p>
+   *
+   * @return Length of the archive file at the checkpoint.
+   * @throws IOException if writing fails.
+   */
+  public long checkpoint() throws IOException {
+    if (inFile) {
+      throw new IllegalStateException("Can't checkpoint in the middle of a file");
+    }
+    if (compressor != null) {
+      compressor.flush();
+      return compressor.getCompressedPosition();
+    }
+    out.flush();
+    return position;
+  }
+
+  /**
+   * Gets the index of the entries and frames written so far.
+   *
+   * @return The index. It's added to as the tarball is written.
+   */
+  public ArchiveIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Gets the number of uncompressed bytes written to the tarball so far.
+   *
+   * @return Position in the uncompressed tarball.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      setClass(FileClass.OTHER);
+
+      // Start the index in a frame of its own, after every other frame has been written (and so
+      // is in the index).
+      if (compressor != null) {
+        compressor.flush();
+      }
+      long indexHeaderOffset = position;
+      long indexFrameOffset =
+          compressor != null ? compressor.getCompressedPosition() : indexHeaderOffset;
+
+      ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+      index.write(new DataOutputStream(indexData));
+      byte[] indexBytes = indexData.toByteArray();
+      writeHeader(ArchiveIndex.ENTRY_NAME, indexBytes.length, System.currentTimeMillis(), false);
+      writeRaw(indexBytes, 0, indexBytes.length);
+      padToBlock();
+
+      writeRaw(new byte[BLOCK * 2], 0, BLOCK * 2);
+
+      if (compressor != null) {
+        compressor.writeRaw(ArchiveIndex.buildGzipTrailer(indexFrameOffset));
+      } else {
+        byte[] trailer = ArchiveIndex.buildTarTrailer(indexHeaderOffset);
+        writeRaw(trailer, 0, trailer.length);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Switches the class the following output belongs to.
+   *
+   * @param fileClass Class of the file being written.
+   * @throws IOException if ending the current compressed frame fails.
+   */
+  private void setClass(FileClass fileClass) throws IOException {
+    currentClass = fileClass;
+    if (compressor != null) {
+      compressor.setTag(fileClass);
+    }
+  }
+
+  /**
+   * Writes the header for an entry, preceded by a pax header if the name or size doesn't fit.
+   *
+   * @param name Name of the entry (folders end in a slash).
+   * @param size Size of the entry.
+   * @param time Modification time in milliseconds since the epoch.
+   * @param directory Whether the entry is a folder.
+   * @throws IOException if writing fails.
+   */
+  private void writeHeader(String name, long size, long time, boolean directory)
+      throws IOException {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    String[] split = splitName(nameBytes);
+
+    StringBuilder pax = new StringBuilder();
+    if (split == null) {
+      appendPaxRecord(pax, "path", name);
+    }
+    if (size > MAX_USTAR_SIZE) {
+      appendPaxRecord(pax, "size", Long.toString(size));
+    }
+
+    if (pax.length() > 0) {
+      byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+      writeRaw(buildHeader("PaxHeaders/" + shorten(name), "", records.length, time, 'x'), 0,
+          BLOCK);
+      writeRaw(records, 0, records.length);
+      padToBlock();
+    }
+
+    if (split == null) {
+      split = new String[]{"", shorten(name)};
+    }
+    writeRaw(buildHeader(split[1], split[0], Math.min(size, MAX_USTAR_SIZE), time,
+        directory ? '5' : '0'), 0, BLOCK);
+  }
+
+  /**
+   * Splits a name into the ustar prefix and name fields.
+   *
+   * @param name UTF-8 bytes of the name.
+   * @return The prefix and name, or {@code null} if the name can't be stored in a ustar header.
+   */
+  private static String[] splitName(byte[] name) {
+    if (name.length <= 100) {
+      return new String[]{"", new String(name, StandardCharsets.UTF_8)};
+    }
+    // Split at a slash so the prefix is at most 155 bytes and the rest at most 100.
+    for (int i = Math.min(name.length - 1, 155); i > 0; i--) {
+      if (name[i] == '/' && name.length - i - 1 <= 100 && name.length - i - 1 > 0) {
+        return new String[]{
+            new String(name, 0, i, StandardCharsets.UTF_8),
+            new String(name, i + 1, name.length - i - 1, StandardCharsets.UTF_8)
+        };
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Shortens a name to fit the ustar name field, for use when a pax header gives the real name.
+   *
+   * @param name Name to shorten.
+   * @return The last (at most) 100 bytes of the name.
+   */
+  private static String shorten(String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length <= 100) {
+      return name;
+    }
+    // Cutting in the middle of a multi-byte character only affects tools that ignore pax headers.
+    return new String(bytes, bytes.length - 100, 100, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Appends a pax extended header record.
+   *
+   * @param pax Records so far.
+   * @param key Key of the record.
+   * @param value Value of the record.
+   */
+  private static void appendPaxRecord(StringBuilder pax, String key, String value) {
+    // Each record is "<length> <key>=<value>\n", where the length includes itself.
+    int base = key.getBytes(StandardCharsets.UTF_8).length +
+        value.getBytes(StandardCharsets.UTF_8).length + 3;
+    int length = base + Integer.toString(base).length();
+    if (Integer.toString(length).length() != Integer.toString(base).length()) {
+      length++;
+    }
+    pax.append(length).append(' ').append(key).append('=').append(value).append('\n');
+  }
+
+  /**
+   * Builds a ustar header block.
+   *
+   * @param name Name field.
+   * @param prefix Prefix field.
+   * @param size Size of the entry.
+   * @param time Modification time in milliseconds since the epoch.
+   * @param type Type flag.
+   * @return The header block.
+   */
+  private static byte[] buildHeader(String name, String prefix, long size, long time, char type) {
+    byte[] header = new byte[BLOCK];
+    putString(header, 0, 100, name);
+    putOctal(header, 100, 8, type == '5' ? 0755 : 0644);
+    putOctal(header, 108, 8, 0);
+    putOctal(header, 116, 8, 0);
+    putOctal(header, 124, 12, size);
+    putOctal(header, 136, 12, Math.max(0, time / 1000));
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    header[156] = (byte) type;
+    putString(header, 257, 6, "ustar");
+    header[263] = '0';
+    header[264] = '0';
+    putString(header, 345, 155, prefix);
+
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xFF;
+    }
+    putOctal(header, 148, 7, checksum);
+    header[155] = ' ';
+
+    return header;
+  }
+
+  private static void putString(byte[] header, int offset, int length, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(bytes, 0, header, offset, Math.min(length, bytes.length));
+  }
+
+  private static void putOctal(byte[] header, int offset, int length, long value) {
+    // Zero-padded octal digits followed by a NUL.
+    String octal = Long.toOctalString(value);
+    StringBuilder field = new StringBuilder();
+    for (int i = octal.length(); i < length - 1; i++) {
+      field.append('0');
+    }
+    field.append(octal);
+    putString(header, offset, length - 1, field.toString());
+    header[offset + length - 1] = 0;
+  }
+
+  /**
+   * Pads the tarball with zeros up to the next block boundary.
+   *
+   * @throws IOException if writing fails.
+   */
+  private void padToBlock() throws IOException {
+    int partial = (int) (position % BLOCK);
+    if (partial != 0) {
+      writeRaw(new byte[BLOCK - partial], 0, BLOCK - partial);
+    }
+  }
+
+  private void writeRaw(byte[] data, int offset, int length) throws IOException {
+    out.write(data, offset, length);
+    position += length;
+    if (compressor == null && listener != null) {
+      listener.outputWritten(currentClass, length);
+    }
+  }
+}
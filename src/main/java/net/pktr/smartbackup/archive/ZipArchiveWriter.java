@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/** Writes a zip file, compressing each file with the levels chosen for its blocks. */
+public class ZipArchiveWriter implements ArchiveWriter {
+  /** Level value meaning the current entry hasn't been started in the zip stream yet. */
+  private static final int NOT_STARTED = -2;
+
+  /** The zip file being written. */
+  private final ZipOutputStream zip;
+  /** Notified as output is written. */
+  private OutputListener listener = null;
+
+  /** Entry of the current file, or {@code null} if there isn't one. */
+  private ZipEntry currentEntry = null;
+  /** Class of the current file. */
+  private FileClass currentClass = null;
+  /** Level the current entry is being compressed with. */
+  private int currentLevel = NOT_STARTED;
+
+  /**
+   * Sets up a zip writer.
+   *
+   * @param out Stream to write the zip file to.
+   */
+  public ZipArchiveWriter(OutputStream out) {
+    zip = new ZipOutputStream(out);
+  }
+
+  @Override
+  public boolean isCompressed() {
+    return true;
+  }
+
+  @Override
+  public void setOutputListener(OutputListener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void addDirectory(String name, long time) throws IOException {
+    ZipEntry entry = new ZipEntry(name + "/");
+    entry.setTime(time);
+    zip.putNextEntry(entry);
+    zip.closeEntry();
+  }
+
+  @Override
+  public void addFile(String name, long time, byte[] data, FileClass fileClass)
+      throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(data.length);
+    entry.setCompressedSize(data.length);
+    entry.setCrc(crc.getValue());
+    entry.setTime(time);
+
+    zip.putNextEntry(entry);
+    zip.write(data);
+    zip.closeEntry();
+
+    if (listener != null) {
+      listener.outputWritten(fileClass, data.length);
+    }
+  }
+
+  @Override
+  public void beginFile(String name, long size, long time, FileClass fileClass)
+      throws IOException {
+    if (currentEntry != null) {
+      throw new IllegalStateException("The previous file hasn't been ended");
+    }
+    currentEntry = new ZipEntry(name);
+    currentEntry.setTime(time);
+    currentClass = fileClass;
+    currentLevel = NOT_STARTED;
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length, int level) throws IOException {
+    if (level != currentLevel) {
+      // The zip stream passes this on to its deflater, which switches levels mid-entry.
+      zip.setLevel(level);
+      if (currentLevel == NOT_STARTED) {
+        zip.putNextEntry(currentEntry);
+      }
+      currentLevel = level;
+    }
+    zip.write(data, offset, length);
+  }
+
+  @Override
+  public void endFile() throws IOException {
+    if (currentLevel == NOT_STARTED) {
+      // Nothing was written, so the entry hasn't been started yet.
+      zip.putNextEntry(currentEntry);
+    }
+    zip.closeEntry();
+
+    if (listener != null) {
+      listener.outputWritten(currentClass, currentEntry.getCompressedSize());
+    }
+    currentEntry = null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    zip.close();
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.coordination;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A place in the queue for backup slots shared by the servers on one host.
+ *
+ * <p>Servers coordinate through a shared folder. Joining the queue takes the next ticket number
+ * (under a lock on the folder's {@code lock} file) and creates a ticket file named after it. The
+ * tickets with the lowest numbers hold the slots, so at most the configured number of servers back
+ * up at once, and waiting servers get their turn in the order they asked.</p>
+ *
+ * <p>A ticket is a lease: its modification time is renewed while it's held. Tickets that haven't
+ * been renewed for the lease time belong to a server that died, and are deleted by the next
+ * server that looks at the queue.</p>
+ */
+public class BackupSlot implements Closeable {
+  /** File locked while the queue is changed. */
+  private static final String LOCK_FILE = "lock";
+  /** File holding the next ticket number. */
+  private static final String COUNTER_FILE = "next-ticket";
+  /** Extension of ticket files. */
+  private static final String TICKET_EXTENSION = ".ticket";
+  /**
+   * Guards the lock file within this JVM. File locks are held by the whole JVM, so two threads
+   * can't hold one each.
+   */
+  private static final Object JVM_LOCK = new Object();
+  /** Renews the leases of the tickets held by this JVM. */
+  private static final Timer RENEWER = new Timer("Backup Slot Lease", true);
+
+  /** Shared folder. */
+  private final Path folder;
+  /** Number of servers that may back up at once. */
+  private final int slots;
+  /** Time after which a ticket that wasn't renewed is dropped. */
+  private final long leaseMillis;
+  /** This ticket's file. */
+  private final Path ticket;
+  /** Renews this ticket's lease. */
+  private final TimerTask renewal;
+
+  private BackupSlot(Path folder, int slots, long leaseMillis, Path ticket) {
+    this.folder = folder;
+    this.slots = slots;
+    this.leaseMillis = leaseMillis;
+    this.ticket = ticket;
+    this.renewal = new TimerTask() {
+      @Override
+      public void run() {
+        try {
+          renew();
+        } catch (IOException e) {
+          // Tried again at the next renewal, the lease lasts several of them.
+        }
+      }
+    };
+    RENEWER.schedule(renewal, leaseMillis / 4, leaseMillis / 4);
+  }
+
+  /**
+   * Joins the queue for backup slots.
+   *
+   * @param folder Shared folder the servers coordinate through. It's created if it's missing.
+   * @param instance Name of this server, recorded in the ticket.
+   * @param slots Number of servers that may back up at once.
+   * @param leaseMillis Time after which a ticket that wasn't renewed is dropped.
+   * @return This server's place in the queue. Closing it leaves the queue.
+   * @throws IOException if the shared folder can't be used.
+   */
+  public static BackupSlot join(Path folder, String instance, int slots, long leaseMillis)
+      throws IOException {
+    Files.createDirectories(folder);
+    synchronized (JVM_LOCK) {
+      try (FileChannel lockChannel = openLock(folder)) {
+        // Closing the channel releases the lock.
+        lockChannel.lock();
+        long number = takeNumber(folder.resolve(COUNTER_FILE));
+        Path ticket = folder.resolve(String.format("%019d", number) + TICKET_EXTENSION);
+        Files.write(ticket, (instance + "\n").getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.CREATE_NEW);
+        return new BackupSlot(folder, slots, leaseMillis, ticket);
+      }
+    }
+  }
+
+  /**
+   * Checks whether this server holds a slot yet.
+   *
+   * <p>Tickets whose lease has run out are dropped along the way.</p>
+   *
+   * @return 0 if this server holds a slot, otherwise the number of servers that have to finish
+   * (or give up) before it does.
+   * @throws IOException if the queue can't be read, or this ticket was dropped because its lease
+   * ran out.
+   */
+  public int poll() throws IOException {
+    renew();
+    synchronized (JVM_LOCK) {
+      try (FileChannel lockChannel = openLock(folder)) {
+        // Closing the channel releases the lock.
+        lockChannel.lock();
+        List<Path> tickets = listLiveTickets();
+        int position = tickets.indexOf(ticket);
+        if (position == -1) {
+          throw new IOException("The backup slot ticket " + ticket.getFileName() +
+              " was dropped");
+        }
+        return Math.max(0, position - slots + 1);
+      }
+    }
+  }
+
+  /**
+   * Leaves the queue, giving up the slot if this server holds one.
+   *
+   * @throws IOException if the ticket can't be deleted.
+   */
+  @Override
+  public void close() throws IOException {
+    renewal.cancel();
+    Files.deleteIfExists(ticket);
+  }
+
+  /**
+   * Renews the lease of this ticket.
+   *
+   * @throws IOException if the ticket can't be touched.
+   */
+  private void renew() throws IOException {
+    try {
+      Files.setLastModifiedTime(ticket, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (NoSuchFileException e) {
+      // Dropped, which poll reports.
+    }
+  }
+
+  /**
+   * Lists the tickets in the queue in order, deleting those whose lease ran out.
+   *
+   * @return Tickets, lowest number (longest waiting) first.
+   * @throws IOException if the folder can't be listed.
+   */
+  private List<Path> listLiveTickets() throws IOException {
+    long expired = System.currentTimeMillis() - leaseMillis;
+    List<Path> tickets = new ArrayList<>();
+    try (DirectoryStream<Path> files =
+             Files.newDirectoryStream(folder, "*" + TICKET_EXTENSION)) {
+      for (Path file : files) {
+        long renewed;
+        try {
+          renewed = Files.getLastModifiedTime(file).toMillis();
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        if (renewed < expired && !file.equals(ticket)) {
+          Files.deleteIfExists(file);
+        } else {
+          tickets.add(file);
+        }
+      }
+    }
+    // Ticket numbers are zero-padded, so they sort by name.
+    Collections.sort(tickets);
+    return tickets;
+  }
+
+  /**
+   * Opens the lock file of the shared folder.
+   *
+   * @param folder Shared folder.
+   * @return Channel of the lock file.
+   * @throws IOException if it can't be opened.
+   */
+  private static FileChannel openLock(Path folder) throws IOException {
+    return FileChannel.open(folder.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Takes the next ticket number. The caller holds the lock.
+   *
+   * @param counter File holding the next number.
+   * @return The number taken.
+   * @throws IOException if the counter can't be read or written.
+   */
+  private static long takeNumber(Path counter) throws IOException {
+    try (FileChannel channel = FileChannel.open(counter, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(8);
+      long number = 0;
+      if (channel.read(buffer, 0) == 8) {
+        buffer.flip();
+        number = buffer.getLong();
+      }
+      buffer.clear();
+      buffer.putLong(number + 1);
+      buffer.flip();
+      channel.write(buffer, 0);
+      return number;
+    }
+  }
+}
@@ -16,131 +16,1090 @@
 
 package net.pktr.smartbackup.creator;
 
+import net.pktr.smartbackup.BackupProfile;
+import net.pktr.smartbackup.FileSync;
+import net.pktr.smartbackup.archive.ArchiveFormat;
+import net.pktr.smartbackup.archive.ArchiveIndex;
+import net.pktr.smartbackup.archive.ArchiveWriter;
+import net.pktr.smartbackup.archive.CompressionPlanner;
+import net.pktr.smartbackup.archive.FileClass;
+import net.pktr.smartbackup.archive.FrameCipher;
+import net.pktr.smartbackup.archive.FramedGzipOutputStream;
+import net.pktr.smartbackup.archive.TarArchiveWriter;
+import net.pktr.smartbackup.archive.ZipArchiveWriter;
+import net.pktr.smartbackup.manifest.BackupJournal;
+import net.pktr.smartbackup.manifest.BackupKind;
+import net.pktr.smartbackup.manifest.Manifest;
+import net.pktr.smartbackup.manifest.ManifestEntry;
+import net.pktr.smartbackup.manifest.ManifestReader;
+import net.pktr.smartbackup.manifest.ManifestStore;
+import net.pktr.smartbackup.metrics.Counter;
+import net.pktr.smartbackup.pack.PackedFiles;
+import net.pktr.smartbackup.pack.SegmentIndex;
+import net.pktr.smartbackup.pack.SegmentPacker;
+import net.pktr.smartbackup.region.ChunkDictionaryTrainer;
+import net.pktr.smartbackup.region.ChunkHasher;
+import net.pktr.smartbackup.region.RegionCodec;
+import net.pktr.smartbackup.region.RegionFileReader;
+import net.pktr.smartbackup.region.RegionFormatException;
+import net.pktr.smartbackup.storage.StorageBackend;
+import net.pktr.smartbackup.storage.StorageType;
+
 import net.minecraft.command.ICommandSender;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.nio.channels.ClosedByInterruptException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * Handles creation of archives.
  *
  * <p>An archive is a complete file archive (eg tarball or zip file) of the data being backed
  * up.</p>
+ *
+ * <p>Differential and incremental archives only hold the files that changed since their base (the
+ * last full archive, or the last archive of any kind). Every archive has a manifest listing the
+ * complete state of the targets and which archive holds each file's data.</p>
+ *
+ * <p>Tarballs are checkpointed into a {@link BackupJournal} as they're written. If the server
+ * stops (or crashes) part way, the next archive of the same kind and format cuts the tarball back
+ * to the last checkpoint and carries on from there. Zip files can't be appended to, so
+ * interrupted zip archives start over.</p>
+ *
+ * <p>Archives are written under a temporary name and only renamed to their real name once they
+ * are complete and synced to disk (see {@link FileSync}), so an archive under its real name is
+ * never cut short by a crash.</p>
+ *
+ * <p>If a storage backend is configured, the archive is uploaded by a {@link BackupUploader} as
+ * it's written: tarballs up to each checkpoint, zip files once they're complete. The manifest is
+ * uploaded after the archive. An interrupted tarball's upload resumes along with it.</p>
+ *
+ * <p>An archive can also be made of an existing snapshot rather than the world, to tier old
+ * snapshots into archives. It reads the snapshot folder without touching the world, takes over
+ * the snapshot's name, time and manifest, and deletes the folder once the archive is published.
+ * It runs at low priority and isn't journaled, as it can always start over from the
+ * snapshot.</p>
+ *
+ * <p>Small files are packed into segments (see {@link SegmentPacker}), one stream per
+ * {@link FileClass}, so each segment is compressed as a whole with the level chosen for its
+ * class. Segments are written before every checkpoint, so a checkpoint never records a file
+ * that's still waiting in one.</p>
  */
 public class ArchiveCreator extends BackupCreator {
-  /** ArrayList loaded from config file of files/folders to leave out */
-  private ArrayList<String> backupExcludes;
-  /** File to write the archive into */
+  /** Largest number of region files sampled when training the chunk dictionary. */
+  private static final int DICTIONARY_SAMPLE_FILES = 32;
+  /** Largest number of chunks sampled from each region file. */
+  private static final int DICTIONARY_SAMPLES_PER_FILE = 16;
+  /** Size of the blocks files are read and compressed in. */
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  /** Folder in the backup folder the state of unfinished uploads is kept in. */
+  private static final String UPLOAD_STATE_FOLDER = "uploads";
+
+  /** File the finished archive is published as */
   private Path archiveOutput;
-  /** FileSystem representing the zip file */
-  private FileSystem zip;
+  /** File the archive is written into until it's finished */
+  private Path partialOutput;
+  /** Whether this creator created {@link #partialOutput} (so it may delete it) */
+  private boolean outputCreated = false;
+  /** Whether the archive was published (so deleting it also means deleting its real name) */
+  private boolean published = false;
+  /** Whether the archive and its manifest were written (so only the upload can be unfinished) */
+  private boolean completed = false;
+  /** Where the archive is uploaded to, or {@code null} if it stays local */
+  private StorageBackend storage;
+  /** Uploads the archive as it's written, or {@code null} if it isn't uploaded */
+  private BackupUploader uploader;
+  /** Dictionary used to encode region files, or {@code null} if they're stored as they are */
+  private byte[] chunkDictionary;
+  /** Journal of the archive, or {@code null} if it can't be resumed (zip archives) */
+  private BackupJournal journal;
+  /** Where the journal is written, or {@code null} if there isn't one */
+  private Path journalPath;
+  /** Chooses how each block of the archive is compressed */
+  private CompressionPlanner planner;
+  /** Bytes compressed below the highest level to keep to the time budget */
+  private Counter.Child loweredBytes;
+  /** Buffer files are read into, one block at a time */
+  private final byte[] block = new byte[BLOCK_SIZE];
+  /** Checksum of the file being written */
+  private final CRC32 crc = new CRC32();
+  /** Kind of archive being taken */
+  private BackupKind kind;
+  /** Snapshot the archive is made of, or {@code null} if it's made of the world */
+  private final Manifest snapshot;
+  /** Segments being filled with small files, by class */
+  private final Map<FileClass, SegmentPacker> packers = new EnumMap<>(FileClass.class);
+  /** Sinks writing the segments of each class into the archive */
+  private final Map<FileClass, SegmentSink> sinks = new EnumMap<>(FileClass.class);
+  /** Number of the next segment written */
+  private int nextSegment;
 
   /**
    * Sets up an archive creation thread.
    *
    * @param sender The {@link ICommandSender} that requested this archive. Used for status messages.
+   * @param kind Kind of archive to take. Differential and incremental archives fall back to full
+   * archives if there is nothing to base them on.
    */
-  public ArchiveCreator(ICommandSender sender) {
+  public ArchiveCreator(ICommandSender sender, BackupKind kind) {
     super(sender);
+    this.kind = kind;
+    this.snapshot = null;
     this.setName("Archive Thread");
   }
 
-  /** Provides methods to use with {@link Files#walkFileTree} for archives */
-  private class ArchiveVisitor implements FileVisitor<Path> {
-    @Override
-    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attr)
-        throws IOException {
-      // Ignore the whole directory if it's in the ignore list
-      if (backupExcludes.contains(path.toString())) {
-        return FileVisitResult.SKIP_SUBTREE;
+  /**
+   * Sets up an archive creation thread for a profile.
+   *
+   * @param sender The {@link ICommandSender} that requested this archive. Used for status messages.
+   * @param profile Profile to take the archive for. Its kind of archive is taken.
+   */
+  public ArchiveCreator(ICommandSender sender, BackupProfile profile) {
+    super(sender, profile);
+    this.kind = profile.getKind();
+    this.snapshot = null;
+    this.setName("Archive Thread (" + profile.getName() + ")");
+  }
+
+  /**
+   * Sets up a thread that turns a snapshot into a full archive.
+   *
+   * @param sender The {@link ICommandSender} that requested this archive. Used for status messages.
+   * @param profile Profile the snapshot was taken for. The archive is written to its folder.
+   * @param snapshot Manifest of the snapshot to archive. It must not be the most recent snapshot,
+   * which the next snapshot links its unchanged files to.
+   */
+  public ArchiveCreator(ICommandSender sender, BackupProfile profile, Manifest snapshot) {
+    super(sender, profile);
+    this.kind = BackupKind.FULL;
+    this.snapshot = snapshot;
+    this.setName("Tiering Thread");
+    this.setPriority(Thread.MIN_PRIORITY);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getBackupType() {
+    if (snapshot != null) {
+      return withProfile("archive of snapshot " + snapshot.getName());
+    }
+    return withProfile(kind == BackupKind.FULL ? "archive" : kind.getName() + " archive");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected String getMetricsType() {
+    return snapshot != null ? "tiering" : "archive";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected boolean capturesWorld() {
+    return snapshot == null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected boolean isBackground() {
+    return snapshot != null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void createBackup() throws InterruptedException, IOException {
+    ManifestStore manifests = new ManifestStore(Paths.get(profile.getOutputDir()));
+
+    storage = StorageType.open(config, getUploadStateDir(manifests.getOutputDir()));
+    try {
+      createArchive(manifests);
+    } finally {
+      if (uploader != null && uploader.isAlive()) {
+        uploader.stopUpload();
+      }
+      if (storage != null) {
+        storage.close();
       }
+    }
+  }
 
-      Files.createDirectories(zip.getPath(path.toString()));
+  /**
+   * Creates the archive, and uploads it if a storage backend is configured.
+   *
+   * @param manifests Manifests of the existing backups.
+   * @throws InterruptedException if the backup is interrupted.
+   * @throws IOException if the archive can't be written.
+   */
+  private void createArchive(ManifestStore manifests) throws InterruptedException, IOException {
+    SimpleDateFormat rfc8601Formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ss'Z'");
+    rfc8601Formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
 
-      return FileVisitResult.CONTINUE;
+    ArchiveFormat format = profile.getArchiveFormat();
+    if (format == ArchiveFormat.TAR_GZ_AES && config.getEncryptionPassphrase().isEmpty()) {
+      throw new IOException("Encrypted archives need an encryptionPassphrase in the config");
     }
+    // Archives of snapshots start over rather than take over journals meant for world archives.
+    BackupJournal.State resumed = snapshot == null ? findResumable(manifests, format) : null;
 
-    @Override
-    public FileVisitResult visitFile(Path path, BasicFileAttributes attr) throws IOException {
-      // Continue without doing anything with the file if it's in the ignore list
-      if (backupExcludes.contains(path.toString())) {
-        return FileVisitResult.CONTINUE;
+    Manifest base = null;
+    Date startTime;
+    String name;
+    if (snapshot != null) {
+      name = snapshot.getName();
+      startTime = new Date(snapshot.getTime());
+      archiveOutput = manifests.getOutputDir().resolve(name + format.getExtension());
+      partialOutput = FileSync.getPartialPath(archiveOutput);
+      // The snapshot's manifest still points at its folder, so these are left from a crash.
+      Files.deleteIfExists(archiveOutput);
+      Files.deleteIfExists(partialOutput);
+    } else if (resumed != null) {
+      Manifest header = resumed.getManifest();
+      name = header.getName();
+      startTime = new Date(header.getTime());
+      base = header.getBase() == null ? null : manifests.find(header.getBase());
+      archiveOutput = manifests.getOutputDir().resolve(header.getFile());
+      partialOutput = FileSync.getPartialPath(archiveOutput);
+      messenger.info(requester, "Resuming the interrupted " + getBackupType() + " " + name +
+          " (" + resumed.getDoneCount() + " files and folders already done)");
+    } else {
+      if (kind != BackupKind.FULL) {
+        base = manifests.findLatestArchive(
+            kind == BackupKind.DIFFERENTIAL ? BackupKind.FULL : null);
+        if (base == null) {
+          messenger.info(requester, "There is no archive to base a " + kind.getName() +
+              " archive on, taking a full archive instead.");
+          kind = BackupKind.FULL;
+        }
+      }
+
+      startTime = new Date();
+      name = rfc8601Formatter.format(startTime);
+      if (kind != BackupKind.FULL) {
+        name += "-" + kind.getName();
       }
 
-      Files.copy(path, zip.getPath(path.toString()));
+      archiveOutput = Paths.get(profile.getOutputDir(), name + format.getExtension());
 
-      return FileVisitResult.CONTINUE;
+      if (Files.exists(archiveOutput)) {
+        throw new FileAlreadyExistsException("Archive output file already exists: " +
+            archiveOutput.toString());
+      }
+      partialOutput = FileSync.getPartialPath(archiveOutput);
+      // A leftover from a zip archive (or an unjournaled crash) under the same name is garbage.
+      Files.deleteIfExists(partialOutput);
     }
 
-    @Override
-    public FileVisitResult visitFileFailed(Path path, IOException exception) throws IOException {
-      throw exception;
+    if (!Files.exists(archiveOutput.getParent())) {
+      Files.createDirectories(archiveOutput.getParent());
     }
 
-    @Override
-    public FileVisitResult postVisitDirectory(Path path, IOException exception) throws IOException {
-      return FileVisitResult.CONTINUE;
+    List<TargetFile> scanned;
+    if (snapshot == null) {
+      estimateProgress(manifests);
+      scanned = scanTargets(manifests);
+    } else {
+      progress.setPhase(BackupProgress.Phase.SCANNING);
+      scanned = scanSnapshot(manifests);
+    }
+
+    ChangeSet changes;
+    if (base == null) {
+      changes = ChangeSet.compute(scanned, null, null, false);
+    } else {
+      try (ManifestReader baseReader = manifests.open(base)) {
+        changes = ChangeSet.compute(scanned, baseReader, base.getName(), false);
+      }
+      logger.info("Archiving changes since " + base.getName() + ": " +
+          changes.getUnchanged().size() + " files unchanged, " + changes.getDeletedCount() +
+          " deleted");
+    }
+    List<TargetFile> targets = changes.getChanged();
+
+    chunkDictionary = null;
+    if (resumed != null) {
+      // Keep encoding regions with the dictionary already in the archive.
+      chunkDictionary = resumed.getDictionary();
+    } else if (config.getRecompressRegions()) {
+      chunkDictionary = trainChunkDictionary(targets);
+    }
+
+    long totalBytes = 0;
+    for (TargetFile target : targets) {
+      totalBytes += target.getSize();
+    }
+    planner = new CompressionPlanner(config.getCompressionLevel(), config.getTimeBudget() * 1000L,
+        totalBytes);
+    loweredBytes = metrics.getLoweredBytes(getMetricsType());
+    progress.start(totalBytes, targets.size());
+
+    ExecutorService compressors = null;
+    journal = null;
+    try {
+      FileChannel channel;
+      if (resumed != null) {
+        // Cut off whatever was written after the last checkpoint.
+        channel = FileChannel.open(partialOutput, StandardOpenOption.WRITE);
+        channel.truncate(resumed.getOutputLength());
+        channel.position(resumed.getOutputLength());
+      } else {
+        channel = FileChannel.open(partialOutput, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+      }
+      outputCreated = true;
+      if (storage != null) {
+        uploader = new BackupUploader(storage, partialOutput, getStorageKey(archiveOutput));
+        if (resumed != null) {
+          uploader.setAvailable(resumed.getOutputLength());
+        }
+        uploader.start();
+      }
+      OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 65536);
+
+      ArchiveWriter writer;
+      TarArchiveWriter tarWriter = null;
+      switch (format) {
+        case TAR:
+          tarWriter = resumed == null ? new TarArchiveWriter(out) :
+              new TarArchiveWriter(out, resumed.getIndex(), resumed.getPosition());
+          writer = tarWriter;
+          break;
+        case TAR_GZ:
+        case TAR_GZ_AES:
+          int threads = config.getCompressionThreads();
+          compressors = Executors.newFixedThreadPool(threads,
+              new CompressorThreadFactory(Math.min(getPriority(), Thread.NORM_PRIORITY - 1)));
+          FramedGzipOutputStream compressor = new FramedGzipOutputStream(out, compressors, threads,
+              FramedGzipOutputStream.DEFAULT_FRAME_SIZE);
+          FrameCipher cipher = null;
+          if (format == ArchiveFormat.TAR_GZ_AES) {
+            cipher = resumed == null ?
+                FrameCipher.create(config.getEncryptionPassphrase()) :
+                readCipher(partialOutput);
+          }
+          if (resumed == null) {
+            if (cipher != null) {
+              compressor.setCipher(cipher);
+              compressor.writeRaw(cipher.getHeader());
+            }
+            tarWriter = new TarArchiveWriter(compressor);
+          } else {
+            compressor.resumeAt(resumed.getPosition(), resumed.getOutputLength());
+            if (cipher != null) {
+              compressor.setCipher(cipher);
+            }
+            tarWriter = new TarArchiveWriter(compressor, resumed.getIndex());
+          }
+          writer = tarWriter;
+          break;
+        default:
+          // Zip files can't be appended to, so zip archives always start over.
+          writer = new ZipArchiveWriter(out);
+      }
+
+      writer.setOutputListener(new ArchiveWriter.OutputListener() {
+        @Override
+        public void outputWritten(FileClass fileClass, long bytes) {
+          planner.outputDone(fileClass, bytes);
+        }
+      });
+
+      if (tarWriter != null && snapshot == null) {
+        journalPath = BackupJournal.getPath(manifests.getOutputDir(), name);
+        journal = resumed == null ?
+            BackupJournal.create(journalPath, new Manifest(name,
+                archiveOutput.getFileName().toString(), kind,
+                base == null ? null : base.getName(), startTime.getTime())) :
+            BackupJournal.resume(journalPath);
+      }
+
+      packers.clear();
+      sinks.clear();
+      nextSegment = tarWriter == null ? 1 : countSegments(tarWriter.getIndex()) + 1;
+
+      try {
+        if (chunkDictionary != null && resumed == null) {
+          writer.addFile(RegionCodec.DICTIONARY_ENTRY, System.currentTimeMillis(), chunkDictionary,
+              FileClass.OTHER);
+          if (journal != null) {
+            journal.recordDictionary(chunkDictionary);
+          }
+        }
+
+        Checkpointer checkpointer = journal == null ? null :
+            new Checkpointer(tarWriter, channel, changes);
+        // Unchanged files come up too, to be checked again in case they were saved since the scan.
+        for (TargetFile scannedTarget : orderTargets(scanned)) {
+          checkCancelled();
+          TargetFile target = changes.isUnchanged(scannedTarget) ?
+              recheckUnchanged(scannedTarget, changes) : scannedTarget;
+          if (target == null) {
+            continue;
+          }
+          progress.beginFile(target.getName());
+
+          ManifestEntry done = resumed == null ? null : resumed.getDone(target.getName());
+          if (done != null && done.getSize() == target.getSize() &&
+              done.getLastModified() == target.getLastModified() &&
+              done.getType() == changes.getEntry(target).getType()) {
+            // Already in the archive from before the interruption.
+            changes.stored(target, done.getSize(), done.getHash(), done.getChunkHashes());
+            addProgress(target.getSize());
+          } else if (target.isDirectory()) {
+            writer.addDirectory(target.getName(), target.getLastModified());
+          } else if (!beginChangedTarget(target, changes)) {
+            // Deleted since the scan, so it isn't part of the archive.
+            addProgress(target.getSize());
+          } else if (chunkDictionary != null && RegionFileReader.isRegionFile(target.getPath())) {
+            writeRegion(writer, target, changes);
+          } else if (isSmallFile(target)) {
+            packFile(writer, target, changes);
+          } else {
+            writeFile(writer, target, changes);
+          }
+
+          progress.fileDone();
+          if (checkpointer != null) {
+            checkpointer.fileDone(target);
+          }
+        }
+        flushSegments();
+      } finally {
+        writer.close();
+      }
+
+      // One sync for the whole archive (plus one per checkpoint) rather than one per file, then
+      // the archive appears under its real name in a single step.
+      FileSync.syncFile(partialOutput);
+      FileSync.publish(partialOutput, archiveOutput);
+      published = true;
+      if (uploader != null) {
+        uploader.finish(Files.size(archiveOutput));
+      }
+
+      // The manifest is only written once the archive is complete, so chains never include
+      // archives that were interrupted.
+      Manifest manifest = new Manifest(name, archiveOutput.getFileName().toString(), kind,
+          base == null ? null : base.getName(), startTime.getTime());
+      Path manifestPath = Manifest.getPath(manifests.getOutputDir(), name);
+      // For an archive of a snapshot, this replaces the snapshot's manifest in one step.
+      changes.writeManifest(manifestPath, manifest);
+      completed = true;
+
+      if (snapshot != null) {
+        deleteSnapshot(manifests.getBackupPath(snapshot));
+      }
+
+      if (journal != null) {
+        journal.close();
+        journal = null;
+        Files.deleteIfExists(journalPath);
+        journalPath = null;
+      }
+
+      if (uploader != null) {
+        finishUpload(manifestPath);
+      }
+    } finally {
+      if (journal != null) {
+        journal.close();
+      }
+      if (compressors != null) {
+        compressors.shutdownNow();
+      }
+      planner.end();
+    }
+
+    for (String line : planner.getReport()) {
+      logger.info("Archive compression - " + line);
     }
   }
 
+  /**
+   * Makes periodic checkpoints while a tarball is written.
+   *
+   * <p>At a checkpoint the segments being filled are written and the tarball is flushed and
+   * synced, then the index entries, frames and finished targets since the previous checkpoint are
+   * added to the journal and it is synced.</p>
+   */
+  private class Checkpointer {
+    private final TarArchiveWriter writer;
+    private final FileChannel channel;
+    private final ChangeSet changes;
+    private final List<TargetFile> finished = new ArrayList<>();
+    private int entriesRecorded;
+    private int framesRecorded;
+    private long lastCheckpoint = System.nanoTime();
+
+    Checkpointer(TarArchiveWriter writer, FileChannel channel, ChangeSet changes) {
+      this.writer = writer;
+      this.channel = channel;
+      this.changes = changes;
+      // A resumed index already has everything before the last checkpoint in the journal.
+      this.entriesRecorded = writer.getIndex().getEntries().size();
+      this.framesRecorded = writer.getIndex().getFrameCount();
+    }
+
+    /**
+     * Records a finished target, and makes a checkpoint if it's time for one.
+     *
+     * @param target Target that was just written (or skipped as already done).
+     * @throws IOException if writing the checkpoint fails.
+     */
+    void fileDone(TargetFile target) throws IOException {
+      finished.add(target);
+      if (System.nanoTime() - lastCheckpoint < CHECKPOINT_INTERVAL_NANOS) {
+        return;
+      }
+
+      flushSegments();
+      long length = writer.checkpoint();
+      channel.force(false);
+
+      ArchiveIndex index = writer.getIndex();
+      List<ArchiveIndex.Entry> entries = index.getEntries();
+      for (; entriesRecorded < entries.size(); entriesRecorded++) {
+        journal.recordEntry(entries.get(entriesRecorded));
+      }
+      for (; framesRecorded < index.getFrameCount(); framesRecorded++) {
+        long[] frame = index.getFrame(framesRecorded);
+        journal.recordFrame(frame[0], frame[1]);
+      }
+      for (TargetFile done : finished) {
+        journal.recordDone(changes.getEntry(done));
+      }
+      finished.clear();
+      journal.checkpoint(length, writer.getPosition());
+      if (uploader != null) {
+        uploader.setAvailable(length);
+      }
+
+      lastCheckpoint = System.nanoTime();
+    }
+  }
+
+  /**
+   * Finds an interrupted archive of the same kind and format to resume.
+   *
+   * <p>Interrupted archives that can't be resumed by this archive are deleted, as a newer archive
+   * supersedes them.</p>
+   *
+   * @param manifests Manifests of the existing backups.
+   * @param format Format of the archive being taken.
+   * @return What the interrupted archive's journal says is done, or {@code null} to start a new
+   * archive.
+   * @throws IOException if the backup folder can't be listed.
+   */
+  private BackupJournal.State findResumable(ManifestStore manifests, ArchiveFormat format)
+      throws IOException {
+    BackupJournal.State resumable = null;
+    for (Path journalPath : BackupJournal.findIncomplete(manifests.getOutputDir())) {
+      BackupJournal.State state;
+      try {
+        state = BackupJournal.read(journalPath);
+      } catch (IOException e) {
+        logger.warn("Ignoring unreadable backup journal " + journalPath, e);
+        continue;
+      }
+
+      Manifest header = state.getManifest();
+      if (!ManifestStore.isArchive(header)) {
+        // Snapshots resume their own journals.
+        continue;
+      }
+
+      Path output = FileSync.getPartialPath(manifests.getOutputDir().resolve(header.getFile()));
+      boolean usable = ArchiveFormat.fromFileName(header.getFile()) == format &&
+          header.getKind() == kind && state.getOutputLength() > 0 && Files.exists(output) &&
+          Files.size(output) >= state.getOutputLength() &&
+          (header.getBase() == null || manifests.find(header.getBase()) != null);
+      if (usable && format == ArchiveFormat.TAR_GZ_AES) {
+        try {
+          readCipher(output);
+        } catch (IOException e) {
+          // Most likely the passphrase was changed since.
+          logger.warn("Unable to continue the encrypted archive " + header.getFile(), e);
+          usable = false;
+        }
+      }
+
+      if (usable && resumable == null) {
+        resumable = state;
+      } else {
+        logger.info("Deleting interrupted archive " + header.getFile() + ", it can't be resumed");
+        if (storage != null) {
+          storage.discardUpload(getStorageKey(Paths.get(header.getFile())));
+        }
+        Files.deleteIfExists(output);
+        // A crash between publishing an archive and writing its manifest leaves only the archive.
+        Files.deleteIfExists(manifests.getOutputDir().resolve(header.getFile()));
+        Files.deleteIfExists(journalPath);
+      }
+    }
+    return resumable;
+  }
+
   /** {@inheritDoc} */
   @Override
-  public String getBackupType() {
-    return "archive";
+  protected void deletePartialOutput() throws IOException {
+    if (uploader != null) {
+      try (StorageBackend backend = StorageType.open(config,
+          getUploadStateDir(archiveOutput.toAbsolutePath().getParent()))) {
+        if (backend != null) {
+          backend.discardUpload(getStorageKey(archiveOutput));
+        }
+      }
+    }
+    if (outputCreated && !completed) {
+      Files.deleteIfExists(partialOutput);
+      if (published) {
+        Files.deleteIfExists(archiveOutput);
+      }
+      if (journalPath != null) {
+        Files.deleteIfExists(journalPath);
+      }
+    }
+  }
+
+  /**
+   * Reads the cipher of an interrupted encrypted archive, checking the passphrase.
+   *
+   * @param file The partial archive.
+   * @return The archive's cipher.
+   * @throws IOException if the header can't be read or the passphrase doesn't match.
+   */
+  private FrameCipher readCipher(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return FrameCipher.read(channel, config.getEncryptionPassphrase());
+    }
+  }
+
+  /**
+   * Waits for the archive to finish uploading, then uploads its manifest.
+   *
+   * <p>The archive is complete on disk by now, so a failed upload is reported without failing
+   * the backup.</p>
+   *
+   * @param manifestPath Manifest of the archive.
+   * @throws InterruptedException if the backup is interrupted while waiting.
+   */
+  private void finishUpload(Path manifestPath) throws InterruptedException {
+    progress.setPhase(BackupProgress.Phase.UPLOADING);
+    try {
+      uploader.await();
+      BackupUploader.uploadFile(storage, manifestPath, getStorageKey(manifestPath));
+      logger.info("Uploaded " + archiveOutput.getFileName() + " to " + storage.getDescription());
+    } catch (IOException e) {
+      messenger.error(requester, "The " + getBackupType() + " was saved, but uploading it to " +
+          storage.getDescription() + " failed: " + e.getMessage(), e);
+      try {
+        storage.discardUpload(getStorageKey(archiveOutput));
+      } catch (IOException discardError) {
+        logger.error("Unable to discard the failed upload", discardError);
+      }
+    }
+  }
+
+  /**
+   * Gets the key a file of the archive is uploaded as.
+   *
+   * <p>Every profile uploads to the one backend set in the {@code storage} section. The files of
+   * a named profile are uploaded under the profile's name, so they can't clash with those of other
+   * profiles.</p>
+   *
+   * @param file File to upload.
+   * @return Key relative to the storage backend's prefix.
+   */
+  private String getStorageKey(Path file) {
+    String name = file.getFileName().toString();
+    return profile.isDefault() ? name : profile.getName() + "/" + name;
+  }
+
+  /**
+   * Gets the folder the state of unfinished uploads is kept in.
+   *
+   * @param outputDir Backup folder.
+   * @return Upload state folder.
+   */
+  private static Path getUploadStateDir(Path outputDir) {
+    return outputDir.resolve(UPLOAD_STATE_FOLDER);
   }
 
   /** {@inheritDoc} */
   @Override
-  protected void createBackup() throws InterruptedException, IOException {
-    SimpleDateFormat rfc8601Formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ss'Z'");
-    rfc8601Formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+  protected boolean canResume() {
+    return outputCreated && !published && journalPath != null;
+  }
 
-    archiveOutput = Paths.get(config.getBackupOutputDir(),
-        rfc8601Formatter.format(new Date()) + ".zip");
+  /**
+   * Lists the contents of the snapshot being archived as targets, from its manifest.
+   *
+   * @param manifests Manifests of the existing backups.
+   * @return Targets reading from the snapshot folder (or its segments), sorted by name.
+   * @throws IOException if the snapshot's manifest or segment indexes can't be read.
+   */
+  private List<TargetFile> scanSnapshot(ManifestStore manifests) throws IOException {
+    Path folder = manifests.getBackupPath(snapshot);
+    PackedFiles packed = PackedFiles.load(folder);
+    List<TargetFile> targets = new ArrayList<>();
+    try (ManifestReader reader = manifests.open(snapshot)) {
+      ManifestEntry entry;
+      while ((entry = reader.next()) != null) {
+        PackedFiles.Location location = entry.getType() == ManifestEntry.Type.FILE ?
+            packed.find(entry.getName()) : null;
+        if (location != null) {
+          targets.add(new TargetFile(Paths.get(entry.getName()), location.getSegment(),
+              location.getEntry()));
+        } else if (entry.isLive()) {
+          targets.add(new TargetFile(Paths.get(entry.getName()),
+              entry.getType() == ManifestEntry.Type.DIRECTORY, entry.getSize(),
+              entry.getLastModified(), folder.resolve(entry.getName())));
+        }
+      }
+    }
+    return targets;
+  }
+
+  /**
+   * Deletes the folder of a snapshot that has been archived, logging any error.
+   *
+   * <p>The archive and its manifest are complete by now, so a folder that can't be deleted is
+   * only wasted space. {@link #findSnapshotToArchive} deletes it later.</p>
+   *
+   * @param folder Folder of the snapshot.
+   */
+  private void deleteSnapshot(Path folder) {
+    try {
+      SnapshotCreator.deleteTree(folder);
+    } catch (IOException e) {
+      logger.error("Unable to delete the folder of archived snapshot " + snapshot.getName(), e);
+    }
+  }
+
+  /**
+   * Finds the oldest snapshot that is old enough to be turned into an archive.
+   *
+   * <p>Folders of snapshots that were archived but not deleted (because of a crash or an error)
+   * are deleted along the way.</p>
+   *
+   * @param manifests Manifests of the existing backups.
+   * @param olderThan Time (in milliseconds since the epoch) the snapshot must be older than.
+   * @return Manifest of the snapshot, or {@code null} if no snapshot needs archiving.
+   * @throws IOException if the backup folder can't be listed.
+   */
+  public static Manifest findSnapshotToArchive(ManifestStore manifests, long olderThan)
+      throws IOException {
+    List<Manifest> existing = manifests.list();
+    Manifest latestSnapshot = null;
+    for (Manifest manifest : existing) {
+      Path folder = manifests.getOutputDir().resolve(manifest.getName());
+      if (ManifestStore.isSnapshot(manifest)) {
+        latestSnapshot = manifest;
+      } else if (ManifestStore.isArchive(manifest) && Files.isDirectory(folder)) {
+        SnapshotCreator.deleteTree(folder);
+      }
+    }
+    for (Manifest manifest : existing) {
+      if (ManifestStore.isSnapshot(manifest) && manifest != latestSnapshot &&
+          manifest.getTime() < olderThan) {
+        return manifest;
+      }
+    }
+    return null;
+  }
+
+  /** Names and configures the threads that compress archive frames. */
+  private static class CompressorThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+    private final int priority;
 
-    if (Files.exists(archiveOutput)) {
-      throw new FileAlreadyExistsException("Archive output file already exists: " +
-          archiveOutput.toString());
+    CompressorThreadFactory(int priority) {
+      this.priority = priority;
     }
 
-    Map<String, String> fsEnv = new HashMap<>();
-    fsEnv.put("create", "true");
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "Archive Compressor #" + count.incrementAndGet());
+      thread.setDaemon(true);
+      thread.setPriority(priority);
+      return thread;
+    }
+  }
 
-    if (!Files.exists(archiveOutput.getParent())) {
-      Files.createDirectories(archiveOutput.getParent());
+  /**
+   * Trains a chunk dictionary from a sample of the region files being archived.
+   *
+   * @param targets Everything being archived.
+   * @return The trained dictionary, or an empty dictionary if there are no usable region files.
+   * @throws IOException if a region file can't be read.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private byte[] trainChunkDictionary(List<TargetFile> targets)
+      throws IOException, InterruptedException {
+    List<TargetFile> regions = new ArrayList<>();
+    for (TargetFile target : targets) {
+      if (!target.isDirectory() && RegionFileReader.isRegionFile(target.getPath())) {
+        regions.add(target);
+      }
+    }
+
+    ChunkDictionaryTrainer trainer = new ChunkDictionaryTrainer();
+    // Spread the sampled files evenly over all of the regions (and so over all of the dimensions).
+    int step = Math.max(1, regions.size() / DICTIONARY_SAMPLE_FILES);
+    for (int i = 0; i < regions.size(); i += step) {
+      checkCancelled();
+      try {
+        RegionCodec.sample(regions.get(i).getSource(), trainer, DICTIONARY_SAMPLES_PER_FILE);
+      } catch (RegionFormatException e) {
+        logger.warn("Not sampling damaged region file " + regions.get(i).getName(), e);
+      }
     }
 
-    zip = FileSystems.newFileSystem(
-        URI.create("jar:file:" + archiveOutput.toAbsolutePath().toString()),
-        fsEnv
-    );
+    return trainer.train(ChunkDictionaryTrainer.MAX_DICTIONARY_SIZE);
+  }
+
+  /**
+   * Writes a region file into the archive as an encoded region.
+   *
+   * <p>Region files that can't be read as region files are archived as they are.</p>
+   *
+   * @param writer Archive to write into.
+   * @param target Region file to write.
+   * @param changes Where the file is recorded once it's written.
+   * @throws IOException if reading the region or writing the archive fails.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private void writeRegion(ArchiveWriter writer, TargetFile target, ChangeSet changes)
+      throws IOException, InterruptedException {
+    RegionCodec.EncodedRegion encoded;
+    try {
+      encoded = RegionCodec.encode(target.getSource(), chunkDictionary,
+          Deflater.DEFAULT_COMPRESSION);
+    } catch (RegionFormatException e) {
+      logger.warn("Archiving region file " + target.getName() + " without recompressing it", e);
+      writeFile(writer, target, changes);
+      return;
+    }
+
+    // The encoded region is already compressed, so it's stored without compressing it again.
+    writer.addFile(target.getName() + RegionCodec.EXTENSION, target.getLastModified(),
+        encoded.getData(), FileClass.REGION);
+
+    planner.encodedDone(FileClass.REGION, "sbrg", target.getSize());
+    planner.fileDone(FileClass.REGION, target.getSize());
+    addProgress(target.getSize());
+
+    // The region file itself isn't read as a whole, so there is no hash of its contents. Its
+    // chunks are hashed as they were encoded.
+    changes.stored(target, target.getSize(), null, encoded.getChunkHashes().encode());
+  }
+
+  /**
+   * Copies a file into the archive.
+   *
+   * <p>The file is compressed in blocks, each with the level chosen for it by the
+   * {@link CompressionPlanner}. Blocks that don't compress are stored (deflate level 0).</p>
+   *
+   * @param writer Archive to write into.
+   * @param target File to copy.
+   * @param changes Where the file is recorded once it's written.
+   * @throws IOException if reading the file or writing the archive fails.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private void writeFile(ArchiveWriter writer, TargetFile target, ChangeSet changes)
+      throws IOException, InterruptedException {
+    FileClass fileClass = FileClass.of(target.getPath());
+
+    long bytesIn = 0;
+    String hash = null;
+    crc.reset();
+    ChunkHasher chunkHasher = startChunkHashes(target);
+    try (InputStream in = target.openSource()) {
+      // Take the size again as the file is opened, it's what tar headers will record.
+      long size = target.getSourceSize();
+      writer.beginFile(target.getName(), size, target.getLastModified(), fileClass);
 
-    backupExcludes = new ArrayList<>(Arrays.asList(config.getBackupExcludes()));
+      long blockStart = System.nanoTime();
+      int length;
+      while ((length = readBlock(in, block)) > 0) {
+        checkCancelled();
+        int level = chooseLevel(writer, fileClass, block, length);
+        writer.write(block, 0, length, level);
+        crc.update(block, 0, length);
+        if (chunkHasher != null) {
+          chunkHasher.update(block, 0, length);
+        }
+        bytesIn += length;
 
-    for (String file : config.getBackupIncludes()) {
-      Files.walkFileTree(Paths.get(file), EnumSet.allOf(FileVisitOption.class),
-          Integer.MAX_VALUE, new ArchiveVisitor());
+        long now = System.nanoTime();
+        planner.blockDone(fileClass, level, length, now - blockStart);
+        blockStart = now;
+        addProgress(length);
+
+        if (length < block.length) {
+          break;
+        }
+      }
+
+      writer.endFile();
+
+      if (bytesIn != size) {
+        logger.warn("File " + target.getName() + " changed size while being archived (" + size +
+            " -> " + bytesIn + " bytes)");
+      } else {
+        // A file that changed size may have been cut or padded, so its hash would be wrong.
+        hash = String.format("crc32:%08x", crc.getValue());
+      }
+    }
+
+    planner.fileDone(fileClass, bytesIn);
+    changes.stored(target, target.getSize(), hash,
+        hash == null ? null : finishChunkHashes(target, chunkHasher));
+  }
+
+  /**
+   * Chooses the level to compress a block with, counting blocks the time budget lowers.
+   *
+   * @param writer Archive the block is written into.
+   * @param fileClass Class of the file the block is from.
+   * @param data Buffer holding the block, from its start.
+   * @param length Length of the block.
+   * @return The deflate level to use, or {@link CompressionPlanner#STORE}.
+   */
+  private int chooseLevel(ArchiveWriter writer, FileClass fileClass, byte[] data, int length) {
+    if (!writer.isCompressed()) {
+      return CompressionPlanner.STORE;
     }
+    int level = planner.chooseLevel(fileClass, data, 0, length);
+    if (planner.wasLowered()) {
+      loweredBytes.add(length);
+    }
+    return level;
+  }
 
-    zip.close();
+  /**
+   * Packs a small file into the segment of its class.
+   *
+   * <p>The file is read now, but only written into the archive with the rest of its segment.</p>
+   *
+   * @param writer Archive the segment is written into.
+   * @param target File to pack.
+   * @param changes Where the file is recorded once it's read.
+   * @throws IOException if reading the file or writing a full segment fails.
+   */
+  private void packFile(ArchiveWriter writer, TargetFile target, ChangeSet changes)
+      throws IOException {
+    FileClass fileClass = FileClass.of(target.getPath());
+    SegmentPacker packer = packers.get(fileClass);
+    if (packer == null) {
+      SegmentSink sink = new SegmentSink(writer, fileClass);
+      packer = new SegmentPacker(sink);
+      sinks.put(fileClass, sink);
+      packers.put(fileClass, packer);
+    }
+
+    long readStart = System.nanoTime();
+    int length;
+    try (InputStream in = target.openSource()) {
+      length = readBlock(in, block);
+    }
+    SegmentIndex.Entry entry = packer.add(target.getName(), target.getLastModified(), block, 0,
+        length);
+    sinks.get(fileClass).readNanos += System.nanoTime() - readStart;
+
+    planner.fileDone(fileClass, length);
+    addProgress(length);
+
+    String hash = null;
+    if (length != target.getSize()) {
+      logger.warn("File " + target.getName() + " changed size while being archived (" +
+          target.getSize() + " -> " + length + " bytes)");
+    } else {
+      hash = String.format("crc32:%08x", entry.getCrc());
+    }
+    changes.stored(target, target.getSize(), hash, null);
+  }
+
+  /**
+   * Writes the segments being filled into the archive.
+   *
+   * @throws IOException if writing fails.
+   */
+  private void flushSegments() throws IOException {
+    for (SegmentPacker packer : packers.values()) {
+      packer.flush();
+    }
+  }
+
+  /**
+   * Counts the segments already in a resumed tarball, so new segments don't reuse their names.
+   *
+   * @param index Index of the tarball.
+   * @return Number of segments in it.
+   */
+  private static int countSegments(ArchiveIndex index) {
+    int count = 0;
+    for (ArchiveIndex.Entry entry : index.getEntries()) {
+      if (entry.getName().startsWith(SegmentIndex.FOLDER + "/") &&
+          entry.getName().endsWith(SegmentIndex.INDEX_EXTENSION)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Writes the full segments of one class of files into the archive. */
+  private class SegmentSink implements SegmentPacker.Sink {
+    private final ArchiveWriter writer;
+    private final FileClass fileClass;
+    /** Time spent reading the files of the segment being filled. */
+    long readNanos = 0;
+
+    SegmentSink(ArchiveWriter writer, FileClass fileClass) {
+      this.writer = writer;
+      this.fileClass = fileClass;
+    }
+
+    @Override
+    public void storeSegment(byte[] data, int length, SegmentIndex index) throws IOException {
+      String id = String.format("%06d", nextSegment++);
+      long time = System.currentTimeMillis();
+
+      // A segment is at most one block, compressed (or stored) as a whole.
+      long start = System.nanoTime();
+      int level = writeBlock(SegmentIndex.getDataName(id), time, data, length);
+      planner.blockDone(fileClass, level, length, readNanos + System.nanoTime() - start);
+      readNanos = 0;
+
+      byte[] indexData = index.toBytes();
+      writeBlock(SegmentIndex.getIndexName(id), time, indexData, indexData.length);
+    }
+
+    private int writeBlock(String name, long time, byte[] data, int length) throws IOException {
+      int level = chooseLevel(writer, fileClass, data, length);
+      writer.beginFile(name, length, time, fileClass);
+      writer.write(data, 0, length, level);
+      writer.endFile();
+      return level;
+    }
   }
 }
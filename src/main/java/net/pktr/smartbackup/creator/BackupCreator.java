@@ -17,8 +17,19 @@
 package net.pktr.smartbackup.creator;
 
 import net.pktr.smartbackup.BackupConfiguration;
+import net.pktr.smartbackup.BackupProfile;
 import net.pktr.smartbackup.Messenger;
+import net.pktr.smartbackup.ProgressUpdate;
 import net.pktr.smartbackup.SmartBackup;
+import net.pktr.smartbackup.coordination.BackupSlot;
+import net.pktr.smartbackup.manifest.Manifest;
+import net.pktr.smartbackup.manifest.ManifestEntry;
+import net.pktr.smartbackup.manifest.ManifestReader;
+import net.pktr.smartbackup.manifest.ManifestStore;
+import net.pktr.smartbackup.metrics.BackupMetrics;
+import net.pktr.smartbackup.region.ChunkHasher;
+import net.pktr.smartbackup.region.RegionFileReader;
+import net.pktr.smartbackup.region.RegionFormatException;
 
 import net.minecraft.command.ICommandSender;
 import net.minecraft.server.MinecraftServer;
@@ -27,13 +38,28 @@ import net.minecraft.world.WorldServer;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 /** Defines the common parts of a backup creator. */
 public abstract class BackupCreator extends Thread {
+  /** Time between checkpoints of resumable backups. */
+  protected static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+  /** Time between checks whether it's this server's turn to back up. */
+  private static final long SLOT_POLL_MILLIS = 1000;
+
   /** Represents the status of the backup. */
   public static enum BackupStatus {
     /** The backup has not yet started. */
@@ -61,6 +87,9 @@ public abstract class BackupCreator extends Thread {
   /** The {@link ICommandSender} that requested the backup. */
   protected final ICommandSender requester;
 
+  /** The profile the backup is taken for. */
+  protected final BackupProfile profile;
+
   /**
    * When this backup was requested.
    *
@@ -86,6 +115,9 @@ public abstract class BackupCreator extends Thread {
    */
   protected ICommandSender interrupter = null;
 
+  /** Whether the backup has been asked to stop. Checked at {@link #checkCancelled}. */
+  private volatile boolean cancelRequested = false;
+
   /** Messenger from SmartBackup mod class, used to send messages to players and the console. */
   protected final Messenger messenger = SmartBackup.getMessenger();
 
@@ -95,8 +127,40 @@ public abstract class BackupCreator extends Thread {
   /** Logger used for output that can't go through the messenger. */
   protected final Logger logger = SmartBackup.getLogger();
 
+  /** Metrics the backup records what it does in. */
+  protected final BackupMetrics metrics = SmartBackup.getMetrics();
+
+  /** Live progress of this backup. */
+  protected final BackupProgress progress = new BackupProgress();
+
+  /** How the world is captured for this backup. */
+  private CaptureMode captureMode = CaptureMode.PAUSE;
+
+  /** Whether saving was enabled before the backup. */
+  private boolean savingWasEnabled = false;
+
+  /** When the backup paused saving (from {@link System#nanoTime}), or -1 while it hasn't. */
+  private long pauseStart = -1;
+
+  /** World capture of the online capture mode, or {@code null}. */
+  private WorldCapture capture = null;
+
+  /** Pauses dimensions one at a time for the staggered capture mode, or {@code null}. */
+  private DimensionSchedule schedule = null;
+
+  /**
+   * Targets scanned for this backup by the {@link ProfileRun} it's part of, or {@code null} if
+   * the backup captures and scans the world itself.
+   */
+  private List<TargetFile> sharedTargets = null;
+
   public BackupCreator(ICommandSender sender) {
+    this(sender, SmartBackup.getConfiguration().getDefaultProfile());
+  }
+
+  public BackupCreator(ICommandSender sender, BackupProfile profile) {
     requester = sender;
+    this.profile = profile;
     setStatus(BackupStatus.PENDING);
     requestTime = new Date();
   }
@@ -109,6 +173,80 @@ public abstract class BackupCreator extends Thread {
    */
   protected abstract void createBackup() throws InterruptedException, IOException;
 
+  /**
+   * Deletes whatever the backup wrote before it was interrupted or failed.
+   *
+   * <p>This runs on the backup thread after {@link #createBackup} has unwound, so the server
+   * thread never waits for it.</p>
+   *
+   * @throws IOException if the output can't be deleted.
+   */
+  protected abstract void deletePartialOutput() throws IOException;
+
+  /**
+   * Checks whether the backup can be resumed from its journal if it's interrupted now.
+   *
+   * @return {@code true} if the partial output should be kept for the next backup to resume.
+   */
+  protected boolean canResume() {
+    return false;
+  }
+
+  /**
+   * Checks whether the backup reads the world. Backups that don't (like archives of snapshots)
+   * never save or pause it.
+   *
+   * @return {@code true} if the world is saved and captured for the backup.
+   */
+  protected boolean capturesWorld() {
+    return true;
+  }
+
+  /**
+   * Checks whether the backup runs in the background without anyone asking for it. Interrupting
+   * a background backup is only logged, since it's stopped to make way for players or for
+   * another backup.
+   *
+   * @return {@code true} if interruptions aren't reported through the {@link Messenger}.
+   */
+  protected boolean isBackground() {
+    return false;
+  }
+
+  /**
+   * Reports that the backup was interrupted, through the {@link Messenger} unless it's a
+   * background backup.
+   *
+   * @param message Message to report.
+   */
+  private void reportInterrupted(String message) {
+    if (isBackground()) {
+      logger.info(message);
+    } else {
+      messenger.info(requester, message);
+    }
+  }
+
+  /**
+   * Checks whether this backup saves and captures the world itself, rather than backing up what
+   * the {@link ProfileRun} it's part of captured.
+   *
+   * @return {@code true} if the world is saved and captured for this backup.
+   */
+  private boolean preparesWorld() {
+    return sharedTargets == null && capturesWorld();
+  }
+
+  /**
+   * Makes this backup part of a {@link ProfileRun}, which has captured the world and scanned the
+   * targets for it. Called before the backup is started.
+   *
+   * @param targets Targets of this backup's profile, sorted by name.
+   */
+  void shareTargets(List<TargetFile> targets) {
+    sharedTargets = targets;
+  }
+
   /**
    * Returns a string name for the type of backup being created.
    *
@@ -118,6 +256,35 @@ public abstract class BackupCreator extends Thread {
    */
   public abstract String getBackupType();
 
+  /**
+   * Returns the type of backup as labelled in the metrics.
+   *
+   * <p>Unlike {@link #getBackupType}, this is one of a few fixed values (eg "snapshot" or
+   * "archive"), so every backup of a type is counted together.</p>
+   *
+   * @return The type of backup for the metrics.
+   */
+  protected abstract String getMetricsType();
+
+  /**
+   * Adds the profile a backup is taken for to the name of its type.
+   *
+   * @param type Type of backup (eg "snapshot").
+   * @return The type, followed by the profile's name unless this is the default profile.
+   */
+  protected String withProfile(String type) {
+    return profile.isDefault() ? type : type + " of profile " + profile.getName();
+  }
+
+  /**
+   * Gets the profile the backup is taken for.
+   *
+   * @return The backup's profile.
+   */
+  public BackupProfile getProfile() {
+    return profile;
+  }
+
   /**
    * Gets the {@link ICommandSender} that requested the backup.
    *
@@ -191,12 +358,103 @@ public abstract class BackupCreator extends Thread {
     interrupter = inter;
   }
 
+  /**
+   * Asks the backup to stop. Returns right away; the backup stops at its next checkpoint (or
+   * interrupted IO), cleans up after itself and reports through the {@link Messenger}.
+   */
+  public void cancel() {
+    cancelRequested = true;
+    interrupt();
+  }
+
+  /**
+   * Asks the backup to stop without interrupting what it's doing, so it keeps what it finished.
+   *
+   * <p>Returns right away. Unlike {@link #cancel}, no IO is interrupted: the backup stops at its
+   * next file or block, makes a last checkpoint if it can be resumed, and is picked up by the next
+   * backup of its type.</p>
+   */
+  public void stopAtCheckpoint() {
+    cancelRequested = true;
+  }
+
+  /**
+   * Checks whether the backup has been asked to stop.
+   *
+   * <p>Creators call this between files and blocks so cancelling takes effect quickly even when
+   * nothing they're doing is interruptible.</p>
+   *
+   * @throws InterruptedException if the backup should stop.
+   */
+  protected void checkCancelled() throws InterruptedException {
+    if (cancelRequested || Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException("Backup cancelled");
+    }
+  }
+
+  /**
+   * Gets the live progress of this backup.
+   *
+   * <p>This can be read from any thread without locking.</p>
+   *
+   * @return Progress of the backup.
+   */
+  public BackupProgress getProgress() {
+    return progress;
+  }
+
+  /**
+   * Estimates the work of this backup from the most recent manifest, so progress can be shown
+   * while the targets are still being scanned.
+   *
+   * @param manifests Manifests of the existing backups.
+   * @throws IOException if the manifest can't be read.
+   */
+  protected void estimateProgress(ManifestStore manifests) throws IOException {
+    progress.setPhase(BackupProgress.Phase.SCANNING);
+
+    List<Manifest> existing = manifests.list();
+    if (existing.isEmpty()) {
+      return;
+    }
+
+    long bytes = 0;
+    long files = 0;
+    try (ManifestReader reader = manifests.open(existing.get(existing.size() - 1))) {
+      ManifestEntry entry;
+      while ((entry = reader.next()) != null) {
+        if (entry.isLive()) {
+          bytes += entry.getSize();
+          files++;
+        }
+      }
+    }
+    progress.estimate(bytes, files);
+  }
+
+  /**
+   * Records processed data and reports the progress.
+   *
+   * <p>This is cheap enough to call for every block processed; the {@link Messenger} only sends
+   * the latest progress now and then.</p>
+   *
+   * @param bytes Bytes processed since the last call.
+   */
+  protected void addProgress(long bytes) {
+    progress.addBytes(bytes);
+    messenger.progress(new ProgressUpdate(requester, getBackupType(), progress));
+  }
+
   /**
    * Sets the world saving setting for all worlds on the server.
    *
+   * <p>This and the other methods touching the server are the only way the backup reaches the
+   * worlds, so they can be overridden to back up something that isn't a running server (like the
+   * simulated one of the tick benchmark).</p>
+   *
    * @param worldSaving Whether to enable saving.
    */
-  private void setWorldSaving(boolean worldSaving) {
+  protected void setWorldSaving(boolean worldSaving) {
     MinecraftServer server = MinecraftServer.getServer();
     for (WorldServer world : server.worldServers) {
       if (world != null) {
@@ -205,6 +463,386 @@ public abstract class BackupCreator extends Thread {
     }
   }
 
+  /**
+   * Pauses saving for the whole server, and records when it was paused.
+   */
+  private void pauseWorldSaving() {
+    setWorldSaving(false);
+    pauseStart = System.nanoTime();
+    metrics.savingPaused();
+  }
+
+  /**
+   * Records how long saving was paused for, if it was.
+   */
+  private void recordPause() {
+    if (pauseStart >= 0) {
+      metrics.savingResumed(captureMode.getName(), System.nanoTime() - pauseStart);
+      pauseStart = -1;
+    }
+  }
+
+  /**
+   * Checks whether saving is enabled.
+   *
+   * @return {@code true} if any of the worlds have saving enabled.
+   */
+  protected boolean isWorldSaving() {
+    for (WorldServer world : MinecraftServer.getServer().worldServers) {
+      if (world != null && world.levelSaving) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Saves the data of every online player.
+   */
+  protected void savePlayerData() {
+    MinecraftServer.getServer().getConfigurationManager().saveAllPlayerData();
+  }
+
+  /**
+   * Saves every chunk of every world.
+   *
+   * @throws MinecraftException if a world can't be saved.
+   */
+  protected void saveAllChunks() throws MinecraftException {
+    for (WorldServer world : MinecraftServer.getServer().worldServers) {
+      if (world != null) {
+        world.saveAllChunks(true, null);
+      }
+    }
+  }
+
+  /**
+   * Gets the world the online and staggered capture modes work on, a dimension or a chunk at a
+   * time.
+   *
+   * @return The running server's world.
+   */
+  protected WorldAccess getWorldAccess() {
+    return new MinecraftWorld();
+  }
+
+  /**
+   * Saves every world.
+   *
+   * @throws MinecraftException if a world can't be saved.
+   */
+  private void saveWorlds() throws MinecraftException {
+    progress.setPhase(BackupProgress.Phase.SAVING);
+    saveAllChunks();
+  }
+
+  /**
+   * Puts world saving back the way it was before the backup, if the backup paused it.
+   *
+   * @param savingWasEnabled Whether saving was enabled before the backup.
+   */
+  private void resumeWorldSaving(boolean savingWasEnabled) {
+    if (captureMode == CaptureMode.PAUSE && preparesWorld()) {
+      setWorldSaving(savingWasEnabled);
+      recordPause();
+    }
+  }
+
+  /**
+   * Scans the backup targets.
+   *
+   * <p>With the {@link CaptureMode#ONLINE online} capture mode, the loaded chunks are saved first
+   * and the targets' world files are swapped for copies staged from the capture.</p>
+   *
+   * <p>A backup that's part of a {@link ProfileRun} gets the targets the run scanned for it.</p>
+   *
+   * @param manifests Manifests of the existing backups, whose folder holds the staged files.
+   * @return Sorted list of targets.
+   * @throws IOException if a target can't be walked or staging fails.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  protected List<TargetFile> scanTargets(ManifestStore manifests)
+      throws IOException, InterruptedException {
+    if (sharedTargets != null) {
+      return sharedTargets;
+    }
+    if (captureMode == CaptureMode.PRECOPY) {
+      return precopyTargets(manifests);
+    }
+    if (captureMode == CaptureMode.STAGGERED) {
+      schedule = new DimensionSchedule(getWorldAccess());
+    }
+    if (captureMode != CaptureMode.ONLINE) {
+      return walkTargets();
+    }
+
+    progress.setPhase(BackupProgress.Phase.CAPTURING);
+    capture = new WorldCapture(getWorldAccess(),
+        manifests.getOutputDir().resolve(WorldCapture.STAGING_FOLDER),
+        config.getCaptureTickBudget(), getIncludes(), getExcludes());
+    capture.capture();
+    logger.info("Saved " + capture.getChunkCount() + " loaded chunks for the capture");
+
+    progress.setPhase(BackupProgress.Phase.SCANNING);
+    return capture.stage(walkTargets());
+  }
+
+  /**
+   * Gets the files/folders this backup backs up.
+   *
+   * @return Paths relative to the server root.
+   */
+  protected String[] getIncludes() {
+    return profile.getIncludes();
+  }
+
+  /**
+   * Gets the files/folders left out of {@link #getIncludes}.
+   *
+   * @return Paths relative to the server root.
+   */
+  protected String[] getExcludes() {
+    return profile.getExcludes();
+  }
+
+  /**
+   * Walks the includes and lists the targets as they are on disk.
+   *
+   * @return Sorted list of targets.
+   * @throws IOException if a target can't be walked.
+   */
+  protected List<TargetFile> walkTargets() throws IOException {
+    return TargetScanner.scanAll(getIncludes(), getExcludes());
+  }
+
+  /**
+   * Chooses how the world is captured for this backup.
+   *
+   * @return The configured capture mode.
+   */
+  protected CaptureMode chooseCaptureMode() {
+    return config.getCaptureMode();
+  }
+
+  /**
+   * Copies the targets while the server keeps saving, then pauses saving just long enough to copy
+   * what changed meanwhile.
+   *
+   * @param manifests Manifests of the existing backups, whose folder holds the copies.
+   * @return Sorted list of targets, reading from the copies.
+   * @throws IOException if a target can't be copied or the world can't be saved.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private List<TargetFile> precopyTargets(ManifestStore manifests)
+      throws IOException, InterruptedException {
+    PreCopy precopy = new PreCopy(manifests.getOutputDir().resolve(PreCopy.MIRROR_FOLDER));
+
+    progress.setPhase(BackupProgress.Phase.COPYING);
+    int copied = precopy.firstPass(walkTargets());
+
+    List<TargetFile> targets;
+    pauseWorldSaving();
+    long pauseStart = this.pauseStart;
+    try {
+      saveWorlds();
+      progress.setPhase(BackupProgress.Phase.SCANNING);
+      targets = precopy.secondPass(walkTargets());
+    } catch (MinecraftException e) {
+      throw new IOException("Unable to save the world", e);
+    } finally {
+      // Compression and upload happen with saving back on.
+      setWorldSaving(savingWasEnabled);
+      recordPause();
+    }
+    logger.info("Pre-copied " + copied + " files, then re-copied " + precopy.getRecopied() +
+        " with saving paused for " +
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pauseStart) + " ms");
+
+    precopy.prune(targets);
+    return targets;
+  }
+
+  /**
+   * Puts targets in the order they should be backed up in.
+   *
+   * <p>With the {@link CaptureMode#STAGGERED staggered} capture mode, each dimension's files are
+   * put together. Otherwise the order is kept.</p>
+   *
+   * @param targets Targets to order.
+   * @return Targets in backup order.
+   */
+  protected List<TargetFile> orderTargets(List<TargetFile> targets) {
+    return schedule == null ? targets : schedule.order(targets);
+  }
+
+  /**
+   * Prepares the world for a target to be backed up. Creators call this before reading each
+   * target.
+   *
+   * <p>With the {@link CaptureMode#STAGGERED staggered} capture mode, this saves and pauses the
+   * target's dimension when the backup moves on to it.</p>
+   *
+   * @param target Target about to be backed up.
+   * @throws IOException if the target's dimension can't be saved.
+   * @throws InterruptedException if the backup is cancelled while the dimension is saved.
+   */
+  protected void beginTarget(TargetFile target) throws IOException, InterruptedException {
+    if (schedule != null) {
+      schedule.enter(target);
+    }
+  }
+
+  /**
+   * Prepares the world for a changed target (see {@link #beginTarget}) and checks that it's still
+   * there.
+   *
+   * <p>With the {@link CaptureMode#STAGGERED staggered} capture mode, the scan runs while the
+   * server saves, so a file it found may be gone by the time its dimension is paused (like the
+   * temporary file player data is saved to). Such a file is recorded as deleted and isn't part of
+   * the backup.</p>
+   *
+   * @param target Changed target about to be backed up.
+   * @param changes Changes since the base backup.
+   * @return {@code true} if the target is to be backed up.
+   * @throws IOException if the target's dimension can't be saved.
+   * @throws InterruptedException if the backup is cancelled while the dimension is saved.
+   */
+  protected boolean beginChangedTarget(TargetFile target, ChangeSet changes)
+      throws IOException, InterruptedException {
+    beginTarget(target);
+    if (schedule == null || Files.exists(target.getSource())) {
+      return true;
+    }
+    changes.deletedSinceScan(target);
+    return false;
+  }
+
+  /**
+   * Checks a target the scan found unchanged again, once the world is prepared for it.
+   *
+   * <p>With the {@link CaptureMode#STAGGERED staggered} capture mode, a target's dimension is only
+   * saved and paused after the scan, so a file that was unchanged then may have been saved since.
+   * Such a file is recorded as changed after all. Creators call this instead of reusing an
+   * unchanged target straight away.</p>
+   *
+   * @param target Target the scan found unchanged since the base backup.
+   * @param changes Changes since the base backup.
+   * @return The target as it is now if it has changed since the scan, or {@code null} if the
+   * backup can reuse it.
+   * @throws IOException if the target's dimension can't be saved.
+   * @throws InterruptedException if the backup is cancelled while the dimension is saved.
+   */
+  protected TargetFile recheckUnchanged(TargetFile target, ChangeSet changes)
+      throws IOException, InterruptedException {
+    if (schedule == null) {
+      return null;
+    }
+
+    beginTarget(target);
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(target.getSource(), BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      // Deleted since the scan, so it's backed up as it was.
+      return null;
+    }
+    long modified = attributes.lastModifiedTime().toMillis();
+    if (attributes.size() == target.getSize() && modified == target.getLastModified()) {
+      return null;
+    }
+
+    TargetFile current = new TargetFile(target.getPath(), false, attributes.size(), modified,
+        target.getSource());
+    changes.changedSinceScan(current);
+    return current;
+  }
+
+  /**
+   * Reads until a block is full or the stream ends.
+   *
+   * @param in Stream to read from.
+   * @param block Block to fill.
+   * @return Number of bytes read. This is less than the block size only at the end of the stream.
+   * @throws IOException if reading fails.
+   */
+  protected static int readBlock(InputStream in, byte[] block) throws IOException {
+    int filled = 0;
+    while (filled < block.length) {
+      int read = in.read(block, filled, block.length - filled);
+      if (read == -1) {
+        break;
+      }
+      filled += read;
+    }
+    return filled;
+  }
+
+  /**
+   * Checks whether a target is small enough to be packed into a segment rather than stored on
+   * its own.
+   *
+   * <p>Region files are never packed: they're mostly large, and are read as region files for
+   * their chunk hashes.</p>
+   *
+   * @param target Target to check.
+   * @return {@code true} if the target is a file of at most {@code packSmallFilesKiB}.
+   */
+  protected boolean isSmallFile(TargetFile target) {
+    int smallFileSize = config.getSmallFileSize();
+    return smallFileSize > 0 && !target.isDirectory() && target.getSize() <= smallFileSize &&
+        !RegionFileReader.isRegionFile(target.getPath());
+  }
+
+  /**
+   * Starts hashing the chunks of a target for the manifest, from its data as it's copied.
+   *
+   * @param target Target about to be copied.
+   * @return Hasher to give the target's data to, or {@code null} if it isn't a region file.
+   */
+  protected ChunkHasher startChunkHashes(TargetFile target) {
+    return RegionFileReader.isRegionFile(target.getPath()) ? new ChunkHasher() : null;
+  }
+
+  /**
+   * Finishes hashing the chunks of a target that was copied whole.
+   *
+   * @param target Target that was copied.
+   * @param hasher Hasher its data was given to, or {@code null}.
+   * @return Encoded chunk hashes, or {@code null} if the target isn't a region file or can't be
+   * read as one.
+   */
+  protected String finishChunkHashes(TargetFile target, ChunkHasher hasher) {
+    if (hasher == null) {
+      return null;
+    }
+    try {
+      return hasher.finish().encode();
+    } catch (RegionFormatException e) {
+      logger.warn("Not hashing the chunks of damaged region file " + target.getName(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Ends whatever the capture mode set up: gives a paused dimension its saving back and deletes
+   * the files staged by the online capture, logging any error.
+   */
+  private void endCapture() {
+    if (schedule != null) {
+      schedule.resume();
+      schedule = null;
+    }
+    if (capture == null) {
+      return;
+    }
+    try {
+      capture.delete();
+    } catch (IOException e) {
+      logger.error("Unable to delete the files staged by the capture", e);
+    }
+    capture = null;
+  }
+
   /**
    * Update this backup's status.
    *
@@ -242,59 +880,122 @@ public abstract class BackupCreator extends Thread {
   }
 
   /**
-   * The generic method for taking backups. This does setup for backups, calls the
-   * {@link #createBackup} method of the derivative class to create the backup, then does does the
-   * completion code for backups.
+   * Deletes the partial output of the backup, logging any error.
+   *
+   * @return {@code true} if the partial output was deleted.
    */
-  @Override
-  public void run() {
-    MinecraftServer server = MinecraftServer.getServer();
+  private boolean cleanUp() {
+    try {
+      deletePartialOutput();
+      return true;
+    } catch (IOException e) {
+      logger.error("Unable to delete the partial output of the " + getBackupType(), e);
+      return false;
+    }
+  }
 
-    setStatus(BackupStatus.INPROGRESS);
+  /**
+   * Waits until this server may back up, if the servers on the host take turns.
+   *
+   * <p>If the coordination folder can't be used, the backup goes ahead without waiting rather
+   * than not being taken.</p>
+   *
+   * @return The slot this server holds, or {@code null} if it doesn't take turns.
+   * @throws InterruptedException if the backup is cancelled while waiting.
+   */
+  private BackupSlot waitForSlot() throws InterruptedException {
+    if (config.getCoordinationFolder().isEmpty()) {
+      return null;
+    }
 
-    messenger.info(requester, "Starting " + getBackupType());
+    BackupSlot slot = null;
+    long waitStart = System.nanoTime();
+    try {
+      slot = BackupSlot.join(Paths.get(config.getCoordinationFolder()),
+          config.getRepositoryInstance(), config.getCoordinationSlots(),
+          config.getCoordinationLease());
+      int ahead = slot.poll();
+      if (ahead > 0) {
+        progress.setPhase(BackupProgress.Phase.WAITING);
+        messenger.info(requester, "Waiting for other servers to finish backing up (" + ahead +
+            " ahead)");
+        do {
+          metrics.setQueuePosition(ahead);
+          checkCancelled();
+          Thread.sleep(SLOT_POLL_MILLIS);
+        } while ((ahead = slot.poll()) > 0);
+      }
+      metrics.queueWaited(System.nanoTime() - waitStart);
+      return slot;
+    } catch (IOException e) {
+      logger.warn("Unable to take turns with the other servers, backing up right away", e);
+      leaveQueue(slot);
+      return null;
+    } catch (InterruptedException e) {
+      leaveQueue(slot);
+      throw e;
+    } finally {
+      metrics.setQueuePosition(0);
+    }
+  }
+
+  /**
+   * Gives up this server's place in the queue for backup slots, logging any error.
+   *
+   * @param slot Slot to give up, or {@code null} if there isn't one.
+   */
+  private void leaveQueue(BackupSlot slot) {
+    if (slot == null) {
+      return;
+    }
+    try {
+      slot.close();
+    } catch (IOException e) {
+      logger.error("Unable to give up the backup slot, it's given up when its lease runs out", e);
+    }
+  }
 
+  /**
+   * Saves the world (and pauses saving) as the capture mode needs before the backup is written.
+   *
+   * <p>If this fails, the backup is marked as failed and the failure is reported.</p>
+   *
+   * @return {@code true} if the backup can go ahead.
+   */
+  private boolean prepareWorld() {
     // Save player data (I guess we call this and hope it works?)
-    MinecraftServer.getServer().getConfigurationManager().saveAllPlayerData();
+    savePlayerData();
 
-    // Take note of whether saving was enabled in the first place
-    boolean savingWasEnabled = false;
-    // If any of the worlds have saving enabled, assume saving is enabled for all of them.
-    for (WorldServer world : server.worldServers) {
-      if (world != null) {
-        if (world.levelSaving) {
-          savingWasEnabled = true;
-          break;
-        }
-      }
-    }
+    // Take note of whether saving was enabled in the first place. If any of the worlds have
+    // saving enabled, assume saving is enabled for all of them.
+    savingWasEnabled = isWorldSaving();
 
-    setWorldSaving(false);
+    // The other capture modes save (or copy) the world as the backup runs instead.
+    captureMode = chooseCaptureMode();
+    if (captureMode == CaptureMode.PAUSE) {
+      pauseWorldSaving();
 
-    // Save world data
-    try {
-      for (WorldServer world : server.worldServers) {
-        if (world != null) {
-          world.saveAllChunks(true, null);
-        }
-      }
-    } catch (MinecraftException exception) {
-      setWorldSaving(savingWasEnabled);
+      // Save world data
+      try {
+        saveWorlds();
+      } catch (MinecraftException exception) {
+        resumeWorldSaving(savingWasEnabled);
 
-      error = exception;
-      setStatus(BackupStatus.FAILED);
+        error = exception;
+        setStatus(BackupStatus.FAILED);
 
-      messenger.error(
-          requester,
-          "Unable to save world for the " + getBackupType() + ". No data has been backed up.",
-          exception
-      );
+        messenger.error(
+            requester,
+            "Unable to save world for the " + getBackupType() + ". No data has been backed up.",
+            exception
+        );
 
-      return;
+        return false;
+      }
     }
 
-    if (config.getBackupIncludes().length == 0) {
-      setWorldSaving(savingWasEnabled);
+    if (getIncludes().length == 0) {
+      resumeWorldSaving(savingWasEnabled);
 
       // I might want to use a better error class here
       error = new Throwable("There are no configured targets for backups in the config file!");
@@ -302,24 +1003,114 @@ public abstract class BackupCreator extends Thread {
 
       messenger.error(requester, error.getMessage());
 
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * The generic method for taking backups. This does setup for backups, calls the
+   * {@link #createBackup} method of the derivative class to create the backup, then does does the
+   * completion code for backups.
+   */
+  @Override
+  public void run() {
+    setStatus(BackupStatus.INPROGRESS);
+
+    messenger.info(requester, "Starting " + getBackupType());
+
+    long startNanos = System.nanoTime();
+    metrics.backupStarted(getMetricsType());
+    progress.record(metrics, getMetricsType(), config.getSlowFileNanos());
+    try {
+      BackupSlot slot;
+      try {
+        // The run a backup is part of has waited for the slot for it.
+        slot = sharedTargets == null ? waitForSlot() : null;
+      } catch (InterruptedException e) {
+        setStatus(BackupStatus.INTERRUPTED);
+        reportInterrupted("The " + getBackupType() + " was cancelled while waiting for its turn.");
+        return;
+      }
+
+      try {
+        backUp();
+      } finally {
+        leaveQueue(slot);
+      }
+    } finally {
+      recordMetrics(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Records how the backup went and where its time went in the metrics, and logs the files that
+   * were slow.
+   *
+   * @param nanos How long the backup took, including waiting for its turn.
+   */
+  private void recordMetrics(long nanos) {
+    String type = getMetricsType();
+    // Ends the last phase, so its time is counted.
+    progress.setPhase(BackupProgress.Phase.DONE);
+    for (BackupProgress.Phase phase : BackupProgress.Phase.values()) {
+      long phaseNanos = progress.getPhaseNanos(phase);
+      if (phase != BackupProgress.Phase.DONE && phaseNanos > 0) {
+        metrics.phaseEnded(type, phase.name().toLowerCase(Locale.ROOT), phaseNanos);
+      }
+    }
+
+    // A backup still in progress here was ended by an unexpected exception.
+    BackupStatus ended = status == BackupStatus.INPROGRESS ? BackupStatus.FAILED : status;
+    metrics.backupEnded(type, ended.name().toLowerCase(Locale.ROOT), nanos);
+
+    if (progress.getSlowestFile() != null) {
+      metrics.getSlowestFile(type).set(progress.getSlowestFileNanos() / 1e9);
+    }
+    if (progress.getSlowFileCount() > 0) {
+      logger.info(String.format("%d files took longer than %d ms to back up, the slowest was " +
+              "%s (%d ms)", progress.getSlowFileCount(),
+          TimeUnit.NANOSECONDS.toMillis(config.getSlowFileNanos()), progress.getSlowestFile(),
+          TimeUnit.NANOSECONDS.toMillis(progress.getSlowestFileNanos())));
+    }
+  }
+
+  /**
+   * Takes the backup once it's this server's turn, and reports how it went.
+   */
+  private void backUp() {
+    if (preparesWorld() && !prepareWorld()) {
       return;
     }
 
     try {
       createBackup();
-    } catch (InterruptedException | ClosedByInterruptException e) {
-      setWorldSaving(savingWasEnabled);
+    } catch (InterruptedException | ClosedByInterruptException | InterruptedIOException e) {
+      resumeWorldSaving(savingWasEnabled);
+
+      // Clear the interrupt so it doesn't also interrupt the cleanup.
+      Thread.interrupted();
+
+      String outcome;
+      if (interrupter == null && canResume()) {
+        // Stopped by the server rather than cancelled, so keep what's done for next time.
+        outcome = "It will be resumed by the next " + getBackupType() + ".";
+      } else if (cleanUp()) {
+        outcome = "Its partial output has been deleted.";
+      } else {
+        outcome = "Its partial output couldn't be deleted, see the server log.";
+      }
 
       setStatus(BackupStatus.INTERRUPTED);
 
-      messenger.info(
-          requester,
-          "The " + getBackupType() + " was interrupted. Any temporary backup files will be deleted."
-      );
+      reportInterrupted("The " + getBackupType() + " was interrupted. " + outcome);
 
       return;
     } catch (IOException exception) {
-      setWorldSaving(savingWasEnabled);
+      resumeWorldSaving(savingWasEnabled);
+
+      cleanUp();
 
       error = exception;
       setStatus(BackupStatus.FAILED);
@@ -331,9 +1122,13 @@ public abstract class BackupCreator extends Thread {
       );
 
       return;
+    } finally {
+      endCapture();
+      progress.setPhase(BackupProgress.Phase.DONE);
+      messenger.clearProgress();
     }
 
-    setWorldSaving(savingWasEnabled);
+    resumeWorldSaving(savingWasEnabled);
 
     setStatus(BackupStatus.COMPLETED);
 
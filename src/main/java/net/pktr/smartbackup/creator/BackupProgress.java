@@ -0,0 +1,384 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.metrics.BackupMetrics;
+import net.pktr.smartbackup.metrics.Counter;
+import net.pktr.smartbackup.metrics.Histogram;
+
+/**
+ * Live progress of a backup.
+ *
+ * <p>Progress is only updated by the backup thread. Every value is published through a volatile
+ * field, so other threads (the status command, metrics) read it without taking any locks. Values
+ * read together may come from slightly different moments.</p>
+ */
+public class BackupProgress {
+  /** How long (in nanoseconds) throughput is measured over before it's folded into the rate. */
+  private static final long RATE_WINDOW_NANOS = 1000000000L;
+  /** Weight of the latest window in the smoothed rate. */
+  private static final double RATE_SMOOTHING = 0.3;
+
+  /** What the backup is doing, as shown by the status command. */
+  public static enum Phase {
+    /** The backup hasn't started processing data. */
+    WAITING("Waiting"),
+    /** Saving the world before backing it up. */
+    SAVING("Saving the world"),
+    /** Copying the targets before saving is paused. */
+    COPYING("Pre-copying targets"),
+    /** Saving loaded chunks for the online capture. */
+    CAPTURING("Capturing loaded chunks"),
+    /** Finding what to back up. */
+    SCANNING("Scanning targets"),
+    /** Writing the backup. */
+    WRITING("Writing"),
+    /** Waiting for the rest of the backup to be uploaded. */
+    UPLOADING("Finishing the upload"),
+    /** Deleting data that no backup in the repository uses any more. */
+    COLLECTING("Cleaning up the repository"),
+    /** The backup has ended. */
+    DONE("Done");
+
+    private final String description;
+
+    Phase(String description) {
+      this.description = description;
+    }
+
+    /**
+     * Gets a description of the phase for status output.
+     *
+     * @return Description of the phase.
+     */
+    public String getDescription() {
+      return description;
+    }
+  }
+
+  private volatile Phase phase = Phase.WAITING;
+  private volatile boolean estimated = true;
+  private volatile long bytesTotal = 0;
+  private volatile long filesTotal = 0;
+  private volatile long bytesDone = 0;
+  private volatile long filesDone = 0;
+  private volatile String currentFile = null;
+  private volatile long startNanos = System.nanoTime();
+  /** Smoothed throughput in bytes per second, or -1 until the first window has passed. */
+  private volatile double smoothedRate = -1;
+
+  /** Start (from {@link System#nanoTime}) of the current rate window. Backup thread only. */
+  private long windowStart = startNanos;
+  /** Bytes done when the current rate window started. Backup thread only. */
+  private long windowBytes = 0;
+
+  /** Time spent in each phase, in nanoseconds. Backup thread only. */
+  private final long[] phaseNanos = new long[Phase.values().length];
+  /** When the current phase started. Backup thread only. */
+  private long phaseStart = startNanos;
+  /** When the current file started. Backup thread only. */
+  private long fileStart = startNanos;
+  /** Name of the file that took the longest, or {@code null}. Backup thread only. */
+  private String slowestFile = null;
+  /** Time the slowest file took. Backup thread only. */
+  private long slowestFileNanos = 0;
+  /** Number of files slower than {@link #slowFileNanos}. Backup thread only. */
+  private int slowFileCount = 0;
+
+  /** Metrics the progress is also counted in, or {@code null} if it isn't. */
+  private Counter.Child bytesCounter = null;
+  private Counter.Child filesCounter = null;
+  private Histogram.Child fileDuration = null;
+  private Counter.Child slowFiles = null;
+  /** Time after which a file is slow, or 0 if files aren't checked. */
+  private long slowFileNanos = 0;
+
+  /**
+   * Counts the progress in the metrics as well, from now on.
+   *
+   * <p>The metrics are looked up once here, so counting a block costs one uncontended add.</p>
+   *
+   * @param metrics Metrics to count the progress in.
+   * @param type Type of the backup, as labelled in the metrics.
+   * @param slowFileNanos Time after which a file is counted as slow, or 0 to not check.
+   */
+  public void record(BackupMetrics metrics, String type, long slowFileNanos) {
+    bytesCounter = metrics.getProcessedBytes(type);
+    filesCounter = metrics.getProcessedFiles(type);
+    fileDuration = metrics.getFileDuration(type);
+    slowFiles = metrics.getSlowFiles(type);
+    this.slowFileNanos = slowFileNanos;
+  }
+
+  /**
+   * Sets what the backup is doing.
+   *
+   * @param phase The new phase.
+   */
+  public void setPhase(Phase phase) {
+    enterPhase(phase);
+    if (phase == Phase.DONE) {
+      currentFile = null;
+    }
+  }
+
+  /**
+   * Sets an estimate of the work, used until the exact amount is known.
+   *
+   * @param bytes Estimated bytes to process.
+   * @param files Estimated files to process.
+   */
+  public void estimate(long bytes, long files) {
+    bytesTotal = bytes;
+    filesTotal = files;
+    estimated = true;
+  }
+
+  /**
+   * Starts processing data. Sets the exact amount of work and resets the rate.
+   *
+   * @param bytes Bytes to process.
+   * @param files Files to process.
+   */
+  public void start(long bytes, long files) {
+    bytesTotal = bytes;
+    filesTotal = files;
+    estimated = false;
+    bytesDone = 0;
+    filesDone = 0;
+    smoothedRate = -1;
+    startNanos = System.nanoTime();
+    windowStart = startNanos;
+    windowBytes = 0;
+    enterPhase(Phase.WRITING);
+  }
+
+  /**
+   * Ends the current phase, adding its time to the phase's total, and starts another.
+   *
+   * @param next The new phase.
+   */
+  private void enterPhase(Phase next) {
+    long now = System.nanoTime();
+    phaseNanos[phase.ordinal()] += now - phaseStart;
+    phaseStart = now;
+    phase = next;
+  }
+
+  /**
+   * Records that a file is being processed.
+   *
+   * @param name Name of the file.
+   */
+  public void beginFile(String name) {
+    currentFile = name;
+    fileStart = System.nanoTime();
+  }
+
+  /**
+   * Records that a file has been processed.
+   */
+  public void fileDone() {
+    filesDone = filesDone + 1;
+    if (filesCounter == null) {
+      return;
+    }
+
+    long elapsed = System.nanoTime() - fileStart;
+    filesCounter.inc();
+    fileDuration.observeNanos(elapsed);
+    if (elapsed > slowestFileNanos) {
+      slowestFileNanos = elapsed;
+      slowestFile = currentFile;
+    }
+    if (slowFileNanos > 0 && elapsed >= slowFileNanos) {
+      slowFiles.inc();
+      slowFileCount++;
+    }
+  }
+
+  /**
+   * Records processed bytes.
+   *
+   * @param bytes Bytes processed since the last call.
+   */
+  public void addBytes(long bytes) {
+    long done = bytesDone + bytes;
+    bytesDone = done;
+    if (bytesCounter != null) {
+      bytesCounter.add(bytes);
+    }
+
+    long now = System.nanoTime();
+    long window = now - windowStart;
+    if (window >= RATE_WINDOW_NANOS) {
+      double rate = (done - windowBytes) * 1e9 / window;
+      double previous = smoothedRate;
+      smoothedRate = previous < 0 ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * previous;
+      windowStart = now;
+      windowBytes = done;
+    }
+  }
+
+  /**
+   * Gets what the backup is doing.
+   *
+   * @return The current phase.
+   */
+  public Phase getPhase() {
+    return phase;
+  }
+
+  /**
+   * Checks whether the totals are an estimate.
+   *
+   * @return {@code true} until the exact amount of work is known.
+   */
+  public boolean isEstimated() {
+    return estimated;
+  }
+
+  /**
+   * Gets the bytes to process.
+   *
+   * @return Total bytes (never less than the bytes already done).
+   */
+  public long getBytesTotal() {
+    return Math.max(bytesTotal, bytesDone);
+  }
+
+  /**
+   * Gets the files to process.
+   *
+   * @return Total files (never less than the files already done).
+   */
+  public long getFilesTotal() {
+    return Math.max(filesTotal, filesDone);
+  }
+
+  /**
+   * Gets the bytes processed so far.
+   *
+   * @return Bytes done.
+   */
+  public long getBytesDone() {
+    return bytesDone;
+  }
+
+  /**
+   * Gets the files processed so far.
+   *
+   * @return Files done.
+   */
+  public long getFilesDone() {
+    return filesDone;
+  }
+
+  /**
+   * Gets the file being processed.
+   *
+   * @return Name of the current file, or {@code null} if there isn't one.
+   */
+  public String getCurrentFile() {
+    return currentFile;
+  }
+
+  /**
+   * Gets how much of the backup is done.
+   *
+   * @return Percentage (0-100) of the bytes processed.
+   */
+  public int getPercentDone() {
+    long total = getBytesTotal();
+    return total <= 0 ? 0 : (int) Math.min(100, bytesDone * 100 / total);
+  }
+
+  /**
+   * Gets the average throughput since processing started.
+   *
+   * @return Bytes per second.
+   */
+  public double getAverageRate() {
+    long elapsed = System.nanoTime() - startNanos;
+    return elapsed <= 0 ? 0 : bytesDone * 1e9 / elapsed;
+  }
+
+  /**
+   * Gets the recent throughput, smoothed over the last few seconds.
+   *
+   * @return Bytes per second. This is the average rate until there's enough data to smooth.
+   */
+  public double getCurrentRate() {
+    double rate = smoothedRate;
+    return rate < 0 ? getAverageRate() : rate;
+  }
+
+  /**
+   * Estimates the time left at the recent throughput.
+   *
+   * @return Seconds left, or -1 if there is no estimate yet.
+   */
+  public long getSecondsLeft() {
+    if (phase != Phase.WRITING) {
+      return -1;
+    }
+    double rate = getCurrentRate();
+    if (rate <= 0) {
+      return -1;
+    }
+    return (long) ((getBytesTotal() - bytesDone) / rate);
+  }
+
+  /**
+   * Gets the time spent in a phase so far, not counting the current phase's current stretch.
+   * Backup thread only.
+   *
+   * @param phase Phase to look up.
+   * @return Time in nanoseconds.
+   */
+  public long getPhaseNanos(Phase phase) {
+    return phaseNanos[phase.ordinal()];
+  }
+
+  /**
+   * Gets the file that took the longest. Backup thread only, and only while the progress is
+   * counted in the metrics.
+   *
+   * @return Name of the file, or {@code null} if no file is done.
+   */
+  public String getSlowestFile() {
+    return slowestFile;
+  }
+
+  /**
+   * Gets the time the slowest file took. Backup thread only.
+   *
+   * @return Time in nanoseconds.
+   */
+  public long getSlowestFileNanos() {
+    return slowestFileNanos;
+  }
+
+  /**
+   * Gets the number of files that were slow. Backup thread only.
+   *
+   * @return Number of files that took longer than the slow file time.
+   */
+  public int getSlowFileCount() {
+    return slowFileCount;
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.storage.ObjectUpload;
+import net.pktr.smartbackup.storage.StorageBackend;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Uploads a backup file to a {@link StorageBackend} while it's still being written.
+ *
+ * <p>The writer tells the uploader how much of the file is final (synced and never written again,
+ * eg up to the last checkpoint) with {@link #setAvailable}, and the uploader follows along behind
+ * it, so the upload overlaps with creating the backup instead of starting after it. Once the
+ * writer calls {@link #finish} with the final length, the rest is uploaded and the object
+ * committed.</p>
+ *
+ * <p>The file is opened once when the uploader is created and read through that handle, so the
+ * writer may rename it (publish it) while it's being uploaded.</p>
+ */
+class BackupUploader extends Thread {
+  /** Size of the reads from the file. */
+  private static final int READ_SIZE = 1024 * 1024;
+
+  private final StorageBackend backend;
+  private final String key;
+  private final FileChannel channel;
+  /** Length of the file that can be uploaded. */
+  private long available = 0;
+  /** Final length of the file, or -1 if it isn't finished yet. */
+  private long finalLength = -1;
+  /** Why the upload failed, or {@code null}. */
+  private IOException failure = null;
+
+  /**
+   * Sets up an upload of a file that's being written.
+   *
+   * @param backend Where to upload the file.
+   * @param file File to upload.
+   * @param key Key to upload the file as.
+   * @throws IOException if the file can't be opened.
+   */
+  BackupUploader(StorageBackend backend, Path file, String key) throws IOException {
+    this.backend = backend;
+    this.key = key;
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    this.setName("Upload Thread");
+    this.setDaemon(true);
+  }
+
+  /**
+   * Lets the uploader upload the file up to a length. Nothing before it may change afterwards.
+   *
+   * @param length Length of the file that's final.
+   */
+  synchronized void setAvailable(long length) {
+    available = Math.max(available, length);
+    notifyAll();
+  }
+
+  /**
+   * Tells the uploader the file is complete.
+   *
+   * @param length Final length of the file.
+   */
+  synchronized void finish(long length) {
+    available = length;
+    finalLength = length;
+    notifyAll();
+  }
+
+  /**
+   * Waits for the upload to be committed.
+   *
+   * @throws InterruptedException if waiting is interrupted.
+   * @throws IOException if the upload failed.
+   */
+  void await() throws InterruptedException, IOException {
+    join();
+    synchronized (this) {
+      if (failure != null) {
+        throw new IOException("Uploading " + key + " failed: " + failure.getMessage(), failure);
+      }
+    }
+  }
+
+  /**
+   * Stops the upload without committing it. What was uploaded so far is kept, so uploading the
+   * same key again resumes it.
+   */
+  void stopUpload() {
+    interrupt();
+    try {
+      join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      upload();
+    } catch (InterruptedException | InterruptedIOException | ClosedByInterruptException e) {
+      // Stopped; the upload was closed and stays resumable.
+    } catch (IOException e) {
+      synchronized (this) {
+        failure = e;
+      }
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Only read from, nothing to lose.
+      }
+    }
+  }
+
+  /**
+   * Uploads the file as it becomes available, then commits it.
+   *
+   * @throws InterruptedException if the upload is stopped.
+   * @throws IOException if the upload fails.
+   */
+  private void upload() throws InterruptedException, IOException {
+    ObjectUpload upload = backend.upload(key);
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+      long offset = upload.getResumeOffset();
+      while (true) {
+        long end;
+        boolean finished;
+        synchronized (this) {
+          while (available <= offset && finalLength == -1) {
+            wait();
+          }
+          end = available;
+          finished = finalLength != -1;
+          if (finished && offset > finalLength) {
+            // What was uploaded before doesn't belong to this file; start over.
+            upload.abort();
+            upload = backend.upload(key);
+            offset = upload.getResumeOffset();
+          }
+        }
+        if (finished && offset == end) {
+          break;
+        }
+
+        while (offset < end) {
+          buffer.clear();
+          buffer.limit((int) Math.min(READ_SIZE, end - offset));
+          int read = channel.read(buffer, offset);
+          if (read == -1) {
+            throw new IOException("Backup file ended before it was uploaded: " + key);
+          }
+          upload.write(buffer.array(), 0, read);
+          offset += read;
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+        }
+      }
+      upload.commit();
+    } finally {
+      // Let the parts in flight finish even when stopped, so they're kept for resuming.
+      boolean interrupted = Thread.interrupted();
+      upload.close();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Uploads a finished file.
+   *
+   * @param backend Where to upload the file.
+   * @param file File to upload.
+   * @param key Key to upload the file as.
+   * @throws InterruptedException if the upload is interrupted.
+   * @throws IOException if the upload fails.
+   */
+  static void uploadFile(StorageBackend backend, Path file, String key)
+      throws InterruptedException, IOException {
+    BackupUploader uploader = new BackupUploader(backend, file, key);
+    uploader.finish(uploader.channel.size());
+    uploader.start();
+    uploader.await();
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+/** The ways the world can be captured for a backup. */
+public enum CaptureMode {
+  /** Save every world, then keep saving off until the backup is written. */
+  PAUSE("pause"),
+  /**
+   * Copy the targets with saving on, then pause saving only to copy again what changed meanwhile.
+   */
+  PRECOPY("precopy"),
+  /** Save and pause one dimension at a time, while its files are written. */
+  STAGGERED("staggered"),
+  /** Save changed chunks a little every tick and stage the world files, leaving saving on. */
+  ONLINE("online");
+
+  /** Name of the mode as used in the configuration. */
+  private final String name;
+
+  CaptureMode(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the name of this mode as used in the configuration.
+   *
+   * @return Lowercase name of the mode.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the names of all modes.
+   *
+   * @return Names of the modes, in declaration order.
+   */
+  public static String[] getNames() {
+    CaptureMode[] modes = values();
+    String[] names = new String[modes.length];
+    for (int i = 0; i < modes.length; i++) {
+      names[i] = modes[i].name;
+    }
+    return names;
+  }
+
+  /**
+   * Looks up a mode by name.
+   *
+   * @param name Name of the mode.
+   * @return The mode.
+   * @throws IllegalArgumentException if there is no mode with that name.
+   */
+  public static CaptureMode fromName(String name) {
+    for (CaptureMode mode : values()) {
+      if (mode.name.equalsIgnoreCase(name)) {
+        return mode;
+      }
+    }
+    throw new IllegalArgumentException("Unknown capture mode: " + name);
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.manifest.Manifest;
+import net.pktr.smartbackup.manifest.ManifestEntry;
+import net.pktr.smartbackup.manifest.ManifestReader;
+import net.pktr.smartbackup.manifest.ManifestWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the scanned targets with the manifest of an earlier backup.
+ *
+ * <p>Both lists are sorted by name, so they are merged in a single pass without holding the base
+ * manifest in memory. A file is unchanged if it is still there with the same size and
+ * modification time. Files in the base that are gone are recorded as deleted.</p>
+ */
+public class ChangeSet {
+  /** Targets whose data has to be written into the new backup. */
+  private final List<TargetFile> changed = new ArrayList<>();
+  /** Targets that are unchanged since the base backup. */
+  private final List<TargetFile> unchanged = new ArrayList<>();
+  /** Manifest entries of the new backup, in name order. */
+  private final List<ManifestEntry> entries = new ArrayList<>();
+  /** Position of each changed file and folder in {@link #entries}. */
+  private final Map<String, Integer> changedEntries = new HashMap<>();
+  /** Position of each unchanged file in {@link #entries}. */
+  private final Map<String, Integer> unchangedEntries = new HashMap<>();
+  /** Number of base files that have been deleted. */
+  private int deletedCount = 0;
+
+  private ChangeSet() {
+  }
+
+  /**
+   * Works out what changed since a base backup.
+   *
+   * @param targets Scanned targets, sorted by name.
+   * @param base Manifest of the base backup, or {@code null} to treat everything as changed.
+   * @param baseName Name of the base backup.
+   * @param selfContained Whether the new backup will hold (or link to) the data of unchanged
+   * files itself. Otherwise their entries keep pointing at the backup holding their data.
+   * @return The changes.
+   * @throws IOException if the base manifest can't be read.
+   */
+  public static ChangeSet compute(List<TargetFile> targets, ManifestReader base, String baseName,
+      boolean selfContained) throws IOException {
+    ChangeSet changes = new ChangeSet();
+
+    ManifestEntry baseEntry = base == null ? null : nextLive(base);
+    for (TargetFile target : targets) {
+      String name = target.getName();
+
+      // Everything in the base sorting before this target has been deleted.
+      while (baseEntry != null && baseEntry.getName().compareTo(name) < 0) {
+        changes.addDeleted(baseEntry);
+        baseEntry = nextLive(base);
+      }
+
+      ManifestEntry match = null;
+      if (baseEntry != null && baseEntry.getName().equals(name)) {
+        match = baseEntry;
+        baseEntry = nextLive(base);
+      }
+
+      if (target.isDirectory()) {
+        // Folders have no data, so they're always recorded in the new backup.
+        changes.changedEntries.put(name, changes.entries.size());
+        changes.entries.add(new ManifestEntry(ManifestEntry.Type.DIRECTORY, name, 0,
+            target.getLastModified(), null, ManifestEntry.THIS_BACKUP));
+        changes.changed.add(target);
+      } else if (match != null && match.getType() == ManifestEntry.Type.FILE &&
+          match.getSize() == target.getSize() &&
+          match.getLastModified() == target.getLastModified()) {
+        String source = selfContained ? ManifestEntry.THIS_BACKUP : match.getSource(baseName);
+        changes.unchangedEntries.put(name, changes.entries.size());
+        changes.entries.add(new ManifestEntry(ManifestEntry.Type.FILE, name, match.getSize(),
+            match.getLastModified(), match.getHash(), source, match.getChunkHashes()));
+        changes.unchanged.add(target);
+      } else {
+        changes.changedEntries.put(name, changes.entries.size());
+        changes.entries.add(new ManifestEntry(ManifestEntry.Type.FILE, name, target.getSize(),
+            target.getLastModified(), null, ManifestEntry.THIS_BACKUP));
+        changes.changed.add(target);
+      }
+    }
+
+    while (baseEntry != null) {
+      changes.addDeleted(baseEntry);
+      baseEntry = nextLive(base);
+    }
+
+    return changes;
+  }
+
+  /**
+   * Reads the next entry of a manifest that isn't a deletion.
+   *
+   * <p>Deletions in the base only matter to the base itself, a file missing now is recorded as
+   * deleted again if it was live in the base.</p>
+   */
+  private static ManifestEntry nextLive(ManifestReader reader) throws IOException {
+    ManifestEntry entry;
+    while ((entry = reader.next()) != null && !entry.isLive()) {
+      // Skip
+    }
+    return entry;
+  }
+
+  private void addDeleted(ManifestEntry baseEntry) {
+    entries.add(new ManifestEntry(ManifestEntry.Type.DELETED, baseEntry.getName(), 0, 0, null,
+        ManifestEntry.THIS_BACKUP));
+    deletedCount++;
+  }
+
+  /**
+   * Records the size and hash of a changed file once it has been written into the backup.
+   *
+   * @param target File that was written.
+   * @param size Number of bytes written.
+   * @param hash Hash of the data written, or {@code null} if it isn't known.
+   * @param chunkHashes Encoded hashes of the chunks of a region file, or {@code null} if they
+   * aren't known (or the file isn't a region file).
+   */
+  public void stored(TargetFile target, long size, String hash, String chunkHashes) {
+    Integer index = changedEntries.get(target.getName());
+    if (index != null && !target.isDirectory()) {
+      entries.set(index, new ManifestEntry(ManifestEntry.Type.FILE, target.getName(), size,
+          target.getLastModified(), hash, ManifestEntry.THIS_BACKUP, chunkHashes));
+    }
+  }
+
+  /**
+   * Records that an unchanged file has been changed since it was scanned, so it's written into
+   * the new backup after all.
+   *
+   * <p>The file stays in {@link #getUnchanged}, but counts as changed from then on.</p>
+   *
+   * @param target The file as it is now.
+   */
+  public void changedSinceScan(TargetFile target) {
+    Integer index = unchangedEntries.remove(target.getName());
+    if (index != null) {
+      changedEntries.put(target.getName(), index);
+      entries.set(index, new ManifestEntry(ManifestEntry.Type.FILE, target.getName(),
+          target.getSize(), target.getLastModified(), null, ManifestEntry.THIS_BACKUP));
+    }
+  }
+
+  /**
+   * Records that a changed file has been deleted since it was scanned, so it isn't part of the
+   * new backup after all.
+   *
+   * @param target The deleted file.
+   */
+  public void deletedSinceScan(TargetFile target) {
+    Integer index = changedEntries.get(target.getName());
+    if (index != null) {
+      entries.set(index, new ManifestEntry(ManifestEntry.Type.DELETED, target.getName(), 0, 0,
+          null, ManifestEntry.THIS_BACKUP));
+    }
+  }
+
+  /**
+   * Checks whether a target is unchanged since the base backup.
+   *
+   * @param target Scanned target.
+   * @return {@code true} if the target can be reused from the base backup.
+   */
+  public boolean isUnchanged(TargetFile target) {
+    return unchangedEntries.containsKey(target.getName());
+  }
+
+  /**
+   * Gets the manifest entry of a changed target.
+   *
+   * @param target Changed target.
+   * @return Its entry, with the size and hash recorded by {@link #stored} if it has been written.
+   */
+  public ManifestEntry getEntry(TargetFile target) {
+    Integer index = changedEntries.get(target.getName());
+    return index == null ? null : entries.get(index);
+  }
+
+  /**
+   * Gets the targets whose data has to be written into the new backup.
+   *
+   * <p>This includes every folder.</p>
+   *
+   * @return Changed targets, sorted by name.
+   */
+  public List<TargetFile> getChanged() {
+    return changed;
+  }
+
+  /**
+   * Gets the files that are unchanged since the base backup.
+   *
+   * @return Unchanged files, sorted by name.
+   */
+  public List<TargetFile> getUnchanged() {
+    return unchanged;
+  }
+
+  /**
+   * Gets the number of files that have been deleted since the base backup.
+   *
+   * @return Number of deleted files and folders.
+   */
+  public int getDeletedCount() {
+    return deletedCount;
+  }
+
+  /**
+   * Writes the manifest of the new backup.
+   *
+   * <p>If writing fails, the incomplete manifest is deleted rather than moved into place.</p>
+   *
+   * @param path Where to write the manifest.
+   * @param manifest Description of the new backup.
+   * @throws IOException if writing fails.
+   */
+  public void writeManifest(Path path, Manifest manifest) throws IOException {
+    try (ManifestWriter writer = new ManifestWriter(path, manifest)) {
+      try {
+        for (ManifestEntry entry : entries) {
+          writer.write(entry);
+        }
+      } catch (IOException | RuntimeException e) {
+        writer.abandon();
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.ServerTasks;
+import net.pktr.smartbackup.SmartBackup;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Pauses saving one dimension at a time, while that dimension's files are backed up.
+ *
+ * <p>Targets are put in order by dimension. As the backup reaches a dimension's files, the
+ * dimension before it gets saving back and the new one is saved and paused. No dimension is paused
+ * for longer than its own files take, and the other dimensions keep saving the whole time.</p>
+ *
+ * <p>Files outside of every dimension's folder (eg config files) are backed up first, without
+ * pausing anything. Files in the overworld's folder that aren't in another dimension's folder
+ * (eg {@code level.dat} and player data) belong to the overworld.</p>
+ *
+ * <p>Saving is only ever switched and saved on the server thread (see {@link ServerTasks}), and
+ * the backup waits for a dimension to be saved before backing up its files.</p>
+ */
+public class DimensionSchedule {
+  private final Logger logger = SmartBackup.getLogger();
+  /** Dimensions, deepest save folder first so nested dimensions are matched before their parent. */
+  private final List<Dimension> byFolder = new ArrayList<>();
+  /** Dimension whose saving is paused, or {@code null}. */
+  private Dimension paused = null;
+  /** When {@link #paused} was paused, from {@link System#nanoTime}. */
+  private long pauseStart;
+
+  /** A dimension and where it's saved. */
+  private static class Dimension {
+    final WorldAccess.Dimension world;
+    /** Save folder, relative to the server root. */
+    final Path folder;
+    /** Position of the dimension in the backup order. */
+    final int order;
+    /** Whether the server thread has turned the dimension's saving off. Server thread only. */
+    boolean switchedOff = false;
+    /** Whether the dimension had saving on before it was switched off. Server thread only. */
+    boolean wasSaving;
+
+    Dimension(WorldAccess.Dimension world, int order) {
+      this.world = world;
+      this.folder = world.getSaveFolder();
+      this.order = order;
+    }
+  }
+
+  /**
+   * Sets up a schedule over every dimension, in the order the server ticks them.
+   *
+   * @param world World whose dimensions are paused.
+   */
+  public DimensionSchedule(WorldAccess world) {
+    for (WorldAccess.Dimension dimension : world.getDimensions()) {
+      byFolder.add(new Dimension(dimension, byFolder.size()));
+    }
+
+    Collections.sort(byFolder, new Comparator<Dimension>() {
+      @Override
+      public int compare(Dimension a, Dimension b) {
+        return b.folder.getNameCount() - a.folder.getNameCount();
+      }
+    });
+  }
+
+  /**
+   * Finds the dimension a target belongs to.
+   *
+   * @param target Target to look up.
+   * @return The dimension, or {@code null} if the target isn't in any dimension's folder.
+   */
+  private Dimension find(TargetFile target) {
+    Path path = target.getPath().normalize();
+    for (Dimension dimension : byFolder) {
+      if (path.startsWith(dimension.folder)) {
+        return dimension;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Puts targets in the order they should be backed up: files outside of the dimensions first,
+   * then each dimension's files together. Targets within a group keep their order.
+   *
+   * @param targets Targets to order.
+   * @return Ordered copy of the targets.
+   */
+  public List<TargetFile> order(List<TargetFile> targets) {
+    List<TargetFile> ordered = new ArrayList<>(targets);
+    Collections.sort(ordered, new Comparator<TargetFile>() {
+      @Override
+      public int compare(TargetFile a, TargetFile b) {
+        return orderOf(a) - orderOf(b);
+      }
+    });
+    return ordered;
+  }
+
+  /**
+   * Gets the position of a target's dimension in the backup order.
+   *
+   * @param target Target to look up.
+   * @return Position of its dimension, or -1 for targets outside of the dimensions.
+   */
+  private int orderOf(TargetFile target) {
+    Dimension dimension = find(target);
+    return dimension == null ? -1 : dimension.order;
+  }
+
+  /**
+   * Makes sure the target's dimension is saved and paused, and no other dimension is.
+   *
+   * <p>Called before each target is backed up. Waits for the server thread to save the
+   * dimension.</p>
+   *
+   * @param target Target about to be backed up.
+   * @throws IOException if the dimension can't be saved.
+   * @throws InterruptedException if the backup is cancelled while waiting.
+   */
+  public void enter(TargetFile target) throws IOException, InterruptedException {
+    final Dimension dimension = find(target);
+    if (dimension == null || dimension == paused) {
+      return;
+    }
+
+    resume();
+
+    logger.debug("Pausing saving of dimension " + dimension.world.getId());
+    paused = dimension;
+    pauseStart = System.nanoTime();
+    SmartBackup.getMetrics().savingPaused();
+    new ServerWork(Long.MAX_VALUE, null) {
+      @Override
+      protected boolean step() throws IOException {
+        dimension.wasSaving = dimension.world.isSaving();
+        dimension.switchedOff = true;
+        dimension.world.setSaving(false);
+        dimension.world.save();
+        return false;
+      }
+    }.run("save dimension " + dimension.world.getId());
+  }
+
+  /**
+   * Gives the paused dimension (if any) its saving setting back, at the end of the next tick.
+   */
+  public void resume() {
+    if (paused == null) {
+      return;
+    }
+
+    final Dimension dimension = paused;
+    paused = null;
+    SmartBackup.getServerTasks().submit(new ServerTasks.Task() {
+      @Override
+      public boolean tick() {
+        // A backup cancelled before the pause came round never switched it off.
+        if (dimension.switchedOff) {
+          dimension.world.setSaving(dimension.wasSaving);
+          dimension.switchedOff = false;
+        }
+        return true;
+      }
+    });
+    SmartBackup.getMetrics().savingResumed(CaptureMode.STAGGERED.getName(),
+        System.nanoTime() - pauseStart);
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import cpw.mods.fml.relauncher.ReflectionHelper;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.MinecraftException;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.chunk.storage.IChunkLoader;
+import net.minecraft.world.chunk.storage.RegionFileCache;
+import net.minecraft.world.gen.ChunkProviderServer;
+import net.minecraft.world.storage.ThreadedFileIOBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The running server's world.
+ *
+ * <p>Region files are read under the locks Minecraft writes them under. {@link RegionFileCache}
+ * opens (and, once it's full, closes) region files while holding its class lock, and each open
+ * region file is written while holding its own lock. A read takes the class lock, looks the
+ * region file up without opening it, and takes its lock too if it's open. No region file can be
+ * opened or written until the read is done, and nothing is ever opened or closed for it.</p>
+ */
+final class MinecraftWorld implements WorldAccess {
+  /** Region files Minecraft has open, by file. Guarded by the {@link RegionFileCache} class. */
+  private final Map<?, ?> openRegionFiles;
+
+  /** Looks up the server's region file cache. */
+  MinecraftWorld() {
+    openRegionFiles = ReflectionHelper.getPrivateValue(RegionFileCache.class, null,
+        "regionsByFilename", "field_76123_a");
+  }
+
+  /**
+   * Gets a dimension's save folder relative to the server root, the way targets name it.
+   *
+   * @param saveLocation Save folder as the world has it.
+   * @return Normalized relative path of the save folder.
+   */
+  private static Path getSaveFolder(File saveLocation) {
+    Path root = Paths.get("").toAbsolutePath();
+    return root.relativize(saveLocation.toPath().toAbsolutePath()).normalize();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<Dimension> getDimensions() {
+    List<Dimension> dimensions = new ArrayList<>();
+    for (WorldServer world : MinecraftServer.getServer().worldServers) {
+      if (world != null && world.getChunkSaveLocation() != null) {
+        dimensions.add(new MinecraftDimension(world));
+      }
+    }
+    return dimensions;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void waitForChunkWrites() throws InterruptedException {
+    ThreadedFileIOBase.threadedIOInstance.waitForFinish();
+  }
+
+  /** A dimension of the running server. */
+  private final class MinecraftDimension implements Dimension {
+    private final WorldServer world;
+    /** Save folder exactly as the chunk loader has it, which is how region files are cached. */
+    private final File saveLocation;
+    private final Path saveFolder;
+    /** Chunk loader of the dimension, which saves its chunks. */
+    private final IChunkLoader loader;
+
+    MinecraftDimension(WorldServer world) {
+      this.world = world;
+      this.saveLocation = world.getChunkSaveLocation();
+      this.saveFolder = MinecraftWorld.getSaveFolder(saveLocation);
+      this.loader = ReflectionHelper.getPrivateValue(ChunkProviderServer.class,
+          world.theChunkProviderServer, "currentChunkLoader", "field_73247_e");
+    }
+
+    @Override
+    public int getId() {
+      return world.provider.dimensionId;
+    }
+
+    @Override
+    public Path getSaveFolder() {
+      return saveFolder;
+    }
+
+    @Override
+    public boolean hasRegionFiles() {
+      return loader instanceof AnvilChunkLoader;
+    }
+
+    @Override
+    public boolean isSaving() {
+      return world.levelSaving;
+    }
+
+    @Override
+    public void setSaving(boolean saving) {
+      world.levelSaving = saving;
+    }
+
+    @Override
+    public void save() throws IOException {
+      try {
+        world.saveAllChunks(true, null);
+      } catch (MinecraftException e) {
+        throw new IOException("Unable to save dimension " + getId(), e);
+      }
+    }
+
+    @Override
+    public List<LoadedChunk> getLoadedChunks() {
+      List<LoadedChunk> chunks = new ArrayList<>();
+      for (Object chunk : world.theChunkProviderServer.loadedChunks) {
+        chunks.add(new MinecraftChunk(this, (Chunk) chunk));
+      }
+      return chunks;
+    }
+
+    @Override
+    public void readRegion(int regionX, int regionZ, RegionRead read) throws IOException {
+      File file = new File(new File(saveLocation, "region"),
+          "r." + regionX + "." + regionZ + ".mca");
+      synchronized (RegionFileCache.class) {
+        Object regionFile = openRegionFiles.get(file);
+        if (regionFile == null) {
+          read.read();
+          return;
+        }
+        synchronized (regionFile) {
+          read.read();
+        }
+      }
+    }
+  }
+
+  /** A chunk loaded by the running server. */
+  private static final class MinecraftChunk implements LoadedChunk {
+    private final MinecraftDimension dimension;
+    private final Chunk chunk;
+
+    MinecraftChunk(MinecraftDimension dimension, Chunk chunk) {
+      this.dimension = dimension;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public boolean isLoaded() {
+      return chunk.isChunkLoaded;
+    }
+
+    @Override
+    public boolean needsSaving() {
+      return chunk.needsSaving(false);
+    }
+
+    /**
+     * Saves the chunk the way {@link ChunkProviderServer} does, so mods see the same save
+     * events they would for any other save.
+     */
+    @Override
+    public void save() throws IOException {
+      chunk.lastSaveTime = dimension.world.getTotalWorldTime();
+      try {
+        dimension.loader.saveChunk(dimension.world, chunk);
+      } catch (MinecraftException e) {
+        throw new IOException("Unable to save chunk " + chunk.xPosition + ", " +
+            chunk.zPosition, e);
+      }
+      chunk.isModified = false;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.region.RegionFileReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps a copy of the targets up to date in two passes, so saving only has to be paused for
+ * whatever changed while the copy was being made.
+ *
+ * <p>The first pass runs with saving on, and copies every file whose copy is missing or has a
+ * different size or modification time. The second pass runs with saving paused (after a save),
+ * and copies again only the files that changed since then. For region files the header (chunk
+ * locations and timestamps) is compared as well, as a chunk can be saved within the same second
+ * the file was copied in.</p>
+ *
+ * <p>The copy is kept between backups, so the first pass only copies what changed since the last
+ * backup. Backups are then written from the copy, with saving back on.</p>
+ *
+ * <p>Files that disappear between the scan and the copy (like the temporary files player data is
+ * written to before it's renamed into place) are skipped rather than failing the backup.</p>
+ */
+public class PreCopy {
+  /** Name of the folder (in the backup folder) the copy is kept in. */
+  public static final String MIRROR_FOLDER = "precopy";
+
+  /** Size of a region file header. */
+  private static final int REGION_HEADER_SIZE = RegionFileReader.SECTOR_SIZE * 2;
+
+  /** Folder the targets are copied into. */
+  private final Path mirrorDir;
+  /** Number of files copied by the second pass. */
+  private int recopied = 0;
+
+  /**
+   * Sets up a pre-copy.
+   *
+   * @param mirrorDir Folder to keep the copy in.
+   */
+  public PreCopy(Path mirrorDir) {
+    this.mirrorDir = mirrorDir;
+  }
+
+  /**
+   * Brings the copy up to date with saving on.
+   *
+   * @param targets Scanned targets.
+   * @return Number of files copied.
+   * @throws IOException if a file can't be copied.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  public int firstPass(List<TargetFile> targets) throws IOException, InterruptedException {
+    int copied = 0;
+    for (TargetFile target : targets) {
+      checkInterrupted();
+      Path copy = mirrorDir.resolve(target.getPath().normalize());
+      if (target.isDirectory()) {
+        Files.createDirectories(copy);
+      } else {
+        try {
+          if (!matches(target.getPath(), copy, false)) {
+            copyFile(target.getPath(), copy);
+            copied++;
+          }
+        } catch (NoSuchFileException e) {
+          // Deleted or renamed since the scan (like the temporary file player data is saved to).
+          // The second pass scans again and goes by what's there then.
+          Files.deleteIfExists(copy);
+        }
+      }
+    }
+    return copied;
+  }
+
+  /**
+   * Copies again whatever changed since the first pass. Run with saving paused.
+   *
+   * @param targets Targets scanned again after saving was paused.
+   * @return Sorted list of targets, reading from the copy.
+   * @throws IOException if a file can't be copied.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  public List<TargetFile> secondPass(List<TargetFile> targets)
+      throws IOException, InterruptedException {
+    List<TargetFile> copied = new ArrayList<>(targets.size());
+    for (TargetFile target : targets) {
+      checkInterrupted();
+      Path copy = mirrorDir.resolve(target.getPath().normalize());
+      if (target.isDirectory()) {
+        Files.createDirectories(copy);
+        copied.add(target);
+        continue;
+      }
+
+      try {
+        if (!matches(target.getPath(), copy, RegionFileReader.isRegionFile(target.getPath()))) {
+          copyFile(target.getPath(), copy);
+          recopied++;
+        }
+      } catch (NoSuchFileException e) {
+        // Gone since the scan, so it isn't backed up. Its copy is pruned.
+        continue;
+      }
+      copied.add(new TargetFile(target.getPath(), false, Files.size(copy),
+          Files.getLastModifiedTime(copy).toMillis(), copy));
+    }
+    return copied;
+  }
+
+  /**
+   * Gets the number of files copied by the second pass.
+   *
+   * @return Number of files copied with saving paused.
+   */
+  public int getRecopied() {
+    return recopied;
+  }
+
+  /**
+   * Deletes copies of files that aren't targets any more.
+   *
+   * @param targets Targets of the backup.
+   * @throws IOException if the copy can't be walked or a file can't be deleted.
+   */
+  public void prune(List<TargetFile> targets) throws IOException {
+    final Set<Path> kept = new HashSet<>();
+    for (TargetFile target : targets) {
+      // Folders above the includes (eg "world" for "world/region") are kept as well.
+      Path path = mirrorDir.resolve(target.getPath().normalize());
+      while (!path.equals(mirrorDir) && kept.add(path)) {
+        path = path.getParent();
+      }
+    }
+
+    Files.walkFileTree(mirrorDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (!kept.contains(file)) {
+          Files.delete(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exception)
+          throws IOException {
+        if (exception != null) {
+          throw exception;
+        }
+        if (!dir.equals(mirrorDir) && !kept.contains(dir)) {
+          Files.delete(dir);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Checks whether a copy is up to date.
+   *
+   * @param file Live file.
+   * @param copy Copy of the file.
+   * @param compareHeader Whether to compare the region file headers as well.
+   * @return {@code true} if the copy has the same size and modification time (and header).
+   * @throws IOException if the files can't be read.
+   */
+  private static boolean matches(Path file, Path copy, boolean compareHeader)
+      throws IOException {
+    if (!Files.exists(copy)) {
+      return false;
+    }
+    BasicFileAttributes live = Files.readAttributes(file, BasicFileAttributes.class);
+    BasicFileAttributes copied = Files.readAttributes(copy, BasicFileAttributes.class);
+    if (live.size() != copied.size() ||
+        !live.lastModifiedTime().equals(copied.lastModifiedTime())) {
+      return false;
+    }
+    return !compareHeader || Arrays.equals(readHeader(file), readHeader(copy));
+  }
+
+  /**
+   * Reads the header of a region file.
+   *
+   * @param file Region file.
+   * @return The header, or less if the file is shorter than a header.
+   * @throws IOException if the file can't be read.
+   */
+  private static byte[] readHeader(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(REGION_HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) != -1) {
+        // Keep reading until the header is full or the file ends.
+      }
+      return Arrays.copyOf(header.array(), header.position());
+    }
+  }
+
+  /**
+   * Copies a file, keeping its modification time.
+   *
+   * <p>If the file is written while it's copied, the copy gets no modification time (the epoch),
+   * so the second pass copies it again.</p>
+   *
+   * @param file File to copy.
+   * @param copy Where to copy it.
+   * @throws IOException if the file can't be copied.
+   */
+  private static void copyFile(Path file, Path copy) throws IOException {
+    Files.createDirectories(copy.getParent());
+    FileTime before = Files.getLastModifiedTime(file);
+    try (InputStream in = Files.newInputStream(file)) {
+      Files.copy(in, copy, StandardCopyOption.REPLACE_EXISTING);
+    }
+    FileTime after = Files.getLastModifiedTime(file);
+    Files.setLastModifiedTime(copy, before.equals(after) ? before : FileTime.fromMillis(0));
+  }
+
+  /**
+   * Stops copying if the backup is cancelled.
+   *
+   * @throws InterruptedException if the backup thread was interrupted.
+   */
+  private static void checkInterrupted() throws InterruptedException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException("Backup cancelled");
+    }
+  }
+}
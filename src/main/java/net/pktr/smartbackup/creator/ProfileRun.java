@@ -0,0 +1,355 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.BackupProfile;
+import net.pktr.smartbackup.manifest.ManifestStore;
+
+import net.minecraft.command.ICommandSender;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Takes the backups of several profiles together, in one pass over the world.
+ *
+ * <p>The world is saved (and paused, copied or captured, as the capture mode says) once for all
+ * of the profiles, and their includes are walked once. Each profile then gets the targets it
+ * selects, and its backup is written by its own creator on its own thread, as if it had scanned
+ * them itself. Files backed up by more than one profile are read through {@link SharedReads}, so
+ * the backups share one read of them.</p>
+ *
+ * <p>The run holds the backup slot, and keeps saving paused, until the backup of every profile
+ * has ended. The staggered capture mode pauses the whole world instead, since the profiles don't
+ * go through the dimensions in one order.</p>
+ *
+ * <p>Each profile's backups have their own folder, manifests and journals, so they're based on
+ * earlier backups of the profile and resumed exactly as if they had been taken on their own.</p>
+ */
+public class ProfileRun extends BackupCreator {
+  /** Time between checks whether the run is cancelled while the profiles are backed up. */
+  private static final long JOIN_POLL_MILLIS = 250;
+  private static final double BYTES_PER_MIB = 1024 * 1024;
+
+  /** Profiles to back up. */
+  private final List<BackupProfile> profiles;
+  /** Backups of the profiles, once they're started. Guarded by itself. */
+  private final List<BackupCreator> members = new ArrayList<>();
+
+  /**
+   * Sets up a run of profiles.
+   *
+   * @param sender The {@link ICommandSender} that requested the backups. Used for status
+   * messages.
+   * @param profiles Profiles to back up.
+   */
+  public ProfileRun(ICommandSender sender, List<BackupProfile> profiles) {
+    super(sender);
+    this.profiles = new ArrayList<>(profiles);
+    this.setName("Profile Run Thread");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getBackupType() {
+    StringBuilder type = new StringBuilder("backups of profiles ");
+    for (int i = 0; i < profiles.size(); i++) {
+      if (i > 0) {
+        type.append(", ");
+      }
+      type.append(profiles.get(i).getName());
+    }
+    return type.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected String getMetricsType() {
+    return "profiles";
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The run has no output of its own. Each profile's backup keeps or deletes its own.</p>
+   */
+  @Override
+  protected boolean canResume() {
+    return true;
+  }
+
+  /**
+   * Gets the backups of the profiles.
+   *
+   * @return The profiles' backups, or an empty list if they haven't been started.
+   */
+  public List<BackupCreator> getMembers() {
+    synchronized (members) {
+      return new ArrayList<>(members);
+    }
+  }
+
+  /**
+   * Asks the run and the backups of its profiles to stop.
+   */
+  @Override
+  public void cancel() {
+    super.cancel();
+    synchronized (members) {
+      for (BackupCreator member : members) {
+        member.setInterrupter(interrupter);
+        member.cancel();
+      }
+    }
+  }
+
+  /**
+   * Asks the backups of the profiles to stop at their next file, keeping what they finished.
+   */
+  @Override
+  public void stopAtCheckpoint() {
+    super.stopAtCheckpoint();
+    synchronized (members) {
+      for (BackupCreator member : members) {
+        member.stopAtCheckpoint();
+      }
+    }
+  }
+
+  /**
+   * Gets the includes of every profile, each listed once.
+   *
+   * @return Paths relative to the server root.
+   */
+  @Override
+  protected String[] getIncludes() {
+    Set<String> includes = new LinkedHashSet<>();
+    for (BackupProfile profile : profiles) {
+      includes.addAll(Arrays.asList(profile.getIncludes()));
+    }
+    return includes.toArray(new String[includes.size()]);
+  }
+
+  /**
+   * Gets the paths every profile excludes.
+   *
+   * @return Paths relative to the server root.
+   */
+  @Override
+  protected String[] getExcludes() {
+    Set<String> excludes = new LinkedHashSet<>(Arrays.asList(profiles.get(0).getExcludes()));
+    for (BackupProfile profile : profiles) {
+      excludes.retainAll(Arrays.asList(profile.getExcludes()));
+    }
+    return excludes.toArray(new String[excludes.size()]);
+  }
+
+  /**
+   * Walks the includes of every profile once and lists everything any of them backs up.
+   *
+   * <p>An include inside another include is found by walking the outer one. Folders are only
+   * walked if a profile backs them up, or one of its includes is in them.</p>
+   *
+   * @return Sorted list of targets.
+   * @throws IOException if a target can't be walked.
+   */
+  @Override
+  protected List<TargetFile> walkTargets() throws IOException {
+    TargetScanner scanner = new TargetScanner(new TargetScanner.Filter() {
+      @Override
+      public boolean lists(Path path) {
+        for (BackupProfile profile : profiles) {
+          if (profile.selects(path)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public boolean walks(Path folder) {
+        for (BackupProfile profile : profiles) {
+          if (profile.selects(folder) || profile.holdsInclude(folder)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    });
+
+    String[] includes = getIncludes();
+    for (String include : includes) {
+      if (!isInOtherInclude(Paths.get(include), includes)) {
+        scanner.scan(include);
+      }
+    }
+    return scanner.getTargets();
+  }
+
+  /**
+   * Checks whether an include is inside another include, and is walked along with it.
+   *
+   * @param include Include to check.
+   * @param includes Every include.
+   * @return {@code true} if another include holds it.
+   */
+  private static boolean isInOtherInclude(Path include, String[] includes) {
+    for (String other : includes) {
+      Path otherPath = Paths.get(other);
+      if (include.startsWith(otherPath) && !include.equals(otherPath)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The staggered capture mode pauses the whole world for a run, like the pause mode.</p>
+   */
+  @Override
+  protected CaptureMode chooseCaptureMode() {
+    CaptureMode mode = super.chooseCaptureMode();
+    return mode == CaptureMode.STAGGERED ? CaptureMode.PAUSE : mode;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void createBackup() throws InterruptedException, IOException {
+    for (BackupProfile profile : profiles) {
+      if (profile.getIncludes().length == 0) {
+        throw new IOException("The profile " + profile.getName() + " has no targets");
+      }
+    }
+
+    // Files staged by the capture go in the main backup folder, as for any other backup.
+    ManifestStore manifests = new ManifestStore(Paths.get(config.getBackupOutputDir()));
+    progress.setPhase(BackupProgress.Phase.SCANNING);
+    List<TargetFile> targets = scanTargets(manifests);
+
+    SharedReads reads = new SharedReads(config.getSharedReadCacheSize());
+    List<List<TargetFile>> selected = new ArrayList<>();
+    for (int i = 0; i < profiles.size(); i++) {
+      selected.add(new ArrayList<TargetFile>());
+    }
+    boolean[] selects = new boolean[profiles.size()];
+    int sharedFiles = 0;
+    for (TargetFile target : targets) {
+      int readers = 0;
+      for (int i = 0; i < profiles.size(); i++) {
+        selects[i] = profiles.get(i).selects(target.getPath());
+        if (selects[i]) {
+          readers++;
+        }
+      }
+
+      TargetFile selectedTarget = target;
+      if (readers > 1 && !target.isDirectory()) {
+        selectedTarget = new TargetFile(target, reads, readers);
+        sharedFiles++;
+      }
+      for (int i = 0; i < profiles.size(); i++) {
+        if (selects[i]) {
+          selected.get(i).add(selectedTarget);
+        }
+      }
+    }
+
+    progress.setPhase(BackupProgress.Phase.WRITING);
+    synchronized (members) {
+      checkCancelled();
+      for (int i = 0; i < profiles.size(); i++) {
+        BackupProfile profile = profiles.get(i);
+        BackupCreator member = profile.getType() == BackupProfile.Type.SNAPSHOT ?
+            new SnapshotCreator(requester, profile) : new ArchiveCreator(requester, profile);
+        member.shareTargets(selected.get(i));
+        members.add(member);
+      }
+      for (BackupCreator member : members) {
+        member.start();
+      }
+    }
+
+    try {
+      for (BackupCreator member : members) {
+        while (member.isAlive()) {
+          checkCancelled();
+          member.join(JOIN_POLL_MILLIS);
+        }
+      }
+    } catch (InterruptedException e) {
+      // The world has to stay as captured until no backup reads it any more.
+      for (BackupCreator member : members) {
+        member.stopAtCheckpoint();
+      }
+      awaitMembers();
+      throw e;
+    }
+
+    logger.info(String.format("Profiles share %d files: read %.1f MiB of them and passed on " +
+            "%.1f MiB without reading it again", sharedFiles, reads.getBytesRead() / BYTES_PER_MIB,
+        reads.getBytesShared() / BYTES_PER_MIB));
+
+    List<String> failed = new ArrayList<>();
+    boolean interrupted = false;
+    for (BackupCreator member : members) {
+      if (member.getStatus() == BackupStatus.FAILED) {
+        failed.add(member.getProfile().getName());
+      } else if (member.getStatus() != BackupStatus.COMPLETED) {
+        interrupted = true;
+      }
+    }
+    if (!failed.isEmpty()) {
+      throw new IOException("the backups of " + failed + " failed");
+    }
+    if (interrupted) {
+      throw new InterruptedException("A backup of a profile was interrupted");
+    }
+  }
+
+  /**
+   * Waits for the backups of the profiles to end, even if the run is interrupted meanwhile.
+   */
+  private void awaitMembers() {
+    boolean interrupted = false;
+    for (BackupCreator member : members) {
+      while (member.isAlive()) {
+        try {
+          member.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void deletePartialOutput() throws IOException {
+    // Each profile's backup deletes its own partial output.
+  }
+}
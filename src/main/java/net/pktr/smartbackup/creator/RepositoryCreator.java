@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.manifest.BackupKind;
+import net.pktr.smartbackup.manifest.Manifest;
+import net.pktr.smartbackup.manifest.ManifestReader;
+import net.pktr.smartbackup.manifest.ManifestStore;
+import net.pktr.smartbackup.metrics.BackupMetrics;
+import net.pktr.smartbackup.metrics.Counter;
+import net.pktr.smartbackup.region.ChunkHasher;
+import net.pktr.smartbackup.repository.BlobId;
+import net.pktr.smartbackup.repository.ContentChunker;
+import net.pktr.smartbackup.repository.GarbageCollector;
+import net.pktr.smartbackup.repository.Repository;
+import net.pktr.smartbackup.repository.TreeReader;
+import net.pktr.smartbackup.repository.TreeWriter;
+
+import net.minecraft.command.ICommandSender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * Handles creation of repository backups.
+ *
+ * <p>A repository backup stores the targets in a deduplicating {@link Repository}, which the
+ * servers on one host can share. Each file is cut into chunks, and only chunks the repository
+ * doesn't have yet are written. The backup is a tree in the repository listing the chunks of
+ * every file, plus a manifest in the backup folder as usual.</p>
+ *
+ * <p>Files unchanged since this server's last repository backup (by its manifest) reuse the chunks
+ * listed in its tree without being read. Repository backups aren't journaled: an interrupted
+ * backup leaves the packs it finished in the repository, so the next one doesn't write those
+ * chunks again.</p>
+ *
+ * <p>After the backup, the repository's garbage is collected if no other server is writing to
+ * it.</p>
+ */
+public class RepositoryCreator extends BackupCreator {
+  /** Size of a mebibyte, for log messages. */
+  private static final double BYTES_PER_MIB = 1024 * 1024;
+
+  /** Tree of the backup, or {@code null} until it's being written */
+  private Path treePath;
+  /** Checksum of the file being stored */
+  private final CRC32 crc = new CRC32();
+  /** Bytes of chunks the repository already had. */
+  private final Counter.Child reusedBytes =
+      metrics.getDedupeBytes(getMetricsType(), BackupMetrics.REUSED);
+  /** Bytes of chunks stored in the repository. */
+  private final Counter.Child storedBytes =
+      metrics.getDedupeBytes(getMetricsType(), BackupMetrics.STORED);
+
+  /**
+   * Sets up a repository backup thread.
+   *
+   * @param sender The {@link ICommandSender} that requested this backup. Used for status messages.
+   */
+  public RepositoryCreator(ICommandSender sender) {
+    super(sender);
+    this.setName("Repository Thread");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getBackupType() {
+    return "repository backup";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected String getMetricsType() {
+    return "repository";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void createBackup() throws InterruptedException, IOException {
+    if (config.getRepositoryPath().isEmpty()) {
+      throw new IOException("Repository backups need a repository path in the config");
+    }
+
+    ManifestStore manifests = new ManifestStore(Paths.get(profile.getOutputDir()));
+    try (Repository repository = Repository.open(Paths.get(config.getRepositoryPath()),
+        config.getCompressionLevel(), config.getPackSize())) {
+      // Waits for a garbage collection by another server, if there is one.
+      FileLock lock = repository.lockShared();
+      try {
+        for (String problem : repository.loadIndex()) {
+          logger.warn("Ignoring unreadable repository index " + problem);
+        }
+        storeBackup(repository, manifests);
+      } finally {
+        lock.release();
+      }
+      collectGarbage(repository);
+    }
+  }
+
+  /**
+   * Stores the targets in the repository and writes the backup's tree and manifest.
+   *
+   * @param repository Repository to store the backup in, whose shared lock is held.
+   * @param manifests Manifests of the existing backups.
+   * @throws InterruptedException if the backup is cancelled.
+   * @throws IOException if a target can't be stored.
+   */
+  private void storeBackup(Repository repository, ManifestStore manifests)
+      throws InterruptedException, IOException {
+    SimpleDateFormat rfc8601Formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ss'Z'");
+    rfc8601Formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    Date startTime = new Date();
+    String name = rfc8601Formatter.format(startTime);
+    String instance = config.getRepositoryInstance();
+    Path tree = repository.getTreeFolder(instance).resolve(name + TreeWriter.EXTENSION)
+        .toAbsolutePath();
+    if (Files.exists(tree)) {
+      throw new FileAlreadyExistsException("Repository tree already exists: " + tree);
+    }
+    Files.createDirectories(manifests.getOutputDir());
+
+    estimateProgress(manifests);
+    List<TargetFile> targets = scanTargets(manifests);
+
+    Manifest base = manifests.findLatestRepositoryBackup();
+    ChangeSet changes;
+    Map<String, List<BlobId>> baseBlobs = new HashMap<>();
+    if (base == null) {
+      changes = ChangeSet.compute(targets, null, null, true);
+    } else {
+      try (ManifestReader baseReader = manifests.open(base)) {
+        changes = ChangeSet.compute(targets, baseReader, base.getName(), true);
+      }
+      baseBlobs = readBaseBlobs(repository, manifests.getBackupPath(base),
+          changes.getUnchanged());
+    }
+
+    long totalBytes = 0;
+    for (TargetFile target : targets) {
+      totalBytes += target.getSize();
+    }
+    progress.start(totalBytes, targets.size());
+
+    Map<String, List<BlobId>> blobs = new HashMap<>();
+    int reused = 0;
+    for (TargetFile target : orderTargets(targets)) {
+      checkCancelled();
+      progress.beginFile(target.getName());
+      TargetFile changed = changes.isUnchanged(target) ?
+          recheckUnchanged(target, changes) : target;
+      List<BlobId> ids = changed == null ? baseBlobs.get(target.getName()) : null;
+      if (ids != null) {
+        blobs.put(target.getName(), ids);
+        reused++;
+        reusedBytes.add(target.getSize());
+        addProgress(target.getSize());
+      } else if (!target.isDirectory()) {
+        // Changed, or its chunks are gone (or were never in this repository).
+        changed = changed == null ? target : changed;
+        if (beginChangedTarget(changed, changes)) {
+          blobs.put(target.getName(), storeFile(repository, changed, changes));
+        }
+      }
+      progress.fileDone();
+    }
+
+    repository.flush();
+
+    // The tree goes first, so a manifest in the backup folder always has a complete tree.
+    treePath = tree;
+    try (TreeWriter writer = new TreeWriter(tree)) {
+      for (TargetFile target : targets) {
+        List<BlobId> ids = blobs.get(target.getName());
+        if (ids != null) {
+          writer.write(target.getName(), ids);
+        }
+      }
+      writer.complete();
+    }
+
+    Manifest manifest = new Manifest(name, tree.toString(), BackupKind.FULL,
+        base == null ? null : base.getName(), startTime.getTime());
+    changes.writeManifest(Manifest.getPath(manifests.getOutputDir(), name), manifest);
+    treePath = null;
+
+    logger.info(String.format("Stored %d new chunks in the repository (%.1f MiB, %.1f MiB " +
+            "compressed), reused %d unchanged files", repository.getStoredCount(),
+        repository.getStoredRawBytes() / BYTES_PER_MIB,
+        repository.getStoredBytes() / BYTES_PER_MIB, reused));
+  }
+
+  /**
+   * Reads the blobs of the unchanged files from the tree of the base backup.
+   *
+   * <p>Files with a blob the repository doesn't have are left out, so they're stored again.</p>
+   *
+   * @param repository Repository being written.
+   * @param baseTree Tree of the base backup.
+   * @param unchanged Files unchanged since the base backup.
+   * @return Blobs of the unchanged files, by name.
+   * @throws IOException if the tree can't be read.
+   */
+  private static Map<String, List<BlobId>> readBaseBlobs(Repository repository, Path baseTree,
+      List<TargetFile> unchanged) throws IOException {
+    Set<String> names = new HashSet<>();
+    for (TargetFile target : unchanged) {
+      names.add(target.getName());
+    }
+
+    Map<String, List<BlobId>> blobs = new HashMap<>();
+    try (TreeReader reader = new TreeReader(baseTree)) {
+      while (reader.next()) {
+        if (!names.contains(reader.getName())) {
+          continue;
+        }
+        boolean stored = true;
+        for (BlobId id : reader.getIds()) {
+          stored &= repository.has(id);
+        }
+        if (stored) {
+          blobs.put(reader.getName(), reader.getIds());
+        }
+      }
+    }
+    return blobs;
+  }
+
+  /**
+   * Cuts a file into chunks and stores the ones the repository doesn't have.
+   *
+   * @param repository Repository to store the chunks in.
+   * @param target File to store.
+   * @param changes Where the file is recorded once it's stored.
+   * @return Blobs of the file's chunks, in order.
+   * @throws IOException if reading the file or writing the repository fails.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private List<BlobId> storeFile(Repository repository, TargetFile target, ChangeSet changes)
+      throws IOException, InterruptedException {
+    List<BlobId> ids = new ArrayList<>();
+    long bytesIn = 0;
+    String hash = null;
+    crc.reset();
+    ChunkHasher chunkHasher = startChunkHashes(target);
+    try (InputStream in = Files.newInputStream(target.getSource())) {
+      ContentChunker chunker = new ContentChunker(in);
+      byte[] buffer = chunker.getBuffer();
+      int length;
+      while ((length = chunker.next()) > 0) {
+        checkCancelled();
+        BlobId id = BlobId.of(buffer, 0, length);
+        if (repository.store(id, buffer, 0, length)) {
+          storedBytes.add(length);
+        } else {
+          reusedBytes.add(length);
+        }
+        ids.add(id);
+        crc.update(buffer, 0, length);
+        if (chunkHasher != null) {
+          chunkHasher.update(buffer, 0, length);
+        }
+        bytesIn += length;
+        addProgress(length);
+      }
+    }
+
+    if (bytesIn != target.getSize()) {
+      logger.warn("File " + target.getName() + " changed size while being stored (" +
+          target.getSize() + " -> " + bytesIn + " bytes)");
+    } else {
+      hash = String.format("crc32:%08x", crc.getValue());
+    }
+    changes.stored(target, bytesIn, hash,
+        hash == null ? null : finishChunkHashes(target, chunkHasher));
+    return ids;
+  }
+
+  /**
+   * Collects the repository's garbage, unless another server is writing to it. Failures are
+   * logged without failing the backup, which is complete by now.
+   *
+   * @param repository Repository to collect.
+   */
+  private void collectGarbage(Repository repository) {
+    progress.setPhase(BackupProgress.Phase.COLLECTING);
+    try (FileLock lock = repository.tryLockExclusive()) {
+      if (lock == null) {
+        logger.info("Another server is writing to the repository, leaving its garbage " +
+            "collection for later");
+        return;
+      }
+      GarbageCollector collector = GarbageCollector.collect(repository);
+      if (collector.getPacksRemoved() > 0) {
+        logger.info(String.format("Removed %d unused packs from the repository (%.1f MiB), " +
+                "repacking %d", collector.getPacksRemoved(),
+            collector.getBytesRemoved() / BYTES_PER_MIB, collector.getPacksRepacked()));
+      }
+    } catch (IOException e) {
+      logger.error("Unable to collect the repository's garbage", e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void deletePartialOutput() throws IOException {
+    // Finished packs are kept for the next backup, and closing the repository deleted the
+    // unfinished one.
+    if (treePath != null) {
+      Files.deleteIfExists(treePath);
+    }
+  }
+}
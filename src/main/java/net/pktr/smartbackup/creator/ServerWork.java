@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.ServerTasks;
+import net.pktr.smartbackup.SmartBackup;
+import net.pktr.smartbackup.metrics.Counter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work a backup hands to the server thread, and waits for.
+ *
+ * <p>The work is done in steps at the end of every tick (see {@link ServerTasks}), as many as fit
+ * in the tick budget, so the server never stalls for long. A backup that's cancelled while
+ * waiting drops the work that's left.</p>
+ */
+abstract class ServerWork implements ServerTasks.Task {
+  /** Time the backup thread sleeps while waiting for the server thread. */
+  private static final long POLL_MILLIS = 10;
+
+  /** Longest time to spend on steps in one tick. */
+  private final long sliceNanos;
+  /** Ticks in which the work stopped because the tick budget was used up, or {@code null}. */
+  private final Counter.Child throttled;
+
+  /** Set by the server thread once every step is done (or one failed). */
+  private volatile boolean done = false;
+  /** Set by the backup thread to make the server thread drop the work. */
+  private volatile boolean abandoned = false;
+  /** Why a step failed, or {@code null}. */
+  private volatile Exception failure = null;
+
+  /**
+   * Sets up work done a few steps per tick.
+   *
+   * @param tickBudgetMillis Longest time to spend on steps in one tick. At least one step is
+   * done in every tick.
+   * @param throttled Counter of ticks that ran out of budget, or {@code null}.
+   */
+  ServerWork(long tickBudgetMillis, Counter.Child throttled) {
+    this.sliceNanos = TimeUnit.MILLISECONDS.toNanos(tickBudgetMillis);
+    this.throttled = throttled;
+  }
+
+  /**
+   * Does the next step. Called on the server thread.
+   *
+   * @return {@code true} if there are more steps to do.
+   * @throws IOException if the step fails.
+   */
+  protected abstract boolean step() throws IOException;
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean tick() {
+    if (abandoned) {
+      return true;
+    }
+
+    long start = System.nanoTime();
+    try {
+      while (step()) {
+        if (System.nanoTime() - start >= sliceNanos) {
+          if (throttled != null) {
+            throttled.inc();
+          }
+          return false;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      failure = e;
+    }
+    done = true;
+    return true;
+  }
+
+  /**
+   * Hands the work to the server thread and waits for it to be done.
+   *
+   * @param description What the work does, for the error message.
+   * @throws IOException if a step failed.
+   * @throws InterruptedException if the backup is cancelled while waiting.
+   */
+  void run(String description) throws IOException, InterruptedException {
+    SmartBackup.getServerTasks().submit(this);
+    try {
+      while (!done) {
+        Thread.sleep(POLL_MILLIS);
+      }
+    } finally {
+      abandoned = true;
+    }
+
+    if (failure != null) {
+      throw new IOException("Unable to " + description, failure);
+    }
+  }
+}
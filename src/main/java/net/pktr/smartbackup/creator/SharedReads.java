@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the reads of files between the backups of several profiles taken together.
+ *
+ * <p>A file is read from disk by the first backup that opens it, in blocks that are kept in memory
+ * for the other backups that back it up as well. Backups reading a file at the same time read it
+ * through one open file, so they all get the same version of it, and whatever one of them read
+ * already comes from memory. A file read to its end stays in memory until every backup expected
+ * to read it has opened it, or until it's pushed out for newer files once the memory is full (a
+ * backup may not need a file after all, like a snapshot linking an unchanged one). Only files no
+ * one is reading are pushed out, and a file that doesn't fit is read from disk again by the
+ * backups after the ones reading it.</p>
+ *
+ * <p>Files are read with plain (uninterruptible) reads, so cancelling one backup never closes a
+ * file under another.</p>
+ */
+final class SharedReads {
+  /** Size of the blocks files are read and kept in. */
+  private static final int BLOCK_SIZE = 65536;
+
+  /** Most bytes kept in memory. */
+  private final long capacity;
+  /** Files being read or kept, least recently opened first. Guarded by {@code this}. */
+  private final LinkedHashMap<Path, SharedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+  /** Bytes kept in memory. Guarded by {@code this}. */
+  private long cached = 0;
+  /** Bytes read from disk. */
+  private final AtomicLong bytesRead = new AtomicLong();
+  /** Bytes served from memory instead of being read again. */
+  private final AtomicLong bytesShared = new AtomicLong();
+
+  /**
+   * Sets up shared reads.
+   *
+   * @param capacity Most bytes kept in memory. With 0, backups reading a file at the same time
+   * still read it through one open file, but nothing is kept.
+   */
+  SharedReads(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /** A file being read or kept in memory. */
+  private static class SharedFile {
+    /** Where the file is read from. */
+    private final Path source;
+    /** Backups still expected to open the file. Guarded by the {@link SharedReads}. */
+    private int readersLeft;
+    /** Streams open on the file. Guarded by the {@link SharedReads}. */
+    private int streams = 0;
+    /**
+     * The file, open while streams read it and it isn't kept complete. Set and cleared under the
+     * {@link SharedReads}, read from under the {@link SharedFile}.
+     */
+    private RandomAccessFile reader;
+    /** Blocks read so far, in order. Guarded by the {@link SharedFile}. */
+    private final List<byte[]> blocks = new ArrayList<>();
+    /** Whether blocks are still kept, which stops once one doesn't fit. */
+    private boolean keeping = true;
+    /** Whether every block of the file is kept. */
+    private volatile boolean complete = false;
+    /** Size of the file once it's complete. */
+    private volatile long size;
+
+    private SharedFile(Path source, int readers) {
+      this.source = source;
+      this.readersLeft = readers;
+    }
+  }
+
+  /**
+   * Opens a file shared by several backups.
+   *
+   * @param source Where the file is read from.
+   * @param readers Number of backups the file is backed up by.
+   * @return Stream of the file's data. The caller must close it.
+   * @throws IOException if the file can't be opened.
+   */
+  synchronized InputStream open(Path source, int readers) throws IOException {
+    SharedFile file = files.get(source);
+    if (file == null) {
+      file = new SharedFile(source, readers);
+      files.put(source, file);
+    }
+    if (!file.complete && file.reader == null) {
+      try {
+        file.reader = new RandomAccessFile(source.toFile(), "r");
+      } catch (IOException e) {
+        if (file.streams == 0) {
+          discard(file);
+        }
+        throw e;
+      }
+    }
+    file.readersLeft--;
+    file.streams++;
+    return new SharedStream(file);
+  }
+
+  /**
+   * Gets the size of a file as the streams open on it see it.
+   *
+   * @param source Where the file is read from.
+   * @return Size in bytes.
+   * @throws IOException if the size can't be read.
+   */
+  synchronized long getSize(Path source) throws IOException {
+    SharedFile file = files.get(source);
+    if (file != null && file.complete) {
+      return file.size;
+    }
+    if (file != null && file.reader != null) {
+      return file.reader.length();
+    }
+    return Files.size(source);
+  }
+
+  /**
+   * Gets the number of bytes read from disk.
+   *
+   * @return Bytes read.
+   */
+  long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  /**
+   * Gets the number of bytes served from memory instead of being read again.
+   *
+   * @return Bytes shared.
+   */
+  long getBytesShared() {
+    return bytesShared.get();
+  }
+
+  /**
+   * Gets a block of a file, reading it if it isn't kept.
+   *
+   * @param file File to read.
+   * @param index Number of the block.
+   * @return The block. It's shorter than a full block (possibly empty) only at the end of the
+   * file.
+   * @throws IOException if the file can't be read.
+   */
+  private byte[] getBlock(SharedFile file, int index) throws IOException {
+    synchronized (file) {
+      if (index < file.blocks.size()) {
+        byte[] block = file.blocks.get(index);
+        bytesShared.addAndGet(block.length);
+        return block;
+      }
+
+      byte[] buffer = new byte[BLOCK_SIZE];
+      int filled = 0;
+      file.reader.seek((long) index * BLOCK_SIZE);
+      while (filled < buffer.length) {
+        int read = file.reader.read(buffer, filled, buffer.length - filled);
+        if (read == -1) {
+          break;
+        }
+        filled += read;
+      }
+      byte[] block = filled == buffer.length ? buffer : Arrays.copyOf(buffer, filled);
+      bytesRead.addAndGet(filled);
+
+      if (file.keeping && index == file.blocks.size()) {
+        if (reserve(filled)) {
+          file.blocks.add(block);
+          if (filled < BLOCK_SIZE) {
+            file.size = (long) index * BLOCK_SIZE + filled;
+            file.complete = true;
+          }
+        } else {
+          file.keeping = false;
+        }
+      }
+      return block;
+    }
+  }
+
+  /**
+   * Makes room for a block, pushing out the least recently opened files no one is reading.
+   *
+   * @param bytes Size of the block.
+   * @return {@code true} if the block may be kept.
+   */
+  private synchronized boolean reserve(int bytes) {
+    Iterator<SharedFile> iterator = files.values().iterator();
+    while (cached + bytes > capacity && iterator.hasNext()) {
+      SharedFile file = iterator.next();
+      if (file.streams == 0) {
+        iterator.remove();
+        cached -= dropBlocks(file);
+      }
+    }
+    if (cached + bytes > capacity) {
+      return false;
+    }
+    cached += bytes;
+    return true;
+  }
+
+  /**
+   * Ends a stream on a file. Once no stream is left, the file is closed, and forgotten unless it's
+   * kept complete for backups that haven't read it yet.
+   *
+   * @param file File the stream was on.
+   * @throws IOException if the file can't be closed.
+   */
+  private synchronized void release(SharedFile file) throws IOException {
+    file.streams--;
+    if (file.streams > 0) {
+      return;
+    }
+    RandomAccessFile reader = file.reader;
+    file.reader = null;
+    if (!file.complete || file.readersLeft <= 0) {
+      discard(file);
+    }
+    if (reader != null) {
+      reader.close();
+    }
+  }
+
+  /**
+   * Forgets a file no stream is on, and frees its blocks.
+   *
+   * @param file File to forget.
+   */
+  private void discard(SharedFile file) {
+    if (files.get(file.source) == file) {
+      files.remove(file.source);
+    }
+    cached -= dropBlocks(file);
+  }
+
+  /**
+   * Frees the blocks of a file no stream is on.
+   *
+   * @param file File whose blocks to free.
+   * @return Bytes freed.
+   */
+  private static long dropBlocks(SharedFile file) {
+    long bytes = 0;
+    for (byte[] block : file.blocks) {
+      bytes += block.length;
+    }
+    file.blocks.clear();
+    file.complete = false;
+    return bytes;
+  }
+
+  /** Reads a shared file block by block. */
+  private class SharedStream extends InputStream {
+    private final SharedFile file;
+    /** Block being read, or {@code null} before the first. */
+    private byte[] block;
+    /** Position in {@link #block}. */
+    private int offset;
+    /** Number of the next block. */
+    private int next = 0;
+    private boolean closed = false;
+
+    private SharedStream(SharedFile file) {
+      this.file = file;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (block == null || offset == block.length) {
+        if (block != null && block.length < BLOCK_SIZE) {
+          return -1;
+        }
+        block = getBlock(file, next++);
+        offset = 0;
+        if (block.length == 0) {
+          return -1;
+        }
+      }
+      int count = Math.min(len, block.length - offset);
+      System.arraycopy(block, offset, buffer, off, count);
+      offset += count;
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        release(file);
+      }
+    }
+  }
+}
@@ -16,23 +16,47 @@
 
 package net.pktr.smartbackup.creator;
 
+import net.pktr.smartbackup.BackupProfile;
+import net.pktr.smartbackup.FileSync;
+import net.pktr.smartbackup.manifest.BackupJournal;
+import net.pktr.smartbackup.manifest.BackupKind;
+import net.pktr.smartbackup.manifest.Manifest;
+import net.pktr.smartbackup.manifest.ManifestEntry;
+import net.pktr.smartbackup.manifest.ManifestReader;
+import net.pktr.smartbackup.manifest.ManifestStore;
+import net.pktr.smartbackup.metrics.BackupMetrics;
+import net.pktr.smartbackup.metrics.Counter;
+import net.pktr.smartbackup.pack.PackedFiles;
+import net.pktr.smartbackup.pack.SegmentIndex;
+import net.pktr.smartbackup.pack.SegmentPacker;
+import net.pktr.smartbackup.region.ChunkHasher;
+
 import net.minecraft.command.ICommandSender;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.zip.CRC32;
 
 /**
  * Handles creation of snapshots.
@@ -40,12 +64,58 @@ import java.util.TimeZone;
  * <p>A snapshot is a folder of hardlinks to the world data files. Snapshots provide a
  * restorable state of the world without copying all of the world data every time you take a
  * backup.</p>
+ *
+ * <p>Files that are unchanged since the last snapshot (by the last snapshot's manifest) are hard
+ * linked to the copy in that snapshot. Everything else is copied. Every snapshot is complete by
+ * itself, so any snapshot can be deleted without breaking the others.</p>
+ *
+ * <p>Finished files are recorded in a {@link BackupJournal}, so a snapshot interrupted by the
+ * server stopping (or crashing) is picked up where it stopped by the next snapshot.</p>
+ *
+ * <p>Snapshots are built in a temporary folder, synced in batches and renamed to their real name
+ * once everything in them is on disk (see {@link FileSync}).</p>
+ *
+ * <p>Small files that changed are packed into segments (see {@link PackedFiles}) instead of being
+ * copied one by one, which turns thousands of file creations and syncs into a few. Segments of
+ * the last snapshot that are still mostly in use are hard linked like any other file; the files
+ * still in use in the others are packed again, so dead data doesn't pile up.</p>
  */
 public class SnapshotCreator extends BackupCreator {
-  /** ArrayList loaded from config file of files/folders to leave out */
-  private ArrayList<String> backupExcludes;
-  /** Where to output the snapshot to */
+  /** Size of the buffer files are copied through. */
+  private static final int BUFFER_SIZE = 65536;
+
+  /** Folder the finished snapshot is published as */
+  private Path publishedOutput;
+  /** Where to output the snapshot to until it's finished */
   private Path snapshotOutput;
+  /** Whether this creator created {@link #snapshotOutput} (so it may delete it) */
+  private boolean outputCreated = false;
+  /** Whether the snapshot was published (so deleting it also means deleting its real name) */
+  private boolean published = false;
+  /** Buffer files are copied through */
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  /** Checksum of the file being copied */
+  private final CRC32 crc = new CRC32();
+  /** Journal of the snapshot */
+  private BackupJournal journal;
+  /** Where the journal is written, or {@code null} once the snapshot is complete */
+  private Path journalPath;
+  /** Targets finished since the last checkpoint */
+  private final List<ManifestEntry> finished = new ArrayList<>();
+  /** Files copied since the last checkpoint, which still have to be synced */
+  private final List<Path> unsynced = new ArrayList<>();
+  /** When (from {@link System#nanoTime}) the last checkpoint was made */
+  private long lastCheckpoint;
+  /** Packs small files into the snapshot's segments */
+  private SegmentPacker packer;
+  /** Buffer small files are read into before they're packed */
+  private byte[] packBuffer;
+  /** Start of the IDs of the snapshot's segments (the snapshot's name) */
+  private String segmentPrefix;
+  /** Number of the next segment written */
+  private int nextSegment;
+  /** Whether the server has stopped, so the world is backed up as it was saved last */
+  private final boolean afterStop;
 
   /**
    * Sets up a snapshot creation thread.
@@ -54,74 +124,696 @@ public class SnapshotCreator extends BackupCreator {
    * messages.
    */
   public SnapshotCreator(ICommandSender sender) {
+    this(sender, false);
+  }
+
+  /**
+   * Sets up a snapshot creation thread, possibly for a server that has stopped.
+   *
+   * @param sender The {@link ICommandSender} that requested this snapshot. Used for status
+   * messages.
+   * @param afterStop Whether the server has stopped and saved the world for the last time. The
+   * world is then backed up as it is on disk, without saving or pausing it.
+   */
+  public SnapshotCreator(ICommandSender sender, boolean afterStop) {
     super(sender);
-    this.setName("Snapshot Thread");
+    this.afterStop = afterStop;
+    this.setName(afterStop ? "Shutdown Snapshot Thread" : "Snapshot Thread");
+  }
+
+  /**
+   * Sets up a snapshot creation thread for a profile.
+   *
+   * @param sender The {@link ICommandSender} that requested this snapshot. Used for status
+   * messages.
+   * @param profile Profile to take the snapshot for.
+   */
+  public SnapshotCreator(ICommandSender sender, BackupProfile profile) {
+    super(sender, profile);
+    this.afterStop = false;
+    this.setName("Snapshot Thread (" + profile.getName() + ")");
   }
 
-  /** Provides methods to use with {@link Files#walkFileTree} for snapshots */
-  private class SnapshotVisitor implements FileVisitor<Path> {
-    @Override
-    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attr)
-        throws IOException {
-      // Ignore the whole directory if it's in the ignore list
-      if (backupExcludes.contains(path.toString())) {
-        return FileVisitResult.SKIP_SUBTREE;
+  /** {@inheritDoc} */
+  @Override
+  public String getBackupType() {
+    return withProfile("snapshot");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected String getMetricsType() {
+    return "snapshot";
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected boolean capturesWorld() {
+    return !afterStop;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void createBackup() throws InterruptedException, IOException {
+    SimpleDateFormat rfc8601Formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ss'Z'");
+    rfc8601Formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    ManifestStore manifests = new ManifestStore(Paths.get(profile.getOutputDir()));
+    BackupJournal.State resumed = findResumable(manifests);
+
+    Manifest base;
+    Date startTime;
+    String name;
+    if (resumed != null) {
+      Manifest header = resumed.getManifest();
+      name = header.getName();
+      startTime = new Date(header.getTime());
+      base = header.getBase() == null ? null : manifests.find(header.getBase());
+      publishedOutput = manifests.getBackupPath(header);
+      snapshotOutput = FileSync.getPartialPath(publishedOutput);
+      outputCreated = true;
+      messenger.info(requester, "Resuming the interrupted snapshot " + name + " (" +
+          resumed.getDoneCount() + " files and folders already done)");
+    } else {
+      startTime = new Date();
+      name = rfc8601Formatter.format(startTime);
+      publishedOutput = Paths.get(profile.getOutputDir(), name);
+      snapshotOutput = FileSync.getPartialPath(publishedOutput);
+
+      if (Files.exists(publishedOutput) || Files.exists(snapshotOutput)) {
+        throw new FileAlreadyExistsException("Backup output directory already exists: " +
+            publishedOutput.toString());
       }
 
-      Files.createDirectories(snapshotOutput.resolve(path));
+      Files.createDirectories(snapshotOutput);
+      outputCreated = true;
 
-      return FileVisitResult.CONTINUE;
+      base = manifests.findLatestSnapshot();
     }
+    estimateProgress(manifests);
 
-    @Override
-    public FileVisitResult visitFile(Path path, BasicFileAttributes attr) throws IOException {
-      // Continue without doing anything with the file if it's in the ignore list
-      if (backupExcludes.contains(path.toString())) {
-        return FileVisitResult.CONTINUE;
+    segmentPrefix = name + "-";
+    nextSegment = 1;
+    if (resumed != null) {
+      for (String id : PackedFiles.removeIncomplete(snapshotOutput)) {
+        if (id.startsWith(segmentPrefix)) {
+          nextSegment = Math.max(nextSegment,
+              Integer.parseInt(id.substring(segmentPrefix.length())) + 1);
+        }
+      }
+    }
+    packBuffer = new byte[SegmentPacker.SEGMENT_SIZE];
+    packer = new SegmentPacker(new SegmentPacker.Sink() {
+      @Override
+      public void storeSegment(byte[] data, int length, SegmentIndex index) throws IOException {
+        String id = String.format("%s%06d", segmentPrefix, nextSegment++);
+        unsynced.addAll(PackedFiles.writeSegment(snapshotOutput, id, data, length, index));
+      }
+    });
+
+    List<TargetFile> targets = scanTargets(manifests);
+
+    ChangeSet changes;
+    Path baseOutput = null;
+    if (base == null) {
+      changes = ChangeSet.compute(targets, null, null, true);
+    } else {
+      try (ManifestReader baseReader = manifests.open(base)) {
+        changes = ChangeSet.compute(targets, baseReader, base.getName(), true);
+      }
+      baseOutput = manifests.getBackupPath(base);
+    }
+
+    Map<String, PackedFiles.Location> basePacked = Collections.emptyMap();
+    if (baseOutput != null) {
+      try {
+        basePacked = findPacked(PackedFiles.load(baseOutput), changes.getUnchanged());
+      } catch (IOException e) {
+        logger.warn("Copying the small files of " + base.getName() + " again, its segments " +
+            "can't be read", e);
       }
+    }
+
+    long totalBytes = 0;
+    for (TargetFile target : targets) {
+      totalBytes += target.getSize();
+    }
+    progress.start(totalBytes, targets.size());
+
+    journalPath = BackupJournal.getPath(manifests.getOutputDir(), name);
+    Manifest manifest = new Manifest(name, publishedOutput.getFileName().toString(),
+        BackupKind.FULL, base == null ? null : base.getName(), startTime.getTime());
+    try (BackupJournal journal = resumed == null ? BackupJournal.create(journalPath, manifest) :
+        BackupJournal.resume(journalPath)) {
+      this.journal = journal;
+      lastCheckpoint = System.nanoTime();
+      Counter.Child reusedBytes = metrics.getDedupeBytes(getMetricsType(), BackupMetrics.REUSED);
+      Counter.Child storedBytes = metrics.getDedupeBytes(getMetricsType(), BackupMetrics.STORED);
+
+      try {
+        // Segments are linked first, so the unchanged files packed in them are reused as they
+        // come up.
+        Set<String> linkedSegments = linkSegments(baseOutput, basePacked);
+        int linked = 0;
+        for (TargetFile target : orderTargets(targets)) {
+          checkCancelled();
+          progress.beginFile(target.getName());
+          TargetFile changed = changes.isUnchanged(target) ?
+              recheckUnchanged(target, changes) : target;
+          if (changed == null) {
+            PackedFiles.Location packed = basePacked.get(target.getName());
+            if (alreadyDone(resumed, target, changes) ||
+                (packed != null && linkedSegments.contains(packed.getId()))) {
+              linked++;
+              reusedBytes.add(target.getSize());
+              addProgress(target.getSize());
+            } else if (packed != null) {
+              repackFile(target, packed, changes, resumed != null);
+              storedBytes.add(target.getSize());
+            } else if (linkFile(baseOutput, target, resumed != null)) {
+              linked++;
+              reusedBytes.add(target.getSize());
+              addProgress(target.getSize());
+            } else {
+              beginTarget(target);
+              storeFile(target, changes, resumed != null);
+              storedBytes.add(target.getSize());
+            }
+            fileDone(target, new ManifestEntry(ManifestEntry.Type.FILE, target.getName(),
+                target.getSize(), target.getLastModified(), null, ManifestEntry.THIS_BACKUP));
+            continue;
+          }
 
-      // TODO Fancy stuff with dedupe/links
+          if (changed != target) {
+            // Saved since the scan. A plain copy hides the old one in a linked segment.
+            copyFile(changed, changes, true);
+            storedBytes.add(changed.getSize());
+          } else if (alreadyDone(resumed, target, changes)) {
+            addProgress(target.getSize());
+          } else if (target.isDirectory()) {
+            Files.createDirectories(snapshotOutput.resolve(target.getPath()));
+          } else if (beginChangedTarget(target, changes)) {
+            storeFile(target, changes, resumed != null);
+            storedBytes.add(target.getSize());
+          }
+          fileDone(changed, changes.getEntry(changed));
+        }
 
-      return FileVisitResult.CONTINUE;
+        if (base != null) {
+          logger.info("Snapshot linked " + linked + " unchanged files to " + base.getName() +
+              " and copied " + (targets.size() - linked) + " files and folders");
+        }
+      } catch (InterruptedException e) {
+        if (interrupter == null) {
+          // Stopped by the server rather than cancelled, so keep everything finished so far.
+          Thread.interrupted();
+          try {
+            checkpoint();
+          } catch (IOException checkpointError) {
+            logger.warn("Unable to make a last checkpoint, the next snapshot resumes from the " +
+                "one before", checkpointError);
+          }
+        }
+        throw e;
+      }
+
+      // Everything has to be on disk before the snapshot is published. The folders are synced
+      // once, here, which also makes every link and copy in them durable.
+      packer.flush();
+      syncCopied();
+      for (Path folder : listFolders()) {
+        FileSync.syncDirectory(folder);
+      }
+      FileSync.publish(snapshotOutput, publishedOutput);
+      published = true;
+      changes.writeManifest(Manifest.getPath(manifests.getOutputDir(), name), manifest);
     }
 
-    @Override
-    public FileVisitResult visitFileFailed(Path path, IOException exception) throws IOException {
-      throw exception;
+    Files.deleteIfExists(journalPath);
+    journalPath = null;
+  }
+
+  /**
+   * Checks whether a target was finished before the snapshot was interrupted and hasn't changed
+   * since.
+   *
+   * @param resumed State of the interrupted snapshot, or {@code null} if this isn't a resumed
+   * snapshot.
+   * @param target Target to check.
+   * @param changes Changes since the base, which record the target if it was copied.
+   * @return {@code true} if the snapshot already holds the target.
+   */
+  private boolean alreadyDone(BackupJournal.State resumed, TargetFile target, ChangeSet changes) {
+    if (resumed == null) {
+      return false;
+    }
+    ManifestEntry done = resumed.getDone(target.getName());
+    if (done == null || done.getSize() != target.getSize() ||
+        done.getLastModified() != target.getLastModified() ||
+        (done.getType() == ManifestEntry.Type.DIRECTORY) != target.isDirectory()) {
+      return false;
     }
+    changes.stored(target, done.getSize(), done.getHash(), done.getChunkHashes());
+    return true;
+  }
 
-    @Override
-    public FileVisitResult postVisitDirectory(Path path, IOException exception) throws IOException {
-      return FileVisitResult.CONTINUE;
+  /**
+   * Records a finished target in the journal, and makes a checkpoint if it's time for one.
+   *
+   * @param target Target that was just finished.
+   * @param entry What to record for it.
+   * @throws IOException if writing the journal or syncing fails.
+   */
+  private void fileDone(TargetFile target, ManifestEntry entry) throws IOException {
+    progress.fileDone();
+    finished.add(entry);
+    if (System.nanoTime() - lastCheckpoint < CHECKPOINT_INTERVAL_NANOS) {
+      return;
     }
+
+    checkpoint();
+  }
+
+  /**
+   * Records the targets finished since the last checkpoint in the journal, once they're on disk.
+   *
+   * @throws IOException if writing the journal or syncing fails.
+   */
+  private void checkpoint() throws IOException {
+    // The copies have to be on disk before the journal says they're done.
+    packer.flush();
+    syncCopied();
+    for (ManifestEntry done : finished) {
+      journal.recordDone(done);
+    }
+    finished.clear();
+    journal.checkpoint(0, 0);
+    lastCheckpoint = System.nanoTime();
+  }
+
+  /**
+   * Syncs the files copied since the last checkpoint to disk.
+   *
+   * @throws IOException if syncing fails.
+   */
+  private void syncCopied() throws IOException {
+    FileSync.syncFiles(unsynced);
+    unsynced.clear();
+  }
+
+  /**
+   * Lists every folder in the snapshot, deepest first, so they can be synced before it's
+   * published.
+   *
+   * @return Folders of the snapshot, including the snapshot itself (last).
+   * @throws IOException if the snapshot can't be walked.
+   */
+  private List<Path> listFolders() throws IOException {
+    final List<Path> folders = new ArrayList<>();
+    Files.walkFileTree(snapshotOutput, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exception)
+          throws IOException {
+        if (exception != null) {
+          throw exception;
+        }
+        folders.add(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return folders;
+  }
+
+  /**
+   * Finds an interrupted snapshot to resume.
+   *
+   * <p>Only the most recent interrupted snapshot is resumed; older ones are deleted.</p>
+   *
+   * @param manifests Manifests of the existing backups.
+   * @return What the interrupted snapshot's journal says is done, or {@code null} to start a new
+   * snapshot.
+   * @throws IOException if the backup folder can't be listed.
+   */
+  private BackupJournal.State findResumable(ManifestStore manifests) throws IOException {
+    List<BackupJournal.State> interrupted = new ArrayList<>();
+    List<Path> journalPaths = new ArrayList<>();
+    for (Path path : BackupJournal.findIncomplete(manifests.getOutputDir())) {
+      try {
+        BackupJournal.State state = BackupJournal.read(path);
+        if (!ManifestStore.isArchive(state.getManifest())) {
+          interrupted.add(state);
+          journalPaths.add(path);
+        }
+      } catch (IOException e) {
+        logger.warn("Ignoring unreadable backup journal " + path, e);
+      }
+    }
+
+    BackupJournal.State resumable = null;
+    for (int i = interrupted.size() - 1; i >= 0; i--) {
+      BackupJournal.State state = interrupted.get(i);
+      Path output = FileSync.getPartialPath(manifests.getBackupPath(state.getManifest()));
+      if (resumable == null && Files.isDirectory(output)) {
+        resumable = state;
+      } else {
+        logger.info("Deleting interrupted snapshot " + state.getManifest().getFile() +
+            ", it can't be resumed");
+        deleteTree(output);
+        // A crash between publishing a snapshot and writing its manifest leaves only the folder.
+        deleteTree(manifests.getBackupPath(state.getManifest()));
+        Files.deleteIfExists(journalPaths.get(i));
+      }
+    }
+    return resumable;
   }
 
   /** {@inheritDoc} */
   @Override
-  public String getBackupType() {
-    return "snapshot";
+  protected void deletePartialOutput() throws IOException {
+    if (!outputCreated) {
+      return;
+    }
+    deleteTree(snapshotOutput);
+    if (published) {
+      deleteTree(publishedOutput);
+    }
+    if (journalPath != null) {
+      Files.deleteIfExists(journalPath);
+    }
   }
 
   /** {@inheritDoc} */
   @Override
-  protected void createBackup() throws InterruptedException, IOException {
-    SimpleDateFormat rfc8601Formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ss'Z'");
-    rfc8601Formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+  protected boolean canResume() {
+    return outputCreated && !published && journalPath != null;
+  }
+
+  /**
+   * Copies a snapshot into a folder of plain files, unpacking the files packed into its segments.
+   *
+   * <p>Files that aren't packed are hard linked where possible, so the copy takes little space.
+   * It can be used like a snapshot without segments, eg to restore the world by copying it back.
+   * The copy is made under a temporary name and renamed once it's complete.</p>
+   *
+   * @param manifests Manifests of the existing backups.
+   * @param snapshot Manifest of the snapshot.
+   * @param destination Folder to copy the snapshot into. It must not exist.
+   * @return Number of files that were unpacked.
+   * @throws IOException if the snapshot can't be read or the copy can't be written.
+   */
+  public static int unpack(ManifestStore manifests, Manifest snapshot, Path destination)
+      throws IOException {
+    if (Files.exists(destination)) {
+      throw new FileAlreadyExistsException("Unpack destination already exists: " + destination);
+    }
+    Path folder = manifests.getBackupPath(snapshot);
+    PackedFiles packed = PackedFiles.load(folder);
+    Path partial = FileSync.getPartialPath(destination);
+    deleteTree(partial);
+    Files.createDirectories(partial);
+
+    int unpacked = 0;
+    try (ManifestReader reader = manifests.open(snapshot)) {
+      ManifestEntry entry;
+      while ((entry = reader.next()) != null) {
+        Path output = partial.resolve(entry.getName());
+        if (entry.getType() == ManifestEntry.Type.DIRECTORY) {
+          Files.createDirectories(output);
+          continue;
+        } else if (entry.getType() != ManifestEntry.Type.FILE) {
+          continue;
+        }
 
-    snapshotOutput = Paths.get(config.getBackupOutputDir(), rfc8601Formatter.format(new Date()));
+        Files.createDirectories(output.getParent());
+        PackedFiles.Location location = packed.find(entry.getName());
+        if (location != null) {
+          Files.write(output, PackedFiles.read(location.getSegment(), location.getEntry()),
+              StandardOpenOption.CREATE_NEW);
+          Files.setLastModifiedTime(output, FileTime.fromMillis(entry.getLastModified()));
+          unpacked++;
+          continue;
+        }
 
-    if (Files.exists(snapshotOutput)) {
-      throw new FileAlreadyExistsException("Backup output directory already exists: " +
-          snapshotOutput.toString());
+        Path source = folder.resolve(entry.getName());
+        try {
+          Files.createLink(output, source);
+        } catch (IOException | UnsupportedOperationException e) {
+          Files.copy(source, output, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+      }
     }
 
-    Files.createDirectories(snapshotOutput);
+    FileSync.publish(partial, destination);
+    return unpacked;
+  }
 
-    backupExcludes = new ArrayList<>(Arrays.asList(config.getBackupExcludes()));
+  /**
+   * Deletes a folder and everything in it.
+   *
+   * <p>Deleting hard links leaves the files they link to (in earlier snapshots) alone.</p>
+   *
+   * @param folder Folder to delete. Nothing happens if it doesn't exist.
+   * @throws IOException if something can't be deleted.
+   */
+  static void deleteTree(Path folder) throws IOException {
+    if (!Files.exists(folder)) {
+      return;
+    }
+
+    Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exception)
+          throws IOException {
+        if (exception != null) {
+          throw exception;
+        }
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
 
-    for (String file : config.getBackupIncludes()) {
-      Files.walkFileTree(Paths.get(file), EnumSet.allOf(FileVisitOption.class),
-          Integer.MAX_VALUE, new SnapshotVisitor());
+  /**
+   * Hard links a file to its copy in the previous snapshot.
+   *
+   * @param baseOutput Folder of the previous snapshot.
+   * @param target Unchanged file to link.
+   * @param replace Whether to replace a file left by an interrupted run.
+   * @return {@code true} if the link was made, {@code false} if the file has to be copied.
+   * @throws IOException if the folder of the link can't be created.
+   */
+  private boolean linkFile(Path baseOutput, TargetFile target, boolean replace)
+      throws IOException {
+    Path output = snapshotOutput.resolve(target.getPath());
+    Files.createDirectories(output.getParent());
+    if (replace) {
+      Files.deleteIfExists(output);
+    }
+    try {
+      Files.createLink(output, baseOutput.resolve(target.getPath()));
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      // The old copy is gone or the file system can't link; copying still works.
+      logger.debug("Couldn't link " + target.getName() + ", copying it instead", e);
+      return false;
     }
   }
+
+  /**
+   * Finds the unchanged files that are packed in the previous snapshot.
+   *
+   * @param basePacked Packed files of the previous snapshot.
+   * @param unchanged Files unchanged since the previous snapshot.
+   * @return Where each of them is packed, by name.
+   */
+  private static Map<String, PackedFiles.Location> findPacked(PackedFiles basePacked,
+      List<TargetFile> unchanged) {
+    Map<String, PackedFiles.Location> packed = new HashMap<>();
+    for (TargetFile target : unchanged) {
+      PackedFiles.Location location = target.isDirectory() ? null :
+          basePacked.find(target.getName());
+      if (location != null) {
+        packed.put(target.getName(), location);
+      }
+    }
+    return packed;
+  }
+
+  /**
+   * Hard links the segments of the previous snapshot that are still mostly in use.
+   *
+   * <p>A segment is linked if at least half of its data belongs to unchanged files. The files
+   * still in use in the other segments are packed again by {@link #repackFile}, so a segment is
+   * dropped once most of it is out of date.</p>
+   *
+   * @param baseOutput Folder of the previous snapshot.
+   * @param packed Unchanged files packed in the previous snapshot, by name.
+   * @return IDs of the segments that were linked.
+   * @throws IOException if the segment folder can't be created.
+   */
+  private Set<String> linkSegments(Path baseOutput, Map<String, PackedFiles.Location> packed)
+      throws IOException {
+    Map<String, Long> liveBytes = new HashMap<>();
+    Map<String, Long> sizes = new HashMap<>();
+    for (PackedFiles.Location location : packed.values()) {
+      Long live = liveBytes.get(location.getId());
+      liveBytes.put(location.getId(), (live == null ? 0 : live) + location.getEntry().getSize());
+      sizes.put(location.getId(), location.getSegmentSize());
+    }
+
+    Set<String> linked = new HashSet<>();
+    Path segments = snapshotOutput.resolve(SegmentIndex.FOLDER);
+    for (Map.Entry<String, Long> live : liveBytes.entrySet()) {
+      String id = live.getKey();
+      if (live.getValue() * 2 < sizes.get(id)) {
+        continue;
+      }
+
+      Files.createDirectories(segments);
+      // The index is linked last, so the segment never has an index without its data.
+      Path[] links = {segments.resolve(id + SegmentIndex.DATA_EXTENSION),
+          segments.resolve(id + SegmentIndex.INDEX_EXTENSION)};
+      try {
+        for (Path link : links) {
+          if (!Files.exists(link)) {
+            Files.createLink(link, baseOutput.resolve(SegmentIndex.FOLDER)
+                .resolve(link.getFileName()));
+          }
+        }
+        linked.add(id);
+      } catch (IOException | UnsupportedOperationException e) {
+        logger.debug("Couldn't link segment " + id + ", packing its files again instead", e);
+        Files.deleteIfExists(links[1]);
+        Files.deleteIfExists(links[0]);
+      }
+    }
+    return linked;
+  }
+
+  /**
+   * Stores a changed file in the snapshot: small files are packed, everything else is copied.
+   *
+   * @param target File to store.
+   * @param changes Where the file is recorded once it's stored.
+   * @param replace Whether to replace a file left by an interrupted run.
+   * @throws IOException if the file can't be stored.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private void storeFile(TargetFile target, ChangeSet changes, boolean replace)
+      throws IOException, InterruptedException {
+    if (isSmallFile(target)) {
+      packFile(target, changes, replace);
+    } else {
+      copyFile(target, changes, replace);
+    }
+  }
+
+  /**
+   * Packs a small file into the snapshot's segments.
+   *
+   * @param target File to pack.
+   * @param changes Where the file is recorded once it's packed.
+   * @param replace Whether to delete a plain copy left by an interrupted run, which would hide
+   * the packed one.
+   * @throws IOException if the file can't be read or a full segment can't be written.
+   */
+  private void packFile(TargetFile target, ChangeSet changes, boolean replace)
+      throws IOException {
+    if (replace) {
+      Files.deleteIfExists(snapshotOutput.resolve(target.getPath()));
+    }
+
+    int length;
+    try (InputStream in = target.openSource()) {
+      length = readBlock(in, packBuffer);
+    }
+    SegmentIndex.Entry entry = packer.add(target.getName(), target.getLastModified(), packBuffer,
+        0, length);
+    addProgress(length);
+
+    changes.stored(target, target.getSize(),
+        length == target.getSize() ? String.format("crc32:%08x", entry.getCrc()) : null, null);
+  }
+
+  /**
+   * Packs an unchanged file again, from a segment of the previous snapshot that isn't linked.
+   *
+   * <p>If its packed copy turns out to be damaged, the file is stored from the world instead.</p>
+   *
+   * @param target Unchanged file.
+   * @param packed Where the file is packed in the previous snapshot.
+   * @param changes Where the file is recorded if it has to be stored from the world.
+   * @param replace Whether to delete a plain copy left by an interrupted run.
+   * @throws IOException if the file can't be packed.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private void repackFile(TargetFile target, PackedFiles.Location packed, ChangeSet changes,
+      boolean replace) throws IOException, InterruptedException {
+    byte[] data;
+    try {
+      data = PackedFiles.read(packed.getSegment(), packed.getEntry());
+    } catch (IOException e) {
+      logger.warn("Storing " + target.getName() + " from the world instead", e);
+      beginTarget(target);
+      storeFile(target, changes, replace);
+      return;
+    }
+
+    if (replace) {
+      Files.deleteIfExists(snapshotOutput.resolve(target.getPath()));
+    }
+    packer.add(target.getName(), target.getLastModified(), data, 0, data.length);
+    addProgress(data.length);
+  }
+
+  /**
+   * Copies a file into the snapshot.
+   *
+   * @param target File to copy.
+   * @param changes Where the file is recorded once it's copied.
+   * @param replace Whether to replace a file left by an interrupted run.
+   * @throws IOException if the file can't be copied.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private void copyFile(TargetFile target, ChangeSet changes, boolean replace)
+      throws IOException, InterruptedException {
+    Path output = snapshotOutput.resolve(target.getPath());
+    Files.createDirectories(output.getParent());
+    if (replace) {
+      Files.deleteIfExists(output);
+    }
+
+    crc.reset();
+    ChunkHasher chunkHasher = startChunkHashes(target);
+    long copied = 0;
+    try (InputStream in = target.openSource();
+         OutputStream out = Files.newOutputStream(output, StandardOpenOption.CREATE_NEW)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        checkCancelled();
+        out.write(buffer, 0, read);
+        crc.update(buffer, 0, read);
+        if (chunkHasher != null) {
+          chunkHasher.update(buffer, 0, read);
+        }
+        copied += read;
+        addProgress(read);
+      }
+    }
+
+    // Keep the scanned modification time, so restoring the copy restores it as well.
+    Files.setLastModifiedTime(output, FileTime.fromMillis(target.getLastModified()));
+    unsynced.add(output);
+
+    boolean complete = copied == target.getSize();
+    changes.stored(target, target.getSize(),
+        complete ? String.format("crc32:%08x", crc.getValue()) : null,
+        complete ? finishChunkHashes(target, chunkHasher) : null);
+  }
 }
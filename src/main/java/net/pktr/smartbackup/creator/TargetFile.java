@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.pack.PackedFiles;
+import net.pktr.smartbackup.pack.SegmentIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A file or folder found while scanning the backup targets.
+ *
+ * <p>The path is kept relative to the server root (exactly as it is written in the include list),
+ * so it can be used both to read the live file and to name the file inside of a backup.</p>
+ *
+ * <p>A target can also be read from somewhere else (see {@link #getSource}), such as a file staged
+ * by the online capture, or a small file packed into a segment of a snapshot.</p>
+ *
+ * <p>A target backed up by several profiles at once is read through {@link SharedReads}, so its
+ * data is read from disk once for all of them.</p>
+ */
+public class TargetFile {
+  /** Path of the file, relative to the server root. */
+  private final Path path;
+  /** Whether this target is a folder. */
+  private final boolean directory;
+  /** Size of the file in bytes when it was scanned. Always 0 for folders. */
+  private final long size;
+  /** Last modification time of the file (in milliseconds since the epoch) when it was scanned. */
+  private final long lastModified;
+  /** Where the target's data is read from. */
+  private final Path source;
+  /** Where the target is in {@link #source} if that is a segment, or {@code null}. */
+  private final SegmentIndex.Entry packed;
+  /** Reads shared with the other profiles backing up the target, or {@code null}. */
+  private final SharedReads reads;
+  /** Number of profiles backing up the target, if its reads are shared. */
+  private final int readers;
+
+  public TargetFile(Path path, boolean directory, long size, long lastModified) {
+    this(path, directory, size, lastModified, path);
+  }
+
+  public TargetFile(Path path, boolean directory, long size, long lastModified, Path source) {
+    this.path = path;
+    this.directory = directory;
+    this.size = directory ? 0 : size;
+    this.lastModified = lastModified;
+    this.source = source;
+    this.packed = null;
+    this.reads = null;
+    this.readers = 0;
+  }
+
+  public TargetFile(Path path, Path segment, SegmentIndex.Entry packed) {
+    this.path = path;
+    this.directory = false;
+    this.size = packed.getSize();
+    this.lastModified = packed.getLastModified();
+    this.source = segment;
+    this.packed = packed;
+    this.reads = null;
+    this.readers = 0;
+  }
+
+  /**
+   * Sets up a target whose reads are shared by several profiles.
+   *
+   * @param target Target, read from a file of its own.
+   * @param reads Reads shared by the profiles.
+   * @param readers Number of profiles backing up the target.
+   */
+  TargetFile(TargetFile target, SharedReads reads, int readers) {
+    this.path = target.path;
+    this.directory = target.directory;
+    this.size = target.size;
+    this.lastModified = target.lastModified;
+    this.source = target.source;
+    this.packed = null;
+    this.reads = reads;
+    this.readers = readers;
+  }
+
+  /**
+   * Gets the path of this target, relative to the server root.
+   *
+   * @return Path of the target.
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Gets where this target's data is read from.
+   *
+   * <p>This is the same as {@link #getPath} unless the target was staged somewhere else.</p>
+   *
+   * @return Path to read the target from.
+   */
+  public Path getSource() {
+    return source;
+  }
+
+  /**
+   * Opens this target's data.
+   *
+   * @return Stream of the data. The caller must close it.
+   * @throws IOException if the data can't be read.
+   */
+  public InputStream openSource() throws IOException {
+    if (packed != null) {
+      return new ByteArrayInputStream(PackedFiles.read(source, packed));
+    }
+    if (reads != null) {
+      return reads.open(source, readers);
+    }
+    return Files.newInputStream(source);
+  }
+
+  /**
+   * Gets the size of this target's data as it is now, which may differ from the scanned size.
+   *
+   * <p>For a target whose reads are shared, this is the size of the data the streams open on it
+   * read.</p>
+   *
+   * @return Size in bytes.
+   * @throws IOException if the size can't be read.
+   */
+  public long getSourceSize() throws IOException {
+    if (reads != null) {
+      return reads.getSize(source);
+    }
+    return packed != null ? packed.getSize() : Files.size(source);
+  }
+
+  /**
+   * Gets the name used for this target inside of backups.
+   *
+   * <p>This is the relative path with {@code /} as the separator on every platform.</p>
+   *
+   * @return Name of the target inside of a backup.
+   */
+  public String getName() {
+    return path.toString().replace(File.separatorChar, '/');
+  }
+
+  /**
+   * Checks whether this target is a folder.
+   *
+   * @return {@code true} if this target is a folder.
+   */
+  public boolean isDirectory() {
+    return directory;
+  }
+
+  /**
+   * Gets the size of this target when it was scanned.
+   *
+   * @return Size in bytes, or 0 for folders.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the last modification time of this target when it was scanned.
+   *
+   * @return Modification time in milliseconds since the epoch.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Walks the configured backup targets and lists every file and folder that should be backed up.
+ *
+ * <p>Scanning everything up front lets creators know how much data they are about to back up and
+ * inspect the targets (eg to sample region files) before any output is written.</p>
+ */
+public class TargetScanner {
+  /** Decides what the scan lists. */
+  private final Filter filter;
+  /** Targets found so far. */
+  private final List<TargetFile> targets = new ArrayList<>();
+
+  /** Decides which files and folders a scan lists, and which folders it walks into. */
+  public interface Filter {
+    /**
+     * Checks whether a file or folder is listed.
+     *
+     * @param path Path relative to the server root.
+     * @return {@code true} if the path is a target.
+     */
+    boolean lists(Path path);
+
+    /**
+     * Checks whether a folder is walked into. A folder can be walked without being listed, for
+     * targets further down.
+     *
+     * @param folder Path relative to the server root.
+     * @return {@code true} if what's in the folder is scanned.
+     */
+    boolean walks(Path folder);
+  }
+
+  /**
+   * Sets up a scanner.
+   *
+   * @param excludes Files/folders (relative to the server root) to leave out. If a folder is
+   * excluded, all of its children are excluded as well.
+   */
+  public TargetScanner(String[] excludes) {
+    final List<String> backupExcludes = new ArrayList<>(Arrays.asList(excludes));
+    filter = new Filter() {
+      @Override
+      public boolean lists(Path path) {
+        return !backupExcludes.contains(path.toString());
+      }
+
+      @Override
+      public boolean walks(Path folder) {
+        return !backupExcludes.contains(folder.toString());
+      }
+    };
+  }
+
+  /**
+   * Sets up a scanner that lists what a filter picks.
+   *
+   * @param filter Decides what's listed and walked.
+   */
+  public TargetScanner(Filter filter) {
+    this.filter = filter;
+  }
+
+  /** Provides methods to use with {@link Files#walkFileTree} for scanning */
+  private class ScanVisitor implements FileVisitor<Path> {
+    @Override
+    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attr)
+        throws IOException {
+      // Ignore the whole directory if it's in the ignore list
+      if (!filter.walks(path)) {
+        return FileVisitResult.SKIP_SUBTREE;
+      }
+
+      if (filter.lists(path)) {
+        targets.add(new TargetFile(path, true, 0, attr.lastModifiedTime().toMillis()));
+      }
+
+      return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attr) throws IOException {
+      // Continue without doing anything with the file if it's in the ignore list
+      if (!filter.lists(path)) {
+        return FileVisitResult.CONTINUE;
+      }
+
+      targets.add(new TargetFile(path, false, attr.size(), attr.lastModifiedTime().toMillis()));
+
+      return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException exception) throws IOException {
+      // Files can be deleted or renamed away while the folder is walked (like the temporary file
+      // player data is saved to), and then aren't part of the backup.
+      if (exception instanceof NoSuchFileException) {
+        return FileVisitResult.CONTINUE;
+      }
+      throw exception;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path path, IOException exception) throws IOException {
+      return FileVisitResult.CONTINUE;
+    }
+  }
+
+  /**
+   * Walks a target (file or folder) and adds everything in it that isn't excluded.
+   *
+   * @param include File/folder to walk, relative to the server root.
+   * @throws IOException if the target can't be walked.
+   */
+  public void scan(String include) throws IOException {
+    Files.walkFileTree(Paths.get(include), EnumSet.allOf(FileVisitOption.class),
+        Integer.MAX_VALUE, new ScanVisitor());
+  }
+
+  /**
+   * Gets everything found by the scanner, sorted by name.
+   *
+   * <p>Folders are always listed before their children.</p>
+   *
+   * @return Sorted list of targets.
+   */
+  public List<TargetFile> getTargets() {
+    List<TargetFile> sorted = new ArrayList<>(targets);
+    sortByName(sorted);
+    return sorted;
+  }
+
+  /**
+   * Sorts targets by name, which lists folders before their children.
+   *
+   * @param targets Targets to sort in place.
+   */
+  static void sortByName(List<TargetFile> targets) {
+    Collections.sort(targets, new Comparator<TargetFile>() {
+      @Override
+      public int compare(TargetFile a, TargetFile b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+  }
+
+  /**
+   * Scans all of the given includes.
+   *
+   * @param includes Files/folders to walk, relative to the server root.
+   * @param excludes Files/folders to leave out.
+   * @return Sorted list of targets.
+   * @throws IOException if a target can't be walked.
+   */
+  public static List<TargetFile> scanAll(String[] includes, String[] excludes) throws IOException {
+    TargetScanner scanner = new TargetScanner(excludes);
+    for (String include : includes) {
+      scanner.scan(include);
+    }
+    return scanner.getTargets();
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The dimensions of the running world, as the capture modes that work on them one dimension (or
+ * one chunk) at a time see them.
+ *
+ * <p>Methods marked as such may only be called on the server thread, from a
+ * {@link net.pktr.smartbackup.ServerTasks.Task}. The others may be called from any thread.</p>
+ */
+public interface WorldAccess {
+  /**
+   * Gets the dimensions saved on disk, in the order the server ticks them.
+   *
+   * @return The dimensions.
+   */
+  List<Dimension> getDimensions();
+
+  /**
+   * Waits until the chunk saves queued so far are written to disk.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  void waitForChunkWrites() throws InterruptedException;
+
+  /** A dimension of the world. */
+  interface Dimension {
+    /**
+     * Gets the dimension's id, for messages.
+     *
+     * @return The dimension id.
+     */
+    int getId();
+
+    /**
+     * Gets where the dimension is saved.
+     *
+     * @return Normalized save folder, relative to the server root.
+     */
+    Path getSaveFolder();
+
+    /**
+     * Checks whether the dimension's chunks are saved in region files (in {@code region} in its
+     * save folder), which can be read under {@link #readRegion}.
+     *
+     * @return {@code true} if its chunks are in region files.
+     */
+    boolean hasRegionFiles();
+
+    /**
+     * Checks whether the dimension saves. Server thread only.
+     *
+     * @return {@code true} if saving is on.
+     */
+    boolean isSaving();
+
+    /**
+     * Turns the dimension's saving on or off. Server thread only.
+     *
+     * @param saving Whether the dimension saves.
+     */
+    void setSaving(boolean saving);
+
+    /**
+     * Saves every chunk and the dimension's data, whether saving is on or not. Server thread only.
+     *
+     * @throws IOException if the dimension can't be saved.
+     */
+    void save() throws IOException;
+
+    /**
+     * Lists the chunks loaded right now. Server thread only.
+     *
+     * @return The loaded chunks.
+     */
+    List<LoadedChunk> getLoadedChunks();
+
+    /**
+     * Runs a read of a region file while no chunk of it can be written.
+     *
+     * <p>Saves of the region's chunks wait until the read is done, so it must be short: a chunk
+     * at a time, not the whole file.</p>
+     *
+     * @param regionX X coordinate of the region.
+     * @param regionZ Z coordinate of the region.
+     * @param read Read to run.
+     * @throws IOException if the read fails.
+     */
+    void readRegion(int regionX, int regionZ, RegionRead read) throws IOException;
+  }
+
+  /** A chunk loaded in memory. Its methods may only be called on the server thread. */
+  interface LoadedChunk {
+    /**
+     * Checks whether the chunk is still loaded.
+     *
+     * @return {@code false} once the chunk has been unloaded (and saved as it was).
+     */
+    boolean isLoaded();
+
+    /**
+     * Checks whether the chunk has changes that aren't saved yet.
+     *
+     * @return {@code true} if it needs saving.
+     */
+    boolean needsSaving();
+
+    /**
+     * Saves the chunk the way the server does, queueing it to be written to its region file.
+     *
+     * @throws IOException if the chunk can't be saved.
+     */
+    void save() throws IOException;
+  }
+
+  /** A read done under {@link Dimension#readRegion}. */
+  interface RegionRead {
+    /**
+     * Reads from the region file.
+     *
+     * @throws IOException if reading fails.
+     */
+    void read() throws IOException;
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.creator;
+
+import net.pktr.smartbackup.FileSync;
+import net.pktr.smartbackup.ServerTasks;
+import net.pktr.smartbackup.SmartBackup;
+import net.pktr.smartbackup.metrics.Counter;
+import net.pktr.smartbackup.region.RegionChunk;
+import net.pktr.smartbackup.region.RegionCodec;
+import net.pktr.smartbackup.region.RegionFileReader;
+import net.pktr.smartbackup.region.RegionFormatException;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Captures the world for a backup without turning saving off.
+ *
+ * <p>First the server thread saves every loaded chunk with unsaved changes, a few at a time at
+ * the end of every tick (see {@link ServerTasks}), the same way the server saves them. Every
+ * region file is then staged: rebuilt one chunk at a time, each read under the lock Minecraft
+ * writes that region under, so no chunk is read half-written. The other files of the captured
+ * dimensions are copied by the server thread, which is the only thread that writes them. Saving
+ * carries on the whole time, so the server never stalls for a save.</p>
+ *
+ * <p>Every chunk is backed up whole, as of the last time it was saved. Chunks are saved at
+ * different times, so the backup isn't a snapshot of a single tick.</p>
+ */
+public class WorldCapture {
+  /** Name of the folder (in the backup folder) files are staged in. */
+  public static final String STAGING_FOLDER = "capture" + FileSync.PARTIAL_SUFFIX;
+
+  /** Names of region files, with the region's coordinates. */
+  private static final Pattern REGION_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+
+  private final Logger logger = SmartBackup.getLogger();
+  /** Ticks in which the server thread stopped because the tick budget was used up. */
+  private final Counter.Child budgetThrottled =
+      SmartBackup.getMetrics().getThrottledTicks("tick_budget");
+  /** World being captured. */
+  private final WorldAccess world;
+  /** Folder files are staged in. */
+  private final Path stagingDir;
+  /** Longest time the server thread spends on the capture in one tick. */
+  private final int tickBudgetMillis;
+  /** Dimensions saved in region files, deepest save folder first. */
+  private final List<WorldAccess.Dimension> dimensions = new ArrayList<>();
+  /** Dimensions whose loaded chunks are saved, as their region files are backed up. */
+  private final List<WorldAccess.Dimension> saved = new ArrayList<>();
+  /** Number of chunks saved for the capture. */
+  private int chunkCount = 0;
+
+  /**
+   * Sets up a capture of the dimensions whose files are backed up.
+   *
+   * @param world World to capture.
+   * @param stagingDir Folder to stage files in. Anything already in it is deleted.
+   * @param tickBudgetMillis Longest time the server thread spends on the capture in one tick.
+   * @param includes Files/folders being backed up, relative to the server root.
+   * @param excludes Files/folders left out of the backup.
+   * @throws IOException if the staging folder can't be cleared.
+   */
+  public WorldCapture(WorldAccess world, Path stagingDir, int tickBudgetMillis, String[] includes,
+                      String[] excludes) throws IOException {
+    this.world = world;
+    this.stagingDir = stagingDir;
+    this.tickBudgetMillis = tickBudgetMillis;
+
+    for (WorldAccess.Dimension dimension : world.getDimensions()) {
+      if (!dimension.hasRegionFiles()) {
+        logger.warn("Not capturing dimension " + dimension.getId() +
+            ", it isn't saved in region files");
+        continue;
+      }
+      dimensions.add(dimension);
+      if (isBackedUp(dimension.getSaveFolder().resolve("region"), includes, excludes)) {
+        saved.add(dimension);
+      }
+    }
+
+    // Dimensions can be saved inside each other's folders, so files go to the deepest match.
+    Collections.sort(dimensions, new Comparator<WorldAccess.Dimension>() {
+      @Override
+      public int compare(WorldAccess.Dimension a, WorldAccess.Dimension b) {
+        return b.getSaveFolder().getNameCount() - a.getSaveFolder().getNameCount();
+      }
+    });
+
+    SnapshotCreator.deleteTree(stagingDir);
+  }
+
+  /**
+   * Checks whether a path is backed up by the include and exclude lists.
+   *
+   * @param path Path relative to the server root.
+   * @param includes Files/folders being backed up.
+   * @param excludes Files/folders left out of the backup.
+   * @return {@code true} if the path is in an include and not in an exclude.
+   */
+  private static boolean isBackedUp(Path path, String[] includes, String[] excludes) {
+    for (String exclude : excludes) {
+      if (path.startsWith(Paths.get(exclude).normalize())) {
+        return false;
+      }
+    }
+    for (String include : includes) {
+      if (path.startsWith(Paths.get(include).normalize())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Saves every loaded chunk with unsaved changes, then waits for the saves to be written to
+   * disk.
+   *
+   * <p>Called on the backup thread. Dimensions with saving turned off are left as they are.</p>
+   *
+   * @throws IOException if a chunk can't be saved.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  public void capture() throws IOException, InterruptedException {
+    new ServerWork(tickBudgetMillis, budgetThrottled) {
+      /** Chunks loaded when the capture started. */
+      private List<WorldAccess.LoadedChunk> chunks = null;
+      /** Index of the next chunk to save. */
+      private int next = 0;
+
+      @Override
+      protected boolean step() throws IOException {
+        if (chunks == null) {
+          // Everything loaded right now is what gets saved.
+          chunks = new ArrayList<>();
+          for (WorldAccess.Dimension dimension : saved) {
+            if (dimension.isSaving()) {
+              chunks.addAll(dimension.getLoadedChunks());
+            }
+          }
+        }
+        if (next >= chunks.size()) {
+          return false;
+        }
+
+        WorldAccess.LoadedChunk chunk = chunks.get(next++);
+        // A chunk unloaded since the capture started was saved as it was unloaded.
+        if (chunk.isLoaded() && chunk.needsSaving()) {
+          chunk.save();
+          chunkCount++;
+        }
+        return next < chunks.size();
+      }
+    }.run("save loaded chunks");
+
+    // Saves (including those of chunks unloaded just before) are only on disk once written.
+    world.waitForChunkWrites();
+  }
+
+  /**
+   * Gets the number of chunks saved for the capture.
+   *
+   * @return Number of chunks.
+   */
+  public int getChunkCount() {
+    return chunkCount;
+  }
+
+  /**
+   * Swaps the scanned files of the captured dimensions for staged copies.
+   *
+   * @param targets Scanned targets.
+   * @return Sorted list of targets, reading captured files from the staging folder.
+   * @throws IOException if a file can't be staged.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  public List<TargetFile> stage(List<TargetFile> targets)
+      throws IOException, InterruptedException {
+    List<TargetFile> staged = new ArrayList<>(targets.size());
+    List<TargetFile> copied = new ArrayList<>();
+    for (TargetFile target : targets) {
+      Path path = target.getPath().normalize();
+      WorldAccess.Dimension dimension = target.isDirectory() ? null : findDimension(path);
+      if (dimension == null) {
+        staged.add(target);
+        continue;
+      }
+
+      Matcher region = REGION_NAME.matcher(path.getFileName().toString());
+      if (!path.getParent().equals(dimension.getSaveFolder().resolve("region")) ||
+          !region.matches()) {
+        copied.add(target);
+        continue;
+      }
+
+      checkInterrupted();
+      TargetFile stagedRegion = stageRegion(dimension, target, Integer.parseInt(region.group(1)),
+          Integer.parseInt(region.group(2)));
+      if (stagedRegion != null) {
+        staged.add(stagedRegion);
+      }
+    }
+
+    staged.addAll(copyFiles(copied));
+    TargetScanner.sortByName(staged);
+    return staged;
+  }
+
+  /**
+   * Finds the captured dimension a file is saved by.
+   *
+   * @param path Normalized path, relative to the server root.
+   * @return The dimension with the deepest save folder holding the file, or {@code null}.
+   */
+  private WorldAccess.Dimension findDimension(Path path) {
+    for (WorldAccess.Dimension dimension : dimensions) {
+      if (path.startsWith(dimension.getSaveFolder())) {
+        return dimension;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stages a region file, reading each chunk under the lock Minecraft writes the region under.
+   *
+   * <p>The staged file gets the region file's modification time from after the last chunk was
+   * read, so unchanged regions still match earlier backups.</p>
+   *
+   * @param dimension Dimension the region belongs to.
+   * @param target Scanned region file.
+   * @param regionX X coordinate of the region.
+   * @param regionZ Z coordinate of the region.
+   * @return Target reading the staged file, the scanned target if the region file is damaged, or
+   * {@code null} if it has been deleted.
+   * @throws IOException if the region file can't be read or the staged file can't be written.
+   */
+  private TargetFile stageRegion(WorldAccess.Dimension dimension, TargetFile target, int regionX,
+                                 int regionZ) throws IOException {
+    final Path path = target.getPath();
+    final RegionChunk[] chunks = new RegionChunk[RegionFileReader.CHUNK_COUNT];
+    final int[] timestamps = new int[RegionFileReader.CHUNK_COUNT];
+    final RegionFileReader[] reader = new RegionFileReader[1];
+
+    try {
+      // Minecraft writes a new region file's header under the lock too.
+      dimension.readRegion(regionX, regionZ, new WorldAccess.RegionRead() {
+        @Override
+        public void read() throws IOException {
+          reader[0] = new RegionFileReader(path);
+        }
+      });
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (RegionFormatException e) {
+      logger.warn("Backing up region " + path + " as it is, it's damaged", e);
+      return target;
+    }
+
+    try {
+      for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+        final int index = i;
+        dimension.readRegion(regionX, regionZ, new WorldAccess.RegionRead() {
+          @Override
+          public void read() throws IOException {
+            reader[0].reload(index);
+            try {
+              chunks[index] = reader[0].readChunk(index);
+            } catch (RegionFormatException e) {
+              logger.warn("Leaving damaged chunk " + index + " of " + path +
+                  " out of the backup", e);
+            }
+            timestamps[index] = chunks[index] == null ? 0 : reader[0].getTimestamp(index);
+          }
+        });
+      }
+    } finally {
+      reader[0].close();
+    }
+    // Read after the chunks, so a chunk written while staging counts as a change.
+    long modified = Files.getLastModifiedTime(path).toMillis();
+
+    Path output = stagingDir.resolve(path.normalize());
+    Files.createDirectories(output.getParent());
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), 65536)) {
+      RegionCodec.writeRegion(timestamps, chunks, out);
+    }
+
+    Files.setLastModifiedTime(output, FileTime.fromMillis(modified));
+    return new TargetFile(path, false, Files.size(output), modified, output);
+  }
+
+  /**
+   * Has the server thread copy files into the staging folder, a few every tick, so none is copied
+   * while the server is writing it.
+   *
+   * @param files Files to copy.
+   * @return Targets reading the copies. Files deleted before they were copied are left out.
+   * @throws IOException if a file can't be copied.
+   * @throws InterruptedException if the backup is cancelled.
+   */
+  private List<TargetFile> copyFiles(final List<TargetFile> files)
+      throws IOException, InterruptedException {
+    final List<TargetFile> copies = new ArrayList<>(files.size());
+    if (files.isEmpty()) {
+      return copies;
+    }
+
+    new ServerWork(tickBudgetMillis, budgetThrottled) {
+      /** Index of the next file to copy. */
+      private int next = 0;
+
+      @Override
+      protected boolean step() throws IOException {
+        TargetFile file = files.get(next++);
+        Path output = stagingDir.resolve(file.getPath().normalize());
+        Files.createDirectories(output.getParent());
+        try {
+          Files.copy(file.getSource(), output, StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.COPY_ATTRIBUTES);
+          copies.add(new TargetFile(file.getPath(), false, Files.size(output),
+              Files.getLastModifiedTime(output).toMillis(), output));
+        } catch (NoSuchFileException e) {
+          // Deleted since it was scanned.
+        }
+        return next < files.size();
+      }
+    }.run("copy world files");
+    return copies;
+  }
+
+  /**
+   * Deletes the staged files.
+   *
+   * @throws IOException if something can't be deleted.
+   */
+  public void delete() throws IOException {
+    SnapshotCreator.deleteTree(stagingDir);
+  }
+
+  /**
+   * Stops staging if the backup is cancelled.
+   *
+   * @throws InterruptedException if the backup thread was interrupted.
+   */
+  private static void checkInterrupted() throws InterruptedException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException("Backup cancelled");
+    }
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+import net.pktr.smartbackup.archive.ArchiveIndex;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the progress of a backup so an interrupted backup can be resumed.
+ *
+ * <p>A journal ({@code <name>.journal}) has the same header as the backup's manifest, followed by
+ * one tab-separated record per line. Records are only trusted once a {@code checkpoint} record
+ * follows them; the journal is synced to disk at every checkpoint, after the backup's own output
+ * has been. A {@code resume} record marks where a resumed backup started appending, so records
+ * left after the last checkpoint of an earlier run are dropped.</p>
+ *
+ * <p>Records are:</p>
+ * <ul>
+ *   <li>{@code done type size mtime hash name}: a file or folder finished in the backup.</li>
+ *   <li>{@code entry d|f size mtime crc offset name}: an entry of the archive's index.</li>
+ *   <li>{@code frame uncompressed compressed}: a frame of the archive's index.</li>
+ *   <li>{@code dict base64}: the chunk dictionary the archive's regions are encoded with.</li>
+ *   <li>{@code checkpoint length position}: everything above is on disk, and the backup's output
+ *   file is {@code length} bytes long, holding {@code position} bytes of uncompressed data.</li>
+ *   <li>{@code resume}: a resumed run starts here.</li>
+ * </ul>
+ *
+ * <p>The journal is deleted once the backup's manifest has been written.</p>
+ */
+public class BackupJournal implements Closeable {
+  /** File extension of journals. */
+  public static final String EXTENSION = ".journal";
+  /** First line of every journal. */
+  static final String MAGIC = "#smartbackup-journal 1";
+
+  /** Channel the journal is written through, for syncing. */
+  private final FileChannel channel;
+  /** Writer for the journal. */
+  private final Writer writer;
+
+  /** What a journal says was finished before the backup was interrupted. */
+  public static class State {
+    private final Manifest manifest;
+    private final Map<String, ManifestEntry> done;
+    private final ArchiveIndex index;
+    private final byte[] dictionary;
+    private final long outputLength;
+    private final long position;
+
+    State(Manifest manifest, Map<String, ManifestEntry> done, ArchiveIndex index,
+        byte[] dictionary, long outputLength, long position) {
+      this.manifest = manifest;
+      this.done = done;
+      this.index = index;
+      this.dictionary = dictionary;
+      this.outputLength = outputLength;
+      this.position = position;
+    }
+
+    /**
+     * Gets the description of the backup being taken.
+     *
+     * @return Header of the journal.
+     */
+    public Manifest getManifest() {
+      return manifest;
+    }
+
+    /**
+     * Looks up a file or folder finished before the last checkpoint.
+     *
+     * @param name Name of the target.
+     * @return What was recorded for it, or {@code null} if it wasn't finished.
+     */
+    public ManifestEntry getDone(String name) {
+      return done.get(name);
+    }
+
+    /**
+     * Gets the number of files and folders finished before the last checkpoint.
+     *
+     * @return Number of finished targets.
+     */
+    public int getDoneCount() {
+      return done.size();
+    }
+
+    /**
+     * Gets the archive index as of the last checkpoint.
+     *
+     * @return Index of the entries and frames written before the last checkpoint.
+     */
+    public ArchiveIndex getIndex() {
+      return index;
+    }
+
+    /**
+     * Gets the chunk dictionary the archive was started with.
+     *
+     * @return The dictionary, or {@code null} if regions weren't being recompressed.
+     */
+    public byte[] getDictionary() {
+      return dictionary;
+    }
+
+    /**
+     * Gets the length of the backup's output file at the last checkpoint.
+     *
+     * @return Length in bytes, or -1 if there was no checkpoint.
+     */
+    public long getOutputLength() {
+      return outputLength;
+    }
+
+    /**
+     * Gets the uncompressed length of the backup's output at the last checkpoint.
+     *
+     * @return Length in bytes of the uncompressed data, or -1 if there was no checkpoint.
+     */
+    public long getPosition() {
+      return position;
+    }
+  }
+
+  private BackupJournal(Path path, boolean create) throws IOException {
+    channel = create ?
+        FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) :
+        FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+        StandardCharsets.UTF_8), 65536);
+  }
+
+  /**
+   * Starts a journal for a new backup.
+   *
+   * @param path Where to write the journal.
+   * @param manifest Description of the backup being taken.
+   * @return The journal.
+   * @throws IOException if the journal can't be created.
+   */
+  public static BackupJournal create(Path path, Manifest manifest) throws IOException {
+    BackupJournal journal = new BackupJournal(path, true);
+    try {
+      ManifestWriter.writeHeader(journal.writer, MAGIC, manifest);
+      journal.checkpoint(0, 0);
+    } catch (IOException | RuntimeException e) {
+      journal.close();
+      throw e;
+    }
+    return journal;
+  }
+
+  /**
+   * Reopens the journal of an interrupted backup to continue it.
+   *
+   * @param path Journal to continue.
+   * @return The journal.
+   * @throws IOException if the journal can't be opened.
+   */
+  public static BackupJournal resume(Path path) throws IOException {
+    BackupJournal journal = new BackupJournal(path, false);
+    try {
+      journal.writer.write("resume\n");
+    } catch (IOException e) {
+      journal.close();
+      throw e;
+    }
+    return journal;
+  }
+
+  /**
+   * Gets the path of a backup's journal.
+   *
+   * @param outputDir Backup output folder.
+   * @param name Name of the backup.
+   * @return Path of the journal.
+   */
+  public static Path getPath(Path outputDir, String name) {
+    return outputDir.resolve(name + EXTENSION);
+  }
+
+  /**
+   * Lists the journals of backups that never finished (they have no manifest).
+   *
+   * @param outputDir Backup output folder.
+   * @return Paths of the journals, oldest name first.
+   * @throws IOException if the folder can't be listed.
+   */
+  public static List<Path> findIncomplete(Path outputDir) throws IOException {
+    List<Path> journals = new ArrayList<>();
+    if (!Files.isDirectory(outputDir)) {
+      return journals;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(outputDir, "*" + EXTENSION)) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        String name = fileName.substring(0, fileName.length() - EXTENSION.length());
+        if (!Files.exists(Manifest.getPath(outputDir, name))) {
+          journals.add(file);
+        }
+      }
+    }
+    Collections.sort(journals);
+    return journals;
+  }
+
+  /**
+   * Reads what a journal says was finished.
+   *
+   * @param path Journal to read.
+   * @return State as of the last checkpoint.
+   * @throws IOException if the journal can't be read or is malformed.
+   */
+  public static State read(Path path) throws IOException {
+    try (ManifestReader reader = new ManifestReader(path, MAGIC)) {
+      Map<String, ManifestEntry> done = new HashMap<>();
+      ArchiveIndex index = new ArchiveIndex();
+      byte[] dictionary = null;
+      long outputLength = -1;
+      long position = -1;
+
+      // Records since the last checkpoint, which only count once the next checkpoint is seen.
+      List<String[]> pending = new ArrayList<>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        try {
+          switch (fields[0]) {
+            case "checkpoint":
+              for (String[] record : pending) {
+                switch (record[0]) {
+                  case "done":
+                    // Records from before chunk hashes were journaled have no chunks field.
+                    String chunks = record.length > 6 && !record[5].equals("-") ? record[5] : null;
+                    ManifestEntry entry = new ManifestEntry(
+                        ManifestEntry.Type.fromCode(record[1].charAt(0)),
+                        ManifestReader.unescape(record[record.length - 1]),
+                        Long.parseLong(record[2]), Long.parseLong(record[3]),
+                        record[4].equals("-") ? null : record[4], ManifestEntry.THIS_BACKUP,
+                        chunks);
+                    done.put(entry.getName(), entry);
+                    break;
+                  case "entry":
+                    index.addEntry(new ArchiveIndex.Entry(ManifestReader.unescape(record[6]),
+                        record[1].equals("d"), Long.parseLong(record[2]),
+                        Long.parseLong(record[3]), (int) Long.parseLong(record[4], 16),
+                        Long.parseLong(record[5])));
+                    break;
+                  case "frame":
+                    index.addFrame(Long.parseLong(record[1]), Long.parseLong(record[2]));
+                    break;
+                  case "dict":
+                    dictionary = Base64.getDecoder().decode(record[1]);
+                    break;
+                  default:
+                    throw reader.malformed("unknown record " + record[0]);
+                }
+              }
+              pending.clear();
+              outputLength = Long.parseLong(fields[1]);
+              position = Long.parseLong(fields[2]);
+              break;
+            case "resume":
+              pending.clear();
+              break;
+            default:
+              pending.add(fields);
+          }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+          throw reader.malformed("malformed record");
+        }
+      }
+
+      return new State(reader.getManifest(), done, index, dictionary, outputLength, position);
+    }
+  }
+
+  /**
+   * Records a file or folder finished in the backup.
+   *
+   * @param entry What was written.
+   * @throws IOException if writing fails.
+   */
+  public void recordDone(ManifestEntry entry) throws IOException {
+    writer.write("done\t" + entry.getType().getCode() + "\t" + entry.getSize() + "\t" +
+        entry.getLastModified() + "\t" + (entry.getHash() == null ? "-" : entry.getHash()) +
+        "\t" + (entry.getChunkHashes() == null ? "-" : entry.getChunkHashes()) + "\t" +
+        ManifestWriter.escape(entry.getName()) + "\n");
+  }
+
+  /**
+   * Records an entry of the archive's index.
+   *
+   * @param entry Index entry.
+   * @throws IOException if writing fails.
+   */
+  public void recordEntry(ArchiveIndex.Entry entry) throws IOException {
+    writer.write("entry\t" + (entry.isDirectory() ? "d" : "f") + "\t" + entry.getSize() + "\t" +
+        entry.getLastModified() + "\t" + Integer.toHexString(entry.getCrc()) + "\t" +
+        entry.getDataOffset() + "\t" + ManifestWriter.escape(entry.getName()) + "\n");
+  }
+
+  /**
+   * Records a frame of the archive's index.
+   *
+   * @param uncompressedOffset Offset of the frame's data in the uncompressed tarball.
+   * @param compressedOffset Offset of the frame in the archive file.
+   * @throws IOException if writing fails.
+   */
+  public void recordFrame(long uncompressedOffset, long compressedOffset) throws IOException {
+    writer.write("frame\t" + uncompressedOffset + "\t" + compressedOffset + "\n");
+  }
+
+  /**
+   * Records the chunk dictionary the archive's regions are encoded with.
+   *
+   * @param dictionary The dictionary.
+   * @throws IOException if writing fails.
+   */
+  public void recordDictionary(byte[] dictionary) throws IOException {
+    writer.write("dict\t" + Base64.getEncoder().encodeToString(dictionary) + "\n");
+  }
+
+  /**
+   * Marks everything recorded so far as finished and syncs the journal to disk.
+   *
+   * <p>The backup's output must already be synced up to this point.</p>
+   *
+   * @param outputLength Length of the backup's output file.
+   * @param position Uncompressed length of the backup's output.
+   * @throws IOException if writing or syncing fails.
+   */
+  public void checkpoint(long outputLength, long position) throws IOException {
+    writer.write("checkpoint\t" + outputLength + "\t" + position + "\n");
+    writer.flush();
+    channel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+}
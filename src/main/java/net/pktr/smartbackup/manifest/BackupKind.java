@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+/** The kinds of backups, by what they hold relative to earlier backups. */
+public enum BackupKind {
+  /** Holds every file. */
+  FULL("full"),
+  /** Holds the files changed since the last full backup. */
+  DIFFERENTIAL("differential"),
+  /** Holds the files changed since the previous backup of any kind. */
+  INCREMENTAL("incremental");
+
+  /** Name of the kind as used in commands and manifests. */
+  private final String name;
+
+  BackupKind(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the name of this kind as used in commands and manifests.
+   *
+   * @return Lowercase name of the kind.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the names of all kinds.
+   *
+   * @return Names of the kinds, in declaration order.
+   */
+  public static String[] getNames() {
+    BackupKind[] kinds = values();
+    String[] names = new String[kinds.length];
+    for (int i = 0; i < kinds.length; i++) {
+      names[i] = kinds[i].name;
+    }
+    return names;
+  }
+
+  /**
+   * Looks up a kind by name.
+   *
+   * @param name Name of the kind.
+   * @return The kind.
+   * @throws IllegalArgumentException if there is no kind with that name.
+   */
+  public static BackupKind fromName(String name) {
+    for (BackupKind kind : values()) {
+      if (kind.name.equalsIgnoreCase(name)) {
+        return kind;
+      }
+    }
+    throw new IllegalArgumentException("Unknown backup kind: " + name);
+  }
+}
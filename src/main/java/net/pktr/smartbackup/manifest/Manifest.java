@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+import java.nio.file.Path;
+
+/**
+ * Describes a backup, as recorded in the header of its manifest.
+ *
+ * <p>A manifest lists the complete state that a backup restores to, sorted by name. Entries
+ * that the backup doesn't hold itself name the earlier backup that does, so following the entries
+ * gives the backups needed to restore it. Manifests of differential and incremental backups also
+ * hold tombstones for files deleted since their base backup.</p>
+ */
+public class Manifest {
+  /** Extension of manifest files. */
+  public static final String EXTENSION = ".manifest";
+
+  private final String name;
+  private final String file;
+  private final BackupKind kind;
+  private final String base;
+  private final long time;
+
+  /**
+   * Describes a backup.
+   *
+   * @param name Name of the backup (its file name without extension).
+   * @param file File name of the backup (archive file or snapshot folder).
+   * @param kind Kind of the backup.
+   * @param base Name of the backup this one is based on, or {@code null} for full backups.
+   * @param time When the backup was taken, in milliseconds since the epoch.
+   */
+  public Manifest(String name, String file, BackupKind kind, String base, long time) {
+    this.name = name;
+    this.file = file;
+    this.kind = kind;
+    this.base = base;
+    this.time = time;
+  }
+
+  /**
+   * Gets the name of the backup.
+   *
+   * @return Name of the backup.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the file name of the backup, relative to the backup output folder.
+   *
+   * @return File name of the archive or snapshot folder.
+   */
+  public String getFile() {
+    return file;
+  }
+
+  /**
+   * Gets the kind of the backup.
+   *
+   * @return Kind of the backup.
+   */
+  public BackupKind getKind() {
+    return kind;
+  }
+
+  /**
+   * Gets the backup this one is based on.
+   *
+   * @return Name of the base backup, or {@code null} for full backups.
+   */
+  public String getBase() {
+    return base;
+  }
+
+  /**
+   * Gets when the backup was taken.
+   *
+   * @return Time in milliseconds since the epoch.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Gets the path of a backup's manifest file.
+   *
+   * @param outputDir Backup output folder.
+   * @param name Name of the backup.
+   * @return Path of the manifest.
+   */
+  public static Path getPath(Path outputDir, String name) {
+    return outputDir.resolve(name + EXTENSION);
+  }
+}
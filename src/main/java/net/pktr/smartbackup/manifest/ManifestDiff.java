@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+import java.io.IOException;
+
+/**
+ * Compares two manifests.
+ *
+ * <p>Manifests are sorted by name, so they are merge-joined in a single pass, reading one entry
+ * of each at a time: the time taken is linear in their size and the memory used doesn't grow with
+ * it. Files are compared by their recorded hashes where both manifests have them, and by size and
+ * modification time otherwise. Nothing but the manifests is read.</p>
+ */
+public class ManifestDiff {
+  /** Told about each difference, in name order. */
+  public interface Listener {
+    /**
+     * Called for a file or folder only in the newer manifest.
+     *
+     * @param entry Its entry in the newer manifest.
+     */
+    void added(ManifestEntry entry);
+
+    /**
+     * Called for a file or folder only in the older manifest.
+     *
+     * @param entry Its entry in the older manifest.
+     */
+    void removed(ManifestEntry entry);
+
+    /**
+     * Called for a file whose content differs between the manifests.
+     *
+     * @param older Its entry in the older manifest.
+     * @param newer Its entry in the newer manifest.
+     */
+    void changed(ManifestEntry older, ManifestEntry newer);
+  }
+
+  private ManifestDiff() {
+  }
+
+  /**
+   * Compares two manifests.
+   *
+   * @param older Reader of the older manifest.
+   * @param newer Reader of the newer manifest.
+   * @param listener Told about each difference.
+   * @throws IOException if either manifest can't be read.
+   */
+  public static void diff(ManifestReader older, ManifestReader newer, Listener listener)
+      throws IOException {
+    ManifestEntry a = nextLive(older);
+    ManifestEntry b = nextLive(newer);
+    while (a != null || b != null) {
+      int order = a == null ? 1 : b == null ? -1 : a.getName().compareTo(b.getName());
+      if (order < 0) {
+        listener.removed(a);
+        a = nextLive(older);
+      } else if (order > 0) {
+        listener.added(b);
+        b = nextLive(newer);
+      } else {
+        if (a.getType() != b.getType()) {
+          listener.removed(a);
+          listener.added(b);
+        } else if (a.getType() == ManifestEntry.Type.FILE && !sameContent(a, b)) {
+          listener.changed(a, b);
+        }
+        a = nextLive(older);
+        b = nextLive(newer);
+      }
+    }
+  }
+
+  /**
+   * Checks whether two entries for the same file describe the same content.
+   *
+   * @param a One entry.
+   * @param b The other entry.
+   * @return {@code true} if the hashes match, or (without hashes on both) the size and
+   * modification time do.
+   */
+  public static boolean sameContent(ManifestEntry a, ManifestEntry b) {
+    if (a.getSize() != b.getSize()) {
+      return false;
+    }
+    if (a.getHash() != null && b.getHash() != null) {
+      return a.getHash().equals(b.getHash());
+    }
+    if (a.getChunkHashes() != null && b.getChunkHashes() != null &&
+        a.getChunkHashes().equals(b.getChunkHashes())) {
+      return true;
+    }
+    return a.getLastModified() == b.getLastModified();
+  }
+
+  /**
+   * Reads the next entry of a manifest that isn't a tombstone.
+   *
+   * @param reader Manifest to read.
+   * @return The entry, or {@code null} at the end of the manifest.
+   * @throws IOException if the manifest can't be read.
+   */
+  private static ManifestEntry nextLive(ManifestReader reader) throws IOException {
+    ManifestEntry entry;
+    while ((entry = reader.next()) != null && !entry.isLive()) {
+      // Skip
+    }
+    return entry;
+  }
+}
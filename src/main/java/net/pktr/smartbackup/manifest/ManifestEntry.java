@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+/**
+ * One line of a manifest: a file or folder in the backed-up state, or a tombstone for something
+ * deleted since the base backup.
+ */
+public class ManifestEntry {
+  /** What an entry describes. */
+  public static enum Type {
+    /** A file. */
+    FILE('F'),
+    /** A folder. */
+    DIRECTORY('D'),
+    /** A tombstone: the file or folder was deleted since the base backup. */
+    DELETED('X');
+
+    /** Letter used for the type in manifest files. */
+    private final char code;
+
+    Type(char code) {
+      this.code = code;
+    }
+
+    /**
+     * Gets the letter used for this type in manifest files.
+     *
+     * @return Type letter.
+     */
+    public char getCode() {
+      return code;
+    }
+
+    /**
+     * Looks up a type by its letter.
+     *
+     * @param code Type letter.
+     * @return The type, or {@code null} if the letter isn't known.
+     */
+    public static Type fromCode(char code) {
+      for (Type type : values()) {
+        if (type.code == code) {
+          return type;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Value of {@link #getSource} meaning the data is held by the backup the manifest belongs to. */
+  public static final String THIS_BACKUP = ".";
+
+  private final Type type;
+  private final String name;
+  private final long size;
+  private final long lastModified;
+  private final String hash;
+  private final String source;
+  private final String chunkHashes;
+
+  /**
+   * Creates an entry.
+   *
+   * @param type What the entry describes.
+   * @param name Name of the file or folder inside of backups.
+   * @param size Size of the file (0 for folders and tombstones).
+   * @param lastModified Modification time in milliseconds since the epoch.
+   * @param hash Hash of the file's content (eg {@code crc32:1a2b3c4d}), or {@code null} if unknown.
+   * @param source Name of the backup holding the file's data, or {@link #THIS_BACKUP}.
+   */
+  public ManifestEntry(Type type, String name, long size, long lastModified, String hash,
+      String source) {
+    this(type, name, size, lastModified, hash, source, null);
+  }
+
+  /**
+   * Creates an entry for a region file, with the hashes of its chunks.
+   *
+   * @param type What the entry describes.
+   * @param name Name of the file or folder inside of backups.
+   * @param size Size of the file (0 for folders and tombstones).
+   * @param lastModified Modification time in milliseconds since the epoch.
+   * @param hash Hash of the file's content (eg {@code crc32:1a2b3c4d}), or {@code null} if unknown.
+   * @param source Name of the backup holding the file's data, or {@link #THIS_BACKUP}.
+   * @param chunkHashes Encoded hashes of the region's chunks (see
+   * {@link net.pktr.smartbackup.region.ChunkHashes}), or {@code null} if unknown.
+   */
+  public ManifestEntry(Type type, String name, long size, long lastModified, String hash,
+      String source, String chunkHashes) {
+    this.type = type;
+    this.name = name;
+    this.size = size;
+    this.lastModified = lastModified;
+    this.hash = hash;
+    this.source = source;
+    this.chunkHashes = chunkHashes;
+  }
+
+  /**
+   * Gets what this entry describes.
+   *
+   * @return Type of the entry.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Gets the name of the file or folder inside of backups.
+   *
+   * @return Name with {@code /} separators.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the size of the file.
+   *
+   * @return Size in bytes (0 for folders and tombstones).
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the modification time of the file or folder.
+   *
+   * @return Modification time in milliseconds since the epoch.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * Gets the hash of the file's content.
+   *
+   * @return Hash prefixed with its algorithm (eg {@code crc32:1a2b3c4d}), or {@code null} if it's
+   * not known.
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * Gets the hashes of the chunks of a region file.
+   *
+   * @return Encoded chunk hashes, or {@code null} if they're not known (or this isn't a region
+   * file).
+   */
+  public String getChunkHashes() {
+    return chunkHashes;
+  }
+
+  /**
+   * Gets the backup holding the file's data.
+   *
+   * @return Name of a backup, or {@link #THIS_BACKUP} if the data is in the manifest's own backup.
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * Gets the backup holding the file's data, resolving {@link #THIS_BACKUP}.
+   *
+   * @param manifestName Name of the backup this entry's manifest belongs to.
+   * @return Name of the backup holding the data.
+   */
+  public String getSource(String manifestName) {
+    return THIS_BACKUP.equals(source) ? manifestName : source;
+  }
+
+  /**
+   * Checks whether this entry is for something that exists (ie isn't a tombstone).
+   *
+   * @return {@code true} for files and folders.
+   */
+  public boolean isLive() {
+    return type != Type.DELETED;
+  }
+}
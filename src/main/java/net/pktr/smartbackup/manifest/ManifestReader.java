@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a manifest file one entry at a time.
+ *
+ * <p>See {@link ManifestWriter} for the format. Entries come out in the order they were written,
+ * which is sorted by name.</p>
+ */
+public class ManifestReader implements Closeable {
+  /** Reader for the manifest file. */
+  private final BufferedReader reader;
+  /** The manifest's header. */
+  private final Manifest manifest;
+  /** Number of the line last read, for error messages. */
+  private long lineNumber = 0;
+  /** Path of the manifest, for error messages. */
+  private final Path path;
+  /** Expected first line of the file. */
+  private final String magic;
+  /** Whether entries have a chunk hashes field (manifests from before version 2 don't). */
+  private boolean hasChunkHashes = true;
+
+  /**
+   * Opens a manifest and reads its header.
+   *
+   * @param path Manifest file to read.
+   * @throws IOException if the file can't be read or isn't a manifest.
+   */
+  public ManifestReader(Path path) throws IOException {
+    this(path, ManifestWriter.MAGIC);
+  }
+
+  /**
+   * Opens a file with a manifest header (like a journal) and reads the header.
+   *
+   * @param path File to read.
+   * @param magic Expected first line of the file.
+   * @throws IOException if the file can't be read or has the wrong first line.
+   */
+  ManifestReader(Path path, String magic) throws IOException {
+    this.path = path;
+    this.magic = magic;
+    reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+    try {
+      manifest = readHeader();
+    } catch (IOException | RuntimeException e) {
+      reader.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads just the header of a manifest.
+   *
+   * @param path Manifest file to read.
+   * @return The manifest's header.
+   * @throws IOException if the file can't be read or isn't a manifest.
+   */
+  public static Manifest readManifest(Path path) throws IOException {
+    try (ManifestReader reader = new ManifestReader(path)) {
+      return reader.getManifest();
+    }
+  }
+
+  /**
+   * Gets the manifest's header.
+   *
+   * @return Description of the backup.
+   */
+  public Manifest getManifest() {
+    return manifest;
+  }
+
+  /**
+   * Reads the next entry.
+   *
+   * @return The next entry, or {@code null} at the end of the manifest.
+   * @throws IOException if reading fails or the entry is malformed.
+   */
+  public ManifestEntry next() throws IOException {
+    String line = readLine();
+    if (line == null) {
+      return null;
+    }
+
+    int fieldCount = hasChunkHashes ? 7 : 6;
+    String[] fields = line.split("\t", fieldCount);
+    ManifestEntry.Type type = fields[0].length() == 1 ?
+        ManifestEntry.Type.fromCode(fields[0].charAt(0)) : null;
+    if (fields.length != fieldCount || type == null) {
+      throw malformed("malformed entry");
+    }
+
+    String chunkHashes = hasChunkHashes && !fields[4].equals("-") ? fields[4] : null;
+    try {
+      return new ManifestEntry(type, unescape(fields[fieldCount - 1]), Long.parseLong(fields[1]),
+          Long.parseLong(fields[2]), fields[3].equals("-") ? null : fields[3],
+          unescape(fields[fieldCount - 2]), chunkHashes);
+    } catch (NumberFormatException e) {
+      throw malformed("malformed number");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  private Manifest readHeader() throws IOException {
+    String line = readLine();
+    if (magic.equals(ManifestWriter.MAGIC) && ManifestWriter.MAGIC_V1.equals(line)) {
+      hasChunkHashes = false;
+    } else if (!magic.equals(line)) {
+      throw malformed("doesn't start with \"" + magic + "\"");
+    }
+
+    Map<String, String> header = new HashMap<>();
+    while (!"---".equals(line = readLine())) {
+      if (line == null) {
+        throw malformed("header doesn't end");
+      }
+      int tab = line.indexOf('\t');
+      if (tab == -1) {
+        throw malformed("malformed header");
+      }
+      header.put(line.substring(0, tab), unescape(line.substring(tab + 1)));
+    }
+
+    String name = header.get("name");
+    String file = header.get("file");
+    String kind = header.get("kind");
+    String base = header.get("base");
+    String time = header.get("time");
+    if (name == null || file == null || kind == null || time == null) {
+      throw malformed("header is missing fields");
+    }
+
+    try {
+      return new Manifest(name, file, BackupKind.fromName(kind),
+          base == null || base.isEmpty() ? null : base, Long.parseLong(time));
+    } catch (IllegalArgumentException e) {
+      throw malformed("malformed header value");
+    }
+  }
+
+  /**
+   * Reads the next line after the header as it is.
+   *
+   * @return The line, or {@code null} at the end of the file.
+   * @throws IOException if reading fails.
+   */
+  String readLine() throws IOException {
+    lineNumber++;
+    return reader.readLine();
+  }
+
+  /**
+   * Builds an exception for a malformed line.
+   *
+   * @param problem What's wrong with the line.
+   * @return Exception naming the file and line.
+   */
+  IOException malformed(String problem) {
+    return new IOException("Manifest " + path + " line " + lineNumber + ": " + problem);
+  }
+
+  /**
+   * Reverses {@link ManifestWriter#escape}.
+   *
+   * @param value Escaped value.
+   * @return Original value.
+   */
+  public static String unescape(String value) {
+    if (value.indexOf('\\') == -1) {
+      return value;
+    }
+    StringBuilder unescaped = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        char next = value.charAt(++i);
+        switch (next) {
+          case 't':
+            c = '\t';
+            break;
+          case 'n':
+            c = '\n';
+            break;
+          case 'r':
+            c = '\r';
+            break;
+          default:
+            c = next;
+        }
+      }
+      unescaped.append(c);
+    }
+    return unescaped.toString();
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+import net.pktr.smartbackup.archive.ArchiveFormat;
+import net.pktr.smartbackup.repository.TreeWriter;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** Finds the manifests of the backups in the backup output folder. */
+public class ManifestStore {
+  /** Backup output folder. */
+  private final Path outputDir;
+
+  /**
+   * Sets up a manifest store.
+   *
+   * @param outputDir Backup output folder.
+   */
+  public ManifestStore(Path outputDir) {
+    this.outputDir = outputDir;
+  }
+
+  /**
+   * Gets the backup output folder.
+   *
+   * @return Backup output folder.
+   */
+  public Path getOutputDir() {
+    return outputDir;
+  }
+
+  /**
+   * Lists the manifests of every backup that still exists.
+   *
+   * <p>Manifests that can't be read are skipped.</p>
+   *
+   * @return Manifests, oldest first.
+   * @throws IOException if the output folder can't be listed.
+   */
+  public List<Manifest> list() throws IOException {
+    List<Manifest> manifests = new ArrayList<>();
+    if (!Files.isDirectory(outputDir)) {
+      return manifests;
+    }
+
+    try (DirectoryStream<Path> files =
+             Files.newDirectoryStream(outputDir, "*" + Manifest.EXTENSION)) {
+      for (Path file : files) {
+        Manifest manifest;
+        try {
+          manifest = ManifestReader.readManifest(file);
+        } catch (IOException e) {
+          continue;
+        }
+        if (Files.exists(getBackupPath(manifest))) {
+          manifests.add(manifest);
+        }
+      }
+    }
+
+    Collections.sort(manifests, new Comparator<Manifest>() {
+      @Override
+      public int compare(Manifest a, Manifest b) {
+        int byTime = Long.compare(a.getTime(), b.getTime());
+        return byTime != 0 ? byTime : a.getName().compareTo(b.getName());
+      }
+    });
+    return manifests;
+  }
+
+  /**
+   * Finds the manifest of a backup by name.
+   *
+   * @param name Name of the backup.
+   * @return Its manifest, or {@code null} if there isn't one.
+   * @throws IOException if the manifest exists but can't be read.
+   */
+  public Manifest find(String name) throws IOException {
+    Path path = Manifest.getPath(outputDir, name);
+    return Files.exists(path) ? ManifestReader.readManifest(path) : null;
+  }
+
+  /**
+   * Finds the most recent archive.
+   *
+   * @param kind Kind of archive to look for, or {@code null} for any kind.
+   * @return Manifest of the most recent matching archive, or {@code null} if there isn't one.
+   * @throws IOException if the output folder can't be listed.
+   */
+  public Manifest findLatestArchive(BackupKind kind) throws IOException {
+    List<Manifest> manifests = list();
+    for (int i = manifests.size() - 1; i >= 0; i--) {
+      Manifest manifest = manifests.get(i);
+      if (isArchive(manifest) && (kind == null || manifest.getKind() == kind)) {
+        return manifest;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the most recent snapshot.
+   *
+   * @return Manifest of the most recent snapshot, or {@code null} if there isn't one.
+   * @throws IOException if the output folder can't be listed.
+   */
+  public Manifest findLatestSnapshot() throws IOException {
+    List<Manifest> manifests = list();
+    for (int i = manifests.size() - 1; i >= 0; i--) {
+      if (isSnapshot(manifests.get(i))) {
+        return manifests.get(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the most recent repository backup.
+   *
+   * @return Manifest of the most recent repository backup, or {@code null} if there isn't one.
+   * @throws IOException if the output folder can't be listed.
+   */
+  public Manifest findLatestRepositoryBackup() throws IOException {
+    List<Manifest> manifests = list();
+    for (int i = manifests.size() - 1; i >= 0; i--) {
+      if (isRepositoryBackup(manifests.get(i))) {
+        return manifests.get(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Opens a backup's manifest for reading its entries.
+   *
+   * @param manifest Backup to open the manifest of.
+   * @return Reader for the manifest. The caller must close it.
+   * @throws IOException if the manifest can't be read.
+   */
+  public ManifestReader open(Manifest manifest) throws IOException {
+    return new ManifestReader(Manifest.getPath(outputDir, manifest.getName()));
+  }
+
+  /**
+   * Gets the path of a backup's archive file, snapshot folder or repository tree.
+   *
+   * <p>Repository backups record the absolute path of their tree, which is outside of the backup
+   * folder.</p>
+   *
+   * @param manifest Backup to get the path of.
+   * @return Path of the backup.
+   */
+  public Path getBackupPath(Manifest manifest) {
+    return outputDir.resolve(manifest.getFile());
+  }
+
+  /**
+   * Checks whether a backup is an archive.
+   *
+   * @param manifest Backup to check.
+   * @return {@code true} for archives.
+   */
+  public static boolean isArchive(Manifest manifest) {
+    return ArchiveFormat.fromFileName(manifest.getFile()) != null;
+  }
+
+  /**
+   * Checks whether a backup is stored in a repository. The file of a repository backup is its
+   * tree in the repository.
+   *
+   * @param manifest Backup to check.
+   * @return {@code true} for repository backups.
+   */
+  public static boolean isRepositoryBackup(Manifest manifest) {
+    return manifest.getFile().endsWith(TreeWriter.EXTENSION);
+  }
+
+  /**
+   * Checks whether a backup is a snapshot.
+   *
+   * @param manifest Backup to check.
+   * @return {@code true} for snapshots.
+   */
+  public static boolean isSnapshot(Manifest manifest) {
+    return !isArchive(manifest) && !isRepositoryBackup(manifest);
+  }
+}
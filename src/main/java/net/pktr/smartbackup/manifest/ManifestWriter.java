@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+import net.pktr.smartbackup.FileSync;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes a manifest file.
+ *
+ * <p>Manifests are UTF-8 text: a header of tab-separated keys and values, a {@code ---} line, and
+ * then one tab-separated line per entry ({@code type size mtime hash chunks source name}, where
+ * {@code chunks} holds the chunk hashes of region files). Entries must be written sorted by
+ * name. The manifest is written under a temporary name and only moved into
+ * place (synced, with an atomic rename) when it's closed, so a manifest that exists is always
+ * complete, even after a crash.</p>
+ */
+public class ManifestWriter implements Closeable {
+  /** First line of every manifest. */
+  static final String MAGIC = "#smartbackup-manifest 2";
+  /** First line of manifests written before entries had chunk hashes. */
+  static final String MAGIC_V1 = "#smartbackup-manifest 1";
+
+  /** Where the manifest ends up. */
+  private final Path path;
+  /** Where the manifest is written until it's complete. */
+  private final Path temporaryPath;
+  /** Writer for the temporary file. */
+  private final Writer writer;
+  /** Name of the last entry written, to check the order. */
+  private String lastName = null;
+  /** Whether the manifest was completed successfully. */
+  private boolean failed = false;
+
+  /**
+   * Starts writing a manifest.
+   *
+   * @param path Where to write the manifest.
+   * @param manifest Description of the backup, written as the header.
+   * @throws IOException if the manifest can't be created.
+   */
+  public ManifestWriter(Path path, Manifest manifest) throws IOException {
+    this.path = path;
+    this.temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+    this.writer = new BufferedWriter(new OutputStreamWriter(
+        Files.newOutputStream(temporaryPath), StandardCharsets.UTF_8), 65536);
+
+    writeHeader(writer, MAGIC, manifest);
+  }
+
+  /**
+   * Writes an entry.
+   *
+   * @param entry Entry to write. Its name must sort after the previous entry's.
+   * @throws IOException if writing fails.
+   */
+  public void write(ManifestEntry entry) throws IOException {
+    if (lastName != null && entry.getName().compareTo(lastName) <= 0) {
+      failed = true;
+      throw new IllegalArgumentException("Manifest entries out of order: " + entry.getName());
+    }
+    lastName = entry.getName();
+
+    writer.write(entry.getType().getCode());
+    writer.write('\t');
+    writer.write(Long.toString(entry.getSize()));
+    writer.write('\t');
+    writer.write(Long.toString(entry.getLastModified()));
+    writer.write('\t');
+    writer.write(entry.getHash() == null ? "-" : entry.getHash());
+    writer.write('\t');
+    writer.write(entry.getChunkHashes() == null ? "-" : entry.getChunkHashes());
+    writer.write('\t');
+    writer.write(escape(entry.getSource()));
+    writer.write('\t');
+    writer.write(escape(entry.getName()));
+    writer.write('\n');
+  }
+
+  /**
+   * Abandons the manifest. Closing it afterwards deletes the temporary file instead of moving it
+   * into place.
+   */
+  public void abandon() {
+    failed = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+    if (failed) {
+      Files.deleteIfExists(temporaryPath);
+    } else {
+      FileSync.syncFile(temporaryPath);
+      Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      FileSync.syncDirectory(path.toAbsolutePath().getParent());
+    }
+  }
+
+  /**
+   * Writes the header of a manifest (or of a file with the same header, like a journal).
+   *
+   * @param writer Where to write the header.
+   * @param magic First line of the file.
+   * @param manifest Description of the backup.
+   * @throws IOException if writing fails.
+   */
+  static void writeHeader(Writer writer, String magic, Manifest manifest) throws IOException {
+    writer.write(magic);
+    writer.write('\n');
+    writeHeaderLine(writer, "name", manifest.getName());
+    writeHeaderLine(writer, "file", manifest.getFile());
+    writeHeaderLine(writer, "kind", manifest.getKind().getName());
+    writeHeaderLine(writer, "base", manifest.getBase() == null ? "" : manifest.getBase());
+    writeHeaderLine(writer, "time", Long.toString(manifest.getTime()));
+    writer.write("---\n");
+  }
+
+  private static void writeHeaderLine(Writer writer, String key, String value)
+      throws IOException {
+    writer.write(key);
+    writer.write('\t');
+    writer.write(escape(value));
+    writer.write('\n');
+  }
+
+  /**
+   * Escapes the characters that have a meaning in manifests.
+   *
+   * @param value Value to escape.
+   * @return Value with backslashes, tabs and newlines escaped.
+   */
+  public static String escape(String value) {
+    if (value.indexOf('\\') == -1 && value.indexOf('\t') == -1 && value.indexOf('\n') == -1 &&
+        value.indexOf('\r') == -1) {
+      return value;
+    }
+    return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n")
+        .replace("\r", "\\r");
+  }
+}
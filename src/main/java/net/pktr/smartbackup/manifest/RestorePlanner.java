@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out which backups are needed to restore the backed-up state at a point in time.
+ *
+ * <p>The state is restored from the latest backup taken at or before that time. Its manifest
+ * names the backup holding each file's data, so the chain needed is exactly the set of backups
+ * named there: a full archive alone, a full archive and one differential, or a full archive and
+ * only those incrementals that still hold live data.</p>
+ */
+public class RestorePlanner {
+  /** Where the manifests are found. */
+  private final ManifestStore store;
+
+  /** The backups needed to restore to a point in time. */
+  public static class RestorePlan {
+    private final Manifest target;
+    private final List<Manifest> backups;
+    private final Map<String, Long> fileCounts;
+    private final Map<String, Long> byteCounts;
+
+    RestorePlan(Manifest target, List<Manifest> backups, Map<String, Long> fileCounts,
+        Map<String, Long> byteCounts) {
+      this.target = target;
+      this.backups = backups;
+      this.fileCounts = fileCounts;
+      this.byteCounts = byteCounts;
+    }
+
+    /**
+     * Gets the backup whose state is restored.
+     *
+     * @return Manifest of the backup being restored.
+     */
+    public Manifest getTarget() {
+      return target;
+    }
+
+    /**
+     * Gets the backups to restore from.
+     *
+     * @return Backups holding data needed for the restore, oldest first.
+     */
+    public List<Manifest> getBackups() {
+      return backups;
+    }
+
+    /**
+     * Gets the number of files restored from a backup.
+     *
+     * @param name Name of the backup.
+     * @return Number of files taken from that backup.
+     */
+    public long getFileCount(String name) {
+      Long count = fileCounts.get(name);
+      return count == null ? 0 : count;
+    }
+
+    /**
+     * Gets the number of bytes restored from a backup.
+     *
+     * @param name Name of the backup.
+     * @return Number of bytes taken from that backup.
+     */
+    public long getByteCount(String name) {
+      Long count = byteCounts.get(name);
+      return count == null ? 0 : count;
+    }
+  }
+
+  /**
+   * Sets up a restore planner.
+   *
+   * @param store Where to find manifests.
+   */
+  public RestorePlanner(ManifestStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Plans a restore to the state at a point in time.
+   *
+   * @param time Point in time (milliseconds since the epoch) to restore to.
+   * @return The plan, or {@code null} if there are no backups from before that time.
+   * @throws IOException if a manifest can't be read or a backup in the chain is missing.
+   */
+  public RestorePlan plan(long time) throws IOException {
+    Manifest target = null;
+    for (Manifest manifest : store.list()) {
+      if (manifest.getTime() <= time) {
+        target = manifest;
+      }
+    }
+    if (target == null) {
+      return null;
+    }
+
+    Map<String, Long> fileCounts = new HashMap<>();
+    Map<String, Long> byteCounts = new HashMap<>();
+    try (ManifestReader reader = store.open(target)) {
+      ManifestEntry entry;
+      while ((entry = reader.next()) != null) {
+        if (entry.getType() != ManifestEntry.Type.FILE) {
+          continue;
+        }
+        String source = entry.getSource(target.getName());
+        Long files = fileCounts.get(source);
+        fileCounts.put(source, (files == null ? 0 : files) + 1);
+        Long bytes = byteCounts.get(source);
+        byteCounts.put(source, (bytes == null ? 0 : bytes) + entry.getSize());
+      }
+    }
+    // Folders (and an empty state) still come from the target itself.
+    if (!fileCounts.containsKey(target.getName())) {
+      fileCounts.put(target.getName(), 0L);
+    }
+
+    List<Manifest> backups = new ArrayList<>();
+    for (String name : fileCounts.keySet()) {
+      Manifest backup = name.equals(target.getName()) ? target : store.find(name);
+      if (backup == null || !Files.exists(store.getBackupPath(backup))) {
+        throw new IOException("Backup " + name + " needed to restore " + target.getName() +
+            " is missing");
+      }
+      backups.add(backup);
+    }
+
+    Collections.sort(backups, new Comparator<Manifest>() {
+      @Override
+      public int compare(Manifest a, Manifest b) {
+        return Long.compare(a.getTime(), b.getTime());
+      }
+    });
+
+    return new RestorePlan(target, backups, fileCounts, byteCounts);
+  }
+}
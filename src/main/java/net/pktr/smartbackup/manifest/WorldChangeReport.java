@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.manifest;
+
+import net.pktr.smartbackup.region.ChunkHashes;
+import net.pktr.smartbackup.region.RegionFileReader;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sums up the differences between two manifests the way they matter to a world: which regions
+ * changed (and which of their chunks), which players' data changed, and how many other files.
+ *
+ * <p>Chunk changes come from the chunk hashes recorded in the manifests. Regions recorded without
+ * them (eg by an older version of SmartBackup) are reported as changed without chunk
+ * details.</p>
+ */
+public class WorldChangeReport implements ManifestDiff.Listener {
+  /** A region file that differs between the manifests. */
+  public static class RegionChange {
+    private final String name;
+    private final int[] changedChunks;
+
+    RegionChange(String name, int[] changedChunks) {
+      this.name = name;
+      this.changedChunks = changedChunks;
+    }
+
+    /**
+     * Gets the name of the region file.
+     *
+     * @return Name of the file inside of backups.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Gets the chunks that were added, removed or changed.
+     *
+     * @return Chunk indexes (x + z * 32 within the region), or {@code null} if the manifests
+     * don't have the hashes to tell.
+     */
+    public int[] getChangedChunks() {
+      return changedChunks;
+    }
+
+    /**
+     * Gets the number of chunks that were added, removed or changed.
+     *
+     * @return Number of chunks, or -1 if it isn't known.
+     */
+    public int getChangedChunkCount() {
+      return changedChunks == null ? -1 : changedChunks.length;
+    }
+  }
+
+  private final List<RegionChange> regions = new ArrayList<>();
+  private final List<String> players = new ArrayList<>();
+  private long filesAdded = 0;
+  private long filesRemoved = 0;
+  private long filesChanged = 0;
+  private long chunksChanged = 0;
+  private long bytesBefore = 0;
+  private long bytesAfter = 0;
+
+  @Override
+  public void added(ManifestEntry entry) {
+    if (entry.getType() == ManifestEntry.Type.FILE) {
+      filesAdded++;
+      bytesAfter += entry.getSize();
+      fileChanged(entry.getName(), null, entry);
+    }
+  }
+
+  @Override
+  public void removed(ManifestEntry entry) {
+    if (entry.getType() == ManifestEntry.Type.FILE) {
+      filesRemoved++;
+      bytesBefore += entry.getSize();
+      fileChanged(entry.getName(), entry, null);
+    }
+  }
+
+  @Override
+  public void changed(ManifestEntry older, ManifestEntry newer) {
+    filesChanged++;
+    bytesBefore += older.getSize();
+    bytesAfter += newer.getSize();
+    fileChanged(newer.getName(), older, newer);
+  }
+
+  /**
+   * Sorts a changed file into regions or players.
+   *
+   * @param name Name of the file.
+   * @param older Entry in the older manifest, or {@code null} if the file was added.
+   * @param newer Entry in the newer manifest, or {@code null} if the file was removed.
+   */
+  private void fileChanged(String name, ManifestEntry older, ManifestEntry newer) {
+    if (RegionFileReader.isRegionFile(Paths.get(name))) {
+      int[] chunks = diffChunks(older, newer);
+      if (chunks != null) {
+        chunksChanged += chunks.length;
+      }
+      regions.add(new RegionChange(name, chunks));
+      return;
+    }
+
+    String player = getPlayer(name);
+    if (player != null) {
+      players.add(player);
+    }
+  }
+
+  /**
+   * Compares the chunk hashes of two versions of a region file.
+   *
+   * @param older Older version, or {@code null} if the region was added.
+   * @param newer Newer version, or {@code null} if the region was removed.
+   * @return The chunks that differ, or {@code null} if a version has no chunk hashes.
+   */
+  private static int[] diffChunks(ManifestEntry older, ManifestEntry newer) {
+    try {
+      ChunkHashes before = older == null ? new ChunkHashes() :
+          older.getChunkHashes() == null ? null : ChunkHashes.decode(older.getChunkHashes());
+      ChunkHashes after = newer == null ? new ChunkHashes() :
+          newer.getChunkHashes() == null ? null : ChunkHashes.decode(newer.getChunkHashes());
+      return before == null || after == null ? null : ChunkHashes.diff(before, after);
+    } catch (IllegalArgumentException e) {
+      // Unreadable hashes tell nothing about the chunks.
+      return null;
+    }
+  }
+
+  /**
+   * Finds the player a file holds the data of.
+   *
+   * @param name Name of the file.
+   * @return UUID (or name, for old worlds) of the player, or {@code null} if it isn't player
+   * data.
+   */
+  static String getPlayer(String name) {
+    int slash = name.lastIndexOf('/');
+    int parentSlash = slash <= 0 ? -1 : name.lastIndexOf('/', slash - 1);
+    String folder = slash <= 0 ? "" : name.substring(parentSlash + 1, slash);
+    String file = name.substring(slash + 1);
+    if ((folder.equals("playerdata") || folder.equals("players")) && file.endsWith(".dat")) {
+      return file.substring(0, file.length() - ".dat".length());
+    }
+    return null;
+  }
+
+  /**
+   * Gets the changed region files, most changed chunks first.
+   *
+   * @return Changed regions. Regions without a chunk count come last.
+   */
+  public List<RegionChange> getRegions() {
+    List<RegionChange> sorted = new ArrayList<>(regions);
+    Collections.sort(sorted, new Comparator<RegionChange>() {
+      @Override
+      public int compare(RegionChange a, RegionChange b) {
+        int order = Integer.compare(b.getChangedChunkCount(), a.getChangedChunkCount());
+        return order != 0 ? order : a.getName().compareTo(b.getName());
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Gets the players whose data was added, removed or changed.
+   *
+   * @return Player UUIDs (or names), in name order of their files.
+   */
+  public List<String> getPlayers() {
+    return Collections.unmodifiableList(players);
+  }
+
+  /**
+   * Gets the number of files only in the newer manifest.
+   *
+   * @return Number of files added.
+   */
+  public long getFilesAdded() {
+    return filesAdded;
+  }
+
+  /**
+   * Gets the number of files only in the older manifest.
+   *
+   * @return Number of files removed.
+   */
+  public long getFilesRemoved() {
+    return filesRemoved;
+  }
+
+  /**
+   * Gets the number of files in both manifests whose content differs.
+   *
+   * @return Number of files changed.
+   */
+  public long getFilesChanged() {
+    return filesChanged;
+  }
+
+  /**
+   * Gets the number of chunks added, removed or changed in regions with chunk hashes.
+   *
+   * @return Number of chunks.
+   */
+  public long getChunksChanged() {
+    return chunksChanged;
+  }
+
+  /**
+   * Gets the total size of the differing files in the older manifest.
+   *
+   * @return Size in bytes.
+   */
+  public long getBytesBefore() {
+    return bytesBefore;
+  }
+
+  /**
+   * Gets the total size of the differing files in the newer manifest.
+   *
+   * @return Size in bytes.
+   */
+  public long getBytesAfter() {
+    return bytesAfter;
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The metrics SmartBackup keeps about its backups.
+ *
+ * <p>Backups are told apart by a {@code type} label: {@code snapshot}, {@code archive},
+ * {@code tiering} (archives of old snapshots), {@code repository} or {@code profiles} (runs of
+ * profiles taken together, whose own backups count as snapshots and archives). Everything is
+ * counted as it happens and can be read by any thread at any time; the exporter only writes out
+ * the current values.</p>
+ */
+public class BackupMetrics {
+  /** Result label of data that was already in a backup and reused. */
+  public static final String REUSED = "reused";
+  /** Result label of data that had to be written. */
+  public static final String STORED = "stored";
+
+  /** Every metric, in the order they're written. */
+  private final List<Metric<?>> metrics = new ArrayList<>();
+
+  private final Gauge running = register(new Gauge("smartbackup_backups_running",
+      "Backups running right now.", "type"));
+  private final Counter backups = register(new Counter("smartbackup_backups_total",
+      "Backups that ended, by how they ended.", "type", "status"));
+  private final Histogram backupDuration = register(new Histogram(
+      "smartbackup_backup_duration_seconds", "Time from the start to the end of each backup.",
+      Histogram.SECONDS_BUCKETS, "type"));
+  private final Histogram phaseDuration = register(new Histogram(
+      "smartbackup_phase_duration_seconds", "Time each backup spent in each phase.",
+      Histogram.SECONDS_BUCKETS, "type", "phase"));
+  private final Gauge savingPaused = register(new Gauge("smartbackup_saving_paused",
+      "Worlds or dimensions whose saving a backup has paused right now."));
+  private final Histogram savingPausedDuration = register(new Histogram(
+      "smartbackup_saving_paused_seconds", "Time saving was paused for, each time a backup " +
+      "paused it.", Histogram.SECONDS_BUCKETS, "mode"));
+  private final Counter bytes = register(new Counter("smartbackup_processed_bytes_total",
+      "Bytes of files backed up, whether they were copied, linked or reused.", "type"));
+  private final Counter files = register(new Counter("smartbackup_processed_files_total",
+      "Files and folders backed up.", "type"));
+  private final Histogram fileDuration = register(new Histogram(
+      "smartbackup_file_duration_seconds", "Time each file took to back up.",
+      Histogram.SECONDS_BUCKETS, "type"));
+  private final Counter slowFiles = register(new Counter("smartbackup_slow_files_total",
+      "Files that took longer than slowFileMillis to back up.", "type"));
+  private final Gauge slowestFile = register(new Gauge("smartbackup_slowest_file_seconds",
+      "Time the slowest file of the last backup took.", "type"));
+  private final Counter dedupeBytes = register(new Counter("smartbackup_dedupe_bytes_total",
+      "Bytes that were reused from an earlier backup or repository chunk, or stored.",
+      "type", "result"));
+  private final Counter throttledTicks = register(new Counter(
+      "smartbackup_capture_throttled_ticks_total",
+      "Ticks in which the online capture stopped early, by why it stopped.", "reason"));
+  private final Counter loweredBytes = register(new Counter(
+      "smartbackup_compression_lowered_bytes_total",
+      "Bytes compressed below compressionLevel to finish within timeBudgetSeconds.", "type"));
+  private final Gauge queuePosition = register(new Gauge("smartbackup_queue_position",
+      "Backups of other servers ahead of this server's backup in the coordination queue."));
+  private final Histogram queueWait = register(new Histogram("smartbackup_queue_wait_seconds",
+      "Time each backup waited for its turn.", Histogram.SECONDS_BUCKETS));
+
+  /** Sets up the metrics, with the ones that have no labels at 0. */
+  public BackupMetrics() {
+    savingPaused.labels();
+    queuePosition.labels();
+  }
+
+  /**
+   * Adds a metric to the ones written out.
+   *
+   * @param metric Metric to add.
+   * @param <M> Type of the metric.
+   * @return The metric.
+   */
+  private <M extends Metric<?>> M register(M metric) {
+    metrics.add(metric);
+    return metric;
+  }
+
+  /**
+   * Records that a backup started.
+   *
+   * @param type Type of the backup.
+   */
+  public void backupStarted(String type) {
+    running.labels(type).add(1);
+  }
+
+  /**
+   * Records that a backup ended.
+   *
+   * @param type Type of the backup.
+   * @param status How it ended, in lower case.
+   * @param nanos How long it took.
+   */
+  public void backupEnded(String type, String status, long nanos) {
+    running.labels(type).add(-1);
+    backups.labels(type, status).inc();
+    backupDuration.labels(type).observeNanos(nanos);
+  }
+
+  /**
+   * Records the time a backup spent in a phase.
+   *
+   * @param type Type of the backup.
+   * @param phase Name of the phase, in lower case.
+   * @param nanos Time spent in it.
+   */
+  public void phaseEnded(String type, String phase, long nanos) {
+    phaseDuration.labels(type, phase).observeNanos(nanos);
+  }
+
+  /** Records that a backup paused saving. */
+  public void savingPaused() {
+    savingPaused.labels().add(1);
+  }
+
+  /**
+   * Records that a backup gave saving back.
+   *
+   * @param mode Capture mode of the backup.
+   * @param nanos How long saving was paused for.
+   */
+  public void savingResumed(String mode, long nanos) {
+    savingPaused.labels().add(-1);
+    savingPausedDuration.labels(mode).observeNanos(nanos);
+  }
+
+  /**
+   * Gets the count of bytes backed up by a type of backup.
+   *
+   * @param type Type of backup.
+   * @return Counter to add to as bytes are processed.
+   */
+  public Counter.Child getProcessedBytes(String type) {
+    return bytes.labels(type);
+  }
+
+  /**
+   * Gets the count of files backed up by a type of backup.
+   *
+   * @param type Type of backup.
+   * @return Counter to add to as files are done.
+   */
+  public Counter.Child getProcessedFiles(String type) {
+    return files.labels(type);
+  }
+
+  /**
+   * Gets the times files of a type of backup took.
+   *
+   * @param type Type of backup.
+   * @return Histogram to record the time of each file in.
+   */
+  public Histogram.Child getFileDuration(String type) {
+    return fileDuration.labels(type);
+  }
+
+  /**
+   * Gets the count of slow files of a type of backup.
+   *
+   * @param type Type of backup.
+   * @return Counter to add to for each slow file.
+   */
+  public Counter.Child getSlowFiles(String type) {
+    return slowFiles.labels(type);
+  }
+
+  /**
+   * Gets the time the slowest file of the last backup of a type took.
+   *
+   * @param type Type of backup.
+   * @return Gauge to set once the backup ends.
+   */
+  public Gauge.Child getSlowestFile(String type) {
+    return slowestFile.labels(type);
+  }
+
+  /**
+   * Gets the count of bytes reused from earlier backups, or stored.
+   *
+   * @param type Type of backup.
+   * @param result {@link #REUSED} or {@link #STORED}.
+   * @return Counter to add to.
+   */
+  public Counter.Child getDedupeBytes(String type, String result) {
+    return dedupeBytes.labels(type, result);
+  }
+
+  /**
+   * Gets the count of ticks in which the online capture stopped early.
+   *
+   * @param reason Why it stopped, such as {@code tick_budget}.
+   * @return Counter to add to for each such tick.
+   */
+  public Counter.Child getThrottledTicks(String reason) {
+    return throttledTicks.labels(reason);
+  }
+
+  /**
+   * Gets the count of bytes compressed at a lower level to keep to the time budget.
+   *
+   * @param type Type of backup.
+   * @return Counter to add to.
+   */
+  public Counter.Child getLoweredBytes(String type) {
+    return loweredBytes.labels(type);
+  }
+
+  /**
+   * Records the place of this server's backup in the coordination queue.
+   *
+   * @param ahead Backups ahead of it, 0 once it's its turn.
+   */
+  public void setQueuePosition(int ahead) {
+    queuePosition.labels().set(ahead);
+  }
+
+  /**
+   * Records how long a backup waited for its turn.
+   *
+   * @param nanos Time it waited.
+   */
+  public void queueWaited(long nanos) {
+    queueWait.labels().observeNanos(nanos);
+  }
+
+  /**
+   * Writes every metric in the Prometheus text format (version 0.0.4).
+   *
+   * @return The metrics.
+   */
+  public String scrape() {
+    StringBuilder out = new StringBuilder(8192);
+    for (Metric<?> metric : metrics) {
+      metric.write(out);
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, like bytes backed up.
+ *
+ * <p>Each child is a {@link LongAdder}, so threads counting at once don't contend on one
+ * value.</p>
+ */
+public class Counter extends Metric<Counter.Child> {
+  /** One count of the family. */
+  public static class Child {
+    private final LongAdder value = new LongAdder();
+
+    /** Adds one. */
+    public void inc() {
+      value.increment();
+    }
+
+    /**
+     * Adds to the count.
+     *
+     * @param amount Amount to add. Must not be negative.
+     */
+    public void add(long amount) {
+      value.add(amount);
+    }
+
+    /**
+     * Gets the count.
+     *
+     * @return Current count.
+     */
+    public long get() {
+      return value.sum();
+    }
+  }
+
+  /**
+   * Sets up a counter.
+   *
+   * @param name Name of the counter, ending with {@code _total}.
+   * @param help Description of the counter.
+   * @param labelNames Names of the labels telling the children apart.
+   */
+  public Counter(String name, String help, String... labelNames) {
+    super(name, help, labelNames);
+  }
+
+  @Override
+  protected Child newChild() {
+    return new Child();
+  }
+
+  @Override
+  protected String getType() {
+    return "counter";
+  }
+
+  @Override
+  protected void writeChild(StringBuilder out, String name, String labels, Child child) {
+    writeSample(out, name, labels, child.get());
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A value that goes up and down, like the number of backups waiting for their turn. */
+public class Gauge extends Metric<Gauge.Child> {
+  /** One value of the family. */
+  public static class Child {
+    /** Bits of the value, as from {@link Double#doubleToLongBits}. */
+    private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(0));
+
+    /**
+     * Sets the value.
+     *
+     * @param value New value.
+     */
+    public void set(double value) {
+      bits.set(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Adds to the value.
+     *
+     * @param amount Amount to add, negative to subtract.
+     */
+    public void add(double amount) {
+      long previous;
+      do {
+        previous = bits.get();
+      } while (!bits.compareAndSet(previous,
+          Double.doubleToLongBits(Double.longBitsToDouble(previous) + amount)));
+    }
+
+    /**
+     * Gets the value.
+     *
+     * @return Current value.
+     */
+    public double get() {
+      return Double.longBitsToDouble(bits.get());
+    }
+  }
+
+  /**
+   * Sets up a gauge.
+   *
+   * @param name Name of the gauge.
+   * @param help Description of the gauge.
+   * @param labelNames Names of the labels telling the children apart.
+   */
+  public Gauge(String name, String help, String... labelNames) {
+    super(name, help, labelNames);
+  }
+
+  @Override
+  protected Child newChild() {
+    return new Child();
+  }
+
+  @Override
+  protected String getType() {
+    return "gauge";
+  }
+
+  @Override
+  protected void writeChild(StringBuilder out, String name, String labels, Child child) {
+    writeSample(out, name, labels, child.get());
+  }
+}
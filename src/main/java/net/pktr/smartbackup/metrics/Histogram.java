@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observations (like how long files take) in buckets, for quantiles and averages.
+ *
+ * <p>Each bucket is a {@link LongAdder} counting the observations up to its bound, so recording
+ * one costs a scan of the bounds and two uncontended adds. The buckets are only made cumulative
+ * when the histogram is written.</p>
+ */
+public class Histogram extends Metric<Histogram.Child> {
+  /** Upper bounds (in seconds) for durations from a millisecond to an hour. */
+  public static final double[] SECONDS_BUCKETS = {
+      0.001, 0.005, 0.025, 0.1, 0.5, 1, 2.5, 10, 30, 60, 300, 900, 3600
+  };
+
+  /** Upper bounds of the buckets, in increasing order. */
+  private final double[] bounds;
+
+  /** Observations of one child of the family. */
+  public class Child {
+    /** Observations per bucket, with one more for those above every bound. */
+    private final LongAdder[] buckets = new LongAdder[bounds.length + 1];
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Child() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Records an observation.
+     *
+     * @param value Observed value.
+     */
+    public void observe(double value) {
+      int bucket = 0;
+      while (bucket < bounds.length && value > bounds[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      sum.add(value);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos Duration in nanoseconds, observed in seconds.
+     */
+    public void observeNanos(long nanos) {
+      observe(nanos / 1e9);
+    }
+
+    /**
+     * Gets the number of observations.
+     *
+     * @return Observations recorded so far.
+     */
+    public long getCount() {
+      long count = 0;
+      for (LongAdder bucket : buckets) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Sets up a histogram.
+   *
+   * @param name Name of the histogram.
+   * @param help Description of the histogram.
+   * @param bounds Upper bounds of the buckets, in increasing order.
+   * @param labelNames Names of the labels telling the children apart.
+   */
+  public Histogram(String name, String help, double[] bounds, String... labelNames) {
+    super(name, help, labelNames);
+    this.bounds = bounds.clone();
+  }
+
+  @Override
+  protected Child newChild() {
+    return new Child();
+  }
+
+  @Override
+  protected String getType() {
+    return "histogram";
+  }
+
+  @Override
+  protected void writeChild(StringBuilder out, String name, String labels, Child child) {
+    String separator = labels.isEmpty() ? "" : ",";
+    long cumulative = 0;
+    for (int i = 0; i < child.buckets.length; i++) {
+      cumulative += child.buckets[i].sum();
+      String bound = i < bounds.length ? formatValue(bounds[i]) : "+Inf";
+      writeSample(out, name + "_bucket", labels + separator + "le=\"" + bound + "\"",
+          cumulative);
+    }
+    // The count is the +Inf bucket, so the two always agree.
+    writeSample(out, name + "_sum", labels, child.sum.sum());
+    writeSample(out, name + "_count", labels, cumulative);
+  }
+}
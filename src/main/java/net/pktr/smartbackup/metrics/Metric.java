@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A family of metrics with the same name, one child per combination of label values.
+ *
+ * <p>Looking up a child takes a map lookup, so hot paths look their children up once and keep
+ * them. Updating a child never takes a lock.</p>
+ *
+ * @param <C> Type of the children.
+ */
+public abstract class Metric<C> {
+  private final String name;
+  private final String help;
+  private final String[] labelNames;
+  private final ConcurrentHashMap<List<String>, C> children = new ConcurrentHashMap<>();
+
+  /**
+   * Sets up a family of metrics.
+   *
+   * @param name Name of the metric.
+   * @param help Description of the metric.
+   * @param labelNames Names of the labels telling the children apart.
+   */
+  protected Metric(String name, String help, String... labelNames) {
+    this.name = name;
+    this.help = help;
+    this.labelNames = labelNames;
+  }
+
+  /**
+   * Gets the child for a combination of label values, creating it if needed.
+   *
+   * @param labelValues Values of the labels, in the order of their names.
+   * @return The child.
+   */
+  public C labels(String... labelValues) {
+    if (labelValues.length != labelNames.length) {
+      throw new IllegalArgumentException("Metric " + name + " takes " + labelNames.length +
+          " labels, got " + labelValues.length);
+    }
+    List<String> key = Arrays.asList(labelValues.clone());
+    C child = children.get(key);
+    if (child == null) {
+      C created = newChild();
+      child = children.putIfAbsent(key, created);
+      if (child == null) {
+        child = created;
+      }
+    }
+    return child;
+  }
+
+  /**
+   * Creates a child with no data.
+   *
+   * @return The new child.
+   */
+  protected abstract C newChild();
+
+  /**
+   * Gets the type of the metric, as named in the text format.
+   *
+   * @return "counter", "gauge" or "histogram".
+   */
+  protected abstract String getType();
+
+  /**
+   * Writes the samples of one child.
+   *
+   * @param out Where to write the samples.
+   * @param name Name of the metric.
+   * @param labels Labels of the child, formatted as {@code a="x",b="y"}, or an empty string.
+   * @param child The child.
+   */
+  protected abstract void writeChild(StringBuilder out, String name, String labels, C child);
+
+  /**
+   * Writes the metric in the Prometheus text format, children sorted by their labels.
+   *
+   * @param out Where to write the metric.
+   */
+  public void write(StringBuilder out) {
+    out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\")
+        .replace("\n", "\\n")).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(getType()).append('\n');
+
+    List<String> labels = new ArrayList<>();
+    Map<String, C> byLabels = new HashMap<>();
+    for (Map.Entry<List<String>, C> entry : children.entrySet()) {
+      String formatted = formatLabels(entry.getKey());
+      labels.add(formatted);
+      byLabels.put(formatted, entry.getValue());
+    }
+    Collections.sort(labels);
+    for (String formatted : labels) {
+      writeChild(out, name, formatted, byLabels.get(formatted));
+    }
+  }
+
+  /**
+   * Formats label values with their names.
+   *
+   * @param values Values of the labels.
+   * @return Labels formatted as {@code a="x",b="y"}.
+   */
+  private String formatLabels(List<String> values) {
+    StringBuilder labels = new StringBuilder();
+    for (int i = 0; i < labelNames.length; i++) {
+      if (i > 0) {
+        labels.append(',');
+      }
+      labels.append(labelNames[i]).append("=\"").append(values.get(i).replace("\\", "\\\\")
+          .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return labels.toString();
+  }
+
+  /**
+   * Writes a sample.
+   *
+   * @param out Where to write the sample.
+   * @param name Name of the sample.
+   * @param labels Formatted labels, or an empty string.
+   * @param value Value of the sample.
+   */
+  static void writeSample(StringBuilder out, String name, String labels, double value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(formatValue(value)).append('\n');
+  }
+
+  /**
+   * Formats a sample value the way the text format expects.
+   *
+   * @param value Value to format.
+   * @return The value, with whole numbers written without a fraction.
+   */
+  static String formatValue(double value) {
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes the metrics available to Prometheus: served over HTTP at {@code /metrics}, written to a
+ * file for the node exporter's textfile collector, or both.
+ *
+ * <p>Both only read the metrics, on their own thread, so a scrape never waits for a backup or
+ * the server.</p>
+ */
+public class MetricsExporter {
+  /** Time between writes of the textfile. */
+  private static final long TEXTFILE_INTERVAL_MILLIS = 15000;
+  /** Content type of the text format. */
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final BackupMetrics metrics;
+  private final Logger logger;
+  /** HTTP server, or {@code null} if the metrics aren't served. */
+  private HttpServer server = null;
+  /** Thread answering scrapes, or {@code null}. */
+  private ExecutorService executor = null;
+  /** Thread writing the textfile, or {@code null}. */
+  private Timer textfileTimer = null;
+  /** File the metrics are written to, or {@code null}. */
+  private Path textfile = null;
+
+  /**
+   * Sets up an exporter. Nothing is exported until it's started.
+   *
+   * @param metrics Metrics to export.
+   * @param logger Logger for errors.
+   */
+  public MetricsExporter(BackupMetrics metrics, Logger logger) {
+    this.metrics = metrics;
+    this.logger = logger;
+  }
+
+  /**
+   * Starts serving the metrics over HTTP.
+   *
+   * @param bindAddress Address to listen on.
+   * @param port Port to listen on.
+   * @throws IOException if the port can't be bound.
+   */
+  public synchronized void serve(String bindAddress, int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+    server.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          if (!"GET".equals(exchange.getRequestMethod()) &&
+              !"HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+          }
+          byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+          if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+          }
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Metrics Server");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+    logger.info("Serving metrics on http://" + bindAddress + ":" + port + "/metrics");
+  }
+
+  /**
+   * Starts writing the metrics to a file every 15 seconds.
+   *
+   * <p>The file is replaced in one step, so the collector never reads half of it.</p>
+   *
+   * @param file File to write.
+   */
+  public synchronized void writeTextfile(final Path file) {
+    textfile = file;
+    textfileTimer = new Timer("Metrics Textfile", true);
+    textfileTimer.schedule(new TimerTask() {
+      /** Whether the last write failed, so a failing file is only logged once. */
+      private boolean failing = false;
+
+      @Override
+      public void run() {
+        try {
+          write(file);
+          failing = false;
+        } catch (IOException e) {
+          if (!failing) {
+            logger.warn("Unable to write the metrics to " + file, e);
+          }
+          failing = true;
+        }
+      }
+    }, 0, TEXTFILE_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Writes the metrics to a file, through a temporary file next to it.
+   *
+   * @param file File to write.
+   * @throws IOException if writing fails.
+   */
+  synchronized void write(Path file) throws IOException {
+    // The collector only reads *.prom files, so it never sees the temporary one.
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(temporary, metrics.scrape().getBytes(StandardCharsets.UTF_8));
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Stops exporting the metrics. The textfile is written one last time. */
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      executor.shutdown();
+      server = null;
+      executor = null;
+    }
+    if (textfileTimer != null) {
+      textfileTimer.cancel();
+      textfileTimer = null;
+      try {
+        write(textfile);
+      } catch (IOException e) {
+        logger.warn("Unable to write the metrics to " + textfile, e);
+      }
+      textfile = null;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.pack;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The small files packed into the segments of a snapshot folder.
+ *
+ * <p>A snapshot holds its own segments and hard links to segments of earlier snapshots, so the
+ * same file can be in more than one segment. The copy that counts is the one in the segment that
+ * sorts last (segment IDs start with the name of the snapshot that wrote them, and so sort by
+ * time), unless the file is in the folder as a plain file, which always wins.</p>
+ */
+public class PackedFiles {
+  /** Where a packed file is. */
+  public static class Location {
+    private final String id;
+    private final Path segment;
+    private final long segmentSize;
+    private final SegmentIndex.Entry entry;
+
+    Location(String id, Path segment, long segmentSize, SegmentIndex.Entry entry) {
+      this.id = id;
+      this.segment = segment;
+      this.segmentSize = segmentSize;
+      this.entry = entry;
+    }
+
+    /**
+     * Gets the ID of the segment holding the file.
+     *
+     * @return ID of the segment.
+     */
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * Gets the segment holding the file.
+     *
+     * @return Path of the segment's data.
+     */
+    public Path getSegment() {
+      return segment;
+    }
+
+    /**
+     * Gets the size of the segment holding the file.
+     *
+     * @return Size of the segment's data in bytes.
+     */
+    public long getSegmentSize() {
+      return segmentSize;
+    }
+
+    /**
+     * Gets the file's entry in the segment's index.
+     *
+     * @return Offset, size, modification time and CRC-32 of the file.
+     */
+    public SegmentIndex.Entry getEntry() {
+      return entry;
+    }
+  }
+
+  /** The snapshot folder. */
+  private final Path folder;
+  /** Latest copy of every packed file, by name. */
+  private final Map<String, Location> locations = new HashMap<>();
+
+  private PackedFiles(Path folder) {
+    this.folder = folder;
+  }
+
+  /**
+   * Reads the indexes of the segments in a snapshot folder.
+   *
+   * @param folder The snapshot folder.
+   * @return Its packed files. There are none if the snapshot has no segments.
+   * @throws IOException if a segment index can't be read or is damaged.
+   */
+  public static PackedFiles load(Path folder) throws IOException {
+    PackedFiles packed = new PackedFiles(folder);
+    Path segments = folder.resolve(SegmentIndex.FOLDER);
+    for (String id : listIds(segments)) {
+      Path indexPath = segments.resolve(id + SegmentIndex.INDEX_EXTENSION);
+      SegmentIndex index;
+      try {
+        index = SegmentIndex.fromBytes(Files.readAllBytes(indexPath));
+      } catch (IOException e) {
+        throw new IOException("Unable to read segment index " + indexPath + ": " +
+            e.getMessage(), e);
+      }
+
+      Path data = segments.resolve(id + SegmentIndex.DATA_EXTENSION);
+      long size = index.getDataSize();
+      for (SegmentIndex.Entry entry : index.getEntries()) {
+        packed.locations.put(entry.getName(), new Location(id, data, size, entry));
+      }
+    }
+    return packed;
+  }
+
+  /**
+   * Finds the copy of a file that counts.
+   *
+   * @param name Name of the file inside of the snapshot.
+   * @return Where the file is packed, or {@code null} if it isn't packed or is in the folder as a
+   * plain file.
+   */
+  public Location find(String name) {
+    Location location = locations.get(name);
+    if (location == null || Files.exists(folder.resolve(name))) {
+      return null;
+    }
+    return location;
+  }
+
+  /**
+   * Reads a packed file and checks its CRC-32.
+   *
+   * @param segment Segment holding the file.
+   * @param entry The file's entry in the segment's index.
+   * @return Content of the file.
+   * @throws IOException if the segment can't be read or the content is damaged.
+   */
+  public static byte[] read(Path segment, SegmentIndex.Entry entry) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) entry.getSize());
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+      long position = entry.getOffset();
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          throw new EOFException("Segment " + segment + " ended before " + entry.getName());
+        }
+        position += read;
+      }
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array());
+    if ((int) crc.getValue() != entry.getCrc()) {
+      throw new IOException("Packed copy of " + entry.getName() + " in " + segment +
+          " is damaged");
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Writes a segment into a snapshot folder.
+   *
+   * <p>The index is written last, under a temporary name, so a segment with an index is always
+   * complete. Neither is synced.</p>
+   *
+   * @param folder The snapshot folder.
+   * @param id ID of the segment.
+   * @param data Buffer holding the segment.
+   * @param length Length of the segment.
+   * @param index Index of the segment.
+   * @return The files written, which still have to be synced.
+   * @throws IOException if writing fails.
+   */
+  public static List<Path> writeSegment(Path folder, String id, byte[] data, int length,
+      SegmentIndex index) throws IOException {
+    Path segments = folder.resolve(SegmentIndex.FOLDER);
+    Files.createDirectories(segments);
+
+    Path dataPath = segments.resolve(id + SegmentIndex.DATA_EXTENSION);
+    try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    Path indexPath = segments.resolve(id + SegmentIndex.INDEX_EXTENSION);
+    Path temporaryPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+    Files.write(temporaryPath, index.toBytes());
+    Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    List<Path> written = new ArrayList<>();
+    written.add(dataPath);
+    written.add(indexPath);
+    return written;
+  }
+
+  /**
+   * Deletes segments left incomplete or damaged in a snapshot folder by a crash: temporary
+   * indexes, indexes that can't be read, and segments without an index.
+   *
+   * <p>Files in such segments were written after the last checkpoint, so they aren't recorded as
+   * done and are packed again.</p>
+   *
+   * @param folder The snapshot folder.
+   * @return IDs of the segments that are left.
+   * @throws IOException if the segment folder can't be listed or cleaned up.
+   */
+  public static List<String> removeIncomplete(Path folder) throws IOException {
+    Path segments = folder.resolve(SegmentIndex.FOLDER);
+    if (!Files.isDirectory(segments)) {
+      return new ArrayList<>();
+    }
+
+    Set<String> complete = new HashSet<>();
+    for (String id : listIds(segments)) {
+      Path indexPath = segments.resolve(id + SegmentIndex.INDEX_EXTENSION);
+      try {
+        SegmentIndex.fromBytes(Files.readAllBytes(indexPath));
+        complete.add(id);
+      } catch (IOException e) {
+        Files.delete(indexPath);
+      }
+    }
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(segments)) {
+      for (Path file : stream) {
+        String name = file.getFileName().toString();
+        boolean orphan = name.endsWith(SegmentIndex.DATA_EXTENSION) && !complete.contains(
+            name.substring(0, name.length() - SegmentIndex.DATA_EXTENSION.length()));
+        if (orphan || name.endsWith(".tmp")) {
+          Files.delete(file);
+        }
+      }
+    }
+    List<String> ids = new ArrayList<>(complete);
+    Collections.sort(ids);
+    return ids;
+  }
+
+  /**
+   * Lists the IDs of the segments with an index in a segment folder.
+   *
+   * @param segments The segment folder.
+   * @return Sorted IDs, or an empty list if the folder doesn't exist.
+   * @throws IOException if the folder can't be listed.
+   */
+  private static List<String> listIds(Path segments) throws IOException {
+    List<String> ids = new ArrayList<>();
+    if (!Files.isDirectory(segments)) {
+      return ids;
+    }
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(segments,
+        "*" + SegmentIndex.INDEX_EXTENSION)) {
+      for (Path file : stream) {
+        String name = file.getFileName().toString();
+        ids.add(name.substring(0, name.length() - SegmentIndex.INDEX_EXTENSION.length()));
+      }
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+}
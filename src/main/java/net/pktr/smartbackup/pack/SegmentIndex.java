@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.pack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Index of the small files packed into a segment.
+ *
+ * <p>A segment ({@code .smartbackup/segments/<id>.seg}) is the content of many small files one
+ * after another, with nothing in between. Its index ({@code <id>.idx}) lists the name, offset,
+ * size, modification time and CRC-32 of each file, and ends with a CRC-32 of itself so a damaged
+ * or cut off index is never mistaken for a complete one. Segments and their indexes are written
+ * once and never changed.</p>
+ */
+public class SegmentIndex {
+  /** Folder (inside of a backup) segments are kept in. */
+  public static final String FOLDER = ".smartbackup/segments";
+  /** Extension of segments. */
+  public static final String DATA_EXTENSION = ".seg";
+  /** Extension of segment indexes. */
+  public static final String INDEX_EXTENSION = ".idx";
+
+  private static final int MAGIC = 0x53425347; // "SBSG"
+  private static final int VERSION = 1;
+
+  /** Files in the segment, in the order they were packed. */
+  private final List<Entry> entries = new ArrayList<>();
+
+  /** A file in a segment. */
+  public static class Entry {
+    private final String name;
+    private final long offset;
+    private final long size;
+    private final long lastModified;
+    private final int crc;
+
+    public Entry(String name, long offset, long size, long lastModified, int crc) {
+      this.name = name;
+      this.offset = offset;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.crc = crc;
+    }
+
+    /**
+     * Gets the name of the file.
+     *
+     * @return Name of the file inside of the backup.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Gets where the file's data starts in the segment.
+     *
+     * @return Offset of the data.
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Gets the size of the file's data.
+     *
+     * @return Size in bytes.
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Gets the modification time of the file.
+     *
+     * @return Modification time in milliseconds since the epoch.
+     */
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * Gets the CRC-32 of the file's data.
+     *
+     * @return CRC-32 of the data.
+     */
+    public int getCrc() {
+      return crc;
+    }
+  }
+
+  /**
+   * Gets the name of a segment inside of a backup.
+   *
+   * @param id ID of the segment.
+   * @return Name of the segment's data.
+   */
+  public static String getDataName(String id) {
+    return FOLDER + "/" + id + DATA_EXTENSION;
+  }
+
+  /**
+   * Gets the name of a segment's index inside of a backup.
+   *
+   * @param id ID of the segment.
+   * @return Name of the segment's index.
+   */
+  public static String getIndexName(String id) {
+    return FOLDER + "/" + id + INDEX_EXTENSION;
+  }
+
+  /**
+   * Adds a file. Files must be added in the order they are in the segment.
+   *
+   * @param entry File to add.
+   */
+  public void addEntry(Entry entry) {
+    entries.add(entry);
+  }
+
+  /**
+   * Gets the files in the segment.
+   *
+   * @return Files in the order they are in the segment.
+   */
+  public List<Entry> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Gets the size of the segment the index belongs to.
+   *
+   * @return Size of the segment's data in bytes.
+   */
+  public long getDataSize() {
+    if (entries.isEmpty()) {
+      return 0;
+    }
+    Entry last = entries.get(entries.size() - 1);
+    return last.getOffset() + last.getSize();
+  }
+
+  /**
+   * Encodes the index.
+   *
+   * @return The index as it's stored.
+   */
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 64);
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(entries.size());
+      for (Entry entry : entries) {
+        out.writeUTF(entry.name);
+        out.writeLong(entry.offset);
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastModified);
+        out.writeInt(entry.crc);
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(bytes.toByteArray());
+      out.writeInt((int) crc.getValue());
+      out.flush();
+    } catch (IOException e) {
+      // Writing to memory doesn't fail.
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes an index.
+   *
+   * @param data The index as it's stored.
+   * @return The index.
+   * @throws IOException if the data isn't a complete segment index.
+   */
+  public static SegmentIndex fromBytes(byte[] data) throws IOException {
+    if (data.length < 16) {
+      throw new IOException("Segment index is too short");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length - 4);
+    int stored = ((data[data.length - 4] & 0xFF) << 24) | ((data[data.length - 3] & 0xFF) << 16) |
+        ((data[data.length - 2] & 0xFF) << 8) | (data[data.length - 1] & 0xFF);
+    if ((int) crc.getValue() != stored) {
+      throw new IOException("Segment index is damaged");
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a segment index");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported segment index version: " + version);
+    }
+
+    SegmentIndex index = new SegmentIndex();
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      index.addEntry(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+          in.readInt()));
+    }
+    return index;
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.pack;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Packs small files into segments.
+ *
+ * <p>Storing a small file costs mostly per-file work (opening, creating and syncing files, archive
+ * entry headers, compressing a tiny block on its own) rather than bytes. The packer collects the
+ * content of small files in memory and hands them to a {@link Sink} a whole segment at a time, so
+ * that work is done once per segment instead of once per file.</p>
+ */
+public class SegmentPacker {
+  /** Largest size of a segment, and so of a file that can be packed. */
+  public static final int SEGMENT_SIZE = 1024 * 1024;
+
+  /** Stores full segments. */
+  public interface Sink {
+    /**
+     * Stores a segment.
+     *
+     * @param data Buffer holding the segment. It's reused once this returns.
+     * @param length Length of the segment.
+     * @param index Index of the files in the segment.
+     * @throws IOException if storing the segment fails.
+     */
+    void storeSegment(byte[] data, int length, SegmentIndex index) throws IOException;
+  }
+
+  /** Where full segments go. */
+  private final Sink sink;
+  /** The segment being filled. */
+  private final byte[] data = new byte[SEGMENT_SIZE];
+  /** Number of bytes in {@link #data} so far. */
+  private int length = 0;
+  /** Index of the segment being filled. */
+  private SegmentIndex index = new SegmentIndex();
+  /** Checksum of the file being packed. */
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * Creates a packer.
+   *
+   * @param sink Where full segments go.
+   */
+  public SegmentPacker(Sink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * Adds a file to the segment being filled. If the file doesn't fit, the segment is stored
+   * first.
+   *
+   * @param name Name of the file inside of the backup.
+   * @param lastModified Modification time of the file in milliseconds since the epoch.
+   * @param buffer Buffer holding the file's content.
+   * @param offset Offset of the content in the buffer.
+   * @param size Size of the content. At most {@link #SEGMENT_SIZE}.
+   * @return Where the file is in its segment, with its CRC-32.
+   * @throws IOException if storing a full segment fails.
+   */
+  public SegmentIndex.Entry add(String name, long lastModified, byte[] buffer, int offset,
+      int size) throws IOException {
+    if (size > SEGMENT_SIZE) {
+      throw new IllegalArgumentException("File is too large to pack: " + name);
+    }
+    if (length + size > SEGMENT_SIZE) {
+      flush();
+    }
+
+    System.arraycopy(buffer, offset, data, length, size);
+    crc.reset();
+    crc.update(buffer, offset, size);
+    SegmentIndex.Entry entry = new SegmentIndex.Entry(name, length, size, lastModified,
+        (int) crc.getValue());
+    index.addEntry(entry);
+    length += size;
+    return entry;
+  }
+
+  /**
+   * Checks whether files are waiting to be stored.
+   *
+   * @return {@code true} if the segment being filled has any files.
+   */
+  public boolean isEmpty() {
+    return index.getEntries().isEmpty();
+  }
+
+  /**
+   * Stores the segment being filled, if it has any files, and starts a new one.
+   *
+   * <p>Files added before this are only in the backup once it returns, so it has to be called
+   * before a checkpoint records them as done.</p>
+   *
+   * @throws IOException if storing the segment fails.
+   */
+  public void flush() throws IOException {
+    if (isEmpty()) {
+      return;
+    }
+    SegmentIndex full = index;
+    int fullLength = length;
+    index = new SegmentIndex();
+    length = 0;
+    sink.storeSegment(data, fullLength, full);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.region;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds a compression dictionary from samples of uncompressed chunk NBT.
+ *
+ * <p>Chunk NBT from the same world repeats a lot of the same content between chunks: tag names,
+ * section layouts, and runs of common blocks. Priming the compressor with a dictionary of that
+ * content lets even the start of each chunk compress well.</p>
+ *
+ * <p>Training picks the sample segments made of the byte sequences that occur in the most
+ * samples. The best segments are placed at the end of the dictionary since deflate encodes shorter
+ * match distances more cheaply.</p>
+ */
+public class ChunkDictionaryTrainer {
+  /** Largest dictionary deflate can make use of. */
+  public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+  /** Length of the byte sequences that are counted between samples. */
+  private static final int GRAM_LENGTH = 8;
+  /** Length of the segments that make up the dictionary. */
+  private static final int SEGMENT_LENGTH = 64;
+  /** Bits in the gram frequency table. */
+  private static final int TABLE_BITS = 20;
+  /** Bytes of each sample that are used. The start of a chunk is the most uniform part. */
+  private static final int MAX_SAMPLE_LENGTH = 16 * 1024;
+
+  /** Samples added so far. */
+  private final List<byte[]> samples = new ArrayList<>();
+
+  /** A candidate dictionary segment. */
+  private static class Segment {
+    final byte[] sample;
+    final int offset;
+    final long score;
+
+    Segment(byte[] sample, int offset, long score) {
+      this.sample = sample;
+      this.offset = offset;
+      this.score = score;
+    }
+  }
+
+  /**
+   * Adds a sample of uncompressed chunk NBT.
+   *
+   * @param nbt Uncompressed chunk data.
+   */
+  public void addSample(byte[] nbt) {
+    samples.add(nbt.length > MAX_SAMPLE_LENGTH ? Arrays.copyOf(nbt, MAX_SAMPLE_LENGTH) : nbt);
+  }
+
+  /**
+   * Gets the number of samples added so far.
+   *
+   * @return Number of samples.
+   */
+  public int getSampleCount() {
+    return samples.size();
+  }
+
+  /**
+   * Builds a dictionary from the samples.
+   *
+   * @param maxSize Largest dictionary to build, at most {@link #MAX_DICTIONARY_SIZE}.
+   * @return The dictionary. This is empty if there weren't any usable samples.
+   */
+  public byte[] train(int maxSize) {
+    maxSize = Math.min(maxSize, MAX_DICTIONARY_SIZE);
+
+    // Count how many samples each gram appears in. Grams are hashed into a fixed-size table, so
+    // collisions only ever make a gram look a little more common than it is.
+    int[] counts = new int[1 << TABLE_BITS];
+    int[] lastSample = new int[1 << TABLE_BITS];
+    Arrays.fill(lastSample, -1);
+    for (int s = 0; s < samples.size(); s++) {
+      byte[] sample = samples.get(s);
+      for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+        int slot = hashGram(sample, i);
+        if (lastSample[slot] != s) {
+          lastSample[slot] = s;
+          counts[slot]++;
+        }
+      }
+    }
+
+    // Score every segment by how common its grams are. Grams found in only one sample don't help
+    // compress anything else, so they're not counted.
+    List<Segment> segments = new ArrayList<>();
+    for (byte[] sample : samples) {
+      for (int offset = 0; offset + SEGMENT_LENGTH <= sample.length; offset += SEGMENT_LENGTH) {
+        long score = 0;
+        for (int i = offset; i + GRAM_LENGTH <= offset + SEGMENT_LENGTH; i++) {
+          int count = counts[hashGram(sample, i)];
+          if (count > 1) {
+            score += count;
+          }
+        }
+        if (score > 0) {
+          segments.add(new Segment(sample, offset, score));
+        }
+      }
+    }
+
+    Collections.sort(segments, new Comparator<Segment>() {
+      @Override
+      public int compare(Segment a, Segment b) {
+        return Long.compare(b.score, a.score);
+      }
+    });
+
+    // Take the best segments, skipping exact duplicates, until the dictionary is full.
+    List<Segment> chosen = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    int size = 0;
+    for (Segment segment : segments) {
+      if (size + SEGMENT_LENGTH > maxSize) {
+        break;
+      }
+      String key = new String(segment.sample, segment.offset, SEGMENT_LENGTH,
+          StandardCharsets.ISO_8859_1);
+      if (seen.add(key)) {
+        chosen.add(segment);
+        size += SEGMENT_LENGTH;
+      }
+    }
+
+    // Best segments go last, closest to the data being compressed.
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+    for (int i = chosen.size() - 1; i >= 0; i--) {
+      Segment segment = chosen.get(i);
+      dictionary.write(segment.sample, segment.offset, SEGMENT_LENGTH);
+    }
+
+    return dictionary.toByteArray();
+  }
+
+  /**
+   * Hashes the gram starting at an offset into a slot in the frequency table.
+   *
+   * @param data Data containing the gram.
+   * @param offset Offset of the gram.
+   * @return Slot in the frequency table.
+   */
+  private static int hashGram(byte[] data, int offset) {
+    long gram = 0;
+    for (int i = 0; i < GRAM_LENGTH; i++) {
+      gram = (gram << 8) | (data[offset + i] & 0xFF);
+    }
+    return (int) ((gram * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.region;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Hashes the chunks of a region file from its data as it streams past, so a file that's being
+ * copied doesn't have to be read again to hash it.
+ *
+ * <p>The data is given in order from the start of the file. The header comes first, so by the time
+ * a chunk's sectors go by it's known which chunk they belong to. The hashes are the same as
+ * {@link ChunkHashes#add} gives for the chunks {@link RegionFileReader} reads.</p>
+ */
+public class ChunkHasher {
+  /** Length of the location table. */
+  private static final int LOCATIONS_LENGTH = RegionFileReader.SECTOR_SIZE;
+  /** Length of the header (location and timestamp tables). */
+  private static final int HEADER_LENGTH = RegionFileReader.SECTOR_SIZE * 2;
+
+  private final ChunkHashes hashes = new ChunkHashes();
+  /** Location table, filled as the header goes by. */
+  private final byte[] locations = new byte[LOCATIONS_LENGTH];
+  /** Present chunks by offset, once the header has gone by. */
+  private final List<Chunk> chunks = new ArrayList<>();
+  /** Index in {@link #chunks} of the first chunk not reached yet. */
+  private int upcoming = 0;
+  /** Chunks whose data is going by. */
+  private final List<Chunk> active = new ArrayList<>();
+  /** Position in the file of the next byte. */
+  private long position = 0;
+  /** Why the file isn't a valid region file, or {@code null}. */
+  private String damage = null;
+
+  /** A present chunk being hashed. */
+  private static final class Chunk implements Comparable<Chunk> {
+    final int index;
+    final long offset;
+    final int sectors;
+    /** Length and compression type, filled as they go by. */
+    final byte[] prefix = new byte[5];
+    final CRC32 crc = new CRC32();
+    /** End of the chunk's data in the file, once its prefix has gone by. */
+    long end = -1;
+
+    Chunk(int index, long offset, int sectors) {
+      this.index = index;
+      this.offset = offset;
+      this.sectors = sectors;
+    }
+
+    @Override
+    public int compareTo(Chunk other) {
+      return Long.compare(offset, other.offset);
+    }
+  }
+
+  /**
+   * Hashes the next part of the file.
+   *
+   * @param data Buffer holding the data.
+   * @param offset Start of the data in the buffer.
+   * @param length Length of the data.
+   */
+  public void update(byte[] data, int offset, int length) {
+    if (damage != null || length <= 0) {
+      return;
+    }
+    long start = position;
+    long end = start + length;
+    position = end;
+
+    if (start < LOCATIONS_LENGTH) {
+      int copied = (int) Math.min(length, LOCATIONS_LENGTH - start);
+      System.arraycopy(data, offset, locations, (int) start, copied);
+      if (start + copied == LOCATIONS_LENGTH) {
+        readLocations();
+      }
+    }
+
+    while (upcoming < chunks.size() && chunks.get(upcoming).offset < end) {
+      active.add(chunks.get(upcoming++));
+    }
+    for (Iterator<Chunk> reached = active.iterator(); reached.hasNext() && damage == null; ) {
+      Chunk chunk = reached.next();
+      if (chunk.end == -1) {
+        // Still reading the length and compression type.
+        long from = Math.max(start, chunk.offset);
+        long to = Math.min(end, chunk.offset + 5);
+        for (long i = from; i < to; i++) {
+          chunk.prefix[(int) (i - chunk.offset)] = data[offset + (int) (i - start)];
+        }
+        if (to < chunk.offset + 5) {
+          continue;
+        }
+        int chunkLength = ByteBuffer.wrap(chunk.prefix).getInt();
+        if (chunkLength < 1 || chunkLength + 4L > (long) chunk.sectors *
+            RegionFileReader.SECTOR_SIZE) {
+          damage = "Chunk " + chunk.index + " has an invalid length: " + chunkLength;
+          return;
+        }
+        chunk.end = chunk.offset + 4 + chunkLength;
+        chunk.crc.update(chunk.prefix[4]);
+      }
+
+      long from = Math.max(start, chunk.offset + 5);
+      long to = Math.min(end, chunk.end);
+      if (from < to) {
+        chunk.crc.update(data, offset + (int) (from - start), (int) (to - from));
+      }
+      if (to == chunk.end) {
+        hashes.set(chunk.index, (int) chunk.crc.getValue());
+        reached.remove();
+      }
+    }
+  }
+
+  /**
+   * Finishes hashing, once the whole file has gone by.
+   *
+   * @return Hashes of the file's chunks.
+   * @throws RegionFormatException if the data isn't a valid region file.
+   */
+  public ChunkHashes finish() throws RegionFormatException {
+    if (damage == null && position < HEADER_LENGTH) {
+      damage = "Region file is too short to have a header";
+    }
+    if (damage == null && (upcoming < chunks.size() || !active.isEmpty())) {
+      Chunk chunk = active.isEmpty() ? chunks.get(upcoming) : active.get(0);
+      damage = chunk.end == -1 ? "Chunk " + chunk.index + " points outside of the region file" :
+          "Chunk " + chunk.index + " has an invalid length: " + (chunk.end - chunk.offset - 4);
+    }
+    if (damage != null) {
+      throw new RegionFormatException(damage);
+    }
+    return hashes;
+  }
+
+  /** Reads the location table once it has gone by, and lines up the present chunks. */
+  private void readLocations() {
+    ByteBuffer table = ByteBuffer.wrap(locations);
+    for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+      int location = table.getInt();
+      if (location == 0) {
+        continue;
+      }
+      long offset = (long) (location >>> 8) * RegionFileReader.SECTOR_SIZE;
+      if (offset < HEADER_LENGTH) {
+        damage = "Chunk " + i + " points outside of the region file";
+        return;
+      }
+      chunks.add(new Chunk(i, offset, location & 0xFF));
+    }
+    Collections.sort(chunks);
+  }
+}
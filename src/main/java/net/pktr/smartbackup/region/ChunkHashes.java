@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.region;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.CRC32;
+
+/**
+ * The CRC-32 of every chunk in a region file, as recorded in manifests.
+ *
+ * <p>Each chunk's hash covers its compression type and compressed data, so a chunk that was saved
+ * again with different contents gets a different hash. Comparing the hashes of two versions of a
+ * region file tells which chunks changed without reading either file.</p>
+ *
+ * <p>Hashes are encoded as {@code crc32:} followed by base64 of a bitmap of the chunks present
+ * (128 bytes) and a 4-byte hash per present chunk, about 5.5KiB for a full region.</p>
+ */
+public class ChunkHashes {
+  /** Prefix of encoded hashes. */
+  private static final String PREFIX = "crc32:";
+  /** Length of the bitmap of present chunks. */
+  private static final int BITMAP_LENGTH = RegionFileReader.CHUNK_COUNT / 8;
+
+  /** Which chunks are present. */
+  private final boolean[] present = new boolean[RegionFileReader.CHUNK_COUNT];
+  /** Hash of each present chunk. */
+  private final int[] hashes = new int[RegionFileReader.CHUNK_COUNT];
+  /** Number of present chunks. */
+  private int count = 0;
+
+  /** Creates an empty set of hashes, for chunks to be added to. */
+  public ChunkHashes() {
+  }
+
+  /**
+   * Adds the hash of a chunk.
+   *
+   * @param chunk Chunk to hash.
+   */
+  public void add(RegionChunk chunk) {
+    CRC32 crc = new CRC32();
+    crc.update(chunk.getCompressionType());
+    crc.update(chunk.getPayload());
+    set(chunk.getIndex(), (int) crc.getValue());
+  }
+
+  /**
+   * Sets the hash of a chunk.
+   *
+   * @param index Index of the chunk.
+   * @param hash Hash of its compression type and compressed data.
+   */
+  void set(int index, int hash) {
+    if (!present[index]) {
+      count++;
+    }
+    present[index] = true;
+    hashes[index] = hash;
+  }
+
+  /**
+   * Checks whether a chunk is present.
+   *
+   * @param index Index of the chunk.
+   * @return {@code true} if the region has the chunk.
+   */
+  public boolean has(int index) {
+    return present[index];
+  }
+
+  /**
+   * Gets the hash of a chunk.
+   *
+   * @param index Index of the chunk.
+   * @return The chunk's hash (meaningless if the chunk isn't present).
+   */
+  public int get(int index) {
+    return hashes[index];
+  }
+
+  /**
+   * Gets the number of chunks present.
+   *
+   * @return Number of chunks.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Finds the chunks that differ between two versions of a region file.
+   *
+   * @param older Hashes of the older version.
+   * @param newer Hashes of the newer version.
+   * @return Indexes of the chunks that were added, removed or changed, in order.
+   */
+  public static int[] diff(ChunkHashes older, ChunkHashes newer) {
+    int[] changed = new int[RegionFileReader.CHUNK_COUNT];
+    int count = 0;
+    for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+      if (older.present[i] != newer.present[i] ||
+          (newer.present[i] && older.hashes[i] != newer.hashes[i])) {
+        changed[count++] = i;
+      }
+    }
+    return Arrays.copyOf(changed, count);
+  }
+
+  /**
+   * Encodes the hashes for a manifest.
+   *
+   * @return Encoded hashes.
+   */
+  public String encode() {
+    ByteBuffer buffer = ByteBuffer.allocate(BITMAP_LENGTH + count * 4);
+    for (int i = 0; i < BITMAP_LENGTH; i++) {
+      int bits = 0;
+      for (int bit = 0; bit < 8; bit++) {
+        if (present[i * 8 + bit]) {
+          bits |= 1 << bit;
+        }
+      }
+      buffer.put((byte) bits);
+    }
+    for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+      if (present[i]) {
+        buffer.putInt(hashes[i]);
+      }
+    }
+    return PREFIX + Base64.getEncoder().withoutPadding().encodeToString(buffer.array());
+  }
+
+  /**
+   * Decodes hashes from a manifest.
+   *
+   * @param encoded Encoded hashes.
+   * @return The hashes.
+   * @throws IllegalArgumentException if the hashes aren't validly encoded.
+   */
+  public static ChunkHashes decode(String encoded) {
+    if (!encoded.startsWith(PREFIX)) {
+      throw new IllegalArgumentException("Unknown chunk hash type: " + encoded);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(
+        Base64.getDecoder().decode(encoded.substring(PREFIX.length())));
+    if (buffer.remaining() < BITMAP_LENGTH) {
+      throw new IllegalArgumentException("Chunk hashes are too short");
+    }
+
+    ChunkHashes hashes = new ChunkHashes();
+    for (int i = 0; i < BITMAP_LENGTH; i++) {
+      int bits = buffer.get(i);
+      for (int bit = 0; bit < 8; bit++) {
+        if ((bits & (1 << bit)) != 0) {
+          hashes.present[i * 8 + bit] = true;
+          hashes.count++;
+        }
+      }
+    }
+    if (buffer.remaining() != BITMAP_LENGTH + hashes.count * 4) {
+      throw new IllegalArgumentException("Chunk hashes don't match the chunks present");
+    }
+    buffer.position(BITMAP_LENGTH);
+    for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+      if (hashes.present[i]) {
+        hashes.hashes[i] = buffer.getInt();
+      }
+    }
+    return hashes;
+  }
+}
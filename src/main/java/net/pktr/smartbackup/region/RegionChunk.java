@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.region;
+
+/**
+ * A single chunk read from a region file.
+ *
+ * <p>The payload is kept exactly as it was stored in the region file, still compressed with the
+ * method given by {@link #getCompressionType}.</p>
+ */
+public class RegionChunk {
+  /** Index of the chunk in the region file header (x + z * 32). */
+  private final int index;
+  /** Compression type byte from the region file (1 for gzip, 2 for zlib). */
+  private final byte compressionType;
+  /** Compressed chunk data. */
+  private final byte[] payload;
+
+  public RegionChunk(int index, byte compressionType, byte[] payload) {
+    this.index = index;
+    this.compressionType = compressionType;
+    this.payload = payload;
+  }
+
+  /**
+   * Gets the index of this chunk in the region file header.
+   *
+   * @return Index of the chunk (x + z * 32, using region-local chunk coordinates).
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * Gets the compression type byte of this chunk.
+   *
+   * @return {@link RegionFileReader#COMPRESSION_GZIP} or {@link RegionFileReader#COMPRESSION_ZLIB}
+   * for valid chunks. Other values are possible in damaged or unusual region files.
+   */
+  public byte getCompressionType() {
+    return compressionType;
+  }
+
+  /**
+   * Gets the compressed chunk data.
+   *
+   * @return Compressed chunk data, without the length and compression type prefix.
+   */
+  public byte[] getPayload() {
+    return payload;
+  }
+}
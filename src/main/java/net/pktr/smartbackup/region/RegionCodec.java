@@ -0,0 +1,425 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.region;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes region files as a single compressed stream of uncompressed chunk data.
+ *
+ * <p>Every chunk in a region file is compressed on its own, so compressing a region file again
+ * gains almost nothing. Instead, the chunks are decompressed and the whole region is compressed
+ * as one solid stream, primed with a dictionary trained on the world's chunk data (see
+ * {@link ChunkDictionaryTrainer}).</p>
+ *
+ * <p>The encoded form is a 22-byte header ({@code SBRG}, format version, flags, dictionary ID,
+ * uncompressed stream length and CRC-32) followed by a raw deflate stream containing the region's
+ * timestamp table and then, for every chunk slot, a mode byte and the chunk's data.</p>
+ *
+ * <p>Decoding produces a valid region file with the same chunk data (NBT) and timestamps as the
+ * original. The chunks are compressed again with the same compression type they had, but the
+ * compressed bytes and sector layout aren't necessarily identical to the original file.</p>
+ */
+public class RegionCodec {
+  /** Extension added to the names of encoded region files. */
+  public static final String EXTENSION = ".sbrg";
+  /** Name of the archive entry holding the dictionary the regions in an archive use. */
+  public static final String DICTIONARY_ENTRY = ".smartbackup/chunks.dict";
+
+  private static final byte[] MAGIC = {'S', 'B', 'R', 'G'};
+  private static final byte VERSION = 1;
+  private static final byte FLAG_DICTIONARY = 1;
+
+  /** Slot has no chunk. */
+  private static final byte MODE_ABSENT = 0;
+  /** Slot holds decompressed chunk data. */
+  private static final byte MODE_DECODED = 1;
+  /** Slot holds chunk data exactly as it was in the region file (it couldn't be decompressed). */
+  private static final byte MODE_VERBATIM = 2;
+
+  private RegionCodec() {
+  }
+
+  /** A region file encoded by {@link #encode}, with the hashes of the chunks it holds. */
+  public static class EncodedRegion {
+    private final byte[] data;
+    private final ChunkHashes chunkHashes;
+
+    EncodedRegion(byte[] data, ChunkHashes chunkHashes) {
+      this.data = data;
+      this.chunkHashes = chunkHashes;
+    }
+
+    /**
+     * Gets the encoded region.
+     *
+     * @return The encoded data.
+     */
+    public byte[] getData() {
+      return data;
+    }
+
+    /**
+     * Gets the hashes of the chunks that were encoded, as read from the region file.
+     *
+     * @return Hashes of the region's chunks.
+     */
+    public ChunkHashes getChunkHashes() {
+      return chunkHashes;
+    }
+  }
+
+  /**
+   * Gets the ID of a dictionary, used to check that a region is decoded with the dictionary it was
+   * encoded with.
+   *
+   * @param dictionary Dictionary, or {@code null} for none.
+   * @return ID of the dictionary, or 0 for no dictionary.
+   */
+  public static int getDictionaryId(byte[] dictionary) {
+    if (dictionary == null || dictionary.length == 0) {
+      return 0;
+    }
+    Adler32 adler = new Adler32();
+    adler.update(dictionary, 0, dictionary.length);
+    return (int) adler.getValue();
+  }
+
+  /**
+   * Adds samples of a region file's chunks to a dictionary trainer.
+   *
+   * @param file Region file to sample.
+   * @param trainer Trainer to add samples to.
+   * @param maxSamples Largest number of chunks to take from this file.
+   * @throws IOException if the file can't be read or isn't a region file.
+   */
+  public static void sample(Path file, ChunkDictionaryTrainer trainer, int maxSamples)
+      throws IOException {
+    try (RegionFileReader region = new RegionFileReader(file)) {
+      int taken = 0;
+      // Spread the samples over the region instead of taking them all from one corner.
+      for (int i = 0; i < RegionFileReader.CHUNK_COUNT && taken < maxSamples; i += 7) {
+        RegionChunk chunk;
+        try {
+          chunk = region.readChunk(i);
+        } catch (RegionFormatException e) {
+          continue;
+        }
+        if (chunk != null) {
+          try {
+            trainer.addSample(RegionFileReader.decompress(chunk));
+            taken++;
+          } catch (RegionFormatException e) {
+            // Damaged chunks make poor samples.
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Encodes a region file.
+   *
+   * @param file Region file to encode.
+   * @param dictionary Dictionary to prime the compressor with, or {@code null} for none.
+   * @param level Deflate compression level to use.
+   * @return The encoded region, with the hashes of its chunks.
+   * @throws RegionFormatException if the file isn't a valid region file.
+   * @throws IOException if the file can't be read.
+   */
+  public static EncodedRegion encode(Path file, byte[] dictionary, int level)
+      throws IOException {
+    boolean useDictionary = dictionary != null && dictionary.length > 0;
+    ChunkHashes hashes = new ChunkHashes();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    CRC32 crc = new CRC32();
+    long plainLength;
+
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (useDictionary) {
+        deflater.setDictionary(dictionary);
+      }
+
+      CheckedOutputStream checked = new CheckedOutputStream(
+          new DeflaterOutputStream(body, deflater, 65536), crc);
+      DataOutputStream out = new DataOutputStream(checked);
+
+      try (RegionFileReader region = new RegionFileReader(file)) {
+        for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+          out.writeInt(region.getTimestamp(i));
+        }
+
+        for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+          RegionChunk chunk = region.readChunk(i);
+          if (chunk == null) {
+            out.writeByte(MODE_ABSENT);
+            continue;
+          }
+          hashes.add(chunk);
+
+          byte[] data;
+          byte mode;
+          try {
+            data = RegionFileReader.decompress(chunk);
+            mode = MODE_DECODED;
+          } catch (RegionFormatException e) {
+            data = chunk.getPayload();
+            mode = MODE_VERBATIM;
+          }
+
+          out.writeByte(mode);
+          out.writeByte(chunk.getCompressionType());
+          out.writeInt(data.length);
+          out.write(data);
+        }
+      }
+
+      out.close();
+      plainLength = deflater.getBytesRead();
+    } finally {
+      deflater.end();
+    }
+
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream(body.size() + 22);
+    DataOutputStream header = new DataOutputStream(encoded);
+    header.write(MAGIC);
+    header.writeByte(VERSION);
+    header.writeByte(useDictionary ? FLAG_DICTIONARY : 0);
+    header.writeInt(getDictionaryId(dictionary));
+    header.writeLong(plainLength);
+    header.writeInt((int) crc.getValue());
+    body.writeTo(header);
+    header.flush();
+
+    return new EncodedRegion(encoded.toByteArray(), hashes);
+  }
+
+  /**
+   * Decodes an encoded region back into a region file.
+   *
+   * @param in Stream of the encoded region.
+   * @param dictionary Dictionary the region was encoded with, or {@code null} if it was encoded
+   * without one.
+   * @param out Stream to write the region file to.
+   * @throws RegionFormatException if the encoded region is damaged or needs a different dictionary.
+   * @throws IOException if reading or writing fails.
+   */
+  public static void decode(InputStream in, byte[] dictionary, OutputStream out)
+      throws IOException {
+    DataInputStream header = new DataInputStream(in);
+    byte[] magic = new byte[MAGIC.length];
+    header.readFully(magic);
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (magic[i] != MAGIC[i]) {
+        throw new RegionFormatException("Not an encoded region");
+      }
+    }
+    byte version = header.readByte();
+    if (version != VERSION) {
+      throw new RegionFormatException("Unsupported encoded region version: " + version);
+    }
+    boolean useDictionary = (header.readByte() & FLAG_DICTIONARY) != 0;
+    int dictionaryId = header.readInt();
+    long plainLength = header.readLong();
+    int expectedCrc = header.readInt();
+
+    if (useDictionary && getDictionaryId(dictionary) != dictionaryId) {
+      throw new RegionFormatException("Encoded region needs a different dictionary");
+    }
+
+    int[] timestamps = new int[RegionFileReader.CHUNK_COUNT];
+    byte[][] chunks = new byte[RegionFileReader.CHUNK_COUNT][];
+
+    Inflater inflater = new Inflater(true);
+    try {
+      if (useDictionary) {
+        inflater.setDictionary(dictionary);
+      }
+
+      CRC32 crc = new CRC32();
+      CheckedInputStream checked = new CheckedInputStream(
+          new InflaterInputStream(in, inflater, 65536), crc);
+      DataInputStream data = new DataInputStream(checked);
+
+      try {
+        for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+          timestamps[i] = data.readInt();
+        }
+
+        for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+          byte mode = data.readByte();
+          if (mode == MODE_ABSENT) {
+            continue;
+          }
+          if (mode != MODE_DECODED && mode != MODE_VERBATIM) {
+            throw new RegionFormatException("Unknown chunk mode in encoded region: " + mode);
+          }
+
+          byte compressionType = data.readByte();
+          int length = data.readInt();
+          if (length < 0) {
+            throw new RegionFormatException("Invalid chunk length in encoded region: " + length);
+          }
+          byte[] chunk = new byte[length];
+          data.readFully(chunk);
+
+          chunks[i] = mode == MODE_DECODED ? compress(compressionType, chunk) : chunk;
+          chunks[i] = frame(compressionType, chunks[i]);
+        }
+      } catch (EOFException e) {
+        throw new RegionFormatException("Encoded region is truncated", e);
+      }
+
+      if (inflater.getBytesWritten() != plainLength || (int) crc.getValue() != expectedCrc) {
+        throw new RegionFormatException("Encoded region failed its integrity check");
+      }
+    } finally {
+      inflater.end();
+    }
+
+    writeRegion(timestamps, chunks, out);
+  }
+
+  /**
+   * Writes a region file holding the given chunks, packed one after another.
+   *
+   * @param timestamps Timestamp table.
+   * @param chunks Chunks by index, {@code null} for missing chunks.
+   * @param out Stream to write the region file to.
+   * @throws IOException if a chunk is too big for a region file or writing fails.
+   */
+  public static void writeRegion(int[] timestamps, RegionChunk[] chunks, OutputStream out)
+      throws IOException {
+    byte[][] framed = new byte[RegionFileReader.CHUNK_COUNT][];
+    for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+      if (chunks[i] != null) {
+        framed[i] = frame(chunks[i].getCompressionType(), chunks[i].getPayload());
+      }
+    }
+    writeRegion(timestamps, framed, out);
+  }
+
+  /**
+   * Compresses chunk data the way Minecraft stores it.
+   *
+   * @param compressionType Compression type to use.
+   * @param data Uncompressed chunk data.
+   * @return Compressed chunk data.
+   * @throws IOException if the compression type is unknown.
+   */
+  private static byte[] compress(byte compressionType, byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+    OutputStream out;
+    switch (compressionType) {
+      case RegionFileReader.COMPRESSION_GZIP:
+        out = new GZIPOutputStream(compressed);
+        break;
+      case RegionFileReader.COMPRESSION_ZLIB:
+        out = new DeflaterOutputStream(compressed);
+        break;
+      default:
+        throw new RegionFormatException("Unknown compression type in encoded region: " +
+            compressionType);
+    }
+    out.write(data);
+    out.close();
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Adds the length and compression type prefix that a chunk has in a region file.
+   *
+   * @param compressionType Compression type of the chunk.
+   * @param payload Compressed chunk data.
+   * @return The chunk as it's laid out in a region file, without sector padding.
+   */
+  private static byte[] frame(byte compressionType, byte[] payload) {
+    byte[] framed = new byte[payload.length + 5];
+    int length = payload.length + 1;
+    framed[0] = (byte) (length >>> 24);
+    framed[1] = (byte) (length >>> 16);
+    framed[2] = (byte) (length >>> 8);
+    framed[3] = (byte) length;
+    framed[4] = compressionType;
+    System.arraycopy(payload, 0, framed, 5, payload.length);
+    return framed;
+  }
+
+  /**
+   * Lays out chunks into a region file.
+   *
+   * @param timestamps Timestamp table.
+   * @param chunks Framed chunks (see {@link #frame}), {@code null} for missing chunks.
+   * @param out Stream to write the region file to.
+   * @throws IOException if a chunk is too big for a region file or writing fails.
+   */
+  private static void writeRegion(int[] timestamps, byte[][] chunks, OutputStream out)
+      throws IOException {
+    int sectorSize = RegionFileReader.SECTOR_SIZE;
+    int[] locations = new int[RegionFileReader.CHUNK_COUNT];
+    int nextSector = 2;
+    for (int i = 0; i < RegionFileReader.CHUNK_COUNT; i++) {
+      if (chunks[i] == null) {
+        continue;
+      }
+      int sectors = (chunks[i].length + sectorSize - 1) / sectorSize;
+      if (sectors > 0xFF) {
+        throw new RegionFormatException("Chunk " + i + " is too big for a region file");
+      }
+      locations[i] = (nextSector << 8) | sectors;
+      nextSector += sectors;
+    }
+
+    DataOutputStream region = new DataOutputStream(out);
+    for (int location : locations) {
+      region.writeInt(location);
+    }
+    for (int timestamp : timestamps) {
+      region.writeInt(timestamp);
+    }
+
+    byte[] padding = new byte[sectorSize];
+    for (byte[] chunk : chunks) {
+      if (chunk == null) {
+        continue;
+      }
+      region.write(chunk);
+      int remainder = chunk.length % sectorSize;
+      if (remainder != 0) {
+        region.write(padding, 0, sectorSize - remainder);
+      }
+    }
+    region.flush();
+  }
+}
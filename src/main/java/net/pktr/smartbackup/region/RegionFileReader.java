@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.region;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads chunks out of Anvil ({@code .mca}) and McRegion ({@code .mcr}) region files.
+ *
+ * <p>A region file starts with two 4KiB tables: the chunk locations (3 bytes of sector offset and
+ * 1 byte of sector count per chunk) and the chunk timestamps. Each chunk is stored as a 4-byte
+ * length, a 1-byte compression type, and the compressed NBT data.</p>
+ */
+public class RegionFileReader implements Closeable {
+  /** Size of a region file sector in bytes. */
+  public static final int SECTOR_SIZE = 4096;
+  /** Number of chunks in a region file (32x32). */
+  public static final int CHUNK_COUNT = 1024;
+  /** Compression type for gzip-compressed chunks. */
+  public static final byte COMPRESSION_GZIP = 1;
+  /** Compression type for zlib-compressed chunks. */
+  public static final byte COMPRESSION_ZLIB = 2;
+
+  /** Channel the region file is read from. */
+  private final FileChannel channel;
+  /** Size of the region file when it was opened (or last reloaded). */
+  private long fileSize;
+  /** Location table from the region header. */
+  private final int[] locations = new int[CHUNK_COUNT];
+  /** Timestamp table from the region header. */
+  private final int[] timestamps = new int[CHUNK_COUNT];
+
+  /**
+   * Opens a region file and reads its header.
+   *
+   * @param file Region file to read.
+   * @throws RegionFormatException if the file is too short to have a region header.
+   * @throws IOException if the file can't be read.
+   */
+  public RegionFileReader(Path file) throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      fileSize = channel.size();
+      if (fileSize < SECTOR_SIZE * 2) {
+        throw new RegionFormatException("Region file is too short to have a header: " + file);
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE * 2);
+      readFully(header, 0);
+      header.flip();
+      for (int i = 0; i < CHUNK_COUNT; i++) {
+        locations[i] = header.getInt();
+      }
+      for (int i = 0; i < CHUNK_COUNT; i++) {
+        timestamps[i] = header.getInt();
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Checks whether a file looks like a region file, going by its name.
+   *
+   * @param file File to check.
+   * @return {@code true} if the file has a region file extension.
+   */
+  public static boolean isRegionFile(Path file) {
+    String name = file.getFileName().toString();
+    return name.endsWith(".mca") || name.endsWith(".mcr");
+  }
+
+  /**
+   * Checks whether the header has an entry for a chunk.
+   *
+   * @param index Index of the chunk.
+   * @return {@code true} if the chunk is present.
+   */
+  public boolean hasChunk(int index) {
+    return locations[index] != 0;
+  }
+
+  /**
+   * Gets the last-saved timestamp of a chunk.
+   *
+   * @param index Index of the chunk.
+   * @return Timestamp (in seconds since the epoch) from the region header.
+   */
+  public int getTimestamp(int index) {
+    return timestamps[index];
+  }
+
+  /**
+   * Gets the raw location entry of a chunk from the region header.
+   *
+   * @param index Index of the chunk.
+   * @return Location entry (sector offset in the upper 3 bytes, sector count in the lowest byte).
+   */
+  public int getLocation(int index) {
+    return locations[index];
+  }
+
+  /**
+   * Reads a chunk's header entries again, in case the file has been written since it was opened.
+   *
+   * <p>To read a chunk that's being saved at the same time, hold the lock its writer uses while
+   * reloading and reading it.</p>
+   *
+   * @param index Index of the chunk.
+   * @throws IOException if the file can't be read.
+   */
+  public void reload(int index) throws IOException {
+    ByteBuffer entry = ByteBuffer.allocate(4);
+    readFully(entry, index * 4L);
+    entry.flip();
+    locations[index] = entry.getInt();
+
+    entry.clear();
+    readFully(entry, SECTOR_SIZE + index * 4L);
+    entry.flip();
+    timestamps[index] = entry.getInt();
+
+    fileSize = channel.size();
+  }
+
+  /**
+   * Reads a chunk without decompressing it.
+   *
+   * @param index Index of the chunk.
+   * @return The chunk, or {@code null} if the chunk isn't present.
+   * @throws RegionFormatException if the header or the chunk's length points outside the file.
+   * @throws IOException if the file can't be read.
+   */
+  public RegionChunk readChunk(int index) throws IOException {
+    if (!hasChunk(index)) {
+      return null;
+    }
+
+    long offset = (long) (locations[index] >>> 8) * SECTOR_SIZE;
+    int sectors = locations[index] & 0xFF;
+    if (offset < SECTOR_SIZE * 2 || offset + 5 > fileSize) {
+      throw new RegionFormatException("Chunk " + index + " points outside of the region file");
+    }
+
+    ByteBuffer prefix = ByteBuffer.allocate(5);
+    readFully(prefix, offset);
+    prefix.flip();
+    int length = prefix.getInt();
+    byte compressionType = prefix.get();
+
+    if (length < 1 || length + 4 > (long) sectors * SECTOR_SIZE || offset + 4 + length > fileSize) {
+      throw new RegionFormatException("Chunk " + index + " has an invalid length: " + length);
+    }
+
+    ByteBuffer payload = ByteBuffer.allocate(length - 1);
+    readFully(payload, offset + 5);
+
+    return new RegionChunk(index, compressionType, payload.array());
+  }
+
+  /**
+   * Decompresses a chunk into its NBT data.
+   *
+   * @param chunk Chunk to decompress.
+   * @return Uncompressed NBT data.
+   * @throws RegionFormatException if the chunk uses an unknown compression type or its data is
+   * damaged.
+   */
+  public static byte[] decompress(RegionChunk chunk) throws RegionFormatException {
+    InputStream in;
+    try {
+      switch (chunk.getCompressionType()) {
+        case COMPRESSION_GZIP:
+          in = new GZIPInputStream(new ByteArrayInputStream(chunk.getPayload()));
+          break;
+        case COMPRESSION_ZLIB:
+          in = new InflaterInputStream(new ByteArrayInputStream(chunk.getPayload()));
+          break;
+        default:
+          throw new RegionFormatException("Chunk " + chunk.getIndex() +
+              " has an unknown compression type: " + chunk.getCompressionType());
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.getPayload().length * 4);
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new RegionFormatException("Chunk " + chunk.getIndex() + " can't be decompressed", e);
+    }
+  }
+
+  /**
+   * Fills a buffer from the region file.
+   *
+   * @param buffer Buffer to fill.
+   * @param position Position in the file to start reading at.
+   * @throws IOException if the file can't be read or ends before the buffer is full.
+   */
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new RegionFormatException("Unexpected end of region file");
+      }
+      position += read;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
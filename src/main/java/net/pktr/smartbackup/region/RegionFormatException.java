@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.region;
+
+import java.io.IOException;
+
+/** Thrown when a region file (or an encoded region) is not laid out the way it should be. */
+public class RegionFormatException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public RegionFormatException(String message) {
+    super(message);
+  }
+
+  public RegionFormatException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
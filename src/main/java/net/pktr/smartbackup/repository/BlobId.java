@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.repository;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Identifies a blob in a {@link Repository} by the SHA-256 hash of its (uncompressed) content.
+ *
+ * <p>Blobs with the same content have the same ID in every repository, which is what lets
+ * backups of different servers share them.</p>
+ */
+public final class BlobId {
+  /** Length of an ID in bytes. */
+  public static final int LENGTH = 32;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** The hash. */
+  private final byte[] hash;
+  /** Hash code, from the first bytes of the hash. */
+  private final int hashCode;
+
+  private BlobId(byte[] hash) {
+    this.hash = hash;
+    this.hashCode = ByteBuffer.wrap(hash).getInt();
+  }
+
+  /**
+   * Hashes blob content.
+   *
+   * @param data Buffer holding the content.
+   * @param offset Where the content starts.
+   * @param length Length of the content.
+   * @return ID of the content.
+   */
+  public static BlobId of(byte[] data, int offset, int length) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has SHA-256.
+      throw new IllegalStateException(e);
+    }
+    digest.update(data, offset, length);
+    return new BlobId(digest.digest());
+  }
+
+  /**
+   * Reads an ID from a buffer.
+   *
+   * @param buffer Buffer positioned at the ID. Its position is moved past it.
+   * @return The ID.
+   */
+  public static BlobId read(ByteBuffer buffer) {
+    byte[] hash = new byte[LENGTH];
+    buffer.get(hash);
+    return new BlobId(hash);
+  }
+
+  /**
+   * Parses an ID written by {@link #toString}.
+   *
+   * @param hex ID in hexadecimal.
+   * @return The ID.
+   * @throws IllegalArgumentException if the ID isn't valid hexadecimal of the right length.
+   */
+  public static BlobId fromString(String hex) {
+    if (hex.length() != LENGTH * 2) {
+      throw new IllegalArgumentException("Invalid blob ID: " + hex);
+    }
+    byte[] hash = new byte[LENGTH];
+    for (int i = 0; i < LENGTH; i++) {
+      int high = Character.digit(hex.charAt(i * 2), 16);
+      int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+      if (high == -1 || low == -1) {
+        throw new IllegalArgumentException("Invalid blob ID: " + hex);
+      }
+      hash[i] = (byte) (high << 4 | low);
+    }
+    return new BlobId(hash);
+  }
+
+  /**
+   * Writes the ID into a buffer.
+   *
+   * @param buffer Buffer to write into.
+   */
+  public void write(ByteBuffer buffer) {
+    buffer.put(hash);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof BlobId && Arrays.equals(hash, ((BlobId) other).hash);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  /**
+   * Gets the ID in hexadecimal.
+   *
+   * @return Hexadecimal ID.
+   */
+  @Override
+  public String toString() {
+    char[] hex = new char[LENGTH * 2];
+    for (int i = 0; i < LENGTH; i++) {
+      hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+      hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+    }
+    return new String(hex);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into content-defined chunks.
+ *
+ * <p>Chunk boundaries are placed where a rolling (gear) hash of the last 64 bytes matches a
+ * pattern, so they depend only on the content around them. Inserting or removing data only
+ * changes the chunks around the edit, and the same data in two different files is cut into the
+ * same chunks, which is what lets them be stored once.</p>
+ *
+ * <p>Chunks are between {@link #MIN_SIZE} and {@link #MAX_SIZE} bytes (except the last one), and
+ * about 64 KiB on average.</p>
+ */
+public class ContentChunker {
+  /** Smallest chunk, except at the end of the stream. */
+  public static final int MIN_SIZE = 16 * 1024;
+  /** Largest chunk. */
+  public static final int MAX_SIZE = 256 * 1024;
+  /** Bits of the hash that have to be zero at a boundary: 16 bits for 64 KiB chunks. */
+  private static final long BOUNDARY_MASK = 0xffffL << 48;
+  /** Random value for each byte value. Fixed forever, as it decides where chunks are cut. */
+  private static final long[] GEAR = new long[256];
+
+  static {
+    // SplitMix64, so the table doesn't depend on any library's random number generator.
+    long state = 0x536d617274426b70L;
+    for (int i = 0; i < GEAR.length; i++) {
+      state += 0x9e3779b97f4a7c15L;
+      long z = state;
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  /** Stream being chunked. */
+  private final InputStream in;
+  /** Data read from the stream that hasn't been returned in a chunk yet. */
+  private final byte[] buffer = new byte[MAX_SIZE];
+  /** Number of bytes in {@link #buffer}. */
+  private int buffered = 0;
+  /** Length of the chunk last returned, which is removed from the buffer by the next call. */
+  private int returned = 0;
+  /** Whether the stream has ended. */
+  private boolean ended = false;
+
+  /**
+   * Sets up chunking of a stream.
+   *
+   * @param in Stream to chunk. It isn't closed by the chunker.
+   */
+  public ContentChunker(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Finds the next chunk.
+   *
+   * @return Length of the chunk, which is at the start of {@link #getBuffer} until the next call,
+   * or 0 once the stream has ended.
+   * @throws IOException if reading the stream fails.
+   */
+  public int next() throws IOException {
+    if (returned > 0) {
+      buffered -= returned;
+      System.arraycopy(buffer, returned, buffer, 0, buffered);
+      returned = 0;
+    }
+    while (!ended && buffered < buffer.length) {
+      int read = in.read(buffer, buffered, buffer.length - buffered);
+      if (read == -1) {
+        ended = true;
+      } else {
+        buffered += read;
+      }
+    }
+
+    returned = findBoundary(buffer, buffered);
+    return returned;
+  }
+
+  /**
+   * Gets the buffer chunks are returned in.
+   *
+   * @return The buffer.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Finds where the first chunk of some data ends.
+   *
+   * @param data Data to cut.
+   * @param length Length of the data.
+   * @return Length of the first chunk.
+   */
+  static int findBoundary(byte[] data, int length) {
+    if (length <= MIN_SIZE) {
+      return length;
+    }
+    long hash = 0;
+    // Bytes before the minimum size only need to fill the 64-byte window of the hash.
+    for (int i = MIN_SIZE - 64; i < length; i++) {
+      hash = (hash << 1) + GEAR[data[i] & 0xff];
+      if (i >= MIN_SIZE && (hash & BOUNDARY_MASK) == 0) {
+        return i + 1;
+      }
+    }
+    return length;
+  }
+}
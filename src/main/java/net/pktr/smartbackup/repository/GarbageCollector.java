@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.repository;
+
+import net.pktr.smartbackup.FileSync;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes the blobs no backup of any instance uses from a {@link Repository}.
+ *
+ * <p>Every tree of every instance is read to find the blobs still in use. Packs with no blob in
+ * use are removed. Packs where less than half of the data is in use are repacked: the blobs in
+ * use are copied (as they are, without recompressing them) into new packs, and the old packs are
+ * removed. Blobs stored twice (by instances writing at the same time) are kept once.</p>
+ *
+ * <p>The caller must hold the repository's exclusive lock, so no instance is writing. Removed
+ * packs lose their index right away, so no new reader finds them, but the pack files are only
+ * moved into the garbage folder, and deleted by a later collection once {@link #GRACE_MILLIS} has
+ * passed. Readers that loaded the index before the collection can still finish.</p>
+ */
+public class GarbageCollector {
+  /** How long removed packs are kept for readers that may still be reading them. */
+  static final long GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /** Repository being collected. */
+  private final Repository repository;
+  /** Number of packs removed. */
+  private int packsRemoved = 0;
+  /** Number of packs repacked. */
+  private int packsRepacked = 0;
+  /** Length of the pack data removed. */
+  private long bytesRemoved = 0;
+
+  private GarbageCollector(Repository repository) {
+    this.repository = repository;
+  }
+
+  /**
+   * Collects the garbage of a repository.
+   *
+   * @param repository Repository to collect, whose exclusive lock the caller holds.
+   * @return The collection, for its statistics.
+   * @throws IOException if a tree can't be read (nothing is removed then) or a pack can't be
+   * removed.
+   */
+  public static GarbageCollector collect(Repository repository) throws IOException {
+    GarbageCollector collector = new GarbageCollector(repository);
+    collector.run();
+    return collector;
+  }
+
+  private void run() throws IOException {
+    Path root = repository.getRoot();
+    deleteOldGarbage(root.resolve(Repository.GARBAGE_FOLDER));
+    // Nobody is writing, so anything still partial was left by a crash.
+    deletePartialFiles(root.resolve(Repository.PACK_FOLDER));
+    deletePartialFiles(root.resolve(Repository.INDEX_FOLDER));
+
+    Set<BlobId> used = findUsedBlobs(root.resolve(Repository.TREE_FOLDER));
+
+    List<String> problems = new ArrayList<>();
+    List<PackIndex> indexes = repository.readIndexes(problems);
+    if (!problems.isEmpty()) {
+      // The blobs of a damaged index may be in use, so its pack is left alone.
+      throw new IOException("Unable to read pack indexes: " + problems);
+    }
+    Collections.sort(indexes, new Comparator<PackIndex>() {
+      @Override
+      public int compare(PackIndex a, PackIndex b) {
+        return a.getPackId().compareTo(b.getPackId());
+      }
+    });
+
+    // Packs whose index was never published (a crash in between) hold nothing anyone uses.
+    Set<String> indexed = new HashSet<>();
+    for (PackIndex index : indexes) {
+      indexed.add(index.getPackId());
+    }
+    List<Path> unindexed = new ArrayList<>();
+    try (DirectoryStream<Path> packs = Files.newDirectoryStream(
+        root.resolve(Repository.PACK_FOLDER), "*" + Repository.PACK_EXTENSION)) {
+      for (Path pack : packs) {
+        String name = pack.getFileName().toString();
+        if (!indexed.contains(name.substring(0, name.length() -
+            Repository.PACK_EXTENSION.length()))) {
+          unindexed.add(pack);
+        }
+      }
+    }
+
+    Set<BlobId> kept = new HashSet<>();
+    List<PackIndex> removed = new ArrayList<>();
+    for (PackIndex index : indexes) {
+      List<PackIndex.Entry> live = new ArrayList<>();
+      long liveLength = 0;
+      for (PackIndex.Entry entry : index.getEntries()) {
+        if (used.contains(entry.getId()) && !kept.contains(entry.getId())) {
+          live.add(entry);
+          liveLength += entry.getStoredLength();
+        }
+      }
+
+      if (liveLength * 2 >= index.getStoredLength() && !live.isEmpty()) {
+        for (PackIndex.Entry entry : live) {
+          kept.add(entry.getId());
+        }
+        continue;
+      }
+
+      for (PackIndex.Entry entry : live) {
+        repository.storeData(entry.getId(), entry.getFlags(), entry.getRawLength(),
+            repository.readStored(entry), 0, entry.getStoredLength());
+        kept.add(entry.getId());
+      }
+      if (!live.isEmpty()) {
+        packsRepacked++;
+      }
+      removed.add(index);
+    }
+    // The new packs have to be published before the old ones go.
+    repository.flush();
+
+    for (PackIndex index : removed) {
+      Files.delete(repository.getIndexPath(index.getPackId()));
+      retirePack(repository.getPackPath(index.getPackId()));
+    }
+    for (Path pack : unindexed) {
+      retirePack(pack);
+    }
+    FileSync.syncDirectory(root.resolve(Repository.INDEX_FOLDER));
+
+    repository.loadIndex();
+  }
+
+  /**
+   * Reads every tree of every instance.
+   *
+   * @param treeFolder Folder holding a folder of trees for each instance.
+   * @return Blobs used by at least one tree.
+   * @throws IOException if a tree can't be read.
+   */
+  private static Set<BlobId> findUsedBlobs(Path treeFolder) throws IOException {
+    Set<BlobId> used = new HashSet<>();
+    try (DirectoryStream<Path> instances = Files.newDirectoryStream(treeFolder)) {
+      for (Path instance : instances) {
+        if (!Files.isDirectory(instance)) {
+          continue;
+        }
+        try (DirectoryStream<Path> trees =
+                 Files.newDirectoryStream(instance, "*" + TreeWriter.EXTENSION)) {
+          for (Path tree : trees) {
+            try (TreeReader reader = new TreeReader(tree)) {
+              while (reader.next()) {
+                used.addAll(reader.getIds());
+              }
+            }
+          }
+        }
+      }
+    }
+    return used;
+  }
+
+  /**
+   * Moves a removed pack into the garbage folder.
+   *
+   * @param pack Pack file to move.
+   * @throws IOException if the pack can't be moved.
+   */
+  private void retirePack(Path pack) throws IOException {
+    bytesRemoved += Files.size(pack);
+    packsRemoved++;
+    Path garbage = repository.getRoot().resolve(Repository.GARBAGE_FOLDER)
+        .resolve(pack.getFileName());
+    Files.move(pack, garbage);
+    // The grace period starts now, not when the pack was written.
+    Files.setLastModifiedTime(garbage, FileTime.fromMillis(System.currentTimeMillis()));
+  }
+
+  /**
+   * Deletes removed packs whose grace period is over.
+   *
+   * @param garbageFolder Garbage folder of the repository.
+   * @throws IOException if a pack can't be deleted.
+   */
+  private static void deleteOldGarbage(Path garbageFolder) throws IOException {
+    long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(garbageFolder)) {
+      for (Path file : files) {
+        if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes the partial files in a folder.
+   *
+   * @param folder Folder to clean up.
+   * @throws IOException if a file can't be deleted.
+   */
+  private static void deletePartialFiles(Path folder) throws IOException {
+    try (DirectoryStream<Path> files =
+             Files.newDirectoryStream(folder, "*" + FileSync.PARTIAL_SUFFIX)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of packs removed, including the ones repacked.
+   *
+   * @return Number of packs removed.
+   */
+  public int getPacksRemoved() {
+    return packsRemoved;
+  }
+
+  /**
+   * Gets the number of packs whose blobs in use were copied into new packs.
+   *
+   * @return Number of packs repacked.
+   */
+  public int getPacksRepacked() {
+    return packsRepacked;
+  }
+
+  /**
+   * Gets the length of the packs removed. The new packs holding repacked blobs aren't deducted.
+   *
+   * @return Length in bytes.
+   */
+  public long getBytesRemoved() {
+    return bytesRemoved;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Index of the blobs in a pack file.
+ *
+ * <p>A pack file ({@code packs/<id>.pack}) is a magic number followed by blobs, each after a
+ * header of its ID, flags and lengths. Its index ({@code index/<id>.idx}) lists where each blob
+ * is, so the pack never has to be scanned, and ends with a CRC32 of itself. Both are written once
+ * and never changed. The index is published after its pack, so a pack with an index is always
+ * complete.</p>
+ */
+public class PackIndex {
+  /** Start of every pack file. */
+  static final byte[] PACK_MAGIC = "SBPACK01".getBytes(StandardCharsets.US_ASCII);
+  /** Start of every index file. */
+  private static final byte[] INDEX_MAGIC = "SBINDX01".getBytes(StandardCharsets.US_ASCII);
+  /** Length of the header before each blob in a pack. */
+  static final int BLOB_HEADER_LENGTH = BlobId.LENGTH + 1 + 4 + 4;
+  /** Length of each entry in an index. */
+  private static final int ENTRY_LENGTH = BlobId.LENGTH + 8 + 1 + 4 + 4;
+
+  /** Flag of blobs that are deflated. */
+  static final int FLAG_DEFLATED = 1;
+
+  /** Where a blob is in a pack. */
+  public static final class Entry {
+    private final PackIndex pack;
+    private final BlobId id;
+    private final long offset;
+    private final int flags;
+    private final int rawLength;
+    private final int storedLength;
+
+    Entry(PackIndex pack, BlobId id, long offset, int flags, int rawLength, int storedLength) {
+      this.pack = pack;
+      this.id = id;
+      this.offset = offset;
+      this.flags = flags;
+      this.rawLength = rawLength;
+      this.storedLength = storedLength;
+    }
+
+    /**
+     * Gets the index of the pack the blob is in.
+     *
+     * @return The pack's index.
+     */
+    public PackIndex getPack() {
+      return pack;
+    }
+
+    /**
+     * Gets the ID of the blob.
+     *
+     * @return The blob's ID.
+     */
+    public BlobId getId() {
+      return id;
+    }
+
+    /**
+     * Gets where the blob's stored data starts in the pack.
+     *
+     * @return Offset of the data.
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Gets how the blob is stored.
+     *
+     * @return Flags of the blob ({@link #FLAG_DEFLATED}).
+     */
+    public int getFlags() {
+      return flags;
+    }
+
+    /**
+     * Gets the length of the blob's content.
+     *
+     * @return Uncompressed length.
+     */
+    public int getRawLength() {
+      return rawLength;
+    }
+
+    /**
+     * Gets the length of the blob's data in the pack.
+     *
+     * @return Stored (possibly compressed) length.
+     */
+    public int getStoredLength() {
+      return storedLength;
+    }
+  }
+
+  /** ID of the pack. */
+  private final String packId;
+  /** Blobs in the pack, in the order they were written. */
+  private final List<Entry> entries = new ArrayList<>();
+
+  /**
+   * Starts an empty index.
+   *
+   * @param packId ID of the pack.
+   */
+  PackIndex(String packId) {
+    this.packId = packId;
+  }
+
+  /**
+   * Gets the ID of the pack.
+   *
+   * @return ID of the pack, which names its files.
+   */
+  public String getPackId() {
+    return packId;
+  }
+
+  /**
+   * Gets the blobs in the pack.
+   *
+   * @return Blobs in the order they were written.
+   */
+  public List<Entry> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Gets the total length of the blobs' stored data.
+   *
+   * @return Stored length in bytes.
+   */
+  public long getStoredLength() {
+    long length = 0;
+    for (Entry entry : entries) {
+      length += entry.storedLength;
+    }
+    return length;
+  }
+
+  /**
+   * Adds a blob.
+   *
+   * @return The blob's entry.
+   */
+  Entry add(BlobId id, long offset, int flags, int rawLength, int storedLength) {
+    Entry entry = new Entry(this, id, offset, flags, rawLength, storedLength);
+    entries.add(entry);
+    return entry;
+  }
+
+  /**
+   * Writes the index.
+   *
+   * @param path Where to write it.
+   * @throws IOException if writing fails.
+   */
+  void write(Path path) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(INDEX_MAGIC.length + 4 + entries.size() * ENTRY_LENGTH +
+        4);
+    buffer.put(INDEX_MAGIC);
+    buffer.putInt(entries.size());
+    for (Entry entry : entries) {
+      entry.id.write(buffer);
+      buffer.putLong(entry.offset);
+      buffer.put((byte) entry.flags);
+      buffer.putInt(entry.rawLength);
+      buffer.putInt(entry.storedLength);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, buffer.position());
+    buffer.putInt((int) crc.getValue());
+    Files.write(path, buffer.array());
+  }
+
+  /**
+   * Reads an index.
+   *
+   * @param path Index file.
+   * @param packId ID of its pack.
+   * @return The index.
+   * @throws IOException if the index can't be read or is damaged.
+   */
+  static PackIndex read(Path path, String packId) throws IOException {
+    byte[] data = Files.readAllBytes(path);
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    if (data.length < INDEX_MAGIC.length + 8 ||
+        !Arrays.equals(Arrays.copyOf(data, INDEX_MAGIC.length), INDEX_MAGIC)) {
+      throw new IOException("Not a pack index: " + path);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length - 4);
+    buffer.position(INDEX_MAGIC.length);
+    int count = buffer.getInt();
+    if ((int) crc.getValue() != buffer.getInt(data.length - 4) ||
+        data.length != INDEX_MAGIC.length + 4 + (long) count * ENTRY_LENGTH + 4) {
+      throw new IOException("Damaged pack index: " + path);
+    }
+
+    PackIndex index = new PackIndex(packId);
+    for (int i = 0; i < count; i++) {
+      BlobId id = BlobId.read(buffer);
+      long offset = buffer.getLong();
+      int flags = buffer.get() & 0xff;
+      int rawLength = buffer.getInt();
+      int storedLength = buffer.getInt();
+      index.add(id, offset, flags, rawLength, storedLength);
+    }
+    return index;
+  }
+}
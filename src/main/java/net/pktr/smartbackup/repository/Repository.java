@@ -0,0 +1,494 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.repository;
+
+import net.pktr.smartbackup.FileSync;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A deduplicating backup repository, which can be shared by the SmartBackup instances of several
+ * servers on the same host.
+ *
+ * <p>Files are cut into content-defined chunks ({@link ContentChunker}), and each distinct chunk
+ * is stored once as a blob, compressed, in a pack file. Each backup is a tree
+ * ({@link TreeWriter}) listing the blobs of every file, kept in a folder per server
+ * ({@code trees/<instance>}). The storage used grows with the unique data of all of the servers,
+ * not with the number of servers.</p>
+ *
+ * <p>Pack files and their indexes are never changed once they're published, so reading needs no
+ * locks. Writers hold a shared lock on the {@code lock} file while they back up, so any number
+ * of servers can write at once (each into packs of its own). Garbage collection
+ * ({@link GarbageCollector}) needs the exclusive lock, so it never removes a blob a writer is
+ * about to reference. The locks are released by the operating system if a server dies.</p>
+ *
+ * <p>A repository is used by one thread at a time.</p>
+ */
+public class Repository implements Closeable {
+  /** Folder holding the pack files. */
+  static final String PACK_FOLDER = "packs";
+  /** Folder holding the pack indexes. */
+  static final String INDEX_FOLDER = "index";
+  /** Folder holding the trees of every instance. */
+  static final String TREE_FOLDER = "trees";
+  /** Folder holding removed packs until no reader can be using them. */
+  static final String GARBAGE_FOLDER = "garbage";
+  /** Extension of pack files. */
+  static final String PACK_EXTENSION = ".pack";
+  /** Extension of pack indexes. */
+  static final String INDEX_EXTENSION = ".idx";
+  /** File the repository's locks are taken on. */
+  private static final String LOCK_FILE = "lock";
+
+  /** Folder of the repository. */
+  private final Path root;
+  /** Channel of the lock file. */
+  private final FileChannel lockChannel;
+  /** Size at which a pack is finished and a new one started. */
+  private final long packSize;
+  /** Where every published blob is. */
+  private final Map<BlobId, PackIndex.Entry> blobs = new HashMap<>();
+  /** Blobs in the pack being written. */
+  private final Set<BlobId> pending = new HashSet<>();
+  /** Generates pack IDs. */
+  private final SecureRandom random = new SecureRandom();
+  /** Compresses blobs. */
+  private final Deflater deflater;
+  /** Decompresses blobs. */
+  private final Inflater inflater = new Inflater();
+  /** Buffer blobs are compressed into. */
+  private final byte[] compressed = new byte[ContentChunker.MAX_SIZE];
+
+  /** Index of the pack being written, or {@code null} if there isn't one. */
+  private PackIndex packIndex;
+  /** Stream of the pack being written. */
+  private DataOutputStream packOut;
+  /** Length of the pack being written. */
+  private long packLength;
+  /** Number of blobs stored since the repository was opened. */
+  private long storedCount = 0;
+  /** Length of the content of the blobs stored since the repository was opened. */
+  private long storedRawBytes = 0;
+  /** Length of the data of the blobs stored since the repository was opened. */
+  private long storedBytes = 0;
+
+  private Repository(Path root, int compressionLevel, long packSize) throws IOException {
+    this.root = root;
+    this.packSize = packSize;
+    this.deflater = new Deflater(compressionLevel);
+    Files.createDirectories(root.resolve(PACK_FOLDER));
+    Files.createDirectories(root.resolve(INDEX_FOLDER));
+    Files.createDirectories(root.resolve(TREE_FOLDER));
+    Files.createDirectories(root.resolve(GARBAGE_FOLDER));
+    // Shared locks need a readable channel, exclusive ones a writable one.
+    this.lockChannel = FileChannel.open(root.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Opens a repository, creating it if it doesn't exist.
+   *
+   * @param root Folder of the repository.
+   * @param compressionLevel Deflate level blobs are compressed at.
+   * @param packSize Size at which pack files are finished.
+   * @return The repository. Its index isn't loaded until {@link #loadIndex} is called.
+   * @throws IOException if the repository can't be created or opened.
+   */
+  public static Repository open(Path root, int compressionLevel, long packSize)
+      throws IOException {
+    return new Repository(root, compressionLevel, packSize);
+  }
+
+  /**
+   * Gets the folder of the repository.
+   *
+   * @return Folder of the repository.
+   */
+  public Path getRoot() {
+    return root;
+  }
+
+  /**
+   * Takes the lock writers share, waiting for garbage collection by any instance to finish.
+   *
+   * @return The lock. Closing it releases it.
+   * @throws IOException if the lock can't be taken.
+   */
+  public FileLock lockShared() throws IOException {
+    return lockChannel.lock(0, Long.MAX_VALUE, true);
+  }
+
+  /**
+   * Takes the exclusive lock needed for garbage collection, if no instance is writing.
+   *
+   * @return The lock, or {@code null} if another instance holds a lock. Closing it releases it.
+   * @throws IOException if the lock can't be taken.
+   */
+  public FileLock tryLockExclusive() throws IOException {
+    return lockChannel.tryLock(0, Long.MAX_VALUE, false);
+  }
+
+  /**
+   * Loads (or reloads) the indexes of every pack.
+   *
+   * <p>Indexes that can't be read are skipped, their blobs are stored again if they're
+   * needed.</p>
+   *
+   * @return Indexes that couldn't be read, with the reason.
+   * @throws IOException if the index folder can't be listed.
+   */
+  public List<String> loadIndex() throws IOException {
+    blobs.clear();
+    List<String> problems = new ArrayList<>();
+    for (PackIndex index : readIndexes(problems)) {
+      for (PackIndex.Entry entry : index.getEntries()) {
+        blobs.put(entry.getId(), entry);
+      }
+    }
+    return problems;
+  }
+
+  /**
+   * Reads the index of every published pack.
+   *
+   * @param problems Where to add the indexes that can't be read.
+   * @return Indexes that could be read, in no particular order.
+   * @throws IOException if the index folder can't be listed.
+   */
+  List<PackIndex> readIndexes(List<String> problems) throws IOException {
+    List<PackIndex> indexes = new ArrayList<>();
+    try (DirectoryStream<Path> files =
+             Files.newDirectoryStream(root.resolve(INDEX_FOLDER), "*" + INDEX_EXTENSION)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        String packId = name.substring(0, name.length() - INDEX_EXTENSION.length());
+        try {
+          indexes.add(PackIndex.read(file, packId));
+        } catch (IOException e) {
+          problems.add(name + ": " + e.getMessage());
+        }
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Checks whether a blob is stored.
+   *
+   * @param id ID of the blob.
+   * @return {@code true} if the blob is in a published pack or the pack being written.
+   */
+  public boolean has(BlobId id) {
+    return blobs.containsKey(id) || pending.contains(id);
+  }
+
+  /**
+   * Stores a blob unless it's already stored.
+   *
+   * @param id ID of the blob's content.
+   * @param data Buffer holding the content.
+   * @param offset Where the content starts.
+   * @param length Length of the content, at most {@link ContentChunker#MAX_SIZE}.
+   * @return {@code true} if the blob was new.
+   * @throws IOException if writing the pack fails.
+   */
+  public boolean store(BlobId id, byte[] data, int offset, int length) throws IOException {
+    if (has(id)) {
+      return false;
+    }
+
+    deflater.reset();
+    deflater.setInput(data, offset, length);
+    deflater.finish();
+    int compressedLength = deflater.deflate(compressed, 0, length);
+    if (deflater.finished() && compressedLength < length) {
+      storeData(id, PackIndex.FLAG_DEFLATED, length, compressed, 0, compressedLength);
+    } else {
+      // Blobs that don't get smaller are stored as they are.
+      storeData(id, 0, length, data, offset, length);
+    }
+    return true;
+  }
+
+  /**
+   * Adds a blob's data to the pack being written, starting a pack if needed.
+   *
+   * @param id ID of the blob.
+   * @param flags How the data is stored.
+   * @param rawLength Length of the blob's content.
+   * @param data Buffer holding the stored data.
+   * @param offset Where the data starts.
+   * @param length Length of the stored data.
+   * @throws IOException if writing the pack fails.
+   */
+  void storeData(BlobId id, int flags, int rawLength, byte[] data, int offset, int length)
+      throws IOException {
+    if (packIndex == null) {
+      startPack();
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(PackIndex.BLOB_HEADER_LENGTH);
+    id.write(header);
+    header.put((byte) flags);
+    header.putInt(rawLength);
+    header.putInt(length);
+    packOut.write(header.array());
+    packOut.write(data, offset, length);
+    packIndex.add(id, packLength + PackIndex.BLOB_HEADER_LENGTH, flags, rawLength, length);
+    packLength += PackIndex.BLOB_HEADER_LENGTH + length;
+    pending.add(id);
+
+    storedCount++;
+    storedRawBytes += rawLength;
+    storedBytes += length;
+
+    if (packLength >= packSize) {
+      flush();
+    }
+  }
+
+  /**
+   * Starts a new pack under a random ID, so packs of different instances never collide.
+   *
+   * @throws IOException if the pack can't be created.
+   */
+  private void startPack() throws IOException {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    StringBuilder packId = new StringBuilder();
+    for (byte b : bytes) {
+      packId.append(String.format("%02x", b & 0xff));
+    }
+
+    packIndex = new PackIndex(packId.toString());
+    Path partial = FileSync.getPartialPath(getPackPath(packIndex.getPackId()));
+    packOut = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(partial, StandardOpenOption.CREATE_NEW), 65536));
+    packOut.write(PackIndex.PACK_MAGIC);
+    packLength = PackIndex.PACK_MAGIC.length;
+  }
+
+  /**
+   * Publishes the pack being written, then its index, making its blobs available to every
+   * instance.
+   *
+   * @throws IOException if the pack can't be written.
+   */
+  public void flush() throws IOException {
+    if (packIndex == null) {
+      return;
+    }
+
+    packOut.close();
+    packOut = null;
+    String packId = packIndex.getPackId();
+    Path packPath = getPackPath(packId);
+    Path partialPack = FileSync.getPartialPath(packPath);
+    FileSync.syncFile(partialPack);
+    FileSync.publish(partialPack, packPath);
+
+    Path indexPath = getIndexPath(packId);
+    Path partialIndex = FileSync.getPartialPath(indexPath);
+    packIndex.write(partialIndex);
+    FileSync.syncFile(partialIndex);
+    FileSync.publish(partialIndex, indexPath);
+
+    for (PackIndex.Entry entry : packIndex.getEntries()) {
+      blobs.put(entry.getId(), entry);
+    }
+    pending.clear();
+    packIndex = null;
+  }
+
+  /**
+   * Reads a blob's content.
+   *
+   * <p>This takes no lock: packs are never changed, and a pack removed by garbage collection
+   * since the index was loaded is found again by reloading the index.</p>
+   *
+   * @param id ID of the blob.
+   * @return The blob's content.
+   * @throws IOException if the blob isn't stored or can't be read.
+   */
+  public byte[] read(BlobId id) throws IOException {
+    PackIndex.Entry entry = blobs.get(id);
+    if (entry == null) {
+      throw new NoSuchFileException("Blob " + id + " is not in the repository");
+    }
+    try {
+      return read(entry);
+    } catch (NoSuchFileException e) {
+      loadIndex();
+      entry = blobs.get(id);
+      if (entry == null) {
+        throw new NoSuchFileException("Blob " + id + " is not in the repository");
+      }
+      return read(entry);
+    }
+  }
+
+  /**
+   * Reads a blob from its pack.
+   *
+   * @param entry Where the blob is.
+   * @return The blob's content.
+   * @throws IOException if the pack can't be read.
+   */
+  private byte[] read(PackIndex.Entry entry) throws IOException {
+    byte[] stored = readStored(entry);
+    if ((entry.getFlags() & PackIndex.FLAG_DEFLATED) == 0) {
+      return stored;
+    }
+
+    byte[] raw = new byte[entry.getRawLength()];
+    inflater.reset();
+    inflater.setInput(stored);
+    try {
+      int length = inflater.inflate(raw);
+      if (length != raw.length || !inflater.finished()) {
+        throw new IOException("Damaged blob " + entry.getId() + " in pack " +
+            entry.getPack().getPackId());
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Damaged blob " + entry.getId() + " in pack " +
+          entry.getPack().getPackId(), e);
+    }
+    return raw;
+  }
+
+  /**
+   * Reads a blob's data as it's stored in its pack.
+   *
+   * @param entry Where the blob is.
+   * @return The stored data.
+   * @throws IOException if the pack can't be read.
+   */
+  byte[] readStored(PackIndex.Entry entry) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(entry.getStoredLength());
+    try (FileChannel channel = FileChannel.open(getPackPath(entry.getPack().getPackId()),
+        StandardOpenOption.READ)) {
+      long position = entry.getOffset();
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, position);
+        if (read == -1) {
+          throw new IOException("Pack " + entry.getPack().getPackId() + " is cut short");
+        }
+        position += read;
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Gets the folder the trees of an instance are kept in.
+   *
+   * @param instance Name of the instance.
+   * @return Folder of the instance's trees.
+   */
+  public Path getTreeFolder(String instance) {
+    return root.resolve(TREE_FOLDER).resolve(instance);
+  }
+
+  /**
+   * Gets the path of a pack file.
+   *
+   * @param packId ID of the pack.
+   * @return Path of the pack.
+   */
+  Path getPackPath(String packId) {
+    return root.resolve(PACK_FOLDER).resolve(packId + PACK_EXTENSION);
+  }
+
+  /**
+   * Gets the path of a pack's index.
+   *
+   * @param packId ID of the pack.
+   * @return Path of the index.
+   */
+  Path getIndexPath(String packId) {
+    return root.resolve(INDEX_FOLDER).resolve(packId + INDEX_EXTENSION);
+  }
+
+  /**
+   * Gets the number of blobs stored since the repository was opened.
+   *
+   * @return Number of new blobs.
+   */
+  public long getStoredCount() {
+    return storedCount;
+  }
+
+  /**
+   * Gets the length of the content of the blobs stored since the repository was opened.
+   *
+   * @return Uncompressed length in bytes.
+   */
+  public long getStoredRawBytes() {
+    return storedRawBytes;
+  }
+
+  /**
+   * Gets the length of the data written for the blobs stored since the repository was opened.
+   *
+   * @return Stored length in bytes.
+   */
+  public long getStoredBytes() {
+    return storedBytes;
+  }
+
+  /**
+   * Closes the repository, releasing its locks. A pack that wasn't flushed is deleted.
+   *
+   * @throws IOException if the unfinished pack can't be deleted.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (packIndex != null) {
+        packOut.close();
+        Files.deleteIfExists(FileSync.getPartialPath(getPackPath(packIndex.getPackId())));
+        packIndex = null;
+        pending.clear();
+      }
+    } finally {
+      deflater.end();
+      inflater.end();
+      lockChannel.close();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.repository;
+
+import net.pktr.smartbackup.manifest.ManifestReader;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Reads a tree written by {@link TreeWriter}, one file at a time. */
+public class TreeReader implements Closeable {
+  /** Tree being read. */
+  private final Path path;
+  /** Reader for the tree. */
+  private final BufferedReader reader;
+  /** Line last read, for error messages. */
+  private int lineNumber = 1;
+  /** Name of the file last read. */
+  private String name;
+  /** Blobs of the file last read. */
+  private List<BlobId> ids;
+
+  /**
+   * Opens a tree.
+   *
+   * @param path Tree to read.
+   * @throws IOException if the tree can't be read or isn't a tree.
+   */
+  public TreeReader(Path path) throws IOException {
+    this.path = path;
+    this.reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+    if (!TreeWriter.MAGIC.equals(reader.readLine())) {
+      reader.close();
+      throw new IOException("Not a repository tree: " + path);
+    }
+  }
+
+  /**
+   * Reads the next file.
+   *
+   * @return {@code false} once every file has been read.
+   * @throws IOException if the tree can't be read or is damaged.
+   */
+  public boolean next() throws IOException {
+    String line = reader.readLine();
+    if (line == null) {
+      return false;
+    }
+    lineNumber++;
+
+    int tab = line.indexOf('\t');
+    if (tab == -1) {
+      throw new IOException("Tree " + path + " line " + lineNumber + ": no name");
+    }
+    name = ManifestReader.unescape(line.substring(tab + 1));
+    ids = new ArrayList<>();
+    try {
+      int start = 0;
+      while (start < tab) {
+        int end = line.indexOf(',', start);
+        if (end == -1 || end > tab) {
+          end = tab;
+        }
+        ids.add(BlobId.fromString(line.substring(start, end)));
+        start = end + 1;
+      }
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Tree " + path + " line " + lineNumber + ": " + e.getMessage());
+    }
+    return true;
+  }
+
+  /**
+   * Gets the name of the file last read.
+   *
+   * @return Name of the file.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the blobs of the file last read.
+   *
+   * @return Blobs holding the file's content, in order.
+   */
+  public List<BlobId> getIds() {
+    return ids;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.repository;
+
+import net.pktr.smartbackup.FileSync;
+import net.pktr.smartbackup.manifest.ManifestWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes the tree of a backup stored in a {@link Repository}, listing the blobs of every file.
+ *
+ * <p>Trees are UTF-8 text: a magic line, then one line per file ({@code blobs name}, tab
+ * separated, where {@code blobs} is a comma-separated list of blob IDs), sorted by name. Folders
+ * and everything else about the files are in the backup's manifest. Like manifests, trees are
+ * written under a temporary name and published in one step once they're complete.</p>
+ */
+public class TreeWriter implements Closeable {
+  /** Extension of tree files. */
+  public static final String EXTENSION = ".tree";
+  /** First line of every tree. */
+  static final String MAGIC = "#smartbackup-tree 1";
+
+  /** Where the tree ends up. */
+  private final Path path;
+  /** Where the tree is written until it's complete. */
+  private final Path partialPath;
+  /** Writer for the temporary file. */
+  private final Writer writer;
+  /** Whether the tree is complete. */
+  private boolean complete = false;
+
+  /**
+   * Starts writing a tree.
+   *
+   * @param path Where to write the tree.
+   * @throws IOException if the tree can't be created.
+   */
+  public TreeWriter(Path path) throws IOException {
+    this.path = path;
+    this.partialPath = FileSync.getPartialPath(path);
+    Files.createDirectories(path.getParent());
+    this.writer = Files.newBufferedWriter(partialPath, StandardCharsets.UTF_8);
+    writer.write(MAGIC);
+    writer.write('\n');
+  }
+
+  /**
+   * Writes the blobs of a file. Files must be written sorted by name.
+   *
+   * @param name Name of the file.
+   * @param ids Blobs holding its content, in order.
+   * @throws IOException if writing fails.
+   */
+  public void write(String name, List<BlobId> ids) throws IOException {
+    for (int i = 0; i < ids.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      writer.write(ids.get(i).toString());
+    }
+    writer.write('\t');
+    writer.write(ManifestWriter.escape(name));
+    writer.write('\n');
+  }
+
+  /**
+   * Marks the tree as complete, so closing it publishes it.
+   */
+  public void complete() {
+    complete = true;
+  }
+
+  /**
+   * Closes the tree. A complete tree is synced and published, anything else is deleted.
+   *
+   * @throws IOException if the tree can't be published.
+   */
+  @Override
+  public void close() throws IOException {
+    writer.close();
+    if (complete) {
+      FileSync.syncFile(partialPath);
+      FileSync.publish(partialPath, path);
+    } else {
+      Files.deleteIfExists(partialPath);
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.storage;
+
+import net.pktr.smartbackup.FileSync;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Stores objects as files in a folder, such as a second disk or a mounted network share.
+ *
+ * <p>Uploads are written under a temporary name and published atomically on commit (see
+ * {@link FileSync}). While an upload is written, it's synced every {@link #SYNC_INTERVAL} bytes and
+ * the synced length is recorded next to it, which is where an interrupted upload resumes.</p>
+ */
+public class LocalStorage implements StorageBackend {
+  /** Bytes written between syncs of an upload. */
+  static final long SYNC_INTERVAL = 64L * 1024 * 1024;
+  /** Suffix of the file recording how much of an upload is synced. */
+  private static final String SYNCED_SUFFIX = ".synced";
+
+  /** Folder objects are stored in. */
+  private final Path root;
+
+  /**
+   * Sets up storage in a folder.
+   *
+   * @param root Folder to store objects in. Created if it doesn't exist.
+   */
+  public LocalStorage(Path root) {
+    this.root = root;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getDescription() {
+    return root.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ObjectUpload upload(String key) throws IOException {
+    return new LocalUpload(resolve(key));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void discardUpload(String key) throws IOException {
+    Path partial = FileSync.getPartialPath(resolve(key));
+    Files.deleteIfExists(partial);
+    Files.deleteIfExists(getSyncedPath(partial));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream get(String key) throws IOException {
+    try {
+      return Files.newInputStream(resolve(key));
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException("No such object: " + key);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<StoredObject> list(final String prefix) throws IOException {
+    final List<StoredObject> objects = new ArrayList<>();
+    if (!Files.isDirectory(root)) {
+      return objects;
+    }
+
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        String key = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(),
+            "/");
+        if (key.startsWith(prefix) && !key.endsWith(FileSync.PARTIAL_SUFFIX) &&
+            !key.endsWith(FileSync.PARTIAL_SUFFIX + SYNCED_SUFFIX)) {
+          objects.add(new StoredObject(key, attrs.size(), attrs.lastModifiedTime().toMillis()));
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    Collections.sort(objects, new Comparator<StoredObject>() {
+      @Override
+      public int compare(StoredObject a, StoredObject b) {
+        return a.getKey().compareTo(b.getKey());
+      }
+    });
+    return objects;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void delete(String key) throws IOException {
+    Files.deleteIfExists(resolve(key));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() {
+    // Nothing is held open between uploads.
+  }
+
+  /**
+   * Gets the file of an object.
+   *
+   * @param key Key of the object.
+   * @return Path of the file.
+   */
+  private Path resolve(String key) {
+    Path path = root.resolve(key).normalize();
+    if (!path.startsWith(root.normalize())) {
+      throw new IllegalArgumentException("Key leaves the storage folder: " + key);
+    }
+    return path;
+  }
+
+  /**
+   * Gets the file recording how much of an upload is synced.
+   *
+   * @param partial Temporary file of the upload.
+   * @return Path of the record.
+   */
+  private static Path getSyncedPath(Path partial) {
+    return partial.resolveSibling(partial.getFileName() + SYNCED_SUFFIX);
+  }
+
+  /** Writes an object into its temporary file, then publishes it. */
+  private static class LocalUpload extends ObjectUpload {
+    private final Path path;
+    private final Path partial;
+    private final Path synced;
+    private final FileChannel channel;
+    private final long resumeOffset;
+    /** Length of the file when it was last synced. */
+    private long syncedLength;
+    private boolean open = true;
+
+    LocalUpload(Path path) throws IOException {
+      this.path = path;
+      this.partial = FileSync.getPartialPath(path);
+      this.synced = getSyncedPath(partial);
+      Files.createDirectories(path.getParent());
+
+      long resume = 0;
+      if (Files.exists(partial) && Files.exists(synced)) {
+        try {
+          resume = Long.parseLong(
+              new String(Files.readAllBytes(synced), StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+          resume = 0;
+        }
+      }
+
+      channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      resume = Math.min(resume, channel.size());
+      // Anything after the last sync may not have made it to disk whole.
+      channel.truncate(resume);
+      channel.position(resume);
+      resumeOffset = resume;
+      syncedLength = resume;
+    }
+
+    @Override
+    public long getResumeOffset() {
+      return resumeOffset;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      if (channel.position() - syncedLength >= SYNC_INTERVAL) {
+        sync();
+      }
+    }
+
+    /**
+     * Syncs the file and records how much of it is synced.
+     *
+     * @throws IOException if syncing fails.
+     */
+    private void sync() throws IOException {
+      channel.force(false);
+      syncedLength = channel.position();
+      Files.write(synced, Long.toString(syncedLength).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public void commit() throws IOException {
+      channel.force(false);
+      channel.close();
+      open = false;
+      FileSync.publish(partial, path);
+      Files.deleteIfExists(synced);
+    }
+
+    @Override
+    public void abort() throws IOException {
+      if (open) {
+        channel.close();
+        open = false;
+      }
+      Files.deleteIfExists(partial);
+      Files.deleteIfExists(synced);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (open) {
+        sync();
+        channel.close();
+        open = false;
+      }
+    }
+  }
+}
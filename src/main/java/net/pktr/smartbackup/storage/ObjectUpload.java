@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams an object into a {@link StorageBackend}.
+ *
+ * <p>Data is written in order, starting at {@link #getResumeOffset}. The object only appears once
+ * {@link #commit} returns. Closing an upload without committing it keeps what was stored so far,
+ * so the next upload of the same key can resume it; {@link #abort} throws it away instead.</p>
+ */
+public abstract class ObjectUpload extends OutputStream {
+  /**
+   * Gets how much of the object an interrupted upload already stored.
+   *
+   * @return Offset in the object the data written to this upload starts at.
+   */
+  public abstract long getResumeOffset();
+
+  /**
+   * Finishes the upload, making the object appear under its key.
+   *
+   * @throws IOException if the object can't be stored.
+   */
+  public abstract void commit() throws IOException;
+
+  /**
+   * Throws away the upload and everything it stored.
+   *
+   * @throws IOException if the upload can't be cleaned up.
+   */
+  public abstract void abort() throws IOException;
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+}
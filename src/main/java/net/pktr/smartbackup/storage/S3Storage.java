@@ -0,0 +1,674 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Stores objects in an S3-compatible object store (AWS S3, MinIO, Ceph, Backblaze B2, ...).
+ *
+ * <p>Requests are signed with {@link SigV4Signer} and sent with {@link HttpURLConnection}, so
+ * nothing outside of the JDK is needed. Buckets are addressed path-style
+ * ({@code endpoint/bucket/key}), which every S3-compatible store (and a local stand-in server)
+ * understands.</p>
+ *
+ * <p>Objects are uploaded as multipart uploads. Parts are uploaded on a pool of threads while
+ * the next part is filled, with at most one part per thread in flight, so an upload never holds
+ * more than {@code (threads + 1) * partSize} bytes. Each finished part is recorded in a state
+ * file, so an interrupted upload resumes after its last contiguous finished part.</p>
+ */
+public class S3Storage implements StorageBackend {
+  /** Smallest part S3 accepts (except for the last part). */
+  public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+  /** Times a failed request is tried again. */
+  private static final int RETRIES = 3;
+  /** Suffix of upload state files. */
+  private static final String STATE_SUFFIX = ".upload";
+
+  private final URL endpoint;
+  private final String bucket;
+  private final String prefix;
+  private final SigV4Signer signer;
+  private final int partSize;
+  private final int threads;
+  /** Folder upload state files are kept in. */
+  private final Path stateDir;
+  /** Uploads parts. */
+  private final ExecutorService uploaders;
+
+  /**
+   * Sets up an object store backend.
+   *
+   * @param endpoint Endpoint URL (eg {@code https://s3.us-east-1.amazonaws.com}).
+   * @param region Region of the bucket.
+   * @param bucket Bucket to store objects in.
+   * @param prefix Prefix added to every key (eg {@code backups/}), or an empty string.
+   * @param accessKey Access key ID.
+   * @param secretKey Secret access key.
+   * @param partSize Size of each part of a multipart upload, at least {@link #MIN_PART_SIZE}.
+   * @param threads Number of parts uploaded at once.
+   * @param stateDir Folder to keep the state of unfinished uploads in.
+   * @throws IOException if the endpoint isn't a valid URL.
+   */
+  public S3Storage(String endpoint, String region, String bucket, String prefix,
+      String accessKey, String secretKey, int partSize, int threads, Path stateDir)
+      throws IOException {
+    String base = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+    this.endpoint = new URL(base);
+    this.bucket = bucket;
+    this.prefix = prefix;
+    this.signer = new SigV4Signer(accessKey, secretKey, region);
+    this.partSize = Math.max(MIN_PART_SIZE, partSize);
+    this.threads = Math.max(1, threads);
+    this.stateDir = stateDir;
+    this.uploaders = Executors.newFixedThreadPool(this.threads, new UploaderThreadFactory());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getDescription() {
+    return endpoint + "/" + bucket + "/" + prefix;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ObjectUpload upload(String key) throws IOException {
+    return new S3Upload(key);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void discardUpload(String key) throws IOException {
+    Path state = getStatePath(key);
+    if (!Files.exists(state)) {
+      return;
+    }
+    List<String> lines = Files.readAllLines(state, StandardCharsets.UTF_8);
+    if (!lines.isEmpty()) {
+      Map<String, String> query = new HashMap<>();
+      query.put("uploadId", lines.get(0));
+      try {
+        request("DELETE", key, query, null, 0).close();
+      } catch (FileNotFoundException e) {
+        // The store already forgot the upload.
+      }
+    }
+    Files.deleteIfExists(state);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream get(String key) throws IOException {
+    final Response response = request("GET", key, Collections.<String, String>emptyMap(), null, 0);
+    return new FilterInputStream(response.body) {
+      @Override
+      public void close() throws IOException {
+        response.close();
+      }
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<StoredObject> list(String keyPrefix) throws IOException {
+    List<StoredObject> objects = new ArrayList<>();
+    String token = null;
+    do {
+      Map<String, String> query = new HashMap<>();
+      query.put("list-type", "2");
+      query.put("prefix", prefix + keyPrefix);
+      if (token != null) {
+        query.put("continuation-token", token);
+      }
+
+      Document result;
+      try (Response response = request("GET", null, query, null, 0)) {
+        result = response.readXml();
+      }
+
+      NodeList contents = result.getElementsByTagName("Contents");
+      for (int i = 0; i < contents.getLength(); i++) {
+        Element object = (Element) contents.item(i);
+        String key = text(object, "Key").substring(prefix.length());
+        objects.add(new StoredObject(key, Long.parseLong(text(object, "Size")),
+            parseTime(text(object, "LastModified"))));
+      }
+      token = "true".equals(text(result.getDocumentElement(), "IsTruncated")) ?
+          text(result.getDocumentElement(), "NextContinuationToken") : null;
+    } while (token != null);
+    return objects;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void delete(String key) throws IOException {
+    request("DELETE", key, Collections.<String, String>emptyMap(), null, 0).close();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() {
+    uploaders.shutdownNow();
+  }
+
+  /**
+   * Gets the state file of an upload.
+   *
+   * @param key Key of the object.
+   * @return Path of the state file.
+   */
+  private Path getStatePath(String key) {
+    return stateDir.resolve(SigV4Signer.encode(prefix + key, true) + STATE_SUFFIX);
+  }
+
+  /** Response to a request. The connection is released when it's closed. */
+  private static class Response implements AutoCloseable {
+    final HttpURLConnection connection;
+    final InputStream body;
+
+    Response(HttpURLConnection connection, InputStream body) {
+      this.connection = connection;
+      this.body = body;
+    }
+
+    /**
+     * Reads the body as XML.
+     *
+     * @return Parsed body.
+     * @throws IOException if the body isn't valid XML.
+     */
+    Document readXml() throws IOException {
+      try {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(false);
+        return factory.newDocumentBuilder().parse(body);
+      } catch (ParserConfigurationException | SAXException e) {
+        throw new IOException("Invalid response from the object store", e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      body.close();
+    }
+  }
+
+  /**
+   * Sends a signed request, trying again if the store fails.
+   *
+   * @param method HTTP method.
+   * @param key Key of the object, or {@code null} for a request on the bucket.
+   * @param query Query parameters.
+   * @param body Request body, or {@code null} for none.
+   * @param length Length of the body.
+   * @return The response, which has to be closed.
+   * @throws FileNotFoundException if the object (or upload) doesn't exist.
+   * @throws IOException if the request fails.
+   */
+  private Response request(String method, String key, Map<String, String> query, byte[] body,
+      int length) throws IOException {
+    IOException failure = null;
+    for (int attempt = 0; attempt <= RETRIES; attempt++) {
+      if (attempt > 0) {
+        try {
+          Thread.sleep(500L << attempt);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while retrying a request");
+        }
+      }
+      try {
+        return send(method, key, query, body, length);
+      } catch (FileNotFoundException e) {
+        throw e;
+      } catch (RequestException e) {
+        if (e.status < 500) {
+          throw e;
+        }
+        failure = e;
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    throw failure;
+  }
+
+  /** A request the store answered with an error. */
+  private static class RequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    RequestException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  /**
+   * Sends a signed request once.
+   *
+   * @see #request
+   */
+  private Response send(String method, String key, Map<String, String> query, byte[] body,
+      int length) throws IOException {
+    String path = endpoint.getPath() + "/" + SigV4Signer.encode(bucket, true);
+    if (key != null) {
+      path += "/" + SigV4Signer.encode(prefix + key, false);
+    }
+    String queryString = SigV4Signer.canonicalQuery(query);
+    URL url = new URL(endpoint, path + (queryString.isEmpty() ? "" : "?" + queryString));
+
+    String host = endpoint.getHost();
+    if (endpoint.getPort() != -1 && endpoint.getPort() != endpoint.getDefaultPort()) {
+      host += ":" + endpoint.getPort();
+    }
+    String payloadHash = body == null ? SigV4Signer.EMPTY_PAYLOAD_HASH :
+        SigV4Signer.sha256Hex(body, 0, length);
+    Map<String, String> headers = signer.sign(method, host, path, query, payloadHash, new Date());
+
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout(30000);
+    connection.setReadTimeout(120000);
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      connection.setRequestProperty(header.getKey(), header.getValue());
+    }
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(length);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body, 0, length);
+      }
+    }
+
+    int status = connection.getResponseCode();
+    if (status >= 300) {
+      InputStream error = connection.getErrorStream();
+      String message = error == null ? "" : new String(readAll(error), StandardCharsets.UTF_8);
+      connection.disconnect();
+      if (status == 404) {
+        throw new FileNotFoundException("Not found in the object store: " + key + " " + message);
+      }
+      throw new RequestException(status, "Object store request failed with HTTP " + status +
+          ": " + message);
+    }
+    return new Response(connection, connection.getInputStream());
+  }
+
+  /**
+   * Reads a stream to its end.
+   *
+   * @param in Stream to read.
+   * @return Everything in the stream.
+   * @throws IOException if reading fails.
+   */
+  private static byte[] readAll(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Gets the text of the first child element with a name.
+   *
+   * @param parent Element to look in.
+   * @param name Name of the child.
+   * @return Text of the child, or {@code null} if there isn't one.
+   */
+  private static String text(Element parent, String name) {
+    NodeList nodes = parent.getElementsByTagName(name);
+    return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+  }
+
+  /**
+   * Parses an ISO 8601 time from a listing.
+   *
+   * @param time Time to parse.
+   * @return Milliseconds since the epoch.
+   * @throws IOException if the time can't be parsed.
+   */
+  private static long parseTime(String time) throws IOException {
+    try {
+      return DatatypeFactory.newInstance().newXMLGregorianCalendar(time).toGregorianCalendar()
+          .getTimeInMillis();
+    } catch (DatatypeConfigurationException | IllegalArgumentException e) {
+      throw new IOException("Invalid time in the object store listing: " + time, e);
+    }
+  }
+
+  /** Names the threads that upload parts. */
+  private static class UploaderThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "Storage Uploader #" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /** A multipart upload, with its finished parts recorded in a state file. */
+  private class S3Upload extends ObjectUpload {
+    private final String key;
+    private final Path state;
+    private final String uploadId;
+    /** ETags of finished parts, by part number. */
+    private final Map<Integer, String> parts = new TreeMap<>();
+    /** Limits the parts in flight (and so the memory held). */
+    private final Semaphore inFlight = new Semaphore(threads);
+    private final long resumeOffset;
+    /** Part being filled. */
+    private byte[] buffer;
+    private int buffered = 0;
+    private int nextPart;
+    /** First failure of a part upload, or {@code null}. */
+    private volatile IOException failure = null;
+    private boolean open = true;
+
+    S3Upload(String key) throws IOException {
+      this.key = key;
+      this.state = getStatePath(key);
+      Files.createDirectories(stateDir);
+
+      String resumedId = resume();
+      if (resumedId != null) {
+        uploadId = resumedId;
+      } else {
+        Map<String, String> query = new HashMap<>();
+        query.put("uploads", "");
+        try (Response response = request("POST", key, query, new byte[0], 0)) {
+          uploadId = text(response.readXml().getDocumentElement(), "UploadId");
+        }
+        if (uploadId == null) {
+          throw new IOException("The object store didn't start an upload for " + key);
+        }
+        Files.write(state, (uploadId + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+
+      // Only parts from the first on without gaps can be kept, as the data continues from there.
+      int contiguous = 0;
+      while (parts.containsKey(contiguous + 1)) {
+        contiguous++;
+      }
+      parts.keySet().retainAll(new ArrayList<>(parts.keySet()).subList(0, contiguous));
+      nextPart = contiguous + 1;
+      resumeOffset = (long) contiguous * partSize;
+    }
+
+    /**
+     * Picks up the recorded state of an interrupted upload, checked against what the store has.
+     *
+     * @return ID of the upload to resume, or {@code null} to start a new one.
+     * @throws IOException if the state can't be read.
+     */
+    private String resume() throws IOException {
+      if (!Files.exists(state)) {
+        return null;
+      }
+      List<String> lines = Files.readAllLines(state, StandardCharsets.UTF_8);
+      if (lines.isEmpty()) {
+        return null;
+      }
+      String id = lines.get(0);
+      Map<Integer, String> recorded = new HashMap<>();
+      for (String line : lines.subList(1, lines.size())) {
+        String[] fields = line.split(" ");
+        if (fields.length == 2) {
+          recorded.put(Integer.parseInt(fields[0]), fields[1]);
+        }
+      }
+
+      // The parts are listed a page (of up to 1000 parts) at a time.
+      Map<String, String> query = new HashMap<>();
+      query.put("uploadId", id);
+      String marker = null;
+      do {
+        if (marker != null) {
+          query.put("part-number-marker", marker);
+        }
+        Document listing;
+        try (Response response = request("GET", key, query, null, 0)) {
+          listing = response.readXml();
+        } catch (FileNotFoundException e) {
+          // The store dropped the upload (eg by a lifecycle rule); start over.
+          parts.clear();
+          return null;
+        }
+
+        NodeList listed = listing.getElementsByTagName("Part");
+        for (int i = 0; i < listed.getLength(); i++) {
+          Element part = (Element) listed.item(i);
+          int number = Integer.parseInt(text(part, "PartNumber"));
+          String etag = text(part, "ETag");
+          if (etag != null && etag.equals(recorded.get(number)) &&
+              Long.parseLong(text(part, "Size")) == partSize) {
+            parts.put(number, etag);
+          }
+        }
+        marker = "true".equals(text(listing.getDocumentElement(), "IsTruncated")) ?
+            text(listing.getDocumentElement(), "NextPartNumberMarker") : null;
+      } while (marker != null);
+      return id;
+    }
+
+    @Override
+    public long getResumeOffset() {
+      return resumeOffset;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+      checkFailure();
+      while (length > 0) {
+        if (buffer == null) {
+          buffer = new byte[partSize];
+        }
+        int copied = Math.min(length, partSize - buffered);
+        System.arraycopy(data, offset, buffer, buffered, copied);
+        buffered += copied;
+        offset += copied;
+        length -= copied;
+        if (buffered == partSize) {
+          submitPart();
+        }
+      }
+    }
+
+    /**
+     * Hands the filled part to an uploader thread, waiting for a free one if needed.
+     *
+     * @throws IOException if waiting is interrupted.
+     */
+    private void submitPart() throws IOException {
+      try {
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting to upload a part");
+      }
+
+      final byte[] data = buffer;
+      final int length = buffered;
+      final int number = nextPart++;
+      buffer = null;
+      buffered = 0;
+      uploaders.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            uploadPart(number, data, length);
+          } catch (IOException e) {
+            if (failure == null) {
+              failure = e;
+            }
+          } finally {
+            inFlight.release();
+          }
+        }
+      });
+    }
+
+    /**
+     * Uploads a part and records it. Run on an uploader thread.
+     *
+     * @param number Part number.
+     * @param data Data of the part.
+     * @param length Length of the part.
+     * @throws IOException if the part can't be uploaded or recorded.
+     */
+    private void uploadPart(int number, byte[] data, int length) throws IOException {
+      Map<String, String> query = new HashMap<>();
+      query.put("partNumber", Integer.toString(number));
+      query.put("uploadId", uploadId);
+      String etag;
+      try (Response response = request("PUT", key, query, data, length)) {
+        etag = response.connection.getHeaderField("ETag");
+      }
+      if (etag == null) {
+        throw new IOException("The object store didn't return an ETag for part " + number);
+      }
+      synchronized (this) {
+        parts.put(number, etag);
+        Files.write(state, (number + " " + etag + "\n").getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+      }
+    }
+
+    /**
+     * Waits until no parts are in flight.
+     *
+     * @throws IOException if waiting is interrupted.
+     */
+    private void drain() throws IOException {
+      try {
+        inFlight.acquire(threads);
+        inFlight.release(threads);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for parts to upload");
+      }
+    }
+
+    /**
+     * Throws the failure of a part upload, if there was one.
+     *
+     * @throws IOException the failure.
+     */
+    private void checkFailure() throws IOException {
+      if (failure != null) {
+        throw new IOException("Uploading " + key + " failed", failure);
+      }
+    }
+
+    @Override
+    public void commit() throws IOException {
+      // The last part may be short (or empty, if the object is).
+      if (buffered > 0 || nextPart == 1) {
+        if (buffer == null) {
+          buffer = new byte[0];
+        }
+        submitPart();
+      }
+      drain();
+      checkFailure();
+
+      StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+      synchronized (this) {
+        for (Map.Entry<Integer, String> part : parts.entrySet()) {
+          xml.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><ETag>")
+              .append(part.getValue().replace("\"", "&quot;")).append("</ETag></Part>");
+        }
+      }
+      xml.append("</CompleteMultipartUpload>");
+      byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+      Map<String, String> query = new HashMap<>();
+      query.put("uploadId", uploadId);
+      try (Response response = request("POST", key, query, body, body.length)) {
+        // Completing can fail after the store has already answered 200.
+        Document result = response.readXml();
+        if ("Error".equals(result.getDocumentElement().getNodeName())) {
+          throw new IOException("Completing the upload of " + key + " failed: " +
+              text(result.getDocumentElement(), "Message"));
+        }
+      }
+      Files.deleteIfExists(state);
+      open = false;
+    }
+
+    @Override
+    public void abort() throws IOException {
+      drain();
+      open = false;
+      discardUpload(key);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (open) {
+        // The finished parts stay recorded for the next upload of the key to resume.
+        drain();
+        open = false;
+      }
+    }
+  }
+}
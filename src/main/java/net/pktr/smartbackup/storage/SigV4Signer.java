@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs S3 requests with AWS Signature Version 4, using only the JDK.
+ *
+ * <p>Requests are signed with the {@code host}, {@code x-amz-date} and
+ * {@code x-amz-content-sha256} headers, which is what every S3-compatible store accepts.</p>
+ */
+class SigV4Signer {
+  /** Hash of an empty payload. */
+  static final String EMPTY_PAYLOAD_HASH =
+      "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+  private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+  private static final String SERVICE = "s3";
+
+  private final String accessKey;
+  private final String secretKey;
+  private final String region;
+
+  /**
+   * Sets up a signer.
+   *
+   * @param accessKey Access key ID.
+   * @param secretKey Secret access key.
+   * @param region Region of the bucket (eg {@code us-east-1}).
+   */
+  SigV4Signer(String accessKey, String secretKey, String region) {
+    this.accessKey = accessKey;
+    this.secretKey = secretKey;
+    this.region = region;
+  }
+
+  /**
+   * Signs a request.
+   *
+   * @param method HTTP method.
+   * @param host Value of the {@code host} header (with the port if it isn't the default).
+   * @param encodedPath URI-encoded path of the request.
+   * @param query Query parameters (not encoded), or an empty map.
+   * @param payloadHash Hex SHA-256 of the request body.
+   * @param time Time of the request.
+   * @return Headers to add to the request, including {@code Authorization}.
+   */
+  Map<String, String> sign(String method, String host, String encodedPath,
+      Map<String, String> query, String payloadHash, Date time) {
+    SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String amzDate = dateTimeFormat.format(time);
+    String date = amzDate.substring(0, 8);
+
+    TreeMap<String, String> headers = new TreeMap<>();
+    headers.put("host", host);
+    headers.put("x-amz-content-sha256", payloadHash);
+    headers.put("x-amz-date", amzDate);
+
+    StringBuilder canonicalHeaders = new StringBuilder();
+    StringBuilder signedHeaders = new StringBuilder();
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim())
+          .append('\n');
+      if (signedHeaders.length() > 0) {
+        signedHeaders.append(';');
+      }
+      signedHeaders.append(header.getKey());
+    }
+
+    String canonicalRequest = method + "\n" + encodedPath + "\n" + canonicalQuery(query) + "\n" +
+        canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+
+    String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+    String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" +
+        hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+    byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+    key = hmac(key, region);
+    key = hmac(key, SERVICE);
+    key = hmac(key, "aws4_request");
+    String signature = hex(hmac(key, stringToSign));
+
+    headers.remove("host");
+    headers.put("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope +
+        ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+    return headers;
+  }
+
+  /**
+   * Builds the canonical (sorted and encoded) query string.
+   *
+   * @param query Query parameters, not encoded.
+   * @return Canonical query string, also usable as the request's query string.
+   */
+  static String canonicalQuery(Map<String, String> query) {
+    TreeMap<String, String> sorted = new TreeMap<>();
+    for (Map.Entry<String, String> parameter : query.entrySet()) {
+      sorted.put(encode(parameter.getKey(), true), encode(parameter.getValue(), true));
+    }
+    StringBuilder canonical = new StringBuilder();
+    for (Map.Entry<String, String> parameter : sorted.entrySet()) {
+      if (canonical.length() > 0) {
+        canonical.append('&');
+      }
+      canonical.append(parameter.getKey()).append('=').append(parameter.getValue());
+    }
+    return canonical.toString();
+  }
+
+  /**
+   * URI-encodes a string the way SigV4 expects (RFC 3986 unreserved characters are kept).
+   *
+   * @param value String to encode.
+   * @param encodeSlash Whether to encode {@code /} (everywhere but in paths).
+   * @return Encoded string.
+   */
+  static String encode(String value, boolean encodeSlash) {
+    StringBuilder encoded = new StringBuilder();
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      char c = (char) (b & 0xFF);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+          c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+        encoded.append(c);
+      } else {
+        encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+            .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+      }
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * Hashes data with SHA-256.
+   *
+   * @param data Data to hash.
+   * @param offset Start of the data.
+   * @param length Length of the data.
+   * @return Hex SHA-256 of the data.
+   */
+  static String sha256Hex(byte[] data, int offset, int length) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(data, offset, length);
+      return hex(digest.digest());
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("SHA-256 isn't available", e);
+    }
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("SHA-256 isn't available", e);
+    }
+  }
+
+  private static byte[] hmac(byte[] key, String data) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HMAC-SHA256 isn't available", e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Somewhere backups are stored, as named objects.
+ *
+ * <p>Keys are {@code /}-separated names relative to the backend's root (a folder or a bucket
+ * prefix). Objects are written through an {@link ObjectUpload}, which streams the data and can
+ * pick up an upload that was interrupted.</p>
+ *
+ * <p>Backends are used from backup threads, and must be safe to use from several threads at
+ * once.</p>
+ */
+public interface StorageBackend extends Closeable {
+  /**
+   * Describes where this backend stores objects, for messages.
+   *
+   * @return Description (eg a folder or a bucket URL).
+   */
+  String getDescription();
+
+  /**
+   * Starts (or resumes) writing an object.
+   *
+   * <p>If an earlier upload of the same key was interrupted, the returned upload continues it;
+   * see {@link ObjectUpload#getResumeOffset}.</p>
+   *
+   * @param key Key of the object.
+   * @return Upload to write the object's data to.
+   * @throws IOException if the upload can't be started.
+   */
+  ObjectUpload upload(String key) throws IOException;
+
+  /**
+   * Throws away an interrupted upload of a key, if there is one.
+   *
+   * @param key Key of the object.
+   * @throws IOException if the upload can't be cleaned up.
+   */
+  void discardUpload(String key) throws IOException;
+
+  /**
+   * Reads an object.
+   *
+   * @param key Key of the object.
+   * @return Stream of the object's data.
+   * @throws java.io.FileNotFoundException if there is no such object.
+   * @throws IOException if the object can't be read.
+   */
+  InputStream get(String key) throws IOException;
+
+  /**
+   * Lists the objects whose keys start with a prefix.
+   *
+   * @param prefix Prefix of the keys, or an empty string for every object.
+   * @return Objects sorted by key.
+   * @throws IOException if the objects can't be listed.
+   */
+  List<StoredObject> list(String prefix) throws IOException;
+
+  /**
+   * Deletes an object. Nothing happens if it doesn't exist.
+   *
+   * @param key Key of the object.
+   * @throws IOException if the object can't be deleted.
+   */
+  void delete(String key) throws IOException;
+}
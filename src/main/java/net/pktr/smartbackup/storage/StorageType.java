@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.storage;
+
+import net.pktr.smartbackup.BackupConfiguration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** The kinds of storage backends backups can be uploaded to. */
+public enum StorageType {
+  /** Backups stay in the backup folder only. */
+  NONE("none"),
+  /** Backups are also copied to another folder (eg a mounted network share). */
+  LOCAL("local"),
+  /** Backups are also uploaded to an S3-compatible object store. */
+  S3("s3");
+
+  /** Name of the type as used in the configuration. */
+  private final String name;
+
+  StorageType(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the name of this type as used in the configuration.
+   *
+   * @return Lowercase name of the type.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the names of all types.
+   *
+   * @return Names of the types, in declaration order.
+   */
+  public static String[] getNames() {
+    StorageType[] types = values();
+    String[] names = new String[types.length];
+    for (int i = 0; i < types.length; i++) {
+      names[i] = types[i].name;
+    }
+    return names;
+  }
+
+  /**
+   * Looks up a type by name.
+   *
+   * @param name Name of the type.
+   * @return The type.
+   * @throws IllegalArgumentException if there is no type with that name.
+   */
+  public static StorageType fromName(String name) {
+    for (StorageType type : values()) {
+      if (type.name.equalsIgnoreCase(name)) {
+        return type;
+      }
+    }
+    throw new IllegalArgumentException("Unknown storage backend: " + name);
+  }
+
+  /**
+   * Opens the storage backend set up in the configuration.
+   *
+   * @param config Configuration to read the backend's settings from.
+   * @param stateDir Folder the backend may keep the state of unfinished uploads in.
+   * @return The backend, or {@code null} if backups aren't uploaded anywhere.
+   * @throws IOException if the backend's settings are invalid.
+   */
+  public static StorageBackend open(BackupConfiguration config, Path stateDir)
+      throws IOException {
+    switch (config.getStorageType()) {
+      case LOCAL:
+        return new LocalStorage(Paths.get(config.getStorageLocalPath()));
+      case S3:
+        return new S3Storage(config.getS3Endpoint(), config.getS3Region(), config.getS3Bucket(),
+            config.getS3Prefix(), config.getS3AccessKey(), config.getS3SecretKey(),
+            config.getUploadPartSize(), config.getUploadThreads(), stateDir);
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 John "LuaMilkshake" Marion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pktr.smartbackup.storage;
+
+/** An object listed by a {@link StorageBackend}. */
+public class StoredObject {
+  /** Key of the object. */
+  private final String key;
+  /** Size of the object in bytes. */
+  private final long size;
+  /** Last modification time of the object, in milliseconds since the epoch. */
+  private final long lastModified;
+
+  public StoredObject(String key, long size, long lastModified) {
+    this.key = key;
+    this.size = size;
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * Gets the key of the object.
+   *
+   * @return Key of the object.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Gets the size of the object.
+   *
+   * @return Size in bytes.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets when the object was last modified.
+   *
+   * @return Modification time in milliseconds since the epoch.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+}